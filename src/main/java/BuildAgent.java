@@ -0,0 +1,302 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ Build agent: leases jobs from a coordinator, builds them and reports their outcome (see BuildCoordinator).
+
+ While a build runs, its log is sent to the coordinator in batches and the lease is renewed by heartbeats. A build
+ whose lease is lost, because the job was superseded or the coordinator gave the job to another agent, is stopped
+ by interrupting it, which kills its Maven process. Several agents can run on the same host, each with its own
+ workspaces.
+*/
+public class BuildAgent implements Runnable {
+
+    // Time between two batches of log lines sent to the coordinator
+    private static final long LOG_FLUSH_MILLIS = 200;
+    // Time waited before leasing again after the coordinator could not be reached
+    private static final long RETRY_MILLIS = 2000;
+
+    /**
+     * Builds a leased job.
+     */
+    public interface Builder {
+        /**
+         * @param jobId     Id of the job on the coordinator.
+         * @param data      Commit information of the job.
+         * @param workspace Directory, absent, to check the commit out to.
+         * @param log       Receives the lines of the log of the build.
+         * @return          The compilation and test outcomes.
+         * @throws Exception if the build could not be carried out.
+         */
+        BuildResult build(long jobId, HashMap<String, String> data, File workspace, Consumer<String> log)
+                throws Exception;
+    }
+
+    private final URI coordinator;
+    private final String name;
+    private final String token;
+    private final File workspaceRoot;
+    private final Builder builder;
+    private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+    private final ScheduledExecutorService timer;
+    private volatile boolean stopped;
+
+    /**
+     * @param coordinator   Base URL of the coordinator, e.g. "http://ci.example.com:8026".
+     * @param name          Name of this agent, shown in the logs of its builds.
+     * @param token         Token of the coordinator ("ci.agents.token"), null if it has none.
+     * @param workspaceRoot Directory under which the workspaces of the builds are created.
+     * @param builder       Builds the leased jobs.
+     */
+    public BuildAgent(URI coordinator, String name, String token, File workspaceRoot, Builder builder) {
+        this.coordinator = coordinator;
+        this.name = name;
+        this.token = token;
+        this.workspaceRoot = workspaceRoot;
+        this.builder = builder;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ci-agent-" + name);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Creates an agent building the jobs like the server does, configured from system properties: "ci.agent.name"
+     * (default: host name and process id), "ci.agent.token" and "ci.agent.workspace" (default: "./agent_workspaces").
+     * The checkout, Maven and local repository settings are those of the server, e.g. "ci.mirrors" or "ci.build.mode".
+     *
+     * @param coordinator   Base URL of the coordinator.
+     * @return              The agent.
+     */
+    public static BuildAgent fromSystemProperties(URI coordinator) {
+        ContinuousIntegration ci = new ContinuousIntegration();
+        MirrorCache mirrorCache = MirrorCache.fromSystemProperties();
+        LocalRepository localRepository = LocalRepository.fromSystemProperties();
+        Builder builder = (jobId, data, workspace, log) -> {
+            try (MirrorCache.Lease lease = mirrorCache.checkout(data.get("clone_url"), data.get("commit_id"),
+                    workspace.getPath())) {
+                log.accept("[CI] Checked out " + data.get("commit_id"));
+                LocalRepository.Session repository = localRepository.open(jobId);
+                BuildResult result = null;
+                try {
+                    result = ci.buildProject(data.get("clone_url"), workspace.getPath(),
+                            log.andThen(repository::consumeLine), repository.mavenProperties(), null);
+                } finally {
+                    repository.close(result != null && result.getTestStatus());
+                }
+                return result;
+            }
+        };
+        return new BuildAgent(coordinator, System.getProperty("ci.agent.name",
+                ManagementFactory.getRuntimeMXBean().getName()), System.getProperty("ci.agent.token"),
+                new File(System.getProperty("ci.agent.workspace", "agent_workspaces")), builder);
+    }
+
+    /**
+     * Leases and builds jobs until stopped.
+     */
+    @Override
+    public void run() {
+        while (!stopped) {
+            try {
+                HttpResponse<String> response = post("/agents/lease", new JSONObject().put("agent", name).toString());
+                if (response.statusCode() == 200) {
+                    runLease(new JSONObject(response.body()));
+                } else if (response.statusCode() != 204) {
+                    System.err.println("Agent " + name + ": lease answered " + response.statusCode() + " "
+                            + response.body());
+                    Thread.sleep(RETRY_MILLIS);
+                }
+            } catch (IOException e) {
+                System.err.println("Agent " + name + ": coordinator unreachable: " + e.getMessage());
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops leasing jobs, the running build is completed.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Builds the job of a lease while renewing the lease and sending the log, then reports its outcome.
+     *
+     * @param lease The lease, as answered by the coordinator.
+     */
+    void runLease(JSONObject lease) {
+        String leasePath = "/agents/leases/" + lease.getString("lease");
+        long jobId = lease.getLong("job");
+        HashMap<String, String> data = new HashMap<>();
+        JSONObject json = lease.getJSONObject("data");
+        for (String key : json.keySet()) {
+            data.put(key, json.isNull(key) ? null : json.getString(key));
+        }
+        File workspace = new File(workspaceRoot, "job-" + jobId);
+        LinkedBlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        Thread building = Thread.currentThread();
+        boolean[] lost = {false};
+        Runnable stop = () -> {
+            synchronized (lost) {
+                if (!lost[0]) {
+                    lost[0] = true;
+                    System.err.println("Agent " + name + ": lease of job " + jobId + " lost, build stopped");
+                    building.interrupt();
+                }
+            }
+        };
+        ScheduledFuture<?> heartbeat = timer.scheduleWithFixedDelay(() -> {
+            if (!send(leasePath + "/heartbeat", "")) {
+                stop.run();
+            }
+        }, lease.getLong("heartbeat_ms"), lease.getLong("heartbeat_ms"), TimeUnit.MILLISECONDS);
+        ScheduledFuture<?> logSender = timer.scheduleWithFixedDelay(() -> {
+            if (!sendLog(leasePath, lines)) {
+                stop.run();
+            }
+        }, LOG_FLUSH_MILLIS, LOG_FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        JSONObject outcome = new JSONObject();
+        try {
+            FileUtils.deleteDirectory(workspace);
+            lines.add("[CI] Agent " + name + " building job " + jobId);
+            BuildResult result = builder.build(jobId, data, workspace, lines::add);
+            outcome.put("compile_status", result.getCompileStatus())
+                    .put("test_status", result.getTestStatus())
+                    .put("test_summary", result.getTestSummary())
+                    .put("timed_out", result.isTimedOut())
+                    .put("tests", testCases(workspace));
+        } catch (Exception e) {
+            if (!Thread.currentThread().isInterrupted()) {
+                e.printStackTrace();
+            }
+            outcome.put("error", String.valueOf(e.getMessage()));
+        } finally {
+            heartbeat.cancel(false);
+            logSender.cancel(false);
+            try {
+                FileUtils.deleteDirectory(workspace);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        boolean wasLost;
+        synchronized (lost) {
+            wasLost = lost[0];
+            lost[0] = true;
+        }
+        // the build is not interrupted anymore, the interrupt of a lost lease must not stop the next lease
+        Thread.interrupted();
+        // the last lines, then the outcome
+        if (!wasLost && sendLog(leasePath, lines)) {
+            send(leasePath + "/result", outcome.toString());
+        }
+    }
+
+    /**
+     * @param workspace The built project.
+     * @return          Its test cases, as [status, millis, class, name] arrays.
+     */
+    private static JSONArray testCases(File workspace) throws IOException {
+        JSONArray tests = new JSONArray();
+        for (File directory : SurefireReports.reportDirectories(workspace)) {
+            for (File report : SurefireReports.reportFiles(directory)) {
+                SurefireReports.readTestCases(report, testCase -> tests.put(new JSONArray()
+                        .put(testCase.getStatus().name())
+                        .put(testCase.getTimeMillis())
+                        .put(testCase.getClassName())
+                        .put(testCase.getName())));
+            }
+        }
+        return tests;
+    }
+
+    /**
+     * Sends the lines of the log waiting to be sent.
+     *
+     * @return false if the lease was lost.
+     */
+    private synchronized boolean sendLog(String leasePath, LinkedBlockingQueue<String> lines) {
+        List<String> batch = new ArrayList<>();
+        lines.drainTo(batch);
+        // a line holding a line break would be split in two
+        return batch.isEmpty() || send(leasePath + "/log", String.join("\n", batch));
+    }
+
+    /**
+     * Posts to a lease, retrying while the coordinator is unreachable or fails (5xx).
+     *
+     * @return false if the lease was lost, or refused (4xx, e.g. 401 for a wrong token): retrying would not help.
+     */
+    private boolean send(String path, String body) {
+        while (true) {
+            try {
+                int status = post(path, body).statusCode();
+                if (status == 200) {
+                    return true;
+                }
+                System.err.println("Agent " + name + ": " + path + " answered " + status);
+                if (status >= 400 && status < 500) {
+                    return false;
+                }
+            } catch (IOException e) {
+                System.err.println("Agent " + name + ": coordinator unreachable: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return true;
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return true;
+            }
+        }
+    }
+
+    private HttpResponse<String> post(String path, String body) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(coordinator.resolve(path))
+                .header("Content-Type", "text/plain;charset=utf-8")
+                .POST(HttpRequest.BodyPublishers.ofString(body));
+        if (token != null) {
+            request.header(BuildCoordinator.TOKEN_HEADER, token);
+        }
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    // used to start an agent in command line
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("Usage: BuildAgent <coordinator URL>");
+            return;
+        }
+        fromSystemProperties(URI.create(args[0])).run();
+    }
+}
@@ -0,0 +1,279 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.json.JSONObject;
+
+/**
+ Outcomes of past successful builds, keyed by the git tree that was built and the build configuration.
+
+ Two commits with the same tree, e.g. a revert or a branch pushed again, have the same sources: the second one is not
+ built again, its outcome and log are those of the first one. Each entry is a ".json" file holding the outcome, next to
+ the compressed log of the build. Entries older than the maximum age are ignored and deleted, and the oldest entries
+ are deleted when the cache exceeds its disk budget.
+*/
+public class BuildCache {
+
+    /**
+     * Outcome of a cached build.
+     */
+    public static final class Entry {
+        private final BuildResult result;
+        private final String commitId;
+        private final long savedAt;
+        private final File log;
+
+        private Entry(BuildResult result, String commitId, long savedAt, File log) {
+            this.result = result;
+            this.commitId = commitId;
+            this.savedAt = savedAt;
+            this.log = log;
+        }
+
+        public BuildResult getResult() {
+            return result;
+        }
+
+        /**
+         * @return The commit whose build is cached.
+         */
+        public String getCommitId() {
+            return commitId;
+        }
+
+        public long getSavedAt() {
+            return savedAt;
+        }
+
+        /**
+         * Replays the log of the cached build.
+         *
+         * @param output    Receives the log line by line.
+         * @throws IOException if the log cannot be read.
+         */
+        public void replayLog(Consumer<String> output) throws IOException {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(new FileInputStream(log)), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    output.accept(line);
+                }
+            }
+        }
+    }
+
+    private final File root;
+    private final long maxAgeMillis;
+    private final long budgetBytes;
+    private final Set<String> excludedRepositories;
+
+    /**
+     * @param root                  Directory holding the entries.
+     * @param maxAgeMillis          Age after which an entry is not used anymore.
+     * @param budgetBytes           Disk space the entries may use before the oldest ones are deleted.
+     * @param excludedRepositories  Repositories ("owner/name") whose builds are never cached.
+     */
+    public BuildCache(File root, long maxAgeMillis, long budgetBytes, Set<String> excludedRepositories) {
+        this.root = root;
+        this.maxAgeMillis = maxAgeMillis;
+        this.budgetBytes = budgetBytes;
+        this.excludedRepositories = excludedRepositories;
+    }
+
+    /**
+     * Creates a build cache configured from the system properties "ci.cache" (directory, default: build_cache),
+     * "ci.cache.max.age" (in hours, default: 168), "ci.cache.budget.mb" (disk budget in megabytes, default: 512) and
+     * "ci.cache.exclude" (comma separated "owner/name" of the repositories not to cache).
+     * Returns null if "ci.cache.enabled" is false.
+     *
+     * @return The configured build cache, or null if disabled.
+     */
+    public static BuildCache fromSystemProperties() {
+        if (!Boolean.parseBoolean(System.getProperty("ci.cache.enabled", "true"))) {
+            return null;
+        }
+        Set<String> excluded = new HashSet<>();
+        for (String repository : System.getProperty("ci.cache.exclude", "").split(",")) {
+            if (!repository.trim().isEmpty()) {
+                excluded.add(repository.trim());
+            }
+        }
+        return new BuildCache(new File(System.getProperty("ci.cache", "build_cache")),
+                Long.getLong("ci.cache.max.age", 168L) * 3600 * 1000,
+                Long.getLong("ci.cache.budget.mb", 512L) * 1024 * 1024,
+                excluded);
+    }
+
+    /**
+     * @param repository    The repository, "owner/name".
+     * @return              true if the builds of the repository are cached.
+     */
+    public boolean isEnabled(String repository) {
+        return !excludedRepositories.contains(repository);
+    }
+
+    /**
+     * @param checkout  A checkout of the commit, e.g. made by the MirrorCache.
+     * @param commitId  The commit.
+     * @return          The id of the tree of the commit.
+     * @throws IOException if the commit cannot be read.
+     */
+    public static String treeId(File checkout, String commitId) throws IOException {
+        try (Git git = Git.open(checkout); RevWalk walk = new RevWalk(git.getRepository())) {
+            ObjectId id = git.getRepository().resolve(commitId);
+            if (id == null) {
+                throw new IOException("Commit " + commitId + " not found in " + checkout);
+            }
+            return walk.parseCommit(id).getTree().name();
+        }
+    }
+
+    /**
+     * @param settings  The settings a build outcome depends on besides the sources, e.g. the Java version.
+     * @return          A hash of the settings.
+     */
+    public static String configHash(String... settings) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(String.join("\n", Arrays.asList(settings)).getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", hash[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param treeId        The built tree.
+     * @param configHash    Hash of the build configuration.
+     * @return              The cached outcome of the build of the tree, null if none or too old.
+     */
+    public Entry get(String treeId, String configHash) {
+        String key = key(treeId, configHash);
+        File json = new File(root, key + ".json");
+        File log = new File(root, key + ".log.gz");
+        try {
+            JSONObject entry = new JSONObject(new String(Files.readAllBytes(json.toPath()), StandardCharsets.UTF_8));
+            long savedAt = entry.getLong("saved_at");
+            if (System.currentTimeMillis() - savedAt > maxAgeMillis || !log.exists()) {
+                delete(key);
+                return null;
+            }
+            return new Entry(new BuildResult(entry.getBoolean("compile_status"), entry.getBoolean("test_status")),
+                    entry.getString("commit_id"), savedAt, log);
+        } catch (IOException | RuntimeException e) {
+            // no entry, or a corrupt one which is replaced on the next build
+            return null;
+        }
+    }
+
+    /**
+     * Stores the outcome of a build, then deletes the oldest entries if the cache exceeds its budget.
+     *
+     * @param treeId        The built tree.
+     * @param configHash    Hash of the build configuration.
+     * @param commitId      The built commit.
+     * @param result        The outcome of the build.
+     * @param log           The log of the build, read to its end.
+     * @throws IOException if the entry cannot be written.
+     */
+    public void put(String treeId, String configHash, String commitId, BuildResult result, InputStream log) throws IOException {
+        String key = key(treeId, configHash);
+        Files.createDirectories(root.toPath());
+        CompressedLog.write(log, new File(root, key + ".log.gz"));
+        JSONObject entry = new JSONObject()
+                .put("tree_id", treeId)
+                .put("config", configHash)
+                .put("commit_id", commitId)
+                .put("compile_status", result.getCompileStatus())
+                .put("test_status", result.getTestStatus())
+                .put("saved_at", System.currentTimeMillis());
+        File json = new File(root, key + ".json");
+        File tmp = new File(root, key + ".json.part");
+        Files.write(tmp.toPath(), entry.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), json.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        evict();
+    }
+
+    /**
+     * @return Disk space currently used by the entries, in bytes.
+     */
+    public long size() {
+        long total = 0;
+        for (File json : listEntries()) {
+            total += entrySize(json);
+        }
+        return total;
+    }
+
+    /**
+     * Deletes the expired entries, then the oldest ones until the cache fits in the disk budget.
+     */
+    private void evict() {
+        List<File> entries = listEntries();
+        entries.sort(Comparator.comparingLong(File::lastModified));
+        long now = System.currentTimeMillis();
+        long total = 0;
+        List<File> kept = new ArrayList<>();
+        for (File json : entries) {
+            if (now - json.lastModified() > maxAgeMillis) {
+                delete(keyOf(json));
+            } else {
+                kept.add(json);
+                total += entrySize(json);
+            }
+        }
+        for (int i = 0; i < kept.size() && total > budgetBytes; i++) {
+            total -= entrySize(kept.get(i));
+            delete(keyOf(kept.get(i)));
+        }
+    }
+
+    private List<File> listEntries() {
+        File[] files = root.listFiles((dir, name) -> name.endsWith(".json"));
+        return files == null ? new ArrayList<>() : new ArrayList<>(Arrays.asList(files));
+    }
+
+    private long entrySize(File json) {
+        String key = keyOf(json);
+        return json.length() + new File(root, key + ".log.gz").length()
+                + CompressedLog.indexFile(new File(root, key + ".log.gz")).length();
+    }
+
+    private void delete(String key) {
+        File log = new File(root, key + ".log.gz");
+        new File(root, key + ".json").delete();
+        log.delete();
+        CompressedLog.indexFile(log).delete();
+    }
+
+    private static String keyOf(File json) {
+        return json.getName().substring(0, json.getName().length() - ".json".length());
+    }
+
+    private static String key(String treeId, String configHash) {
+        return treeId + "-" + configHash;
+    }
+}
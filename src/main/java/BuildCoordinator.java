@@ -0,0 +1,467 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ Hands the builds of the queue over to build agents, processes running on other hosts (or on the same one).
+
+ A worker of the BuildQueue does not build its job itself: it offers the job to the agents and waits for the outcome,
+ so the number of workers bounds the number of builds running on the agents. Agents poll the coordinator over HTTP:
+
+   POST /agents/lease                       leases the next job, waiting for one at most the poll time (204 if none)
+   POST /agents/leases/{lease}/heartbeat    keeps the lease alive
+   POST /agents/leases/{lease}/log          appends lines to the log of the job
+   POST /agents/leases/{lease}/result       reports the outcome of the build
+
+ A lease that is lost, because the job was cancelled or the lease expired, is answered 410 and its agent stops the
+ build. A lease is lost when no heartbeat renewed it within the lease timeout: its agent is presumed dead and the job
+ is offered again, until it has been leased a number of times.
+*/
+public class BuildCoordinator {
+
+    /**
+     * Header carrying the token shared by the coordinator and its agents.
+     */
+    public static final String TOKEN_HEADER = "X-CI-Agent-Token";
+
+    /**
+     * What an agent reported for a build.
+     */
+    public static final class Outcome {
+        private final String agent;
+        private final BuildResult result;
+        private final List<SurefireReports.TestCase> testCases;
+
+        Outcome(String agent, BuildResult result, List<SurefireReports.TestCase> testCases) {
+            this.agent = agent;
+            this.result = result;
+            this.testCases = testCases;
+        }
+
+        /**
+         * @return Name of the agent that ran the build.
+         */
+        public String getAgent() {
+            return agent;
+        }
+
+        public BuildResult getResult() {
+            return result;
+        }
+
+        /**
+         * @return The test cases read from the Surefire reports of the build.
+         */
+        public List<SurefireReports.TestCase> getTestCases() {
+            return testCases;
+        }
+    }
+
+    private static final class Offer {
+        final BuildJob job;
+        final Consumer<String> log;
+        final Runnable onLeased;
+        final CompletableFuture<Outcome> outcome = new CompletableFuture<>();
+        int attempts;
+
+        Offer(BuildJob job, Consumer<String> log, Runnable onLeased) {
+            this.job = job;
+            this.log = log;
+            this.onLeased = onLeased;
+        }
+    }
+
+    private static final class Lease {
+        final String id = UUID.randomUUID().toString();
+        final Offer offer;
+        final String agent;
+        final long leasedAt = System.currentTimeMillis();
+        volatile long renewedAt = leasedAt;
+
+        Lease(Offer offer, String agent) {
+            this.offer = offer;
+            this.agent = agent;
+        }
+    }
+
+    private final long heartbeatMillis;
+    private final long leaseTimeoutMillis;
+    private final long pollMillis;
+    private final int maxAttempts;
+    private final String token;
+    private final LinkedBlockingDeque<Offer> offers = new LinkedBlockingDeque<>();
+    private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService reaper;
+
+    /**
+     * @param heartbeatMillis       Interval between the heartbeats of an agent.
+     * @param leaseTimeoutMillis    Time after which a lease not renewed by a heartbeat is lost.
+     * @param pollMillis            Maximum time a lease request waits for a job.
+     * @param maxAttempts           Number of times a job is leased before its build is given up.
+     * @param token                 Token the agents must send, null to accept any agent, e.g. when the agent
+     *                              endpoints cannot be reached from outside.
+     */
+    public BuildCoordinator(long heartbeatMillis, long leaseTimeoutMillis, long pollMillis, int maxAttempts,
+            String token) {
+        if (leaseTimeoutMillis <= heartbeatMillis || maxAttempts < 1) {
+            throw new IllegalArgumentException("the lease timeout must be longer than the heartbeat interval");
+        }
+        this.heartbeatMillis = heartbeatMillis;
+        this.leaseTimeoutMillis = leaseTimeoutMillis;
+        this.pollMillis = pollMillis;
+        this.maxAttempts = maxAttempts;
+        this.token = token;
+        this.reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ci-lease-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1, heartbeatMillis / 2);
+        reaper.scheduleWithFixedDelay(this::expireLeases, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates the coordinator of the server if builds run on agents ("ci.agents" system property, default: false),
+     * configured from "ci.agents.heartbeat.ms" (default: 5000), "ci.agents.lease.timeout.ms" (default: 3 heartbeats),
+     * "ci.agents.poll.ms" (default: 20000), "ci.agents.attempts" (default: 3) and "ci.agents.token", which is required:
+     * the agent endpoints are served on the port of the webhook, anyone reaching it could report a build otherwise.
+     *
+     * @return The coordinator, null if the server builds the jobs itself.
+     * @throws IllegalStateException if builds run on agents and "ci.agents.token" is not set.
+     */
+    public static BuildCoordinator fromSystemProperties() {
+        if (!Boolean.getBoolean("ci.agents")) {
+            return null;
+        }
+        String token = System.getProperty("ci.agents.token");
+        if (token == null || token.isEmpty()) {
+            throw new IllegalStateException("ci.agents requires ci.agents.token, the token the build agents must send");
+        }
+        long heartbeat = Long.getLong("ci.agents.heartbeat.ms", 5000L);
+        return new BuildCoordinator(heartbeat, Long.getLong("ci.agents.lease.timeout.ms", 3 * heartbeat),
+                Long.getLong("ci.agents.poll.ms", 20000L), Integer.getInteger("ci.agents.attempts", 3), token);
+    }
+
+    /**
+     * Offers a job to the agents and waits for the outcome of its build, called by a worker of the build queue.
+     * A cancelled job, whose worker is interrupted, is withdrawn and its agent told to stop.
+     *
+     * @param job       The job.
+     * @param log       Receives the lines of the log sent by the agents.
+     * @param onLeased  Called each time an agent leases the job.
+     * @return          What the agent reported.
+     * @throws IOException if the build was given up, e.g. after its agents died, or an agent failed to run it.
+     * @throws InterruptedException if the job was cancelled while it waited.
+     */
+    public Outcome build(BuildJob job, Consumer<String> log, Runnable onLeased)
+            throws IOException, InterruptedException {
+        Offer offer = new Offer(job, log, onLeased);
+        offers.add(offer);
+        try {
+            return offer.outcome.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            offer.outcome.cancel(false);
+            offers.remove(offer);
+            leases.values().removeIf(lease -> lease.offer == offer);
+        }
+    }
+
+    /**
+     * Leases the next job to an agent, waiting for one at most the poll time.
+     *
+     * @param agent Name of the agent.
+     * @return      The lease, its job and the heartbeat interval, null if no job was offered in time.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public JSONObject lease(String agent) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + pollMillis;
+        for (long wait = pollMillis; wait > 0; wait = deadline - System.currentTimeMillis()) {
+            Offer offer = offers.poll(wait, TimeUnit.MILLISECONDS);
+            if (offer == null) {
+                return null;
+            }
+            Lease lease;
+            synchronized (offer) {
+                // withdrawn while it waited
+                if (offer.outcome.isDone()) {
+                    continue;
+                }
+                offer.attempts++;
+                lease = new Lease(offer, agent);
+                leases.put(lease.id, lease);
+            }
+            offer.log.accept("[CI] Build leased to agent " + agent + " (attempt " + offer.attempts + ")");
+            offer.onLeased.run();
+            return new JSONObject()
+                    .put("lease", lease.id)
+                    .put("heartbeat_ms", heartbeatMillis)
+                    .put("job", offer.job.getId())
+                    .put("data", new JSONObject(offer.job.getData()));
+        }
+        return null;
+    }
+
+    /**
+     * Renews a lease.
+     *
+     * @param leaseId   Id of the lease.
+     * @return          false if the lease was lost, the agent must stop the build.
+     */
+    public boolean heartbeat(String leaseId) {
+        Lease lease = leases.get(leaseId);
+        if (lease == null || lease.offer.outcome.isDone()) {
+            return false;
+        }
+        lease.renewedAt = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * Appends lines to the log of the job of a lease, which also renews the lease.
+     *
+     * @param leaseId   Id of the lease.
+     * @param lines     Lines of the log.
+     * @return          false if the lease was lost, the lines are dropped.
+     */
+    public boolean log(String leaseId, List<String> lines) {
+        Lease lease = leases.get(leaseId);
+        if (lease == null || !heartbeat(leaseId)) {
+            return false;
+        }
+        synchronized (lease.offer) {
+            // a lease lost while its lines were received must not write after the lines of the next agent
+            if (leases.get(leaseId) != lease) {
+                return false;
+            }
+            lines.forEach(lease.offer.log);
+        }
+        return true;
+    }
+
+    /**
+     * Ends a lease with the outcome of its build. An outcome that cannot be read fails the build, like an agent
+     * failing to build.
+     *
+     * @param leaseId   Id of the lease.
+     * @param outcome   The outcome sent by the agent: "compile_status", "test_status", "test_summary" and "tests",
+     *                  the test cases as [status, millis, class, name] arrays, or "error" if it failed to build.
+     * @return          false if the lease was lost, the outcome is ignored.
+     * @throws JSONException if the outcome is invalid, e.g. without "compile_status", once the lease is ended.
+     */
+    public boolean complete(String leaseId, JSONObject outcome) {
+        Lease lease = leases.get(leaseId);
+        if (lease == null) {
+            return false;
+        }
+        // read before the lease is ended, a lease ended without completing its offer would block its worker
+        Outcome result = null;
+        IOException failure = null;
+        RuntimeException invalid = null;
+        try {
+            if (outcome.has("error")) {
+                failure = new IOException("Agent " + lease.agent + " failed to build: " + outcome.get("error"));
+            } else {
+                result = readOutcome(lease.agent, outcome);
+            }
+        } catch (JSONException | IllegalArgumentException e) {
+            invalid = e;
+            failure = new IOException("Agent " + lease.agent + " sent an invalid result: " + e.getMessage());
+        }
+        synchronized (lease.offer) {
+            if (!leases.remove(leaseId, lease)) {
+                return false;
+            }
+        }
+        boolean completed = failure != null ? lease.offer.outcome.completeExceptionally(failure)
+                : lease.offer.outcome.complete(result);
+        if (invalid != null) {
+            throw invalid;
+        }
+        return completed;
+    }
+
+    private static Outcome readOutcome(String agent, JSONObject outcome) {
+        List<SurefireReports.TestCase> testCases = new ArrayList<>();
+        JSONArray tests = outcome.optJSONArray("tests");
+        for (int i = 0; tests != null && i < tests.length(); i++) {
+            JSONArray test = tests.getJSONArray(i);
+            testCases.add(new SurefireReports.TestCase(test.getString(2), test.getString(3),
+                    SurefireReports.Status.valueOf(test.getString(0)), test.getLong(1)));
+        }
+        BuildResult result = new BuildResult(outcome.getBoolean("compile_status"), outcome.getBoolean("test_status"),
+                outcome.optString("test_summary", null), outcome.optBoolean("timed_out"));
+        return new Outcome(agent, result, testCases);
+    }
+
+    /**
+     * Offers again the jobs of the leases not renewed within the lease timeout, or gives them up once they have been
+     * leased the maximum number of times.
+     */
+    void expireLeases() {
+        long now = System.currentTimeMillis();
+        for (Lease lease : leases.values()) {
+            if (now - lease.renewedAt <= leaseTimeoutMillis) {
+                continue;
+            }
+            Offer offer = lease.offer;
+            synchronized (offer) {
+                if (!leases.remove(lease.id, lease) || offer.outcome.isDone()) {
+                    continue;
+                }
+            }
+            offer.log.accept("[CI] Lost agent " + lease.agent + ", no heartbeat for " + (now - lease.renewedAt) + " ms");
+            if (offer.attempts >= maxAttempts) {
+                offer.outcome.completeExceptionally(new IOException("Build given up after " + offer.attempts
+                        + " lost agents"));
+            } else {
+                // ahead of the jobs that never ran
+                offers.addFirst(offer);
+            }
+        }
+    }
+
+    /**
+     * @return Number of jobs waiting for an agent.
+     */
+    public int getPendingCount() {
+        return offers.size();
+    }
+
+    /**
+     * @return Number of jobs leased to agents.
+     */
+    public int getLeasedCount() {
+        return leases.size();
+    }
+
+    /**
+     * @return A JSON summary of the jobs waiting for an agent and of the leases.
+     */
+    public JSONObject toJson() {
+        List<Lease> current = new ArrayList<>(leases.values());
+        current.sort((a, b) -> Long.compare(a.leasedAt, b.leasedAt));
+        JSONArray leaseArray = new JSONArray();
+        long now = System.currentTimeMillis();
+        for (Lease lease : current) {
+            leaseArray.put(new JSONObject()
+                    .put("agent", lease.agent)
+                    .put("job", lease.offer.job.getId())
+                    .put("attempt", lease.offer.attempts)
+                    .put("leased_at", lease.leasedAt)
+                    .put("heartbeat_age_ms", now - lease.renewedAt));
+        }
+        return new JSONObject()
+                .put("pending", getPendingCount())
+                .put("heartbeat_ms", heartbeatMillis)
+                .put("lease_timeout_ms", leaseTimeoutMillis)
+                .put("leases", leaseArray);
+    }
+
+    /**
+     * Stops expiring leases.
+     */
+    public void shutdown() {
+        reaper.shutdownNow();
+    }
+
+    /**
+     * Answers the requests of the agents, POST /agents/lease and POST /agents/leases/{lease}/{heartbeat|log|result}.
+     * Lost leases are answered 410, requests without the token of the coordinator 401.
+     */
+    public void handle(String path, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType("application/json;charset=utf-8");
+        if (token != null && !MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+                String.valueOf(request.getHeader(TOKEN_HEADER)).getBytes(StandardCharsets.UTF_8))) {
+            reply(response, HttpServletResponse.SC_UNAUTHORIZED, "invalid agent token");
+            return;
+        }
+        String[] parts = path.substring("/agents/".length()).split("/");
+        try {
+            if (parts.length == 1 && parts[0].equals("lease")) {
+                JSONObject lease = lease(readJson(request).optString("agent", request.getRemoteAddr()));
+                if (lease == null) {
+                    response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+                } else {
+                    response.setStatus(HttpServletResponse.SC_OK);
+                    response.getWriter().println(lease);
+                }
+                return;
+            }
+            if (parts.length != 3 || !parts[0].equals("leases")) {
+                reply(response, HttpServletResponse.SC_NOT_FOUND, "not found");
+                return;
+            }
+            boolean held;
+            switch (parts[2]) {
+                case "heartbeat":
+                    held = heartbeat(parts[1]);
+                    break;
+                case "log":
+                    held = log(parts[1], readLines(request));
+                    break;
+                case "result":
+                    held = complete(parts[1], readJson(request));
+                    break;
+                default:
+                    reply(response, HttpServletResponse.SC_NOT_FOUND, "not found");
+                    return;
+            }
+            if (held) {
+                reply(response, HttpServletResponse.SC_OK, null);
+            } else {
+                reply(response, HttpServletResponse.SC_GONE, "lease lost");
+            }
+        } catch (JSONException | IllegalArgumentException e) {
+            reply(response, HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        }
+    }
+
+    private static void reply(HttpServletResponse response, int status, String error) throws IOException {
+        response.setStatus(status);
+        response.getWriter().println(error == null ? new JSONObject() : new JSONObject().put("error", error));
+    }
+
+    private static JSONObject readJson(HttpServletRequest request) throws IOException {
+        String body = String.join("\n", readLines(request));
+        return body.isBlank() ? new JSONObject() : new JSONObject(new JSONTokener(body));
+    }
+
+    private static List<String> readLines(HttpServletRequest request) throws IOException {
+        BufferedReader reader = request.getReader();
+        if (reader == null) {
+            return Collections.emptyList();
+        }
+        List<String> lines = new ArrayList<>();
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            lines.add(line);
+        }
+        return lines;
+    }
+}
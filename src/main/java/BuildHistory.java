@@ -0,0 +1,316 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+
+/**
+ Store of the builds saved to the build history.
+
+ Each build is a JSON record appended as one line to "builds.jsonl" in the history directory, a log compressed
+ under "logs/" and a page rendered from the "builds/_template.html" template, compiled once, showing the last lines
+ of the log, with a gzip copy of the page ("builds/{commit}.html.gz") for the clients accepting gzip. Saving a
+ build appends its record and writes its page, whatever the size of the history. The offsets of the records are
+ kept in memory so that the index pages, newest builds first, are rendered on demand by reading only the records
+ they show.
+
+ A record is appended with a single write; a record cut short by a crash is dropped when the store is opened.
+ Pages are written to a temporary file then renamed over their final name.
+*/
+public class BuildHistory {
+
+    static final String RECORDS = "builds.jsonl";
+    // the slots of builds/_template.html
+    private static final List<String> PAGE_SLOTS = Arrays.asList("commit_id", "build_date", "build_logs",
+            "build_timeline");
+
+    private final Path directory;
+    private final int pageLogLines;
+    private final Template.Source pageTemplate;
+    private final TestHistory tests;
+    private final List<Long> offsets = new ArrayList<>();
+    private FileChannel records;
+
+    /**
+     * @param directory The history directory, holding the records, the template and the build pages.
+     */
+    public BuildHistory(File directory) {
+        this(directory, 100);
+    }
+
+    /**
+     * @param directory     The history directory, holding the records, the template, the build pages and logs.
+     * @param pageLogLines  Number of last lines of the log shown on the page of a build.
+     */
+    public BuildHistory(File directory, int pageLogLines) {
+        this(directory, pageLogLines, false);
+    }
+
+    /**
+     * @param directory         The history directory, holding the records, the template, the build pages and logs.
+     * @param pageLogLines      Number of last lines of the log shown on the page of a build.
+     * @param reloadTemplate    true to compile the template again when it is modified, false to compile it once.
+     */
+    public BuildHistory(File directory, int pageLogLines, boolean reloadTemplate) {
+        this.directory = directory.toPath();
+        this.pageLogLines = pageLogLines;
+        this.pageTemplate = new Template.Source(this.directory.resolve("builds/_template.html"), reloadTemplate,
+                PAGE_SLOTS);
+        this.tests = new TestHistory(this.directory.resolve("tests").toFile());
+    }
+
+    /**
+     * @return The outcomes and durations of the tests of the builds, kept under "tests/".
+     */
+    public TestHistory tests() {
+        return tests;
+    }
+
+    /**
+     * Saves a build: compresses its log, writes its page showing the last lines of the log and appends its record.
+     *
+     * @param commitId  Id of the built commit, naming its page.
+     * @param buildLogs Logs of the build.
+     * @param buildDate Date of the build.
+     * @throws IOException if the page or the record cannot be written.
+     */
+    public void save(String commitId, String buildLogs, String buildDate) throws IOException {
+        save(commitId, new ByteArrayInputStream(buildLogs.getBytes(StandardCharsets.UTF_8)), buildDate);
+    }
+
+    /**
+     * Saves a build: compresses its log, writes its page showing the last lines of the log and appends its record.
+     *
+     * @param commitId  Id of the built commit, naming its page and log.
+     * @param buildLog  Log of the build, read to its end.
+     * @param buildDate Date of the build.
+     * @throws IOException if the log, the page or the record cannot be written.
+     */
+    public void save(String commitId, InputStream buildLog, String buildDate) throws IOException {
+        save(commitId, buildLog, buildDate, new JSONArray());
+    }
+
+    /**
+     * Saves a build: compresses its log, writes its page showing the last lines of the log and the duration of its
+     * stages, and appends its record.
+     *
+     * @param commitId  Id of the built commit, naming its page and log.
+     * @param buildLog  Log of the build, read to its end.
+     * @param buildDate Date of the build.
+     * @param timeline  The stages of the build, as {"stage", "start", "millis"} objects.
+     * @throws IOException if the log, the page or the record cannot be written.
+     */
+    public void save(String commitId, InputStream buildLog, String buildDate, JSONArray timeline) throws IOException {
+        File logFile = logFile(commitId);
+        CompressedLog.write(buildLog, logFile);
+        CompressedLog log = CompressedLog.open(logFile);
+
+        String page = "builds/" + commitId + ".html";
+        Map<String, Object> values = new HashMap<>();
+        values.put("commit_id", commitId);
+        values.put("build_date", buildDate);
+        values.put("build_logs", log.tail(pageLogLines));
+        List<String> stages = new ArrayList<>();
+        for (int i = 0; i < timeline.length(); i++) {
+            JSONObject stage = timeline.getJSONObject(i);
+            stages.add(stage.getString("stage") + ": " + stage.getLong("millis") / 1000.0 + " s");
+        }
+        values.put("build_timeline", stages);
+        Template template = pageTemplate.get();
+        writeAtomically(directory.resolve(page), out -> template.render(values, out));
+        // served instead of the page to the clients accepting gzip
+        writeAtomically(directory.resolve(page + ".gz"), out -> gzip(directory.resolve(page), out));
+
+        append(new JSONObject()
+                .put("commit_id", commitId)
+                .put("build_date", buildDate)
+                .put("saved_at", System.currentTimeMillis())
+                .put("page", page)
+                .put("log", directory.relativize(logFile.toPath()).toString())
+                .put("log_bytes", log.length())
+                .put("log_lines", log.lineCount())
+                .put("log_compressed_bytes", log.compressedLength())
+                .put("timeline", timeline));
+    }
+
+    /**
+     * @param commitId  Id of a built commit.
+     * @return          The compressed log of its build, see CompressedLog.
+     */
+    public File logFile(String commitId) {
+        return directory.resolve("logs/" + commitId + ".log.gz").toFile();
+    }
+
+    /**
+     * @return Number of builds in the history.
+     */
+    public synchronized int size() throws IOException {
+        open();
+        return offsets.size();
+    }
+
+    /**
+     * Reads records of the history, newest first.
+     *
+     * @param from  Number of newest records to skip.
+     * @param count Maximum number of records to read.
+     * @return      The records.
+     * @throws IOException if the records cannot be read.
+     */
+    public synchronized List<JSONObject> newest(int from, int count) throws IOException {
+        open();
+        List<JSONObject> result = new ArrayList<>();
+        for (int i = offsets.size() - 1 - from; i >= 0 && result.size() < count; i--) {
+            long start = offsets.get(i);
+            long end = i + 1 < offsets.size() ? offsets.get(i + 1) : records.size();
+            ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+            while (buffer.hasRemaining()) {
+                if (records.read(buffer, start + buffer.position()) < 0) {
+                    break;
+                }
+            }
+            result.add(new JSONObject(new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8)));
+        }
+        return result;
+    }
+
+    /**
+     * Renders a page of the history index.
+     *
+     * @param page      Number of the page, starting from 1 for the newest builds.
+     * @param pageSize  Number of builds per page.
+     * @return          The HTML page.
+     * @throws IOException if the records cannot be read.
+     */
+    public String renderIndex(int page, int pageSize) throws IOException {
+        int total = size();
+        int pages = Math.max(1, (total + pageSize - 1) / pageSize);
+        page = Math.min(Math.max(page, 1), pages);
+
+        StringBuilder html = new StringBuilder();
+        html.append("<!doctype html>\n<html lang=\"en\">\n <head>\n  <meta charset=\"UTF-8\">\n")
+                .append("  <title>Build History</title>\n </head>\n <body>\n  <h1>Build History</h1>\n");
+        for (JSONObject record : newest((page - 1) * pageSize, pageSize)) {
+            html.append("  <a href=\"").append(Template.escape(record.getString("page"))).append("\">")
+                    .append(Template.escape(record.getString("commit_id"))).append(" | ")
+                    .append(Template.escape(record.getString("build_date"))).append("</a>\n  <br>\n");
+        }
+        html.append("  <p>");
+        if (page > 1) {
+            html.append("<a href=\"?page=").append(page - 1).append("\">Newer</a> ");
+        }
+        html.append("Page ").append(page).append(" of ").append(pages);
+        if (page < pages) {
+            html.append(" <a href=\"?page=").append(page + 1).append("\">Older</a>");
+        }
+        html.append("</p>\n </body>\n</html>\n");
+        return html.toString();
+    }
+
+    private synchronized void append(JSONObject record) throws IOException {
+        open();
+        ByteBuffer line = ByteBuffer.wrap((record.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+        long offset = records.size();
+        while (line.hasRemaining()) {
+            records.write(line, offset + line.position());
+        }
+        offsets.add(offset);
+    }
+
+    /**
+     * Opens the records on first use, indexing their offsets. The builds linked from an index.html written before
+     * the records existed are imported first.
+     */
+    private void open() throws IOException {
+        if (records != null) {
+            return;
+        }
+        Files.createDirectories(directory);
+        Path file = directory.resolve(RECORDS);
+        boolean created = !Files.exists(file);
+        records = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        long complete = 0;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            long position = 0;
+            int b;
+            while ((b = in.read()) != -1) {
+                position++;
+                if (b == '\n') {
+                    if (position - complete > 1) {
+                        offsets.add(complete);
+                    }
+                    complete = position;
+                }
+            }
+        }
+        // drop a record cut short by a crash
+        if (records.size() > complete) {
+            records.truncate(complete);
+        }
+        if (created) {
+            importLegacyIndex();
+        }
+    }
+
+    private void importLegacyIndex() throws IOException {
+        File index = directory.resolve("index.html").toFile();
+        if (!index.isFile()) {
+            return;
+        }
+        Document doc = Jsoup.parse(index, "UTF-8");
+        for (Element link : doc.body().select("a[href^=builds/]")) {
+            String[] text = link.text().split("\\|", 2);
+            append(new JSONObject()
+                    .put("commit_id", text[0].trim())
+                    .put("build_date", text.length > 1 ? text[1].trim() : "")
+                    .put("saved_at", index.lastModified())
+                    .put("page", link.attr("href")));
+        }
+    }
+
+    private interface Content {
+        void writeTo(WritableByteChannel out) throws IOException;
+    }
+
+    private static void gzip(Path file, WritableByteChannel out) throws IOException {
+        try (OutputStream gzip = new GZIPOutputStream(Channels.newOutputStream(out))) {
+            Files.copy(file, gzip);
+        }
+    }
+
+    private static void writeAtomically(Path target, Content content) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".part");
+        try {
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                content.writeTo(out);
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
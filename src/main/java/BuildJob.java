@@ -0,0 +1,234 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.CancellationException;
+
+import org.json.JSONObject;
+
+/**
+ A single build requested by a webhook delivery, tracked while it waits in and is executed by the BuildQueue.
+*/
+public class BuildJob {
+
+    /**
+     * Lifecycle of a build job.
+     */
+    public enum State {
+        QUEUED, RUNNING, SUCCESS, FAILURE, ERROR, DROPPED, SUPERSEDED
+    }
+
+    private final long id;
+    private final HashMap<String, String> data;
+    private final long enqueuedAt;
+    private volatile BuildLog log;
+    private volatile String workspace;
+    private volatile State state = State.QUEUED;
+    private volatile long startedAt;
+    private volatile long finishedAt;
+    private volatile boolean cancelled;
+    private volatile Thread worker;
+    private volatile BuildJob supersededBy;
+    private volatile boolean resumed;
+    private volatile String error;
+
+    /**
+     * Creates a new queued build job.
+     *
+     * @param id    Unique id of the job, assigned by the queue.
+     * @param data  Commit information obtained from processRequestData.
+     */
+    public BuildJob(long id, HashMap<String, String> data) {
+        this.id = id;
+        this.data = data;
+        this.enqueuedAt = System.currentTimeMillis();
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public HashMap<String, String> getData() {
+        return data;
+    }
+
+    /**
+     * @return The log of this build, filled by the build stages as they run, or null before it is opened.
+     */
+    public BuildLog getLog() {
+        return log;
+    }
+
+    /**
+     * Opens the log of this build.
+     *
+     * @param directory     Directory holding the logs of the builds.
+     * @param tailLines     Number of last lines of the log kept in memory.
+     * @return              The log.
+     * @throws IOException if the log file cannot be created.
+     */
+    public BuildLog openLog(String directory, int tailLines) throws IOException {
+        log = new BuildLog(new File(directory, getName() + ".log"), tailLines);
+        return log;
+    }
+
+    /**
+     * @return A name unique to this build, made of the repository name, the commit and the build id.
+     */
+    public String getName() {
+        String repo = String.valueOf(data.get("repo_name")).replaceAll("[^A-Za-z0-9._-]", "_");
+        String commit = String.valueOf(data.get("commit_id"));
+        if (commit.length() > 12) {
+            commit = commit.substring(0, 12);
+        }
+        return repo + "-" + commit + "-" + id;
+    }
+
+    /**
+     * @return Directory the commit is checked out to for this build, or null before it is assigned.
+     */
+    public String getWorkspace() {
+        return workspace;
+    }
+
+    /**
+     * Assigns the workspace of this build, a directory owned by this build only.
+     *
+     * @param root  Directory under which the workspaces of all builds are created.
+     * @return      The workspace path.
+     */
+    public String assignWorkspace(String root) {
+        workspace = root + "/" + getName();
+        return workspace;
+    }
+
+    /**
+     * @return The branch this job builds, as "clone_url#ref", or null if the push did not tell the ref.
+     */
+    public String getBranchKey() {
+        String ref = data.get("ref");
+        return ref == null ? null : data.get("clone_url") + "#" + ref;
+    }
+
+    /**
+     * @return The newer job of the same branch that superseded this one, or null.
+     */
+    public BuildJob getSupersededBy() {
+        return supersededBy;
+    }
+
+    /**
+     * @return true if the job was accepted before a restart of the server, and recovered from the job journal.
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    void markResumed() {
+        resumed = true;
+    }
+
+    /**
+     * @return true if the job was cancelled because a newer commit was pushed on its branch.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Throws if the job was cancelled, called by the build between its stages.
+     *
+     * @throws CancellationException if the job was cancelled.
+     */
+    public void checkCancelled() {
+        if (cancelled) {
+            throw new CancellationException("Build " + id + " superseded by build " + supersededBy.getId());
+        }
+    }
+
+    /**
+     * Cancels the job in favor of a newer one. A running build is interrupted, which kills the Maven process it waits for.
+     *
+     * @param newer The job superseding this one.
+     */
+    synchronized void cancel(BuildJob newer) {
+        supersededBy = newer;
+        cancelled = true;
+        Thread t = worker;
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return Why the build could not be carried out, if the job ended in ERROR, null otherwise.
+     */
+    public String getError() {
+        return error;
+    }
+
+    public long getEnqueuedAt() {
+        return enqueuedAt;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+
+    /**
+     * @return true once the job has left the queue and will not run anymore.
+     */
+    public boolean isDone() {
+        State s = state;
+        return s != State.QUEUED && s != State.RUNNING;
+    }
+
+    synchronized void markRunning() {
+        startedAt = System.currentTimeMillis();
+        worker = Thread.currentThread();
+        state = State.RUNNING;
+    }
+
+    synchronized void markFinished(State finalState) {
+        worker = null;
+        finishedAt = System.currentTimeMillis();
+        state = finalState;
+    }
+
+    synchronized void markError(String message) {
+        error = message;
+        markFinished(State.ERROR);
+    }
+
+    /**
+     * @return A JSON representation of the job, as exposed over HTTP.
+     */
+    public JSONObject toJson() {
+        JSONObject json = new JSONObject()
+                .put("id", id)
+                .put("state", state.name())
+                .put("repo_name", data.get("repo_name"))
+                .put("commit_id", data.get("commit_id"))
+                .put("enqueued_at", enqueuedAt);
+        if (startedAt != 0) {
+            json.put("started_at", startedAt);
+        }
+        if (finishedAt != 0) {
+            json.put("finished_at", finishedAt);
+        }
+        if (supersededBy != null) {
+            json.put("superseded_by", supersededBy.getId());
+        }
+        if (error != null) {
+            json.put("error", error);
+        }
+        return json;
+    }
+}
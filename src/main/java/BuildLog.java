@@ -0,0 +1,189 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ Log of a build, streamed line by line to an append-only file.
+
+ Only the last lines are kept in memory. Readers can follow the log while the build is running: they read the
+ file up to the length returned by await, which blocks until more output is available or the log is closed.
+*/
+public class BuildLog implements Consumer<String>, Closeable {
+
+    // Buffered output is flushed to the file at least this often while lines are coming in
+    private static final long FLUSH_INTERVAL_NANOS = 200_000_000L;
+
+    private final File file;
+    private final int tailCapacity;
+    private final ArrayDeque<String> tail = new ArrayDeque<>();
+    private OutputStream out;
+    private long length;
+    private long lastFlush = System.nanoTime();
+    private boolean closed;
+
+    /**
+     * Creates the log file, replacing any previous file with the same name.
+     *
+     * @param file          File the log is written to.
+     * @param tailCapacity  Number of last lines kept in memory.
+     * @throws IOException if the file cannot be created.
+     */
+    public BuildLog(File file, int tailCapacity) throws IOException {
+        this.file = file;
+        this.tailCapacity = tailCapacity;
+        Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+        this.out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+    }
+
+    /**
+     * Appends a line to the log.
+     *
+     * @param line  The line, without line terminator.
+     */
+    @Override
+    public synchronized void accept(String line) {
+        if (tailCapacity > 0) {
+            if (tail.size() == tailCapacity) {
+                tail.removeFirst();
+            }
+            tail.addLast(line);
+        }
+        if (out == null) {
+            return;
+        }
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        try {
+            out.write(bytes);
+            length += bytes.length;
+            if (System.nanoTime() - lastFlush > FLUSH_INTERVAL_NANOS) {
+                flush();
+            }
+        } catch (IOException e) {
+            System.err.println("An error occurred while writing " + file + ": " + e.getMessage());
+            closeQuietly();
+        }
+    }
+
+    /**
+     * Appends text to the log, line by line.
+     *
+     * @param text  The text, possibly spanning several lines.
+     */
+    public void append(String text) {
+        for (String line : text.split("\r?\n")) {
+            accept(line);
+        }
+    }
+
+    /**
+     * Waits until the log is longer than the given length, or closed.
+     *
+     * @param offset        Length already read.
+     * @param timeoutMillis Maximum time to wait.
+     * @return              The length of the log that can be read from the file.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public synchronized long await(long offset, long timeoutMillis) throws InterruptedException {
+        flushQuietly();
+        if (length <= offset && !closed) {
+            wait(timeoutMillis);
+            flushQuietly();
+        }
+        return length;
+    }
+
+    /**
+     * @return The last lines of the log.
+     */
+    public synchronized List<String> tail() {
+        return new ArrayList<>(tail);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return The whole log, read back from its file.
+     * @throws IOException if the file cannot be read.
+     */
+    public String readAll() throws IOException {
+        long end;
+        synchronized (this) {
+            flushQuietly();
+            end = length;
+        }
+        return new String(read(file, 0, end), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a part of a log file.
+     *
+     * @param file  The log file.
+     * @param from  Offset of the first byte.
+     * @param to    Offset after the last byte.
+     * @return      The bytes read.
+     * @throws IOException if the file cannot be read.
+     */
+    public static byte[] read(File file, long from, long to) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] bytes = new byte[(int) Math.max(0, to - from)];
+            raf.seek(from);
+            raf.readFully(bytes);
+            return bytes;
+        }
+    }
+
+    /**
+     * Flushes and closes the file, waking up the readers following the log.
+     */
+    @Override
+    public synchronized void close() {
+        closeQuietly();
+    }
+
+    private void flush() throws IOException {
+        out.flush();
+        lastFlush = System.nanoTime();
+        notifyAll();
+    }
+
+    private void flushQuietly() {
+        if (out == null) {
+            return;
+        }
+        try {
+            flush();
+        } catch (IOException e) {
+            System.err.println("An error occurred while writing " + file + ": " + e.getMessage());
+            closeQuietly();
+        }
+    }
+
+    private void closeQuietly() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                System.err.println("An error occurred while closing " + file + ": " + e.getMessage());
+            }
+            out = null;
+        }
+        closed = true;
+        notifyAll();
+    }
+}
@@ -0,0 +1,470 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ Bounded queue of build jobs drained by a fixed pool of worker threads.
+
+ Webhook deliveries are turned into BuildJobs and submitted here so that the HTTP thread can answer immediately.
+ When the queue is full the configured OverflowPolicy decides whether the new job is rejected or the oldest
+ queued job is dropped to make room for it.
+
+ Jobs of the same branch are coalesced: a new push supersedes the queued jobs of its branch, and cancels the
+ running one, so that only the newest commit of a branch gets built.
+
+ With a JobJournal, jobs are journaled when submitted, started and finished, so that the jobs left unfinished by a
+ restart of the server are submitted again by recover. A job whose builds were interrupted by the server stopping too
+ many times is given up instead, it is likely the build that brings the server down.
+*/
+public class BuildQueue {
+
+    /**
+     * What to do with a new job when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /** Refuse the new job, the webhook is answered with 503. */
+        REJECT,
+        /** Drop the oldest queued job and accept the new one. */
+        DROP_OLDEST
+    }
+
+    /**
+     * Runs the build of a job on a worker thread.
+     */
+    public interface BuildRunner {
+        /**
+         * @param job   The job to build.
+         * @return      true if the build succeeded, false otherwise.
+         * @throws Exception if the build could not be carried out.
+         */
+        boolean build(BuildJob job) throws Exception;
+    }
+
+    // Number of finished jobs kept around so that their state can still be queried
+    private static final int FINISHED_JOBS_KEPT = 1000;
+    // Number of builds of a journaled job interrupted by a restart after which it is given up
+    private static final int DEFAULT_ATTEMPTS = 3;
+
+    private final BuildRunner runner;
+    private final OverflowPolicy overflowPolicy;
+    private final int workers;
+    private final int capacity;
+    private final ArrayBlockingQueue<Runnable> queue;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final LinkedHashMap<Long, BuildJob> jobs = new LinkedHashMap<>();
+    private final HashMap<Long, Task> queuedTasks = new HashMap<>();
+    private volatile BiConsumer<BuildJob, BuildJob> supersededListener = (job, newer) -> { };
+    private volatile Consumer<BuildJob> queuedListener = job -> { };
+    private volatile Consumer<BuildJob> abortedListener = job -> { };
+    private volatile JobJournal journal;
+
+    /**
+     * Creates a build queue.
+     *
+     * @param runner            Callback executing a build on a worker thread.
+     * @param workers           Number of worker threads building concurrently.
+     * @param capacity          Maximum number of jobs waiting to be built.
+     * @param overflowPolicy    Policy applied when a job is submitted to a full queue.
+     */
+    public BuildQueue(BuildRunner runner, int workers, int capacity, OverflowPolicy overflowPolicy) {
+        if (workers < 1 || capacity < 1) {
+            throw new IllegalArgumentException("workers and capacity must be positive");
+        }
+        this.runner = runner;
+        this.workers = workers;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS, queue,
+                new WorkerThreadFactory(), new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Creates a build queue configured from system properties:
+     * "ci.workers" (default: number of cores), "ci.queue.capacity" (default: 100)
+     * and "ci.queue.overflow" (REJECT or DROP_OLDEST, default: REJECT).
+     *
+     * @param runner    Callback executing a build on a worker thread.
+     * @return          The configured build queue.
+     */
+    public static BuildQueue fromSystemProperties(BuildRunner runner) {
+        int workers = Integer.getInteger("ci.workers", Runtime.getRuntime().availableProcessors());
+        int capacity = Integer.getInteger("ci.queue.capacity", 100);
+        OverflowPolicy policy = OverflowPolicy.valueOf(System.getProperty("ci.queue.overflow", "REJECT").toUpperCase());
+        return new BuildQueue(runner, workers, capacity, policy);
+    }
+
+    /**
+     * Sets the callback notified when a job is superseded by a newer job of the same branch.
+     * It is called on the thread submitting the newer job, or on the worker thread once a cancelled build has stopped.
+     *
+     * @param listener  Callback receiving the superseded job and the job superseding it.
+     */
+    public void onSuperseded(BiConsumer<BuildJob, BuildJob> listener) {
+        this.supersededListener = listener;
+    }
+
+    /**
+     * Sets the callback notified when a job is about to be queued, before a worker can take it, so that what it
+     * publishes comes before anything the build publishes. It is called on the thread submitting or recovering the job.
+     *
+     * @param listener  Callback receiving the job.
+     */
+    public void onQueued(Consumer<BuildJob> listener) {
+        this.queuedListener = listener;
+    }
+
+    /**
+     * Sets the callback notified when a job ends without the outcome of its build: DROPPED, rejected or pushed out
+     * by a full queue, or ERROR, its build could not be carried out (see BuildJob.getError). It is called on the
+     * thread submitting a job, or on the worker thread.
+     *
+     * @param listener  Callback receiving the job.
+     */
+    public void onAborted(Consumer<BuildJob> listener) {
+        this.abortedListener = listener;
+    }
+
+    /**
+     * Enqueues a build for the given commit. Queued jobs of the same branch are superseded by the new job
+     * and a running build of the branch is cancelled. With a journal, the job is journaled before it is queued.
+     *
+     * @param data  Commit information obtained from processRequestData.
+     * @return      The queued job, or null if the queue is full and the job was rejected.
+     */
+    public BuildJob submit(HashMap<String, String> data) {
+        BuildJob job = new BuildJob(nextId.getAndIncrement(), data);
+        JobJournal journal = this.journal;
+        if (journal != null) {
+            try {
+                journal.accepted(job.getId(), data);
+            } catch (IOException e) {
+                // built all the same, but lost if the server restarts
+                e.printStackTrace();
+            }
+        }
+        return enqueue(job) ? job : null;
+    }
+
+    /**
+     * Journals the jobs from now on and submits again the jobs the journal holds unfinished, e.g. queued or running
+     * when the server stopped. Their ids are kept, and new jobs get larger ids. A job started 3 times already is given
+     * up.
+     *
+     * @param journal   The journal.
+     * @return          The jobs submitted again, including the jobs rejected by a full queue or superseded by a
+     *                  newer job of their branch, and the jobs given up.
+     */
+    public List<BuildJob> recover(JobJournal journal) {
+        return recover(journal, DEFAULT_ATTEMPTS);
+    }
+
+    /**
+     * Journals the jobs from now on and submits again the jobs the journal holds unfinished, e.g. queued or running
+     * when the server stopped. Their ids are kept, and new jobs get larger ids. A job whose builds were started as
+     * many times as allowed is given up: it ends in ERROR and the aborted listener is notified.
+     *
+     * @param journal   The journal.
+     * @param attempts  Number of builds of a job, interrupted by the server stopping, after which it is given up.
+     * @return          The jobs submitted again, including the jobs rejected by a full queue or superseded by a
+     *                  newer job of their branch, and the jobs given up.
+     */
+    public List<BuildJob> recover(JobJournal journal, int attempts) {
+        this.journal = journal;
+        long maxId = journal.getMaxId();
+        nextId.accumulateAndGet(maxId + 1, Math::max);
+        List<BuildJob> recovered = new ArrayList<>();
+        for (JobJournal.Entry entry : journal.recovered()) {
+            BuildJob job = new BuildJob(entry.getId(), entry.getData());
+            job.markResumed();
+            if (entry.getStarts() >= attempts) {
+                synchronized (this) {
+                    remember(job);
+                }
+                job.markError("Given up after " + entry.getStarts() + " attempts, the server stopped during each of them");
+                journalFinished(job, BuildJob.State.ERROR.name());
+                abortedListener.accept(job);
+            } else {
+                enqueue(job);
+            }
+            recovered.add(job);
+        }
+        return recovered;
+    }
+
+    /**
+     * @return true if the job was queued, false if it was rejected.
+     */
+    private boolean enqueue(BuildJob job) {
+        queuedListener.accept(job);
+        Task task = new Task(job);
+        List<BuildJob> superseded = new ArrayList<>();
+        List<BuildJob> dropped = new ArrayList<>();
+        boolean accepted = true;
+        synchronized (this) {
+            supersede(job, superseded);
+            remember(job);
+            while (!accept(task)) {
+                if (overflowPolicy != OverflowPolicy.DROP_OLDEST || executor.isShutdown()) {
+                    jobs.remove(job.getId());
+                    job.markFinished(BuildJob.State.DROPPED);
+                    accepted = false;
+                    break;
+                }
+                Runnable oldest = queue.poll();
+                if (oldest instanceof Task) {
+                    queuedTasks.remove(((Task) oldest).job.getId());
+                    ((Task) oldest).job.markFinished(BuildJob.State.DROPPED);
+                    dropped.add(((Task) oldest).job);
+                }
+            }
+        }
+        // journaled out of the lock, the other submissions do not wait for the disk
+        for (BuildJob old : dropped) {
+            journalFinished(old, BuildJob.State.DROPPED.name());
+            abortedListener.accept(old);
+        }
+        for (BuildJob old : superseded) {
+            journalFinished(old, BuildJob.State.SUPERSEDED.name());
+            supersededListener.accept(old, job);
+        }
+        if (!accepted) {
+            journalFinished(job, "REJECTED");
+            abortedListener.accept(job);
+        }
+        return accepted;
+    }
+
+    /**
+     * Journals that a job will not run anymore.
+     *
+     * @param job   The job.
+     * @param state Its final state.
+     */
+    private void journalFinished(BuildJob job, String state) {
+        JobJournal journal = this.journal;
+        if (journal != null) {
+            try {
+                journal.finished(job.getId(), state);
+            } catch (IOException e) {
+                // built again if the server restarts
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Journals that a worker starts building a job.
+     *
+     * @param job   The job.
+     */
+    private void journalStarted(BuildJob job) {
+        JobJournal journal = this.journal;
+        if (journal != null) {
+            try {
+                journal.started(job.getId());
+            } catch (IOException e) {
+                // not counted, the job is given up one restart later
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private boolean accept(Task task) {
+        queuedTasks.put(task.job.getId(), task);
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            queuedTasks.remove(task.job.getId());
+            return false;
+        }
+    }
+
+    /**
+     * Removes the queued jobs of the new job's branch and cancels its running job.
+     *
+     * @param newer         The job being submitted.
+     * @param superseded    Filled with the queued jobs that were removed.
+     */
+    private void supersede(BuildJob newer, List<BuildJob> superseded) {
+        String branch = newer.getBranchKey();
+        if (branch == null) {
+            return;
+        }
+        for (BuildJob old : jobs.values()) {
+            if (old.isDone() || old.isCancelled() || !branch.equals(old.getBranchKey())) {
+                continue;
+            }
+            Task queued = queuedTasks.remove(old.getId());
+            old.cancel(newer);
+            if (queued != null && executor.remove(queued)) {
+                old.markFinished(BuildJob.State.SUPERSEDED);
+                superseded.add(old);
+            }
+            // a running job reports itself once its build has stopped
+        }
+    }
+
+    /**
+     * @param id    Id of the job.
+     * @return      The job with the given id, or null if it is unknown or has been forgotten.
+     */
+    public synchronized BuildJob getJob(long id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * @return Number of jobs waiting for a worker.
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return Number of jobs currently being built.
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return Jobs known to the queue, oldest first.
+     */
+    public synchronized List<BuildJob> getJobs() {
+        return new ArrayList<>(jobs.values());
+    }
+
+    /**
+     * @return A JSON summary of the queue and the state of its jobs.
+     */
+    public JSONObject toJson() {
+        JSONArray jobArray = new JSONArray();
+        for (BuildJob job : getJobs()) {
+            jobArray.put(job.toJson());
+        }
+        return new JSONObject()
+                .put("depth", getQueueDepth())
+                .put("capacity", capacity)
+                .put("active", getActiveCount())
+                .put("workers", workers)
+                .put("overflow_policy", overflowPolicy.name())
+                .put("jobs", jobArray);
+    }
+
+    /**
+     * Stops accepting jobs and waits for the running builds to finish.
+     *
+     * @param timeoutMillis Maximum time to wait.
+     * @return              true if all builds finished in time.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean shutdown(long timeoutMillis) throws InterruptedException {
+        executor.shutdown();
+        return executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void remember(BuildJob job) {
+        jobs.put(job.getId(), job);
+        // forget the oldest finished jobs, queued and running jobs are always kept
+        int excess = jobs.size() - FINISHED_JOBS_KEPT;
+        Iterator<BuildJob> it = jobs.values().iterator();
+        while (excess > 0 && it.hasNext()) {
+            if (it.next().isDone()) {
+                it.remove();
+                excess--;
+            }
+        }
+    }
+
+    private final class Task implements Runnable {
+        private final BuildJob job;
+
+        Task(BuildJob job) {
+            this.job = job;
+        }
+
+        @Override
+        public void run() {
+            synchronized (BuildQueue.this) {
+                queuedTasks.remove(job.getId());
+                if (job.isDone()) {
+                    return;
+                }
+                if (!job.isCancelled()) {
+                    job.markRunning();
+                }
+            }
+            BuildJob.State state = BuildJob.State.SUPERSEDED;
+            String error = null;
+            if (!job.isCancelled()) {
+                journalStarted(job);
+                try {
+                    state = runner.build(job) ? BuildJob.State.SUCCESS : BuildJob.State.FAILURE;
+                } catch (Exception e) {
+                    if (!job.isCancelled()) {
+                        e.printStackTrace();
+                    }
+                    state = BuildJob.State.ERROR;
+                    error = e.getMessage() != null ? e.getMessage().trim() : e.getClass().getSimpleName();
+                } finally {
+                    // the interrupt of a cancellation must not leak into the next job of this worker
+                    Thread.interrupted();
+                }
+            }
+            if (job.isCancelled()) {
+                job.markFinished(BuildJob.State.SUPERSEDED);
+                Thread.interrupted();
+                journalFinished(job, BuildJob.State.SUPERSEDED.name());
+                supersededListener.accept(job, job.getSupersededBy());
+            } else {
+                if (state == BuildJob.State.ERROR) {
+                    job.markError(error);
+                } else {
+                    job.markFinished(state);
+                }
+                // a cancellation racing with the end of the build, an interrupt would close the journal
+                Thread.interrupted();
+                journalFinished(job, state.name());
+                if (state == BuildJob.State.ERROR) {
+                    abortedListener.accept(job);
+                }
+            }
+        }
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ci-build-worker-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ Outcome of building a commit: whether its sources compiled and whether its tests passed.
+*/
+public class BuildResult {
+
+    /**
+     * How a commit is built.
+     */
+    public enum Mode {
+        /** One "mvn test" invocation, from which both outcomes are derived. */
+        SINGLE,
+        /** "mvn clean compile" followed by a separate "mvn test" invocation. */
+        TWO_PHASE,
+        /** "mvn test-compile" followed by the test classes split in shards run in parallel Maven processes. */
+        SHARDED
+    }
+
+    // Maven output telling that the failure happened after the main sources compiled
+    private static final String[] TEST_FAILURE_MARKERS = {
+        "maven-surefire-plugin",
+        ":testCompile",
+        "There are test failures"
+    };
+
+    private final boolean compileStatus;
+    private final boolean testStatus;
+    private final String testSummary;
+    private final boolean timedOut;
+
+    /**
+     * @param compileStatus true if the sources compiled.
+     * @param testStatus    true if the tests passed.
+     */
+    public BuildResult(boolean compileStatus, boolean testStatus) {
+        this(compileStatus, testStatus, null);
+    }
+
+    /**
+     * @param compileStatus true if the sources compiled.
+     * @param testStatus    true if the tests passed.
+     * @param testSummary   The number of tests run, failed and skipped, null if unknown.
+     */
+    public BuildResult(boolean compileStatus, boolean testStatus, String testSummary) {
+        this(compileStatus, testStatus, testSummary, false);
+    }
+
+    /**
+     * @param compileStatus true if the sources compiled.
+     * @param testStatus    true if the tests passed.
+     * @param testSummary   The number of tests run, failed and skipped, null if unknown.
+     * @param timedOut      true if Maven was killed for running past the build timeout.
+     */
+    public BuildResult(boolean compileStatus, boolean testStatus, String testSummary, boolean timedOut) {
+        this.compileStatus = compileStatus;
+        this.testStatus = testStatus && compileStatus && !timedOut;
+        this.testSummary = testSummary;
+        this.timedOut = timedOut;
+    }
+
+    /**
+     * @param compileStatus true if the sources compiled before Maven was killed.
+     * @return              The outcome of a build killed for running past the build timeout.
+     */
+    public static BuildResult timedOut(boolean compileStatus) {
+        return new BuildResult(compileStatus, false, null, true);
+    }
+
+    /**
+     * @param line  A line of the output of Maven.
+     * @return      true if it is an error telling that the failure happened after the main sources compiled.
+     */
+    public static boolean isTestFailure(String line) {
+        if (!line.startsWith("[ERROR]")) {
+            return false;
+        }
+        for (String marker : TEST_FAILURE_MARKERS) {
+            if (line.contains(marker)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Derives the outcome of a single "mvn test" invocation.
+     *
+     * @param exitCode      Exit code of Maven.
+     * @param compileFailed false if Maven printed an error telling that the main sources compiled, see isTestFailure.
+     * @return              The outcome of the build.
+     */
+    public static BuildResult fromTestInvocation(int exitCode, boolean compileFailed) {
+        if (exitCode == 0) {
+            return new BuildResult(true, true);
+        }
+        return new BuildResult(!compileFailed, false);
+    }
+
+    public boolean getCompileStatus() {
+        return compileStatus;
+    }
+
+    public boolean getTestStatus() {
+        return testStatus;
+    }
+
+    /**
+     * @return true if Maven was killed for running past the build timeout, the tests did not fail then.
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * @return The number of tests run, failed and skipped, e.g. "Tests run: 12, Failures: 0, Errors: 0, Skipped: 1",
+     *         null if unknown.
+     */
+    public String getTestSummary() {
+        return testSummary;
+    }
+}
@@ -0,0 +1,397 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.output.CountingOutputStream;
+
+/**
+ Build log stored compressed, readable by byte or line range without decompressing the whole log.
+
+ The log is split on line boundaries into chunks of about CHUNK_SIZE bytes, each compressed as a gzip member of
+ the ".gz" file, which therefore remains a valid gzip file. The ".idx" file next to it holds, for each chunk, its
+ offset in the ".gz" file, the offset of its first byte in the log and the number of lines before it, followed by
+ the size of the ".gz" file, the length of the log and its number of lines, then a version. The ".gz" file is
+ memory-mapped in regions of whole chunks, a region being at most 2 GB, and a range read only decompresses the chunks
+ covering the range.
+
+ The version, random, is also written to the MTIME field of the header of the first gzip member. A log written again,
+ e.g. when a commit is rebuilt, renames its ".gz" file then its index over the old ones: a reader finding the new
+ ".gz" file with the old index sees different versions, and reads the index again.
+*/
+public class CompressedLog {
+
+    static final int CHUNK_SIZE = 256 * 1024;
+    // Size of an entry of the index, and offset of the MTIME field in a gzip header
+    private static final int ENTRY_SIZE = 24;
+    private static final int MTIME_OFFSET = 4;
+    // Times the index is read again when it does not match the ".gz" file, being renamed
+    private static final int OPEN_ATTEMPTS = 5;
+    // Largest region of the ".gz" file mapped at once, a buffer is indexed by an int
+    private static final long MAX_REGION_SIZE = Integer.MAX_VALUE;
+
+    // the mapped regions, the offset of each of them in the ".gz" file, and the region of each chunk
+    private final List<MappedByteBuffer> regions;
+    private final long[] regionOffsets;
+    private final int[] chunkRegions;
+    // per chunk, plus a last entry holding the totals
+    private final long[] compressedOffsets;
+    private final long[] rawOffsets;
+    private final long[] firstLines;
+
+    private CompressedLog(List<MappedByteBuffer> regions, long[] regionOffsets, int[] chunkRegions,
+            long[] compressedOffsets, long[] rawOffsets, long[] firstLines) {
+        this.regions = regions;
+        this.regionOffsets = regionOffsets;
+        this.chunkRegions = chunkRegions;
+        this.compressedOffsets = compressedOffsets;
+        this.rawOffsets = rawOffsets;
+        this.firstLines = firstLines;
+    }
+
+    /**
+     * Compresses a log. The files are written next to their final names then renamed over them, the index last.
+     *
+     * @param log       The log to compress, read to its end.
+     * @param target    The ".gz" file to write, the index is written to the same path with ".idx" instead of ".gz".
+     * @throws IOException if the log cannot be read or the files written.
+     */
+    public static void write(InputStream log, File target) throws IOException {
+        Path gz = target.toPath();
+        Path idx = indexFile(target).toPath();
+        Files.createDirectories(gz.toAbsolutePath().getParent());
+        Path gzTmp = Files.createTempFile(gz.toAbsolutePath().getParent(), gz.getFileName().toString(), ".part");
+        Path idxTmp = Files.createTempFile(gz.toAbsolutePath().getParent(), idx.getFileName().toString(), ".part");
+        int version = ThreadLocalRandom.current().nextInt();
+        try {
+            try (InputStream in = new BufferedInputStream(log);
+                 CountingOutputStream gzOut = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(gzTmp.toFile())));
+                 DataOutputStream idxOut = new DataOutputStream(new FileOutputStream(idxTmp.toFile()))) {
+                ByteArrayOutputStream chunk = new ByteArrayOutputStream(CHUNK_SIZE + 4096);
+                long rawOffset = 0;
+                long lines = 0;
+                long chunkLines = 0;
+                int last = '\n';
+                int b;
+                while ((b = in.read()) != -1) {
+                    chunk.write(b);
+                    last = b;
+                    if (b == '\n') {
+                        chunkLines++;
+                        if (chunk.size() >= CHUNK_SIZE) {
+                            writeEntry(idxOut, gzOut.getByteCount(), rawOffset, lines);
+                            writeChunk(chunk, gzOut);
+                            rawOffset += chunk.size();
+                            lines += chunkLines;
+                            chunkLines = 0;
+                            chunk.reset();
+                        }
+                    }
+                }
+                if (chunk.size() > 0) {
+                    writeEntry(idxOut, gzOut.getByteCount(), rawOffset, lines);
+                    writeChunk(chunk, gzOut);
+                    // a last line without terminator still counts
+                    if (last != '\n') {
+                        chunkLines++;
+                    }
+                    rawOffset += chunk.size();
+                    lines += chunkLines;
+                }
+                writeEntry(idxOut, gzOut.getByteCount(), rawOffset, lines);
+                idxOut.writeLong(version);
+            }
+            if (Files.size(gzTmp) > 0) {
+                try (FileChannel channel = FileChannel.open(gzTmp, StandardOpenOption.WRITE)) {
+                    channel.write(ByteBuffer.allocate(4).putInt(0, version), MTIME_OFFSET);
+                }
+            }
+            Files.move(gzTmp, gz, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(idxTmp, idx, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(gzTmp);
+            Files.deleteIfExists(idxTmp);
+        }
+    }
+
+    /**
+     * Opens a compressed log, memory-mapping its ".gz" file.
+     *
+     * @param file  The ".gz" file written by write.
+     * @return      The compressed log.
+     * @throws IOException if the files cannot be read.
+     */
+    public static CompressedLog open(File file) throws IOException {
+        return open(file, MAX_REGION_SIZE);
+    }
+
+    /**
+     * @param regionSize    Largest region of the ".gz" file mapped at once.
+     */
+    static CompressedLog open(File file, long regionSize) throws IOException {
+        File idx = indexFile(file);
+        for (int attempt = 1; ; attempt++) {
+            CompressedLog log = tryOpen(file, idx, regionSize);
+            if (log != null) {
+                return log;
+            }
+            if (attempt == OPEN_ATTEMPTS) {
+                throw new IOException("Index " + idx + " does not match " + file);
+            }
+            try {
+                // the index is renamed right after the ".gz" file
+                Thread.sleep(10L * attempt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while opening " + file);
+            }
+        }
+    }
+
+    /**
+     * @return The log, null if its index does not match its ".gz" file.
+     */
+    private static CompressedLog tryOpen(File file, File idx, long regionSize) throws IOException {
+        byte[] index = Files.readAllBytes(idx.toPath());
+        int entries = index.length / ENTRY_SIZE;
+        if (entries == 0) {
+            throw new IOException("Empty index " + idx);
+        }
+        ByteBuffer in = ByteBuffer.wrap(index);
+        long[] compressedOffsets = new long[entries];
+        long[] rawOffsets = new long[entries];
+        long[] firstLines = new long[entries];
+        for (int i = 0; i < entries; i++) {
+            compressedOffsets[i] = in.getLong();
+            rawOffsets[i] = in.getLong();
+            firstLines[i] = in.getLong();
+        }
+        // indexes written before the version was kept have none
+        Integer version = in.remaining() >= Long.BYTES ? (int) in.getLong() : null;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = compressedOffsets[entries - 1];
+            if (channel.size() != size) {
+                return null;
+            }
+            int chunks = entries - 1;
+            List<MappedByteBuffer> regions = new ArrayList<>();
+            List<Long> regionOffsets = new ArrayList<>();
+            int[] chunkRegions = new int[chunks];
+            long regionStart = 0;
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                if (compressedOffsets[chunk + 1] - compressedOffsets[chunk] > regionSize) {
+                    throw new IOException("Chunk " + chunk + " of " + file + " is larger than " + regionSize + " bytes");
+                }
+                if (compressedOffsets[chunk + 1] - regionStart > regionSize) {
+                    regions.add(channel.map(FileChannel.MapMode.READ_ONLY, regionStart, compressedOffsets[chunk] - regionStart));
+                    regionOffsets.add(regionStart);
+                    regionStart = compressedOffsets[chunk];
+                }
+                chunkRegions[chunk] = regions.size();
+            }
+            regions.add(channel.map(FileChannel.MapMode.READ_ONLY, regionStart, size - regionStart));
+            regionOffsets.add(regionStart);
+            if (version != null && size > 0 && regions.get(0).getInt(MTIME_OFFSET) != version) {
+                return null;
+            }
+            return new CompressedLog(regions, regionOffsets.stream().mapToLong(Long::longValue).toArray(), chunkRegions,
+                    compressedOffsets, rawOffsets, firstLines);
+        }
+    }
+
+    /**
+     * @return Length of the uncompressed log in bytes.
+     */
+    public long length() {
+        return rawOffsets[rawOffsets.length - 1];
+    }
+
+    /**
+     * @return Number of lines of the log.
+     */
+    public long lineCount() {
+        return firstLines[firstLines.length - 1];
+    }
+
+    /**
+     * @return Size of the compressed log in bytes.
+     */
+    public long compressedLength() {
+        return compressedOffsets[compressedOffsets.length - 1];
+    }
+
+    /**
+     * Reads a byte range of the uncompressed log.
+     *
+     * @param from  Offset of the first byte.
+     * @param to    Offset after the last byte, capped to the length of the log.
+     * @return      The bytes read.
+     * @throws IOException if the log is corrupted.
+     */
+    public byte[] read(long from, long to) throws IOException {
+        to = Math.min(to, length());
+        if (from >= to) {
+            return new byte[0];
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(to - from, 16L * CHUNK_SIZE));
+        for (int chunk = chunkOf(rawOffsets, from); chunk < chunkCount() && rawOffsets[chunk] < to; chunk++) {
+            byte[] raw = inflate(chunk);
+            int start = (int) Math.max(0, from - rawOffsets[chunk]);
+            int end = (int) Math.min(raw.length, to - rawOffsets[chunk]);
+            out.write(raw, start, end - start);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param offset    Offset of a byte of the uncompressed log.
+     * @return          Offset after the last byte of the chunk holding it: reading the log from chunk end to chunk
+     *                  end decompresses each chunk once.
+     */
+    public long chunkEnd(long offset) {
+        if (offset >= length()) {
+            return length();
+        }
+        return rawOffsets[chunkOf(rawOffsets, offset) + 1];
+    }
+
+    /**
+     * Reads lines of the log.
+     *
+     * @param from  Index of the first line, starting from 0.
+     * @param count Maximum number of lines to read.
+     * @return      The lines, without line terminators.
+     * @throws IOException if the log is corrupted.
+     */
+    public List<String> lines(long from, int count) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (int chunk = chunkOf(firstLines, from); chunk < chunkCount() && lines.size() < count; chunk++) {
+            String text = new String(inflate(chunk), StandardCharsets.UTF_8);
+            long line = firstLines[chunk];
+            int start = 0;
+            while (start < text.length() && lines.size() < count) {
+                int end = text.indexOf('\n', start);
+                if (end < 0) {
+                    end = text.length();
+                }
+                if (line >= from) {
+                    lines.add(text.substring(start, end));
+                }
+                line++;
+                start = end + 1;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * @param count Number of lines.
+     * @return      The last lines of the log.
+     * @throws IOException if the log is corrupted.
+     */
+    public List<String> tail(int count) throws IOException {
+        return lines(Math.max(0, lineCount() - count), count);
+    }
+
+    /**
+     * @param file  A ".gz" file written by write.
+     * @return      Its index file.
+     */
+    public static File indexFile(File file) {
+        String name = file.getName();
+        String base = name.endsWith(".gz") ? name.substring(0, name.length() - 3) : name;
+        return new File(file.getAbsoluteFile().getParentFile(), base + ".idx");
+    }
+
+    private int chunkCount() {
+        return rawOffsets.length - 1;
+    }
+
+    /**
+     * @return The last chunk starting at or before the position, found by binary search.
+     */
+    private int chunkOf(long[] starts, long position) {
+        int low = 0;
+        int high = chunkCount() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (starts[mid] <= position) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return Math.max(low, 0);
+    }
+
+    private byte[] inflate(int chunk) throws IOException {
+        int region = chunkRegions[chunk];
+        ByteBuffer slice = regions.get(region).duplicate();
+        slice.position((int) (compressedOffsets[chunk] - regionOffsets[region]))
+                .limit((int) (compressedOffsets[chunk + 1] - regionOffsets[region]));
+        try (InputStream in = new GZIPInputStream(new ByteBufferInputStream(slice.slice()))) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static void writeChunk(ByteArrayOutputStream chunk, OutputStream out) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(out) {
+            @Override
+            public void close() throws IOException {
+                // ends the member without closing the file
+                finish();
+                def.end();
+            }
+        };
+        chunk.writeTo(gzip);
+        gzip.close();
+    }
+
+    private static void writeEntry(DataOutputStream idx, long compressedOffset, long rawOffset, long firstLine) throws IOException {
+        idx.writeLong(compressedOffset);
+        idx.writeLong(rawOffset);
+        idx.writeLong(firstLine);
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+    }
+}
@@ -1,46 +1,60 @@
 import java.io.IOException;
-import java.net.URI;
 import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
-import java.net.http.HttpResponse.BodyHandlers;
 import java.io.InputStreamReader;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
  
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import org.apache.maven.shared.invoker.PrintStreamLogger;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
 import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.HttpOutput;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
  
-import javax.mail.*;
-import javax.mail.internet.*;
+import javax.mail.MessagingException;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import org.apache.maven.shared.invoker.*;
+import org.apache.maven.shared.utils.cli.CommandLineTimeOutException;
 
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.nio.file.Path;
+import java.security.SignatureException;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import javax.servlet.ServletOutputStream;
 import java.nio.file.Paths;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
 
 //Java stuff
 
@@ -53,15 +67,124 @@ import org.apache.commons.io.FileUtils;
 
 public class ContinuousIntegration extends AbstractHandler
 {
-private HttpClient httpClient;
-    private static String token="";
-    private static String logInfo="";
+    // Time left to the output pump to drain the pipe once mvn has exited
+    private static final long PUMP_JOIN_MILLIS = 5000;
+    private final String token;
+    private final StatusPublisher statusPublisher;
+    private final EmailChannel emailChannel;
+    private final NotificationDispatcher notifications;
+    private final String defaultRepository;
+    private final String workspaceRoot;
+    private final BuildResult.Mode buildMode;
+    private WarmMavenPool warmMavenPool;
+    private final String logRoot;
+    private final int logTailLines;
+    private final int buildTimeoutSeconds;
+    private final LocalRepository localRepository;
+    private final MirrorCache mirrorCache;
+    private final BuildQueue buildQueue;
+    private final BuildCoordinator buildCoordinator;
+    private final WebhookGuard webhookGuard;
+    private final BuildCache buildCache;
+    private final String buildConfigHash;
+    private final ModuleSelector moduleSelector;
+    private final TestSharder testSharder;
+    private final Map<String, BuildHistory> buildHistories = new ConcurrentHashMap<>();
+    private final String historyRoot;
+    private final int historyPageSize;
+    private final int historyLogLines;
+    private final int historyTestsSlowest;
+    private final int historyTestsWindow;
+    private final boolean reloadTemplates;
+    private final Metrics metrics = new Metrics();
+    private final Router router = routes();
 
+    /**
+     * @param httpClient    Client used to reach GitHub's API.
+     * @param token         GitHub token allowed to edit commit statuses.
+     */
+    public ContinuousIntegration(HttpClient httpClient, String token) {
+        this.token = token;
+        this.workspaceRoot = System.getProperty("ci.workspace", "workspaces");
+        this.logRoot = System.getProperty("ci.logs", "build_logs");
+        this.logTailLines = Integer.getInteger("ci.logs.tail", 200);
+        this.buildTimeoutSeconds = Integer.getInteger("ci.build.timeout", 3600);
+        this.historyRoot = System.getProperty("ci.history", "build_history");
+        this.historyPageSize = Integer.getInteger("ci.history.page.size", 50);
+        this.historyLogLines = Integer.getInteger("ci.history.log.lines", 100);
+        this.historyTestsSlowest = Integer.getInteger("ci.history.tests.slowest", 20);
+        this.historyTestsWindow = Integer.getInteger("ci.history.tests.window", 20);
+        this.reloadTemplates = Boolean.getBoolean("ci.history.template.reload");
+        this.buildMode = BuildResult.Mode.valueOf(System.getProperty("ci.build.mode", "SINGLE").toUpperCase());
+        if ("WARM_POOL".equalsIgnoreCase(System.getProperty("ci.maven.backend", "INVOKER"))) {
+            String mavenHome = System.getenv("MAVEN_HOME");
+            if (mavenHome != null) {
+                this.warmMavenPool = new WarmMavenPool(new File(mavenHome),
+                        Integer.getInteger("ci.maven.warm.builds", 20), Integer.getInteger("ci.maven.warm.idle", 1));
+            }
+        }
+        this.statusPublisher = StatusPublisher.fromSystemProperties(httpClient, token);
+        this.defaultRepository = System.getProperty("ci.github.repo", "dd2480-group26-2024/continuous_integration");
+        this.emailChannel = EmailChannel.fromSystemProperties();
+        long digestMillis = Long.getLong("ci.notify.digest.ms", 2000L);
+        this.notifications = emailChannel == null ? new NotificationDispatcher(digestMillis)
+                : new NotificationDispatcher(digestMillis, metrics.timed("email", emailChannel));
+        this.mirrorCache = MirrorCache.fromSystemProperties();
+        this.localRepository = LocalRepository.fromSystemProperties();
+        this.webhookGuard = WebhookGuard.fromSystemProperties();
+        this.buildCache = BuildCache.fromSystemProperties();
+        this.moduleSelector = ModuleSelector.fromSystemProperties();
+        this.testSharder = TestSharder.fromSystemProperties();
+        this.buildConfigHash = BuildCache.configHash(buildMode.name(), System.getProperty("ci.maven.backend", "INVOKER"),
+                System.getProperty("java.version"), String.valueOf(System.getenv("MAVEN_HOME")));
+        this.buildQueue = BuildQueue.fromSystemProperties(this::runBuild);
+        // pending is published before a worker can take the job, the status of its build comes after it
+        this.buildQueue.onQueued(job -> updateGitHubStatus(job.getData(), "pending",
+                job.isResumed() ? "Build resumed after a restart" : "Build queued"));
+        // without it, the commit of a job dropped or failing before its outcome would stay pending
+        this.buildQueue.onAborted(job -> updateGitHubStatus(job.getData(), "error",
+                job.getState() == BuildJob.State.DROPPED ? "Build queue is full"
+                        : StringUtils.abbreviate("Build error: " + StringUtils.normalizeSpace(job.getError()), 140)));
+        this.buildQueue.onSuperseded((job, newer) -> updateGitHubStatus(job.getData(), "error",
+                "Superseded by " + newer.getData().get("commit_id")));
+        metrics.gauge("ci_queue_depth", "Builds waiting for a worker.", buildQueue::getQueueDepth);
+        metrics.gauge("ci_queue_capacity", "Maximum number of builds waiting for a worker.", buildQueue::getCapacity);
+        metrics.gauge("ci_builds_running", "Builds running.", buildQueue::getActiveCount);
+        metrics.gauge("ci_workers", "Builds running concurrently at most.", buildQueue::getWorkers);
+        metrics.gauge("ci_status_pending", "Commit statuses waiting to be posted.", statusPublisher::pendingCount);
+        this.buildCoordinator = BuildCoordinator.fromSystemProperties();
+        if (buildCoordinator != null) {
+            metrics.gauge("ci_agent_jobs_pending", "Builds waiting for a build agent.",
+                    buildCoordinator::getPendingCount);
+            metrics.gauge("ci_agent_jobs_leased", "Builds leased to build agents.", buildCoordinator::getLeasedCount);
+            router.get("/agents", (path, request, response) -> writeJson(buildCoordinator.toJson(), response))
+                    .post("/agents/*", buildCoordinator::handle);
+        }
+    }
     public ContinuousIntegration(HttpClient httpClient) {
-        this.httpClient = httpClient;
+        this(httpClient, "");
     }
     public ContinuousIntegration() {
-        this.httpClient =HttpClient.newHttpClient() ;
+        this(HttpClient.newHttpClient());
+    }
+
+    public BuildQueue getBuildQueue() {
+        return buildQueue;
+    }
+
+    /**
+     * Journals the build jobs from now on, and queues again the builds the journal holds unfinished: the builds
+     * accepted before the server stopped, which were queued or running. Their commits are set pending again. A build
+     * started "ci.journal.attempts" times (default: 3) without finishing is given up, its commit is set in error.
+     *
+     * @param journal   The job journal, null to keep the jobs in memory only.
+     * @return          Number of builds queued again or given up.
+     */
+    public int resumeBuilds(JobJournal journal) {
+        if (journal == null) {
+            return 0;
+        }
+        return buildQueue.recover(journal, Integer.getInteger("ci.journal.attempts", 3)).size();
     }
 
     /**
@@ -82,28 +205,39 @@ private HttpClient httpClient;
             }
             else
             {status_string="failure";}
+            return updateGitHubStatus(status_string, sha, description);
+    }
 
-            JSONObject requestBody = new JSONObject()
-                    .put("state", status_string)
-                    .put("description", description);
-
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create("https://api.github.com/repos/dd2480-group26-2024/continuous_integration/statuses/" + sha))
-                    .header("Authorization", "token " + token)
-                    .header("Accept", "application/vnd.github.v3+json")
-                    .header("Content-Type", "application/json")
-                    .POST(HttpRequest.BodyPublishers.ofString(requestBody.toString()))
-                    .build();
+    /**
+     * Sets the status of a specific commit of this repository (system property "ci.github.repo") on GitHub and waits
+     * for the outcome. The status is posted by the StatusPublisher, which retries failed posts.
+     *
+     * @param status_string The state of the commit: "error", "failure", "pending" or "success".
+     * @param sha           The SHA hash of the commit for which the status is being updated.
+     * @param description   A brief description that the CI server has commented.
+     * @return The state returned by GitHub if the update is successful, otherwise a string starting with "Error: "
+     *         followed by the error message.
+     */
+    public String updateGitHubStatus(String status_string, String sha, String description) {
+        return statusPublisher.publish(defaultRepository, sha, status_string, description).join();
+    }
 
-            try {
-                HttpResponse<String> response = httpClient.send(request, BodyHandlers.ofString());
-                JSONObject jsonResponse = new JSONObject(response.body());
-                return jsonResponse.getString("state");
-            } catch (Exception e) {
-                e.printStackTrace();
-                return "Error: " + e.getMessage();
-            }
-        }
+    /**
+     * Sets the status of the commit of a build on GitHub, without waiting for GitHub's answer.
+     *
+     * @param data          The data obtained from processRequestData, the repository is derived from its clone URL.
+     * @param state         The state of the commit: "error", "failure", "pending" or "success".
+     * @param description   A brief description that the CI server has commented.
+     * @return Completed with the state returned by GitHub, or a string starting with "Error: " if it could not be set.
+     */
+    public CompletableFuture<String> updateGitHubStatus(HashMap<String, String> data, String state, String description) {
+        String repository = StatusPublisher.repositoryOf(data.get("clone_url"));
+        long start = System.currentTimeMillis();
+        CompletableFuture<String> posted = statusPublisher.publish(repository != null ? repository : defaultRepository,
+                data.get("commit_id"), state, description);
+        posted.whenComplete((result, error) -> metrics.observe("status", System.currentTimeMillis() - start));
+        return posted;
+    }
 
     /**
      * Method to clone the repository and checkout a specific commit
@@ -131,6 +265,328 @@ private HttpClient httpClient;
         }
     }
 
+    /**
+     * @return              The Maven installation given by the MAVEN_HOME environment variable
+     *
+     * @throws Exception    Exception thrown if MAVEN_HOME is not found
+     */
+    private static File mavenHome() throws Exception {
+        String MAVEN_HOME = System.getenv("MAVEN_HOME");
+        if (MAVEN_HOME == null){
+            String errMsg = "\nException error due to MAVEN_HOME environment variable not set \n"
+                            + "Try adding it to your ~/.bashrc, ~/.profile or /etc/environment file \n"
+                            + "export MAVEN_HOME=<path> \n"
+                            + "tip: you can find the path by entering \"mvn --version\"\n";
+
+            throw new Exception(errMsg);
+        }
+        return new File(MAVEN_HOME);
+    }
+
+    /**
+     * Builds the project in a specific directory, compiling it and running its tests either with a single
+     * Maven invocation, in two phases or with its tests split in parallel shards, depending on the build mode of the
+     * server ("ci.build.mode" system property).
+     *
+     * @param directoryPath Path to the directory of the Maven project
+     *
+     * @param log           Receives the output of Maven line by line
+     *
+     * @return              The compilation and test outcomes
+     *
+     * @throws Exception    Exception thrown if MAVEN_HOME is not found
+     */
+    public BuildResult buildProject(String directoryPath, Consumer<String> log) throws Exception {
+        return buildProject(directoryPath, directoryPath, log, new Properties());
+    }
+
+    /**
+     * Builds the project in a specific directory, compiling it and running its tests either with a single
+     * Maven invocation, in two phases or with its tests split in parallel shards, depending on the build mode of the
+     * server ("ci.build.mode" system property).
+     * With the warm pool backend ("ci.maven.backend" system property set to WARM_POOL) the single invocation runs
+     * in a warm build JVM reused across the builds of the project.
+     *
+     * @param project       Key of the project, e.g. its clone URL
+     *
+     * @param directoryPath Path to the directory of the Maven project
+     *
+     * @param log           Receives the output of Maven line by line
+     *
+     * @param properties    System properties given to Maven, e.g. the local repository to use
+     *
+     * @return              The compilation and test outcomes
+     *
+     * @throws Exception    Exception thrown if MAVEN_HOME is not found
+     */
+    public BuildResult buildProject(String project, String directoryPath, Consumer<String> log, Properties properties) throws Exception {
+        return buildProject(project, directoryPath, log, properties, null);
+    }
+
+    /**
+     * Builds some modules of the project in a specific directory, with the modules they depend on and the modules
+     * depending on them, the same way as buildProject(project, directoryPath, log, properties).
+     *
+     * @param project       Key of the project, e.g. its clone URL
+     *
+     * @param directoryPath Path to the directory of the Maven project
+     *
+     * @param log           Receives the output of Maven line by line
+     *
+     * @param properties    System properties given to Maven, e.g. the local repository to use
+     *
+     * @param modules       Paths of the modules to build relative to the project, null for the whole reactor
+     *
+     * @return              The compilation and test outcomes
+     *
+     * @throws Exception    Exception thrown if MAVEN_HOME is not found
+     */
+    public BuildResult buildProject(String project, String directoryPath, Consumer<String> log, Properties properties,
+            List<String> modules) throws Exception {
+        if (buildMode == BuildResult.Mode.SHARDED) {
+            if (modules == null && TestSharder.canShard(new File(directoryPath))) {
+                return testSharder.run(mavenHome(), project, new File(directoryPath), log, properties, buildTimeoutSeconds);
+            }
+            log.accept("[CI] Multi-module project, the tests are not sharded");
+            return runMavenBuild(directoryPath, log, properties, buildTimeoutSeconds, modules);
+        }
+        if (buildMode == BuildResult.Mode.SINGLE && warmMavenPool != null) {
+            return runMavenBuild(warmMavenPool, project, directoryPath, log, properties, buildTimeoutSeconds, modules);
+        }
+        if (buildMode == BuildResult.Mode.SINGLE) {
+            return runMavenBuild(directoryPath, log, properties, buildTimeoutSeconds, modules);
+        }
+        BuildResult compiled = compile(directoryPath, log, properties, modules);
+        if (!compiled.getCompileStatus() || Thread.currentThread().isInterrupted()) {
+            return compiled.isTimedOut() ? compiled : new BuildResult(false, false);
+        }
+        return test(directoryPath, log, properties, buildTimeoutSeconds, modules);
+    }
+
+    /**
+     * Compiles the project in a specific directory and runs its tests with a single "mvn test" invocation,
+     * the compilation outcome is derived from the errors reported by Maven.
+     *
+     * @param directoryPath Path to the directory of the Maven project
+     *
+     * @param log           Receives the output of Maven line by line
+     *
+     * @return              The compilation and test outcomes
+     *
+     * @throws Exception    Exception thrown if MAVEN_HOME is not found
+     */
+    public static BuildResult runMavenBuild(String directoryPath, Consumer<String> log) throws Exception {
+        return runMavenBuild(directoryPath, log, new Properties());
+    }
+
+    /**
+     * Compiles the project in a specific directory and runs its tests with a single "mvn test" invocation,
+     * the compilation outcome is derived from the errors reported by Maven.
+     *
+     * @param directoryPath Path to the directory of the Maven project
+     *
+     * @param log           Receives the output of Maven line by line
+     *
+     * @param properties    System properties given to Maven
+     *
+     * @return              The compilation and test outcomes
+     *
+     * @throws Exception    Exception thrown if MAVEN_HOME is not found
+     */
+    public static BuildResult runMavenBuild(String directoryPath, Consumer<String> log, Properties properties) throws Exception {
+        return runMavenBuild(directoryPath, log, properties, InvocationRequest.NO_TIMEOUT);
+    }
+
+    /**
+     * Compiles the project in a specific directory and runs its tests with a single "mvn test" invocation,
+     * the compilation outcome is derived from the errors reported by Maven.
+     *
+     * @param directoryPath     Path to the directory of the Maven project
+     *
+     * @param log               Receives the output of Maven line by line
+     *
+     * @param properties        System properties given to Maven
+     *
+     * @param timeoutSeconds    Maximum duration of the build, Maven is killed past it. 0 for no limit
+     *
+     * @return                  The compilation and test outcomes
+     *
+     * @throws Exception        Exception thrown if MAVEN_HOME is not found
+     */
+    public static BuildResult runMavenBuild(String directoryPath, Consumer<String> log, Properties properties,
+            int timeoutSeconds) throws Exception {
+        return runMavenBuild(directoryPath, log, properties, timeoutSeconds, null);
+    }
+
+    /**
+     * Compiles some modules of the project in a specific directory and runs their tests with a single "mvn test"
+     * invocation, together with the modules they depend on and the modules depending on them.
+     *
+     * @param directoryPath     Path to the directory of the Maven project
+     *
+     * @param log               Receives the output of Maven line by line
+     *
+     * @param properties        System properties given to Maven
+     *
+     * @param timeoutSeconds    Maximum duration of the build, Maven is killed past it. 0 for no limit
+     *
+     * @param modules           Paths of the modules to build relative to the project, null for the whole reactor
+     *
+     * @return                  The compilation and test outcomes
+     *
+     * @throws Exception        Exception thrown if MAVEN_HOME is not found
+     */
+    public static BuildResult runMavenBuild(String directoryPath, Consumer<String> log, Properties properties,
+            int timeoutSeconds, List<String> modules) throws Exception {
+        InvocationRequest request = new DefaultInvocationRequest();
+        request.setBaseDirectory(new File(directoryPath));
+        ModuleSelector.selectModules(request, modules);
+        request.setBatchMode(true);
+        request.setProperties(properties);
+        request.setTimeoutInSeconds(timeoutSeconds);
+        // the workspace is a fresh checkout, no need to clean
+        request.setGoals(Collections.singletonList("test"));
+
+        // a failure is a compilation failure until Maven tells it happened later
+        AtomicBoolean compileFailed = new AtomicBoolean(true);
+        AtomicBoolean testsStarted = new AtomicBoolean();
+        request.setOutputHandler(line -> {
+            log.accept(line);
+            if (BuildResult.isTestFailure(line)) {
+                compileFailed.set(false);
+            } else if (!line.startsWith("[ERROR]") && line.contains("maven-surefire-plugin")) {
+                testsStarted.set(true);
+            }
+        });
+        Invoker invoker = new DefaultInvoker();
+        invoker.setMavenHome(mavenHome());
+        try {
+            InvocationResult result = invoker.execute(request);
+            if (result.getExecutionException() != null) {
+                log.accept(String.valueOf(result.getExecutionException().getMessage()));
+            }
+            if (result.getExecutionException() instanceof CommandLineTimeOutException) {
+                return BuildResult.timedOut(testsStarted.get());
+            }
+            return BuildResult.fromTestInvocation(result.getExitCode(), compileFailed.get());
+        } catch (MavenInvocationException e) {
+            e.printStackTrace();
+            log.accept(String.valueOf(e.getMessage()));
+            return new BuildResult(false, false);
+        }
+    }
+
+    /**
+     * Compiles the project in a specific directory and runs its tests with a single "mvn test" run
+     * in a warm build JVM of the pool.
+     *
+     * @param pool          The pool of warm build JVMs
+     *
+     * @param project       Key of the project, warm JVMs are reused across the builds of a same project
+     *
+     * @param directoryPath Path to the directory of the Maven project
+     *
+     * @param log           Receives the output of Maven line by line
+     *
+     * @param properties    System properties given to Maven
+     *
+     * @return              The compilation and test outcomes
+     *
+     * @throws InterruptedException if the build is cancelled, the JVM running it is then killed
+     */
+    public static BuildResult runMavenBuild(WarmMavenPool pool, String project, String directoryPath, Consumer<String> log,
+            Properties properties) throws InterruptedException {
+        return runMavenBuild(pool, project, directoryPath, log, properties, 0);
+    }
+
+    /**
+     * Compiles the project in a specific directory and runs its tests with a single "mvn test" run
+     * in a warm build JVM of the pool.
+     *
+     * @param pool              The pool of warm build JVMs
+     *
+     * @param project           Key of the project, warm JVMs are reused across the builds of a same project
+     *
+     * @param directoryPath     Path to the directory of the Maven project
+     *
+     * @param log               Receives the output of Maven line by line
+     *
+     * @param properties        System properties given to Maven
+     *
+     * @param timeoutSeconds    Maximum duration of the build, the JVM running it is killed past it. 0 for no limit
+     *
+     * @return                  The compilation and test outcomes
+     *
+     * @throws InterruptedException if the build is cancelled, the JVM running it is then killed
+     */
+    public static BuildResult runMavenBuild(WarmMavenPool pool, String project, String directoryPath, Consumer<String> log,
+            Properties properties, int timeoutSeconds) throws InterruptedException {
+        return runMavenBuild(pool, project, directoryPath, log, properties, timeoutSeconds, null);
+    }
+
+    /**
+     * Compiles some modules of the project in a specific directory and runs their tests with a single "mvn test" run
+     * in a warm build JVM of the pool, together with the modules they depend on and the modules depending on them.
+     *
+     * @param pool              The pool of warm build JVMs
+     *
+     * @param project           Key of the project, warm JVMs are reused across the builds of a same project
+     *
+     * @param directoryPath     Path to the directory of the Maven project
+     *
+     * @param log               Receives the output of Maven line by line
+     *
+     * @param properties        System properties given to Maven
+     *
+     * @param timeoutSeconds    Maximum duration of the build, the JVM running it is killed past it. 0 for no limit
+     *
+     * @param modules           Paths of the modules to build relative to the project, null for the whole reactor
+     *
+     * @return                  The compilation and test outcomes
+     *
+     * @throws InterruptedException if the build is cancelled, the JVM running it is then killed
+     */
+    public static BuildResult runMavenBuild(WarmMavenPool pool, String project, String directoryPath, Consumer<String> log,
+            Properties properties, int timeoutSeconds, List<String> modules) throws InterruptedException {
+        // a failure is a compilation failure until Maven tells it happened later
+        AtomicBoolean compileFailed = new AtomicBoolean(true);
+        AtomicBoolean testsStarted = new AtomicBoolean();
+        List<String> args = new ArrayList<>(Arrays.asList("-B", "test"));
+        args.addAll(ModuleSelector.arguments(modules));
+        args.addAll(toArguments(properties));
+        try {
+            int exitCode = pool.execute(project, new File(directoryPath), args, line -> {
+                log.accept(line);
+                if (BuildResult.isTestFailure(line)) {
+                    compileFailed.set(false);
+                } else if (!line.startsWith("[ERROR]") && line.contains("maven-surefire-plugin")) {
+                    testsStarted.set(true);
+                }
+            }, timeoutSeconds * 1000L);
+            return BuildResult.fromTestInvocation(exitCode, compileFailed.get());
+        } catch (WarmMavenPool.BuildTimeoutException e) {
+            log.accept("[ERROR] " + e.getMessage());
+            return BuildResult.timedOut(testsStarted.get());
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.accept(String.valueOf(e.getMessage()));
+            return new BuildResult(false, false);
+        }
+    }
+
+    /**
+     * @param properties    System properties
+     *
+     * @return              The properties as "-Dkey=value" command line arguments
+     */
+    private static List<String> toArguments(Properties properties) {
+        List<String> args = new ArrayList<>();
+        for (String key : properties.stringPropertyNames()) {
+            args.add("-D" + key + "=" + properties.getProperty(key));
+        }
+        return args;
+    }
+
     /**
      * Method to execute the tests in a specific directory
      *
@@ -142,37 +598,109 @@ private HttpClient httpClient;
      */
      
     public static boolean runTests(String directoryPath, ByteArrayOutputStream logStream) throws Exception{
+        PrintStream printStream = new PrintStream(logStream);
+        return runTests(directoryPath, printStream::println, new Properties());
+    }
+
+    /**
+     * Method to execute the tests in a specific directory
+     *
+     * @param directoryPath Path to the directory where the test is placed
+     *
+     * @param log           Receives the output of Maven line by line
+     *
+     * @param properties    System properties given to Maven
+     *
+     * @return              True if tests was executed correctly, false if otherwise
+     *
+     * @throws Exception    Exception thrown if MAVEN_HOME is not found
+     */
+    public static boolean runTests(String directoryPath, Consumer<String> log, Properties properties) throws Exception{
+        return runTests(directoryPath, log, properties, InvocationRequest.NO_TIMEOUT);
+    }
+
+    /**
+     * Method to execute the tests in a specific directory
+     *
+     * @param directoryPath     Path to the directory where the test is placed
+     *
+     * @param log               Receives the output of Maven line by line
+     *
+     * @param properties        System properties given to Maven
+     *
+     * @param timeoutSeconds    Maximum duration of the tests, Maven is killed past it. 0 for no limit
+     *
+     * @return                  True if tests was executed correctly, false if otherwise
+     *
+     * @throws Exception        Exception thrown if MAVEN_HOME is not found
+     */
+    public static boolean runTests(String directoryPath, Consumer<String> log, Properties properties, int timeoutSeconds) throws Exception{
+        return runTests(directoryPath, log, properties, timeoutSeconds, null);
+    }
+
+    /**
+     * Method to execute the tests of some modules in a specific directory, building the modules they depend on and
+     * the modules depending on them too
+     *
+     * @param directoryPath     Path to the directory where the test is placed
+     *
+     * @param log               Receives the output of Maven line by line
+     *
+     * @param properties        System properties given to Maven
+     *
+     * @param timeoutSeconds    Maximum duration of the tests, Maven is killed past it. 0 for no limit
+     *
+     * @param modules           Paths of the modules relative to the project, null for the whole reactor
+     *
+     * @return                  True if tests was executed correctly, false if otherwise
+     *
+     * @throws Exception        Exception thrown if MAVEN_HOME is not found
+     */
+    public static boolean runTests(String directoryPath, Consumer<String> log, Properties properties, int timeoutSeconds,
+            List<String> modules) throws Exception{
+        return test(directoryPath, log, properties, timeoutSeconds, modules).getTestStatus();
+    }
+
+    /**
+     * Runs the tests of an already compiled project, see runTests.
+     *
+     * @return                  The test outcome, timed out if Maven was killed past the timeout
+     *
+     * @throws Exception        Exception thrown if MAVEN_HOME is not found
+     */
+    private static BuildResult test(String directoryPath, Consumer<String> log, Properties properties, int timeoutSeconds,
+            List<String> modules) throws Exception{
 
         File path = new File(directoryPath);
         InvocationRequest request = new DefaultInvocationRequest();
         request.setBaseDirectory( path );
+        ModuleSelector.selectModules( request, modules );
+        request.setProperties( properties );
         request.setBatchMode( true );  // sets batch mode so that the terminal doesn't stall and ask for input
+        request.setTimeoutInSeconds( timeoutSeconds );
         request.setGoals( Collections.singletonList( "test" ) );
         
-        String MAVEN_HOME = System.getenv("MAVEN_HOME");
-        if (MAVEN_HOME == null){
-            String errMsg = "\nException error due to MAVEN_HOME environment variable not set \n"
-                            + "Try adding it to your ~/.bashrc, ~/.profile or /etc/environment file \n"
-                            + "export MAVEN_HOME=<path> \n"
-                            + "tip: you can find the path by entering \"mvn --version\"\n";
-
-            throw new Exception(errMsg);
-        }
-        PrintStreamHandler logger = new PrintStreamHandler(new PrintStream(logStream), false);
-        request.setOutputHandler(logger);
+        File MAVEN_HOME = mavenHome();
+        request.setOutputHandler(log::accept);
         Invoker invoker = new DefaultInvoker();
-        invoker.setMavenHome(new File (MAVEN_HOME));
+        invoker.setMavenHome(MAVEN_HOME);
         try{
             InvocationResult result = invoker.execute( request );
-            System.out.println(result.getExitCode());
-            return result.getExitCode() == 0;
+            if (result.getExecutionException() != null) {
+                log.accept(String.valueOf(result.getExecutionException().getMessage()));
+            }
+            if (result.getExecutionException() instanceof CommandLineTimeOutException) {
+                return BuildResult.timedOut(true);
+            }
+            log.accept("[CI] Maven exited with code " + result.getExitCode());
+            return new BuildResult(true, result.getExitCode() == 0);
 
         }catch(Exception e){
             e.printStackTrace();
-            System.out.println(e.getMessage());
+            log.accept(String.valueOf(e.getMessage()));
             
         }
-        return false;
+        return new BuildResult(true, false);
 
     }
 
@@ -184,46 +712,148 @@ private HttpClient httpClient;
      * @return true if the project compiles successfully without errors; false if the compilation
      *         process fails or encounters errors.
      */
-    public boolean compileMavenProject(String projectDirectory) {
+    public boolean compileMavenProject(String projectDirectory) {
+        return compileMavenProject(projectDirectory, line -> { });
+    }
+
+    /**
+     * Compiles a Maven project located in a specified directory.
+     *
+     * @param projectDirectory The path to the directory containing the Maven project. This directory
+     *                         should contain a 'pom.xml' file.
+     * @param log              Receives the output of the compilation line by line.
+     * @return true if the project compiles successfully without errors; false if the compilation
+     *         process fails or encounters errors.
+     */
+    public boolean compileMavenProject(String projectDirectory, Consumer<String> log) {
+        return compileMavenProject(projectDirectory, log, new Properties());
+    }
+
+    /**
+     * Compiles a Maven project located in a specified directory.
+     *
+     * @param projectDirectory The path to the directory containing the Maven project. This directory
+     *                         should contain a 'pom.xml' file.
+     * @param log              Receives the output of the compilation line by line.
+     * @param properties       System properties given to Maven.
+     * @return true if the project compiles successfully without errors; false if the compilation
+     *         process fails or encounters errors.
+     */
+    public boolean compileMavenProject(String projectDirectory, Consumer<String> log, Properties properties) {
+        return compileMavenProject(projectDirectory, log, properties, null);
+    }
+
+    /**
+     * Compiles some modules of a Maven project located in a specified directory, with the modules they depend on
+     * and the modules depending on them.
+     *
+     * @param projectDirectory The path to the directory containing the Maven project. This directory
+     *                         should contain a 'pom.xml' file.
+     * @param log              Receives the output of the compilation line by line.
+     * @param properties       System properties given to Maven.
+     * @param modules          Paths of the modules relative to the project, null for the whole reactor.
+     * @return true if the project compiles successfully without errors; false if the compilation
+     *         process fails or encounters errors.
+     */
+    public boolean compileMavenProject(String projectDirectory, Consumer<String> log, Properties properties,
+            List<String> modules) {
+        return compile(projectDirectory, log, properties, modules).getCompileStatus();
+    }
+
+    /**
+     * Compiles a Maven project, see compileMavenProject.
+     *
+     * @return The compilation outcome, timed out if mvn was killed past the build timeout. The tests are not run.
+     */
+    private BuildResult compile(String projectDirectory, Consumer<String> log, Properties properties,
+            List<String> modules) {
+        Process process = null;
         try {
             // command to compile mvn program
-            String[] command = {"mvn", "clean", "compile"};
+            List<String> command = new ArrayList<>(Arrays.asList("mvn", "clean", "compile"));
+            command.addAll(ModuleSelector.arguments(modules));
+            command.addAll(toArguments(properties));
     
             // start the process
             ProcessBuilder processBuilder = new ProcessBuilder(command);
             processBuilder.directory(new File(projectDirectory)); 
             processBuilder.redirectErrorStream(true);
-            Process process = processBuilder.start();
-            int exitCode = process.waitFor(); 
-    
-            
-            BufferedReader outputError = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String tempLine;
-            boolean projectWorking = true;
+            process = processBuilder.start();
 
-            // Check if the exit code is 0
-            if (exitCode != 0) {
-                projectWorking = false;
-            }
-    
-            while ((tempLine = outputError.readLine()) != null) {
-
-                logInfo+=tempLine+"\n";
-                if (tempLine.contains("[ERROR]")) {
-                    projectWorking = false;
+            // the output is read while mvn runs, otherwise mvn blocks once the pipe is full
+            AtomicBoolean errorReported = new AtomicBoolean();
+            Thread pump = pumpOutput(process, line -> {
+                log.accept(line);
+                if (line.contains("[ERROR]")) {
+                    errorReported.set(true);
                 }
+            });
+
+            boolean exited;
+            if (buildTimeoutSeconds > 0) {
+                exited = process.waitFor(buildTimeoutSeconds, TimeUnit.SECONDS);
+            } else {
+                process.waitFor();
+                exited = true;
             }
-            return projectWorking;
+            if (!exited) {
+                destroyProcessTree(process);
+                pump.join(PUMP_JOIN_MILLIS);
+                log.accept("[ERROR] Compilation timed out after " + buildTimeoutSeconds + " seconds");
+                return BuildResult.timedOut(false);
+            }
+            pump.join(PUMP_JOIN_MILLIS);
+            return new BuildResult(process.exitValue() == 0 && !errorReported.get(), false);
+        } catch (InterruptedException e) {
+            // the build was cancelled, kill mvn and the JVM it started
+            destroyProcessTree(process);
+            Thread.currentThread().interrupt();
+            return new BuildResult(false, false);
         } catch (Exception e) {
             e.printStackTrace();            
-            return false;
+            return new BuildResult(false, false);
+        }
+    }
+
+    /**
+     * Reads the output of a process line by line on a thread of its own.
+     *
+     * @param process   The process, with its error stream redirected to its output.
+     * @param output    Receives the output line by line.
+     * @return          The started thread, which ends with the output of the process.
+     */
+    private static Thread pumpOutput(Process process, Consumer<String> output) {
+        Thread pump = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    output.accept(line);
+                }
+            } catch (IOException e) {
+                // the process was killed
+            }
+        }, "ci-output-" + process.pid());
+        pump.setDaemon(true);
+        pump.start();
+        return pump;
+    }
+
+    /**
+     * Kills a process and all the processes it started, e.g. mvn and the JVMs of its forked tests.
+     */
+    private static void destroyProcessTree(Process process) {
+        if (process == null) {
+            return;
         }
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
     }
 
     
 
 	/**
-	 * Sends an email notification to the committer's email account when a commit occurs.
+	 * Sends an email notification to the committer's email account when a commit occurs, and waits until it is sent.
+	 * Builds notify their committer through the NotificationDispatcher instead, without waiting.
 	 *
 	 * @param requestData   A HashMap containing request data obtained from the processRequestData method.
 	 *                      It should contain the following key-value pairs:
@@ -232,45 +862,16 @@ private HttpClient httpClient;
 	 *                          - "email": The email address of the committer.
 	 * @param testStatus A boolean indicating the status of the test process.
 	 *                      True indicates a successful compilation, false indicates a failure.
-	 * @return true if the email notification was successfully sent; otherwise, false.
+	 * @return true if the email notification was successfully sent; otherwise, false, e.g. if the mail account
+	 *         is not set (see EmailChannel.fromSystemProperties).
 	 */
 	public boolean sendEmailNotification(HashMap<String, String> requestData, boolean testStatus) {
-		final String username = "group26kth@gmail.com";
-		final String password = "tlsf nrys dquv mpce ";
-
-		// SMTP server settings (for Gmail)
-		Properties props = new Properties();
-		props.put("mail.smtp.auth", "true");
-		props.put("mail.smtp.starttls.enable", "true");
-		props.put("mail.smtp.host", "smtp.gmail.com");
-		props.put("mail.smtp.port", "587");
-
-		// Create a Session object
-		Session session = Session.getInstance(props, new javax.mail.Authenticator() {
-			protected PasswordAuthentication getPasswordAuthentication() {
-				return new PasswordAuthentication(username, password);
-			}
-		});
-
+		if (emailChannel == null) {
+			return false;
+		}
 		try {
-			String headCommitId = requestData.get("commit_id");
-			String repoURL = requestData.get("clone_url");
-			String toUser = requestData.get("email");
-			String commitMessage = requestData.get("commit_message");
-
-			Message message = new MimeMessage(session);
-			message.setFrom(new InternetAddress("group26kth@gmail.com"));
-			message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(toUser));
-			message.setSubject("Current state update");
-
-			if (testStatus) {
-				message.setText("The latest commit resulted in: SUCCESS \n" + "Commit Id: " + headCommitId + "\n" + "Commit message: " + commitMessage);
-			} else if (!testStatus) {
-				message.setText("The latest commit resulted in: FAILURE\n" + "Commit Id: " + headCommitId + "\n" + "Commit message: " + commitMessage);
-			} else {
-				message.setText("Error, issue unknown" + "Commit Id: " + headCommitId + "\n" + "Commit message: " + commitMessage);
-			}
-			Transport.send(message);
+			emailChannel.send(requestData.get("email"),
+					Collections.singletonList(NotificationDispatcher.Notification.of(requestData, testStatus)));
 			return true;
 		} catch (MessagingException e) {
 			e.printStackTrace();
@@ -282,25 +883,29 @@ private HttpClient httpClient;
 	/**
      * Processes the request data from a request, extracting information related to a git commit.
      * 
+     * The payload is streamed from the body by the PayloadParser, which decodes only the fields below.
+     *
      * @param request   The HttpServletRequest from GitHub's webhook, which payload should be extracted.
-     * 
+     *
      * @return          A HashMap containing the commit information.
-     *  The keys in the map include "repo_name", "clone_url", "commit_id", "email", "timestamp", and "commit_message". Or "error" if no head commit is found.
+     *  The keys in the map include "repo_name", "clone_url", "commit_id", "email", "timestamp", and "commit_message",
+     *  and "ref" when the payload tells the pushed branch. Or "error" if no head commit is found or the payload
+     *  is malformed.
      */
 	public HashMap<String,String> processRequestData(HttpServletRequest request){
-		JSONObject requestBody = new JSONObject(request.getParameter("payload"));
-		HashMap<String,String> map = new HashMap<>();		
-		if(!requestBody.has("head_commit")){
+		HashMap<String,String> map = new HashMap<>();
+		PushEvent event;
+		try {
+			event = PayloadParser.parse(request);
+		} catch (IOException e) {
+			map.put("error", e.getMessage());
+			return map;
+		}
+		if(event == null){
 			map.put("error", "no head_commit in the request payload");
 			return map;
-		}		
-		map.put("repo_name", requestBody.getJSONObject("repository").getString("name")); 
-		map.put("clone_url", requestBody.getJSONObject("repository").getString("clone_url")); 
-		map.put("commit_id", requestBody.getJSONObject("head_commit").getString("id")); 
-		map.put("email", requestBody.getJSONObject("head_commit").getJSONObject("committer").getString("email")); 
-		map.put("timestamp", requestBody.getJSONObject("head_commit").getString("timestamp")); 
-		map.put("commit_message", requestBody.getJSONObject("head_commit").getString("message")); 
-		return map;
+		}
+		return event.toMap();
 	}
 	
 	/**
@@ -317,26 +922,8 @@ private HttpClient httpClient;
      *  
      */
 	public boolean saveToBuildHistory(String commitId, String buildLogs, String buildDate, String path){
-		HashMap<String, String> buildData = new HashMap<>();
-		buildData.put("$commit_id", commitId);
-		buildData.put("$build_date", buildDate);
-		buildData.put("$build_logs", buildLogs);
-		
 		try{
-			File input = new File(path+"/index.html");
-			Document doc = Jsoup.parse(input, "UTF-8");
-			Element body = doc.body();
-			body.appendElement("a")
-				.attr("href", "builds/"+commitId+".html")
-				.text(commitId + "\t|\t" + buildDate);
-			body.appendElement("br");
-
-			Files.write(Paths.get(path+"/index.html"), doc.html().getBytes());
-			Path templatePath = Paths.get(path+"/builds/_template.html");
-			Path newBuildPath = Paths.get(path+"/builds/"+commitId+".html");
-			String templateContent = new String(Files.readAllBytes(templatePath));
-			String modifiedContent = StringUtils.replaceEach(templateContent, buildData.keySet().toArray(new String[0]), buildData.values().toArray(new String[0]));
-			Files.write(newBuildPath, modifiedContent.getBytes());
+			buildHistory(path).save(commitId, buildLogs, buildDate);
 		} catch(IOException e){
 			e.printStackTrace();
 			return false;
@@ -348,7 +935,7 @@ private HttpClient httpClient;
      * Add a new build to the build history.
      * 
      * Creates a new build HTML file with build information, and add a link to it in the build history.
-     * Uses the default directory "./build_history".
+     * Uses the history directory of the server ("ci.history" system property, default "./build_history").
      * 
      * @param commitId      String id of head commit
      * @param buildLogs     String logs from commit compilation
@@ -357,7 +944,42 @@ private HttpClient httpClient;
      * @return              boolean - true if there is no IOException raised, false otherwise       
      */
 	public boolean saveToBuildHistory(String commitId, String buildLogs, String buildDate){
-		return saveToBuildHistory(commitId, buildLogs, buildDate, "build_history");
+		return saveToBuildHistory(commitId, buildLogs, buildDate, historyRoot);
+	}
+
+	/**
+     * Add a new build to the build history, compressing its log file.
+     * Uses the history directory of the server ("ci.history" system property, default "./build_history").
+     * 
+     * @param commitId      String id of head commit
+     * @param logFile       File holding the logs of the build
+     * @param buildDate     String date of the build of the commit
+     * 
+     * @return              boolean - true if there is no IOException raised, false otherwise       
+     */
+	public boolean saveToBuildHistory(String commitId, File logFile, String buildDate){
+		return saveToBuildHistory(commitId, logFile, buildDate, new JSONArray());
+	}
+
+	/**
+     * Add a new build to the build history, compressing its log file and keeping the duration of its stages.
+     * Uses the history directory of the server ("ci.history" system property, default "./build_history").
+     * 
+     * @param commitId      String id of head commit
+     * @param logFile       File holding the logs of the build
+     * @param buildDate     String date of the build of the commit
+     * @param timeline      The stages of the build, as recorded by a Metrics.Timeline
+     * 
+     * @return              boolean - true if there is no IOException raised, false otherwise       
+     */
+	public boolean saveToBuildHistory(String commitId, File logFile, String buildDate, JSONArray timeline){
+		try (InputStream in = new FileInputStream(logFile)) {
+			buildHistory(historyRoot).save(commitId, in, buildDate, timeline);
+		} catch(IOException e){
+			e.printStackTrace();
+			return false;
+		}
+		return true;
 	}
 
 
@@ -370,9 +992,233 @@ private HttpClient httpClient;
     }
     
 
+    /**
+     * Builds a commit and notifies the outcome: checks the commit out from the repository's mirror, compiles it, runs the tests,
+     * then sends the email notification, sets the GitHub status and saves the build to the history.
+     * A commit whose tree was already built successfully with the same configuration is not built again: the outcome
+     * and log of the earlier build are reused from the BuildCache. In a multi-module project, only the modules changed
+     * since the last successful build of the branch are built, as selected by the ModuleSelector.
+     * Runs on a worker thread of the build queue.
+     *
+     * @param job   The build job, holding the data obtained from processRequestData.
+     *
+     * @return      true if the commit compiled and its tests passed, false otherwise.
+     *
+     * @throws Exception if the tests could not be run (e.g. MAVEN_HOME is not set).
+     */
+    public boolean runBuild(BuildJob job) throws Exception {
+        HashMap<String, String> data = job.getData();
+        String repo_path = job.assignWorkspace(workspaceRoot);
+        // Leftover of a previous server run reusing the same build id
+        deleteDirectory(repo_path);
+        BuildLog log = job.openLog(logRoot, logTailLines);
+        MirrorCache.Lease lease = null;
+        Metrics.Timeline timeline = metrics.timeline();
+        timeline.add("queue_wait", job.getEnqueuedAt(), job.getStartedAt());
+        try {
+            String treeId = null;
+            BuildCache.Entry cached = null;
+            BuildResult result = null;
+            List<SurefireReports.TestCase> agentTests = null;
+            if (buildCoordinator != null) {
+                // checked out, compiled and tested by a build agent, which sends the log as it goes
+                timeline.start("agent_wait");
+                BuildCoordinator.Outcome outcome = buildCoordinator.build(job,
+                        log.andThen(line -> startAgentStage(line, timeline)), () -> timeline.start("checkout"));
+                result = outcome.getResult();
+                agentTests = outcome.getTestCases();
+            } else {
+                // Fetch the commit into the repository's mirror and check it out in the workspace
+                timeline.start("checkout");
+                try {
+                    lease = mirrorCache.checkout(data.get("clone_url"), data.get("commit_id"), repo_path);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    log.accept("Checkout of " + data.get("commit_id") + " failed: " + e.getMessage());
+                }
+
+                // Compile and run tests, a build superseded in between stops without notifying anything
+                job.checkCancelled();
+                treeId = cacheableTreeId(data, repo_path, lease != null);
+                cached = treeId == null ? null : buildCache.get(treeId, buildConfigHash);
+                if (cached != null) {
+                    timeline.start("cache_replay");
+                    log.accept("[CI] Tree " + treeId + " was already built for commit " + cached.getCommitId()
+                            + ", reusing its result");
+                    cached.replayLog(log);
+                    result = cached.getResult();
+                } else {
+                    List<String> modules = selectModules(data, repo_path, lease != null, log);
+                    LocalRepository.Session repository = localRepository.open(job.getId());
+                    timeline.start("compile");
+                    try {
+                        result = buildProject(data.get("clone_url"), repo_path,
+                                log.andThen(repository::consumeLine).andThen(line -> startTestStage(line, timeline)),
+                                repository.mavenProperties(), modules);
+                    } finally {
+                        repository.close(result != null && result.getTestStatus(), log);
+                    }
+                }
+            }
+            timeline.end();
+            job.checkCancelled();
+            if (agentTests != null) {
+                recordTests(data, agentTests, log);
+            } else if (cached == null) {
+                recordTests(data, repo_path, log);
+            }
+            boolean testStatus = result.getTestStatus();
+            metrics.countBuild(testStatus ? "success" : result.isTimedOut() ? "timeout" : "failure");
+            Date buildDate = new Date();
+
+            // Set github status, email notification and build history
+            notifications.enqueue(NotificationDispatcher.Notification.of(data, testStatus));
+
+            updateGitHubStatus(data, testStatus ? "success" : "failure",
+                    result.getTestSummary() != null ? result.getTestSummary() : "CI server status");
+            if (testStatus && moduleSelector != null) {
+                moduleSelector.recordSuccess(data.get("clone_url"), data.get("ref"), data.get("commit_id"));
+            }
+
+            log.close();
+            // failures may come from the environment (downloads, timeouts), they are built again
+            if (cached == null && treeId != null && testStatus) {
+                try (InputStream in = new FileInputStream(log.getFile())) {
+                    buildCache.put(treeId, buildConfigHash, data.get("commit_id"), result, in);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            long historyStart = System.currentTimeMillis();
+            if (saveToBuildHistory(data.get("commit_id"), log.getFile(), buildDate.toString(), timeline.toJson())) {
+                // the log is now read from the history
+                try {
+                    Files.deleteIfExists(log.getFile().toPath());
+                } catch (IOException e) {
+                    // the status is published, the build must not end in error
+                    e.printStackTrace();
+                }
+            }
+            metrics.observe("history", System.currentTimeMillis() - historyStart);
+            return testStatus;
+        } catch (Exception e) {
+            metrics.countBuild(job.isCancelled() ? "superseded" : "error");
+            throw e;
+        } finally {
+            log.close();
+            deleteDirectory(repo_path);
+            if (lease != null) {
+                lease.close();
+            }
+        }
+    }
+
+    /**
+     * Ends the compile stage of a build at the first line of Maven output telling that the tests start.
+     */
+    private static void startTestStage(String line, Metrics.Timeline timeline) {
+        if (line.contains("maven-surefire-plugin") || line.startsWith("[CI] Shard ")) {
+            timeline.startOnce("test");
+        }
+    }
+
+    /**
+     * Follows the stages of a build running on an agent from the lines of its log: the checkout ends once the agent
+     * has checked the commit out, then the compile stage ends when the tests start.
+     */
+    private static void startAgentStage(String line, Metrics.Timeline timeline) {
+        if (line.startsWith("[CI] Checked out ")) {
+            timeline.startOnce("compile");
+        }
+        startTestStage(line, timeline);
+    }
+
+    /**
+     * Keeps the outcome and duration of each test of a build, read from its Surefire reports, in the build history.
+     *
+     * @param data      The data of the build job.
+     * @param checkout  Path of the built project.
+     * @param log       Receives the number of tests recorded.
+     */
+    private void recordTests(HashMap<String, String> data, String checkout, Consumer<String> log) {
+        try {
+            String build = buildHistory(historyRoot).tests().record(data.get("clone_url"), data.get("commit_id"),
+                    SurefireReports.reportDirectories(new File(checkout)));
+            if (build != null) {
+                log.accept("[CI] Test report: /history/tests/" + data.get("commit_id"));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.accept("[CI] Could not record the test reports: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Keeps the outcome and duration of each test of a build run by an agent in the build history.
+     *
+     * @param data      The data of the build job.
+     * @param testCases The test cases reported by the agent.
+     * @param log       Receives the link to the test report.
+     */
+    private void recordTests(HashMap<String, String> data, List<SurefireReports.TestCase> testCases,
+            Consumer<String> log) {
+        try {
+            if (buildHistory(historyRoot).tests().record(data.get("clone_url"), data.get("commit_id"), testCases) != null) {
+                log.accept("[CI] Test report: /history/tests/" + data.get("commit_id"));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.accept("[CI] Could not record the test reports: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param data          The data of the build job.
+     * @param checkout      Path of the checkout of the commit.
+     * @param checkedOut    false if the checkout failed.
+     * @param log           Receives which modules are built.
+     * @return              The modules changed since the last successful build of the branch, null to build them all.
+     */
+    private List<String> selectModules(HashMap<String, String> data, String checkout, boolean checkedOut, Consumer<String> log) {
+        if (moduleSelector == null || !checkedOut) {
+            return null;
+        }
+        String base = moduleSelector.lastSuccess(data.get("clone_url"), data.get("ref"));
+        List<String> modules = ModuleSelector.select(new File(checkout), base, data.get("commit_id"));
+        if (modules != null) {
+            log.accept("[CI] Building the modules changed since " + base + ": " + String.join(", ", modules)
+                    + ", with the modules they depend on and the modules depending on them");
+        }
+        return modules;
+    }
+
+    /**
+     * @param data          The data of the build job.
+     * @param checkout      Path of the checkout of the commit.
+     * @param checkedOut    false if the checkout failed.
+     * @return              The tree of the commit, null if the outcome of its build is not cached.
+     */
+    private String cacheableTreeId(HashMap<String, String> data, String checkout, boolean checkedOut) {
+        if (buildCache == null || !checkedOut || !buildCache.isEnabled(StatusPublisher.repositoryOf(data.get("clone_url")))) {
+            return null;
+        }
+        try {
+            return BuildCache.treeId(new File(checkout), data.get("commit_id"));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
   /**
-   * Function triggered by GitHub's webhook which builds a maven project and notifies the outcome.
+   * Function triggered by HTTP requests, dispatched by the router.
    *
+   * POST / and POST /webhook receive GitHub's webhook deliveries. GET /queue returns the queue depth and the state of
+   * the jobs, GET /jobs/{id} returns the state of a single job, GET /jobs/{id}/log streams its log while it is being
+   * built, GET /m2 returns the download statistics of the local Maven repository, GET /metrics returns the metrics of
+   * the server in the Prometheus text format and GET /history/ renders the build history. When builds run on agents,
+   * GET /agents returns their leases and POST /agents/... receive their requests (see BuildCoordinator). Other paths
+   * are answered 404, e.g. GET /favicon.ico, and other methods 405.
    */
 	public void handle(String target,
                        Request baseRequest,
@@ -380,67 +1226,413 @@ private HttpClient httpClient;
                        HttpServletResponse response)
         throws IOException, ServletException
     {
+        router.handle(target, baseRequest, request, response);
+    }
+
+    /**
+     * Turns a webhook delivery into a build job put in the build queue. The request is answered with 202 once the job
+     * is journaled (see resumeBuilds), or 503 if the queue is full. A delivery without a valid signature is answered
+     * 401, a malformed payload 400.
+     */
+    private void handleWebhook(String target, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
         response.setContentType("text/html;charset=utf-8");
-        response.setStatus(HttpServletResponse.SC_OK);
-        baseRequest.setHandled(true);
-        
-        HashMap<String, String> data = processRequestData(request);
-        if(data.containsKey("error")){
+        // redeliveries are answered before the payload is read
+        String delivery = request.getHeader("X-GitHub-Delivery");
+        if (webhookGuard.isDuplicateDelivery(delivery)) {
+            response.setStatus(HttpServletResponse.SC_CONFLICT);
+            response.getWriter().println("Duplicate delivery " + delivery);
             return;
         }
-        String repo_path = "./" + data.get("repo_name"); 
-        // Clone repo and checkout
-        cloneAndCheckout(data.get("clone_url"), data.get("commit_id"), repo_path);
-        
-        // Compile and run tests
-        boolean compileStatus = compileMavenProject(repo_path);
+        PushEvent event;
+        try {
+            event = webhookGuard.parse(request);
+        } catch (SignatureException e) {
+            response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+            response.getWriter().println("Invalid signature: " + e.getMessage());
+            return;
+        } catch (IOException e) {
+            // a malformed or truncated payload, signed if the webhook has a secret
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().println("Malformed payload: " + e.getMessage());
+            return;
+        }
+        if (event == null) {
+            webhookGuard.accept(delivery, null, null);
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.getWriter().println("no head_commit in the request payload");
+            return;
+        }
+        if (!webhookGuard.accept(delivery, event.getCloneUrl(), event.getCommitId())) {
+            response.setStatus(HttpServletResponse.SC_CONFLICT);
+            response.getWriter().println("Commit " + event.getCommitId() + " is already built");
+            return;
+        }
+        HashMap<String, String> data = event.toMap();
+        BuildJob job = buildQueue.submit(data);
+        if (job == null) {
+            webhookGuard.forget(delivery, event.getCloneUrl(), event.getCommitId());
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.getWriter().println("Build queue is full");
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_ACCEPTED);
+        response.getWriter().println("CI job " + job.getId() + " queued");
+    }
 
-        if(compileStatus == false){
-            // Exit with failure
-            sendEmailNotification(data, false);
-            updateGitHubStatus(false, data.get("commit_id"), "CI server status");
-            Date buildDate = new Date();
-            saveToBuildHistory(data.get("commit_id"), logInfo, buildDate.toString());
+    /**
+     * Answers GET /history/?page=N with a page of the build history index, newest builds first, and
+     * GET /history/tests/{commit} with the report of the tests of a build. The index is answered 304 to a client
+     * sending the ETag of the current page.
+     */
+    private void handleHistory(String path, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (path.isEmpty()) {
+            // the links of the index are relative to the history directory
+            response.sendRedirect("/history/");
             return;
-        }    
-        ByteArrayOutputStream testLogs = new ByteArrayOutputStream();
-        boolean testStatus = false;    
-        try{
-            testStatus = runTests(repo_path, testLogs);
-            System.out.println("\t\tTest Logs: \n ====================== \n"+ testLogs.toString());
-        }catch(Exception e){
-            e.printStackTrace();
-            deleteDirectory(repo_path);
+        }
+        response.setContentType("text/html;charset=utf-8");
+        if (path.equals("/")) {
+            int page = 1;
+            try {
+                page = Integer.parseInt(StringUtils.defaultString(request.getParameter("page"), "1"));
+            } catch (NumberFormatException e) {
+                // first page
+            }
+            // the index only changes when a build is saved
+            BuildHistory history = buildHistory(historyRoot);
+            if (notModified(request, response, "W/\"" + history.size() + "-" + page + "-" + historyPageSize + "\"", 0)) {
+                return;
+            }
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.getWriter().print(history.renderIndex(page, historyPageSize));
             return;
         }
-        Date buildDate = new Date();
-        
+        if (path.startsWith("/logs/")) {
+            serveHistoryLog(path.substring("/logs/".length()), request, response);
+            return;
+        }
+        if (path.startsWith("/tests/")) {
+            String commitId = path.substring("/tests/".length());
+            String report = commitId.matches("[\\w-]+") ? buildHistory(historyRoot).tests()
+                    .renderReport(commitId, historyTestsSlowest, historyTestsWindow) : null;
+            response.setStatus(report == null ? HttpServletResponse.SC_NOT_FOUND : HttpServletResponse.SC_OK);
+            response.getWriter().print(report == null ? "Not found\n" : report);
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+        response.getWriter().println("Not found");
+    }
 
-        // Set github status, email notification and build history
-        sendEmailNotification(data, testStatus);
-        
-        updateGitHubStatus(testStatus, data.get("commit_id"), "CI server status");
-        
-        saveToBuildHistory(data.get("commit_id"), testLogs.toString(), buildDate.toString());
-        
-        deleteDirectory(repo_path);
+    /**
+     * Answers GET /history/builds/{commit}.html with the page of a build, from the history directory, as a static
+     * file: with ETag and Last-Modified headers answering conditional requests with 304, the gzip copy of the page to
+     * the clients accepting gzip, and the file written to the connection from a memory-mapped buffer.
+     */
+    private void serveHistoryFile(String path, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        // only the build pages, not the template, the records or the logs
+        File page = new File(historyRoot, path.substring("/history".length()));
+        if (!path.matches("/history/builds/[A-Za-z0-9][\\w.-]*\\.html") || !page.isFile()) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            response.getWriter().println("Not found");
+            return;
+        }
+        response.setContentType("text/html;charset=utf-8");
+        response.setHeader("Vary", "Accept-Encoding");
+        File gzip = new File(page.getPath() + ".gz");
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        boolean gzipped = acceptEncoding != null && acceptEncoding.contains("gzip") && gzip.isFile();
+        File file = gzipped ? gzip : page;
+        // pages change when a commit is built again: revalidated, then answered 304 while unchanged
+        String etag = "\"" + page.length() + "-" + page.lastModified() + (gzipped ? "--gzip" : "") + "\"";
+        if (notModified(request, response, etag, page.lastModified())) {
+            return;
+        }
+        if (gzipped) {
+            response.setHeader("Content-Encoding", "gzip");
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            response.setHeader("Content-Length", Long.toString(size));
+            response.setStatus(HttpServletResponse.SC_OK);
+            if (request.getMethod().equals("HEAD")) {
+                return;
+            }
+            ServletOutputStream out = response.getOutputStream();
+            if (out instanceof HttpOutput) {
+                // Jetty writes the mapped pages to the socket without copying them to the heap
+                ((HttpOutput) out).sendContent(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+            } else {
+                channel.transferTo(0, size, Channels.newChannel(out));
+            }
+        }
+    }
+
+    /**
+     * Answers a conditional GET with 304 if the client already has the current version of a resource, sets its
+     * validators otherwise.
+     *
+     * @param etag          Validator of the current version, e.g. derived from a size and a modification time.
+     * @param lastModified  Modification time of the resource in milliseconds, 0 if unknown.
+     * @return              true if the request was answered with 304.
+     */
+    private static boolean notModified(HttpServletRequest request, HttpServletResponse response, String etag,
+            long lastModified) {
+        response.setHeader("ETag", etag);
+        if (lastModified > 0) {
+            response.setDateHeader("Last-Modified", lastModified);
+        }
+        response.setHeader("Cache-Control", "no-cache");
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        boolean fresh;
+        if (ifNoneMatch != null) {
+            fresh = ifNoneMatch.equals("*") || Arrays.asList(ifNoneMatch.split("\\s*,\\s*")).contains(etag);
+        } else {
+            long ifModifiedSince = lastModified > 0 ? request.getDateHeader("If-Modified-Since") : -1;
+            // HTTP dates have a precision of a second
+            fresh = ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+        }
+        if (fresh) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        }
+        return fresh;
+    }
+
+    /**
+     * Answers GET /history/logs/{commit} with the log of a build read from its compressed copy: the whole log, its
+     * last N lines with ?tail=N, lines A to B (starting from 1) with ?lines=A-B, or a byte range with a
+     * "Range: bytes=A-B" header.
+     */
+    private void serveHistoryLog(String commitId, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType("text/plain;charset=utf-8");
+        File file = buildHistory(historyRoot).logFile(commitId);
+        if (!commitId.matches("[\\w.-]+") || !file.isFile()) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            response.getWriter().println("Not found");
+            return;
+        }
+        // a saved log does not change anymore
+        if (notModified(request, response, "\"" + file.length() + "-" + file.lastModified() + "\"", file.lastModified())) {
+            return;
+        }
+        CompressedLog log = CompressedLog.open(file);
+        response.setHeader("Accept-Ranges", "bytes");
+        try {
+            if (request.getParameter("tail") != null) {
+                writeLines(log.tail(tailParameter(request)), response);
+                return;
+            }
+            if (request.getParameter("lines") != null) {
+                String[] range = request.getParameter("lines").split("-", 2);
+                long first = Math.max(1, Long.parseLong(range[0]));
+                long last = range.length > 1 && !range[1].isEmpty() ? Long.parseLong(range[1]) : log.lineCount();
+                writeLines(log.lines(first - 1, (int) Math.max(0, Math.min(last - first + 1, Integer.MAX_VALUE))), response);
+                return;
+            }
+            long from = 0;
+            long to = log.length();
+            String range = request.getHeader("Range");
+            if (range != null && range.startsWith("bytes=") && !range.contains(",")) {
+                String[] bounds = range.substring("bytes=".length()).split("-", 2);
+                try {
+                    if (bounds.length < 2) {
+                        throw new NumberFormatException("no range separator");
+                    }
+                    if (bounds[0].isEmpty()) {
+                        from = Math.max(0, log.length() - Long.parseLong(bounds[1]));
+                    } else {
+                        from = Long.parseLong(bounds[0]);
+                        to = bounds[1].isEmpty() ? log.length() : Math.min(log.length(), Long.parseLong(bounds[1]) + 1);
+                    }
+                } catch (NumberFormatException e) {
+                    // answered 416 below
+                    to = from;
+                }
+                // reversed, past the end, on an empty log or unreadable
+                if (to <= from) {
+                    response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    response.setHeader("Content-Range", "bytes */" + log.length());
+                    return;
+                }
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + from + "-" + (to - 1) + "/" + log.length());
+            } else {
+                response.setStatus(HttpServletResponse.SC_OK);
+            }
+            response.setHeader("Content-Length", String.valueOf(to - from));
+            OutputStream out = response.getOutputStream();
+            // chunk by chunk of the log, each decompressed once
+            for (long offset = from, end; offset < to; offset = end) {
+                end = Math.min(to, log.chunkEnd(offset));
+                out.write(log.read(offset, end));
+            }
+        } catch (NumberFormatException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        }
+    }
+
+    private static void writeLines(List<String> lines, HttpServletResponse response) throws IOException {
+        response.setStatus(HttpServletResponse.SC_OK);
+        for (String line : lines) {
+            response.getWriter().println(line);
+        }
+    }
+
+    private BuildHistory buildHistory(String path) {
+        return buildHistories.computeIfAbsent(path, p -> new BuildHistory(new File(p), historyLogLines, reloadTemplates));
+    }
+
+    /**
+     * @return The routes of the server.
+     */
+    private Router routes() {
+        return new Router()
+                .post("/", this::handleWebhook)
+                .post("/webhook", this::handleWebhook)
+                .get("/queue", (path, request, response) -> writeJson(buildQueue.toJson(), response))
+                .get("/m2", (path, request, response) -> writeJson(localRepository.toJson(), response))
+                .get("/jobs/*", this::handleJob)
+                .get("/metrics", (path, request, response) -> {
+                    response.setContentType("text/plain;version=0.0.4;charset=utf-8");
+                    response.setStatus(HttpServletResponse.SC_OK);
+                    response.getWriter().print(metrics.render());
+                })
+                .get("/history", (path, request, response) -> handleHistory("", request, response))
+                .get("/history/builds/*", this::serveHistoryFile)
+                .get("/history/*", (path, request, response) ->
+                        handleHistory(path.substring("/history".length()), request, response));
+    }
+
+    /**
+     * Answers GET /jobs/{id} with the state of a job and GET /jobs/{id}/log with its log.
+     */
+    private void handleJob(String target, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String[] parts = target.substring("/jobs/".length()).split("/");
+        JSONObject body = null;
+        try {
+            BuildJob job = buildQueue.getJob(Long.parseLong(parts[0]));
+            if (job != null && parts.length == 2 && parts[1].equals("log")) {
+                streamLog(job, request, response);
+                return;
+            }
+            if (job != null && parts.length == 1) {
+                body = job.toJson();
+            }
+        } catch (NumberFormatException e) {
+            // unknown job, answered with 404 below
+        }
+        writeJson(body, response);
+    }
+
+    /**
+     * @param body      The answer, null if what was queried does not exist.
+     * @param response  Response to write the answer to, 404 if there is none.
+     */
+    private static void writeJson(JSONObject body, HttpServletResponse response) throws IOException {
+        response.setContentType("application/json;charset=utf-8");
+        if (body == null) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            response.getWriter().println(new JSONObject().put("error", "not found"));
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.getWriter().println(body);
+    }
+
+    /**
+     * Reads a part of the log of a job, from the history once the log has been moved there.
+     */
+    private byte[] readLog(BuildJob job, BuildLog log, long from, long to) throws IOException {
+        try {
+            return BuildLog.read(log.getFile(), from, to);
+        } catch (FileNotFoundException e) {
+            return CompressedLog.open(buildHistory(historyRoot).logFile(job.getData().get("commit_id"))).read(from, to);
+        }
+    }
+
+    /**
+     * Writes the log of a job to the response as it is produced, until the build is done.
+     * With the "tail" parameter, only the last lines of the log kept in memory are returned.
+     *
+     * @param job       The job.
+     * @param request   The request.
+     * @param response  Response the log is streamed to, with chunked encoding.
+     */
+    private void streamLog(BuildJob job, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType("text/plain;charset=utf-8");
+        int tailLines;
+        try {
+            tailLines = request.getParameter("tail") != null ? tailParameter(request) : -1;
+        } catch (NumberFormatException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().println("Invalid tail: " + request.getParameter("tail"));
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        try {
+            // a queued job has no log yet
+            while (job.getLog() == null && !job.isDone()) {
+                Thread.sleep(500);
+            }
+            BuildLog log = job.getLog();
+            if (log == null) {
+                return;
+            }
+            if (tailLines >= 0) {
+                List<String> tail = log.tail();
+                int lines = Math.min(tail.size(), tailLines);
+                for (String line : tail.subList(tail.size() - lines, tail.size())) {
+                    response.getWriter().println(line);
+                }
+                return;
+            }
+            OutputStream out = response.getOutputStream();
+            long offset = 0;
+            while (true) {
+                boolean closed = log.isClosed();
+                long end = log.await(offset, 1000);
+                if (end > offset) {
+                    long to = Math.min(end, offset + 64 * 1024);
+                    out.write(readLog(job, log, offset, to));
+                    out.flush();
+                    offset = to;
+                } else if (closed) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-        response.getWriter().println("CI job done");
+    /**
+     * @param request   A request with a "tail" parameter.
+     * @return          The number of lines it asks for, a negative number counting as none.
+     * @throws NumberFormatException if the parameter is not a number.
+     */
+    private static int tailParameter(HttpServletRequest request) {
+        return Math.max(0, Integer.parseInt(request.getParameter("tail").trim()));
     }
 
     // used to start the CI server in command line
     public static void main(String[] args) throws Exception
     {
-    if (args.length > 0) {
-        token = args[0];
-    }
-    else{
+    if (args.length == 0) {
         System.err.println("NO TOKEN ");
         return;
     }
 
-        Server server = new Server(8026);
-        server.setHandler(new ContinuousIntegration());
+        Server server = new Server(VirtualThreadPool.fromSystemProperties());
+        ServerConnector connector = new ServerConnector(server);
+        connector.setPort(Integer.getInteger("ci.http.port", 8026));
+        server.addConnector(connector);
+        ContinuousIntegration ci = new ContinuousIntegration(HttpClient.newHttpClient(), args[0]);
+        int resumed = ci.resumeBuilds(JobJournal.fromSystemProperties());
+        if (resumed > 0) {
+            System.out.println("Resumed " + resumed + " builds accepted before the restart");
+        }
+        server.setHandler(ci);
         server.start();
         server.join();
     }
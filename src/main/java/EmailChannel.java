@@ -0,0 +1,168 @@
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.PasswordAuthentication;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ Sends notifications by email.
+
+ The mail Session is created once. Connected Transports are kept in a small pool and reused across messages instead
+ of opening, authenticating and closing an SMTP connection per message; a Transport found disconnected, or failing
+ to send because of its connection, is reconnected and the message sent again once. A message refused by the server,
+ e.g. for an invalid recipient, is not sent again.
+*/
+public class EmailChannel implements NotificationChannel {
+
+    private final Session session;
+    private final String from;
+    private final BlockingQueue<Transport> idle;
+    private final AtomicInteger connections = new AtomicInteger();
+
+    /**
+     * @param host      SMTP server.
+     * @param port      SMTP port.
+     * @param username  User to authenticate as, none if null or empty.
+     * @param password  Password of the user.
+     * @param startTls  true to upgrade the connection with STARTTLS.
+     * @param from      Sender address.
+     * @param poolSize  Maximum number of idle connections kept.
+     */
+    public EmailChannel(String host, int port, String username, String password, boolean startTls, String from, int poolSize) {
+        Properties props = new Properties();
+        boolean auth = username != null && !username.isEmpty();
+        props.put("mail.smtp.auth", String.valueOf(auth));
+        props.put("mail.smtp.starttls.enable", String.valueOf(startTls));
+        props.put("mail.smtp.host", host);
+        props.put("mail.smtp.port", String.valueOf(port));
+        props.put("mail.smtp.connectiontimeout", "10000");
+        props.put("mail.smtp.timeout", "10000");
+        this.session = auth ? Session.getInstance(props, new javax.mail.Authenticator() {
+            protected PasswordAuthentication getPasswordAuthentication() {
+                return new PasswordAuthentication(username, password);
+            }
+        }) : Session.getInstance(props);
+        this.from = from;
+        this.idle = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+    }
+
+    /**
+     * Creates the channel configured from the environment variables CI_MAIL_USER and CI_MAIL_PASSWORD, or the system
+     * properties "ci.mail.user" and "ci.mail.password", and the system properties "ci.mail.host" (default:
+     * smtp.gmail.com), "ci.mail.port" (default: 587), "ci.mail.starttls" (default: true), "ci.mail.from" (default: the
+     * user) and "ci.mail.pool" (default: 2).
+     *
+     * @return The configured channel, null if the account is not set: no email is sent then.
+     */
+    public static EmailChannel fromSystemProperties() {
+        String username = setting("CI_MAIL_USER", "ci.mail.user");
+        String password = setting("CI_MAIL_PASSWORD", "ci.mail.password");
+        if (username == null || username.isEmpty() || password == null) {
+            System.err.println("Email notifications disabled: CI_MAIL_USER and CI_MAIL_PASSWORD are not set");
+            return null;
+        }
+        return new EmailChannel(
+                System.getProperty("ci.mail.host", "smtp.gmail.com"),
+                Integer.getInteger("ci.mail.port", 587),
+                username,
+                password,
+                Boolean.parseBoolean(System.getProperty("ci.mail.starttls", "true")),
+                System.getProperty("ci.mail.from", username),
+                Integer.getInteger("ci.mail.pool", 2));
+    }
+
+    private static String setting(String variable, String property) {
+        String value = System.getenv(variable);
+        return value != null ? value : System.getProperty(property);
+    }
+
+    @Override
+    public void send(String recipient, List<NotificationDispatcher.Notification> notifications) throws MessagingException {
+        Message message = new MimeMessage(session);
+        message.setFrom(new InternetAddress(from));
+        message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(recipient));
+        message.setSubject(notifications.size() == 1 ? "Current state update"
+                : "Current state update (" + notifications.size() + " builds)");
+        message.setText(NotificationDispatcher.text(notifications));
+        message.saveChanges();
+
+        Transport transport = acquire();
+        try {
+            transport.sendMessage(message, message.getAllRecipients());
+        } catch (SendFailedException e) {
+            // refused by the server, e.g. an invalid recipient: sent again, it would be refused again
+            release(transport);
+            throw e;
+        } catch (MessagingException e) {
+            // the server may have dropped an idle connection, retry once on a new one
+            closeQuietly(transport);
+            transport = connect();
+            try {
+                transport.sendMessage(message, message.getAllRecipients());
+            } catch (MessagingException retryFailure) {
+                closeQuietly(transport);
+                throw retryFailure;
+            }
+        }
+        release(transport);
+    }
+
+    /**
+     * Keeps a connection for the next messages, closes it if enough are kept already.
+     */
+    private void release(Transport transport) {
+        if (!idle.offer(transport)) {
+            closeQuietly(transport);
+        }
+    }
+
+    /**
+     * @return Number of SMTP connections opened so far.
+     */
+    public int connectionCount() {
+        return connections.get();
+    }
+
+    @Override
+    public void close() {
+        Transport transport;
+        while ((transport = idle.poll()) != null) {
+            closeQuietly(transport);
+        }
+    }
+
+    private Transport acquire() throws MessagingException {
+        Transport transport;
+        while ((transport = idle.poll()) != null) {
+            if (transport.isConnected()) {
+                return transport;
+            }
+            closeQuietly(transport);
+        }
+        return connect();
+    }
+
+    private Transport connect() throws MessagingException {
+        Transport transport = session.getTransport("smtp");
+        transport.connect();
+        connections.incrementAndGet();
+        return transport;
+    }
+
+    private static void closeQuietly(Transport transport) {
+        try {
+            transport.close();
+        } catch (MessagingException e) {
+            // already disconnected
+        }
+    }
+}
@@ -0,0 +1,348 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ Write-ahead journal of the build jobs, so that the accepted builds survive a restart of the server.
+
+ A job is journaled when it is accepted, before the webhook is answered, each time a worker starts building it, and
+ when it finishes. The journal is a file of JSON lines: {"id", "data"} for an accepted job, {"id", "starts"} with the
+ number of builds started so far, and {"id", "state"} for a finished one. When the server starts, the jobs accepted
+ but not finished, queued or interrupted while they were built, are read back with the number of times they were
+ started, so that a build crashing the server is not replayed forever. Job ids keep increasing across restarts.
+
+ Appends are group committed: a thread appending while another one is forcing the file to disk waits for it, then
+ writes and forces everything appended meanwhile at once, so concurrent webhooks share a single fsync. Once enough
+ jobs have finished, the journal is compacted: rewritten with the unfinished jobs only, then renamed over the old one.
+*/
+public class JobJournal implements AutoCloseable {
+
+    /**
+     * A job accepted but not finished when the journal was opened.
+     */
+    public static final class Entry {
+        private final long id;
+        private final HashMap<String, String> data;
+        private final int starts;
+
+        Entry(long id, HashMap<String, String> data, int starts) {
+            this.id = id;
+            this.data = data;
+            this.starts = starts;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public HashMap<String, String> getData() {
+            return data;
+        }
+
+        /**
+         * @return Number of times a worker started building the job, 0 if it was still queued.
+         */
+        public int getStarts() {
+            return starts;
+        }
+    }
+
+    private final Path file;
+    private final boolean sync;
+    private final int compactAfter;
+    private FileChannel channel;
+    // jobs accepted and not finished, with their record, rewritten on compaction
+    private final Map<Long, byte[]> unfinished = new TreeMap<>();
+    // number of builds started of the unfinished jobs, for the jobs started at least once
+    private final Map<Long, Integer> starts = new HashMap<>();
+    private final List<Entry> recovered = new ArrayList<>();
+    private long maxId;
+    private int finishedSinceCompaction;
+
+    // records appended and not yet written, and the sequence numbers of the last appended and written records
+    private final List<byte[]> pending = new ArrayList<>();
+    private long appended;
+    private long durable;
+    private final Object writeLock = new Object();
+
+    /**
+     * Opens a journal, reading the unfinished jobs it holds.
+     *
+     * @param file          The journal file, created if missing.
+     * @param sync          true to force each batch of records to disk before the appends return.
+     * @param compactAfter  Number of finished jobs after which the journal is compacted.
+     * @throws IOException if the journal cannot be read or opened.
+     */
+    public JobJournal(File file, boolean sync, int compactAfter) throws IOException {
+        this.file = file.toPath();
+        this.sync = sync;
+        this.compactAfter = compactAfter;
+        Files.createDirectories(this.file.toAbsolutePath().getParent());
+        Map<Long, HashMap<String, String>> accepted = new TreeMap<>();
+        if (Files.exists(this.file)) {
+            try (BufferedReader reader = Files.newBufferedReader(this.file, StandardCharsets.UTF_8)) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    read(line, accepted);
+                }
+            }
+        }
+        starts.keySet().retainAll(accepted.keySet());
+        for (Map.Entry<Long, HashMap<String, String>> job : accepted.entrySet()) {
+            recovered.add(new Entry(job.getKey(), job.getValue(), starts.getOrDefault(job.getKey(), 0)));
+            unfinished.put(job.getKey(), acceptedRecord(job.getKey(), job.getValue()));
+        }
+        // drops the finished jobs, and a record cut short by a crash
+        compact();
+    }
+
+    /**
+     * Opens the journal of the server, "ci.journal" system property (default: "./job_journal.jsonl"), unless
+     * "ci.journal.enabled" is false. Batches are forced to disk unless "ci.journal.sync" is false, and the journal is
+     * compacted every "ci.journal.compact" finished jobs (default: 1000).
+     *
+     * @return The journal, null if disabled or if it cannot be opened.
+     */
+    public static JobJournal fromSystemProperties() {
+        if (!Boolean.parseBoolean(System.getProperty("ci.journal.enabled", "true"))) {
+            return null;
+        }
+        try {
+            return new JobJournal(new File(System.getProperty("ci.journal", "job_journal.jsonl")),
+                    Boolean.parseBoolean(System.getProperty("ci.journal.sync", "true")),
+                    Integer.getInteger("ci.journal.compact", 1000));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Job journal disabled, the queued builds will not survive a restart");
+            return null;
+        }
+    }
+
+    private void read(String line, Map<Long, HashMap<String, String>> accepted) {
+        JSONObject record;
+        try {
+            record = new JSONObject(line);
+        } catch (JSONException e) {
+            // cut short by a crash while it was written
+            return;
+        }
+        long id = record.getLong("id");
+        maxId = Math.max(maxId, id);
+        if (record.has("state")) {
+            accepted.remove(id);
+            starts.remove(id);
+            return;
+        }
+        if (record.has("starts")) {
+            starts.put(id, record.getInt("starts"));
+            return;
+        }
+        HashMap<String, String> data = new HashMap<>();
+        JSONObject json = record.getJSONObject("data");
+        for (String key : json.keySet()) {
+            data.put(key, json.isNull(key) ? null : json.getString(key));
+        }
+        accepted.put(id, data);
+    }
+
+    private static byte[] acceptedRecord(long id, Map<String, String> data) {
+        return (new JSONObject().put("id", id).put("data", new JSONObject(data)) + "\n")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] startsRecord(long id, int starts) {
+        return (new JSONObject().put("id", id).put("starts", starts) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The jobs accepted but not finished when the journal was opened, oldest first.
+     */
+    public List<Entry> recovered() {
+        return new ArrayList<>(recovered);
+    }
+
+    /**
+     * @return The largest id of the jobs journaled, 0 if there are none.
+     */
+    public synchronized long getMaxId() {
+        return maxId;
+    }
+
+    /**
+     * Journals an accepted job, returning once it is written (and forced to disk, if syncing).
+     *
+     * @param id    Id of the job.
+     * @param data  Commit information of the job.
+     * @throws IOException if the record cannot be written.
+     */
+    public void accepted(long id, Map<String, String> data) throws IOException {
+        byte[] record = acceptedRecord(id, data);
+        long sequence;
+        synchronized (this) {
+            maxId = Math.max(maxId, id);
+            unfinished.put(id, record);
+            sequence = append(record);
+        }
+        flush(sequence);
+    }
+
+    /**
+     * Journals that a worker starts building a job, returning once it is written (and forced to disk, if syncing), so
+     * that the start is counted even if the build crashes the server.
+     *
+     * @param id    Id of the job.
+     * @throws IOException if the record cannot be written.
+     */
+    public void started(long id) throws IOException {
+        long sequence;
+        synchronized (this) {
+            if (!unfinished.containsKey(id)) {
+                return;
+            }
+            sequence = append(startsRecord(id, starts.merge(id, 1, Integer::sum)));
+        }
+        flush(sequence);
+    }
+
+    /**
+     * Journals a finished job, returning once it is written (and forced to disk, if syncing).
+     *
+     * @param id    Id of the job.
+     * @param state Its final state, e.g. "SUCCESS".
+     * @throws IOException if the record cannot be written.
+     */
+    public void finished(long id, String state) throws IOException {
+        long sequence;
+        boolean compact;
+        synchronized (this) {
+            if (unfinished.remove(id) == null) {
+                return;
+            }
+            starts.remove(id);
+            sequence = append((new JSONObject().put("id", id).put("state", state) + "\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            compact = ++finishedSinceCompaction >= compactAfter;
+        }
+        flush(sequence);
+        if (compact) {
+            compact();
+        }
+    }
+
+    private long append(byte[] record) {
+        pending.add(record);
+        return ++appended;
+    }
+
+    /**
+     * Writes the records appended up to a sequence number, unless another thread already did.
+     */
+    private void flush(long sequence) throws IOException {
+        synchronized (writeLock) {
+            if (durable >= sequence) {
+                // written by the batch of another thread
+                return;
+            }
+            List<byte[]> batch;
+            long last;
+            synchronized (this) {
+                batch = new ArrayList<>(pending);
+                pending.clear();
+                last = appended;
+            }
+            try {
+                ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+                long remaining = 0;
+                for (int i = 0; i < buffers.length; i++) {
+                    buffers[i] = ByteBuffer.wrap(batch.get(i));
+                    remaining += buffers[i].remaining();
+                }
+                while (remaining > 0) {
+                    remaining -= channel.write(buffers);
+                }
+                if (sync) {
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                // written again with the next batch, a record written twice is read once
+                synchronized (this) {
+                    pending.addAll(0, batch);
+                }
+                if (!channel.isOpen()) {
+                    // closed by an interrupt of the writing thread
+                    channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                }
+                throw e;
+            }
+            durable = last;
+        }
+    }
+
+    /**
+     * Rewrites the journal with the unfinished jobs only.
+     *
+     * @throws IOException if the journal cannot be rewritten.
+     */
+    public void compact() throws IOException {
+        synchronized (writeLock) {
+            synchronized (this) {
+                // the records waiting to be written are in the unfinished jobs, or finished them
+                pending.clear();
+                durable = appended;
+                finishedSinceCompaction = 0;
+                Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(),
+                        ".part");
+                try {
+                    try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                        // keeps the largest id, so that the ids of the jobs are not reused after a restart
+                        out.write(ByteBuffer.wrap((new JSONObject().put("id", maxId).put("state", "COMPACTED") + "\n")
+                                .getBytes(StandardCharsets.UTF_8)));
+                        for (Map.Entry<Long, byte[]> record : unfinished.entrySet()) {
+                            out.write(ByteBuffer.wrap(record.getValue()));
+                            Integer started = starts.get(record.getKey());
+                            if (started != null) {
+                                out.write(ByteBuffer.wrap(startsRecord(record.getKey(), started)));
+                            }
+                        }
+                        out.force(false);
+                    }
+                    if (channel != null) {
+                        channel.close();
+                    }
+                    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    Files.deleteIfExists(tmp);
+                }
+                channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+        }
+    }
+
+    /**
+     * @return Number of jobs accepted and not finished.
+     */
+    public synchronized int getUnfinishedCount() {
+        return unfinished.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,286 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONObject;
+
+/**
+ Local Maven repository shared by the builds.
+
+ All builds read from one shared repository. Concurrent Maven processes writing to it are serialized per artifact
+ with the resolver's file locks. In OVERLAY mode each build downloads into a repository of its own, chained in
+ front of the shared one which it only reads; the artifacts downloaded by a successful build are then promoted
+ into the shared repository. The file locks and the chained repository of OVERLAY mode need Maven 3.9 or later:
+ with an older Maven, the locks are ignored and OVERLAY mode falls back to SHARED.
+
+ Downloads are counted from Maven's output, line by line, to report how much each build had to fetch.
+*/
+public class LocalRepository {
+
+    /**
+     * How builds use the shared repository.
+     */
+    public enum Mode {
+        /** Builds read and write the shared repository directly. */
+        SHARED,
+        /** Builds write to a per-build overlay and only read the shared repository. */
+        OVERLAY
+    }
+
+    // e.g. "Downloaded from central: https://repo.maven.apache.org/.../junit-4.11.jar (245 kB at 1.2 MB/s)"
+    private static final Pattern DOWNLOADED = Pattern.compile("Downloaded from [^:]+: \\S+ \\(([0-9.]+) (B|kB|MB|GB)");
+    // e.g. "maven-core-3.9.6.jar" in the lib directory of the Maven installation
+    private static final Pattern MAVEN_CORE = Pattern.compile("maven-core-(\\d+)\\.(\\d+)[^/]*\\.jar");
+
+    private final File shared;
+    private final File overlays;
+    private final Mode mode;
+    private final AtomicLong builds = new AtomicLong();
+    private final AtomicLong cachedBuilds = new AtomicLong();
+    private final AtomicLong downloads = new AtomicLong();
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+
+    /**
+     * The local repository set up for one build.
+     */
+    public final class Session {
+        private final File overlay;
+        private long sessionDownloads;
+        private long sessionBytes;
+
+        private Session(File overlay) {
+            this.overlay = overlay;
+        }
+
+        /**
+         * @return The system properties to give to Maven so that it uses this repository.
+         */
+        public Properties mavenProperties() {
+            Properties props = new Properties();
+            if (overlay == null) {
+                props.setProperty("maven.repo.local", shared.getAbsolutePath());
+            } else {
+                props.setProperty("maven.repo.local", overlay.getAbsolutePath());
+                props.setProperty("maven.repo.local.tail", shared.getAbsolutePath());
+            }
+            props.setProperty("aether.syncContext.named.factory", "file-lock");
+            props.setProperty("aether.syncContext.named.nameMapper", "file-gav");
+            return props;
+        }
+
+        public synchronized long getDownloads() {
+            return sessionDownloads;
+        }
+
+        public synchronized long getBytesDownloaded() {
+            return sessionBytes;
+        }
+
+        /**
+         * Counts the download reported by a line of Maven's output, if any.
+         *
+         * @param line  A line of the output of the build.
+         */
+        public synchronized void consumeLine(String line) {
+            if (!line.contains("Downloaded from ")) {
+                return;
+            }
+            Matcher m = DOWNLOADED.matcher(line);
+            if (m.find()) {
+                sessionDownloads++;
+                sessionBytes += toBytes(m.group(1), m.group(2));
+            }
+        }
+
+        /**
+         * Ends the build: records its downloads, promotes its overlay if it succeeded and deletes the overlay.
+         *
+         * @param success   true if the build succeeded.
+         */
+        public void close(boolean success) {
+            close(success, line -> { });
+        }
+
+        /**
+         * Ends the build: records its downloads and reports them to the log of the build, promotes its overlay if it
+         * succeeded and deletes the overlay.
+         *
+         * @param success   true if the build succeeded.
+         * @param log       The log of the build.
+         */
+        public synchronized void close(boolean success, Consumer<String> log) {
+            log.accept("[CI] Downloaded " + sessionDownloads + " artifacts, " + sessionBytes + " bytes");
+            builds.incrementAndGet();
+            if (sessionDownloads == 0) {
+                cachedBuilds.incrementAndGet();
+            }
+            downloads.addAndGet(sessionDownloads);
+            bytesDownloaded.addAndGet(sessionBytes);
+            if (overlay == null) {
+                return;
+            }
+            try {
+                if (success) {
+                    promote(overlay.toPath(), shared.toPath());
+                }
+            } catch (IOException e) {
+                System.err.println("An error occurred during the promotion of " + overlay + ": " + e.getMessage());
+            } finally {
+                try {
+                    FileUtils.deleteDirectory(overlay);
+                } catch (IOException e) {
+                    System.err.println("An error occurred during directory deletion: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * @param shared    The shared local repository.
+     * @param overlays  Directory holding the per-build overlays.
+     * @param mode      How builds use the shared repository.
+     */
+    public LocalRepository(File shared, File overlays, Mode mode) {
+        this.shared = shared;
+        this.overlays = overlays;
+        this.mode = mode;
+    }
+
+    /**
+     * Creates the local repository configured from the system properties "ci.m2.repository" (shared repository,
+     * default: ~/.m2/repository), "ci.m2.overlays" (default: m2-overlays) and "ci.m2.mode" (SHARED or OVERLAY,
+     * default: SHARED). OVERLAY mode falls back to SHARED unless the Maven of MAVEN_HOME is 3.9 or later.
+     *
+     * @return The configured local repository.
+     */
+    public static LocalRepository fromSystemProperties() {
+        File shared = new File(System.getProperty("ci.m2.repository", System.getProperty("user.home") + "/.m2/repository"));
+        File overlays = new File(System.getProperty("ci.m2.overlays", "m2-overlays"));
+        Mode mode = Mode.valueOf(System.getProperty("ci.m2.mode", "SHARED").toUpperCase());
+        String mavenHome = System.getenv("MAVEN_HOME");
+        return new LocalRepository(shared, overlays,
+                supportedMode(mode, mavenHome == null ? null : mavenVersion(new File(mavenHome))));
+    }
+
+    /**
+     * @param mavenHome The Maven installation.
+     * @return          Its version, e.g. "3.9.6", read from the name of its maven-core jar, null if not found.
+     */
+    static String mavenVersion(File mavenHome) {
+        String[] jars = new File(mavenHome, "lib").list();
+        for (int i = 0; jars != null && i < jars.length; i++) {
+            if (MAVEN_CORE.matcher(jars[i]).matches()) {
+                return jars[i].substring("maven-core-".length(), jars[i].length() - ".jar".length());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Falls back to SHARED mode, with a warning, when OVERLAY mode is asked for with a Maven older than 3.9 or of an
+     * unknown version: it would not read "maven.repo.local.tail" and each build would download every artifact.
+     *
+     * @param mode          The mode asked for.
+     * @param mavenVersion  The version of Maven running the builds, null if unknown.
+     * @return              The mode to use.
+     */
+    static Mode supportedMode(Mode mode, String mavenVersion) {
+        if (mode != Mode.OVERLAY) {
+            return mode;
+        }
+        Matcher m = mavenVersion == null ? null : MAVEN_CORE.matcher("maven-core-" + mavenVersion + ".jar");
+        if (m != null && m.matches()) {
+            int major = Integer.parseInt(m.group(1));
+            int minor = Integer.parseInt(m.group(2));
+            if (major > 3 || major == 3 && minor >= 9) {
+                return mode;
+            }
+        }
+        System.err.println("ci.m2.mode=OVERLAY needs Maven 3.9 or later, found "
+                + (mavenVersion == null ? "an unknown version" : mavenVersion) + ": the builds use the shared repository");
+        return Mode.SHARED;
+    }
+
+    /**
+     * @param buildId   Id of the build, naming its overlay.
+     * @return          The repository session of the build, to close once the build is done.
+     */
+    public Session open(long buildId) {
+        return new Session(mode == Mode.OVERLAY ? new File(overlays, "build-" + buildId) : null);
+    }
+
+    /**
+     * @return Builds, downloads and cache hit rate (share of builds that downloaded nothing) as JSON.
+     */
+    public JSONObject toJson() {
+        long b = builds.get();
+        return new JSONObject()
+                .put("mode", mode.name())
+                .put("builds", b)
+                .put("builds_without_download", cachedBuilds.get())
+                .put("hit_rate", b == 0 ? 1.0 : (double) cachedBuilds.get() / b)
+                .put("downloads", downloads.get())
+                .put("bytes_downloaded", bytesDownloaded.get());
+    }
+
+    /**
+     * Moves the files of an overlay missing from the shared repository into it. Each file is first copied next to
+     * its destination then atomically renamed, so Maven processes reading the shared repository never see partial files.
+     */
+    static void promote(Path overlay, Path shared) throws IOException {
+        if (!Files.isDirectory(overlay)) {
+            return;
+        }
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(overlay)) {
+            files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            // failed download markers and resolver bookkeeping are local to the build
+            if (name.endsWith(".lastUpdated") || name.equals("resolver-status.properties") || name.endsWith(".lock")) {
+                continue;
+            }
+            Path target = shared.resolve(overlay.relativize(file).toString());
+            if (Files.exists(target)) {
+                continue;
+            }
+            Files.createDirectories(target.getParent());
+            Path tmp = Files.createTempFile(target.getParent(), name, ".part");
+            try {
+                Files.copy(file, tmp, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                // promoted by a concurrent build
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+
+    private static long toBytes(String amount, String unit) {
+        double value = Double.parseDouble(amount);
+        switch (unit) {
+            case "kB":
+                return (long) (value * 1000);
+            case "MB":
+                return (long) (value * 1000 * 1000);
+            case "GB":
+                return (long) (value * 1000 * 1000 * 1000);
+            default:
+                return (long) value;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.DoubleSupplier;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ Metrics of the server, exposed in the Prometheus text format.
+
+ Holds a duration histogram per build stage (queue wait, checkout, compile, test, status post, email, history
+ write), a counter of finished builds per outcome, gauges read when the metrics are rendered (e.g. the depth of the
+ build queue) and the memory, thread, class and garbage collection metrics of the JVM read from its MXBeans.
+ Rendering takes a snapshot on demand, recording a duration or an outcome only updates a few counters.
+*/
+public class Metrics {
+
+    // upper bounds of the histogram buckets, in seconds
+    private static final double[] BUCKETS = {0.05, 0.1, 0.5, 1, 5, 10, 30, 60, 300, 900, 3600};
+
+    private final Map<String, Histogram> stages = new TreeMap<>();
+    private final Map<String, Long> builds = new TreeMap<>();
+    private final Map<String, Gauge> gauges = new TreeMap<>();
+
+    private static final class Histogram {
+        final long[] counts = new long[BUCKETS.length];
+        long count;
+        double sum;
+
+        void observe(double seconds) {
+            for (int i = 0; i < BUCKETS.length; i++) {
+                if (seconds <= BUCKETS[i]) {
+                    counts[i]++;
+                }
+            }
+            count++;
+            sum += seconds;
+        }
+    }
+
+    private static final class Gauge {
+        final String help;
+        final DoubleSupplier value;
+
+        Gauge(String help, DoubleSupplier value) {
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Durations of the stages of a build, in the order they ran. Starting a stage ends the current one, each
+     * ended stage is also recorded in the metrics.
+     */
+    public final class Timeline {
+        private final List<JSONObject> stages = new ArrayList<>();
+        private String current;
+        private long currentStart;
+
+        private Timeline() {
+        }
+
+        /**
+         * Records a stage that already ran, e.g. the wait in the queue.
+         *
+         * @param stage     Name of the stage.
+         * @param start     When it started, in milliseconds since the epoch.
+         * @param end       When it ended.
+         */
+        public synchronized void add(String stage, long start, long end) {
+            long millis = Math.max(0, end - start);
+            stages.add(new JSONObject().put("stage", stage).put("start", start).put("millis", millis));
+            observe(stage, millis);
+        }
+
+        /**
+         * Ends the current stage and starts another one.
+         *
+         * @param stage Name of the stage.
+         */
+        public synchronized void start(String stage) {
+            long now = System.currentTimeMillis();
+            end(now);
+            current = stage;
+            currentStart = now;
+        }
+
+        /**
+         * Starts a stage unless it is the current one.
+         *
+         * @param stage Name of the stage.
+         */
+        public synchronized void startOnce(String stage) {
+            if (!stage.equals(current)) {
+                start(stage);
+            }
+        }
+
+        /**
+         * Ends the current stage.
+         */
+        public synchronized void end() {
+            end(System.currentTimeMillis());
+        }
+
+        private void end(long now) {
+            if (current != null) {
+                add(current, currentStart, now);
+                current = null;
+            }
+        }
+
+        /**
+         * @return The stages, as {"stage", "start", "millis"} objects.
+         */
+        public synchronized JSONArray toJson() {
+            return new JSONArray(stages);
+        }
+    }
+
+    /**
+     * @return A new timeline, for one build.
+     */
+    public Timeline timeline() {
+        return new Timeline();
+    }
+
+    /**
+     * Records the duration of a build stage.
+     *
+     * @param stage     Name of the stage, e.g. "checkout".
+     * @param millis    Its duration.
+     */
+    public synchronized void observe(String stage, long millis) {
+        stages.computeIfAbsent(stage, s -> new Histogram()).observe(millis / 1000.0);
+    }
+
+    /**
+     * Counts a finished build.
+     *
+     * @param outcome   e.g. "success", "failure", "timeout".
+     */
+    public synchronized void countBuild(String outcome) {
+        builds.merge(outcome, 1L, Long::sum);
+    }
+
+    /**
+     * @param outcome   An outcome of builds.
+     * @return          Number of builds that ended with it.
+     */
+    public synchronized long buildCount(String outcome) {
+        return builds.getOrDefault(outcome, 0L);
+    }
+
+    /**
+     * Registers a value read each time the metrics are rendered.
+     *
+     * @param name  Name of the metric, e.g. "ci_queue_depth".
+     * @param help  Description of the metric.
+     * @param value Supplies the current value.
+     */
+    public synchronized void gauge(String name, String help, DoubleSupplier value) {
+        gauges.put(name, new Gauge(help, value));
+    }
+
+    /**
+     * Wraps a notification channel so that the time spent sending is recorded as a stage.
+     *
+     * @param stage     Name of the stage, e.g. "email".
+     * @param channel   The channel.
+     * @return          The timed channel.
+     */
+    public NotificationChannel timed(String stage, NotificationChannel channel) {
+        return new NotificationChannel() {
+            @Override
+            public void send(String recipient, List<NotificationDispatcher.Notification> notifications)
+                    throws Exception {
+                long start = System.currentTimeMillis();
+                try {
+                    channel.send(recipient, notifications);
+                } finally {
+                    observe(stage, System.currentTimeMillis() - start);
+                }
+            }
+
+            @Override
+            public void close() {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * @return The metrics in the Prometheus text exposition format (version 0.0.4).
+     */
+    public String render() {
+        StringBuilder out = new StringBuilder();
+        synchronized (this) {
+            header(out, "ci_stage_duration_seconds", "Duration of the stages of the builds.", "histogram");
+            for (Map.Entry<String, Histogram> entry : stages.entrySet()) {
+                String stage = "stage=\"" + label(entry.getKey()) + "\"";
+                Histogram histogram = entry.getValue();
+                for (int i = 0; i < BUCKETS.length; i++) {
+                    sample(out, "ci_stage_duration_seconds_bucket", stage + ",le=\"" + BUCKETS[i] + "\"",
+                            histogram.counts[i]);
+                }
+                sample(out, "ci_stage_duration_seconds_bucket", stage + ",le=\"+Inf\"", histogram.count);
+                sample(out, "ci_stage_duration_seconds_sum", stage, histogram.sum);
+                sample(out, "ci_stage_duration_seconds_count", stage, histogram.count);
+            }
+            header(out, "ci_builds_total", "Finished builds by outcome.", "counter");
+            for (Map.Entry<String, Long> entry : builds.entrySet()) {
+                sample(out, "ci_builds_total", "outcome=\"" + label(entry.getKey()) + "\"", entry.getValue());
+            }
+            for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+                header(out, entry.getKey(), entry.getValue().help, "gauge");
+                sample(out, entry.getKey(), null, entry.getValue().value.getAsDouble());
+            }
+        }
+        renderJvm(out);
+        return out.toString();
+    }
+
+    private static void renderJvm(StringBuilder out) {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        header(out, "jvm_memory_used_bytes", "Used memory of the JVM.", "gauge");
+        sample(out, "jvm_memory_used_bytes", "area=\"heap\"", memory.getHeapMemoryUsage().getUsed());
+        sample(out, "jvm_memory_used_bytes", "area=\"nonheap\"", memory.getNonHeapMemoryUsage().getUsed());
+        header(out, "jvm_memory_committed_bytes", "Memory committed by the JVM.", "gauge");
+        sample(out, "jvm_memory_committed_bytes", "area=\"heap\"", memory.getHeapMemoryUsage().getCommitted());
+        sample(out, "jvm_memory_committed_bytes", "area=\"nonheap\"", memory.getNonHeapMemoryUsage().getCommitted());
+        header(out, "jvm_memory_max_bytes", "Maximum heap of the JVM, -1 if undefined.", "gauge");
+        sample(out, "jvm_memory_max_bytes", "area=\"heap\"", memory.getHeapMemoryUsage().getMax());
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        header(out, "jvm_threads_current", "Live threads.", "gauge");
+        sample(out, "jvm_threads_current", null, threads.getThreadCount());
+        header(out, "jvm_threads_daemon", "Live daemon threads.", "gauge");
+        sample(out, "jvm_threads_daemon", null, threads.getDaemonThreadCount());
+        header(out, "jvm_classes_loaded", "Loaded classes.", "gauge");
+        sample(out, "jvm_classes_loaded", null, ManagementFactory.getClassLoadingMXBean().getLoadedClassCount());
+
+        header(out, "jvm_gc_collection_seconds_count", "Garbage collections.", "counter");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            sample(out, "jvm_gc_collection_seconds_count", "gc=\"" + label(gc.getName()) + "\"",
+                    Math.max(0, gc.getCollectionCount()));
+        }
+        header(out, "jvm_gc_collection_seconds_sum", "Time spent in garbage collections.", "counter");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            sample(out, "jvm_gc_collection_seconds_sum", "gc=\"" + label(gc.getName()) + "\"",
+                    Math.max(0, gc.getCollectionTime()) / 1000.0);
+        }
+        header(out, "process_uptime_seconds", "Time since the JVM started.", "gauge");
+        sample(out, "process_uptime_seconds", null, ManagementFactory.getRuntimeMXBean().getUptime() / 1000.0);
+        header(out, "system_load_average_1m", "Load average of the system over the last minute, -1 if unknown.",
+                "gauge");
+        sample(out, "system_load_average_1m", null, ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage());
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (labels != null) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    private static String label(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
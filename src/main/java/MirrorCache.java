@@ -0,0 +1,268 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.dircache.DirCacheCheckout;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.RefSpec;
+
+/**
+ Local cache of bare mirrors of the built repositories.
+
+ Instead of cloning a repository for every push, the commit is fetched incrementally into a bare mirror kept on disk,
+ and each build gets a lightweight checkout whose object database borrows the mirror's objects (git alternates),
+ so no object is copied. Mirrors are evicted, least recently used first, when they exceed the disk budget.
+*/
+public class MirrorCache {
+
+    private static final RefSpec[] MIRROR_REFSPECS = {
+        new RefSpec("+refs/heads/*:refs/heads/*"),
+        new RefSpec("+refs/tags/*:refs/tags/*")
+    };
+
+    private final File root;
+    private final long budgetBytes;
+    private final ConcurrentHashMap<String, Mirror> mirrors = new ConcurrentHashMap<>();
+
+    /**
+     * A checkout made from a mirror. The mirror is kept from eviction until the lease is closed,
+     * which must only happen once the checkout is not used anymore.
+     */
+    public final class Lease implements AutoCloseable {
+        private final Mirror mirror;
+        private boolean closed;
+
+        private Lease(Mirror mirror) {
+            this.mirror = mirror;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                mirror.release();
+            }
+        }
+    }
+
+    private static final class Mirror {
+        final File directory;
+        final ReentrantLock lock = new ReentrantLock();
+        int users;
+
+        Mirror(File directory) {
+            this.directory = directory;
+        }
+
+        synchronized void acquire() {
+            users++;
+        }
+
+        synchronized void release() {
+            users--;
+        }
+
+        synchronized boolean inUse() {
+            return users > 0;
+        }
+    }
+
+    /**
+     * @param root          Directory holding the mirrors.
+     * @param budgetBytes   Disk space the mirrors may use before the least recently used ones are evicted.
+     */
+    public MirrorCache(File root, long budgetBytes) {
+        this.root = root;
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Creates a mirror cache configured from the system properties "ci.mirrors" (directory, default: mirrors)
+     * and "ci.mirrors.budget.mb" (disk budget in megabytes, default: 2048).
+     *
+     * @return The configured mirror cache.
+     */
+    public static MirrorCache fromSystemProperties() {
+        File root = new File(System.getProperty("ci.mirrors", "mirrors"));
+        long budget = Long.getLong("ci.mirrors.budget.mb", 2048L) * 1024 * 1024;
+        return new MirrorCache(root, budget);
+    }
+
+    /**
+     * Checks out a commit of a repository into a directory, fetching it into the repository's mirror first
+     * if the mirror does not have it yet.
+     *
+     * @param repoUrl       The URL of the repository.
+     * @param commitId      The commit ID to checkout.
+     * @param directoryPath The path where the commit is checked out, must not exist or be empty.
+     * @return              A lease to close once the checkout is not used anymore.
+     * @throws IOException if the checkout cannot be written.
+     * @throws GitAPIException if the repository cannot be fetched.
+     */
+    public Lease checkout(String repoUrl, String commitId, String directoryPath) throws IOException, GitAPIException {
+        Mirror mirror = mirrors.computeIfAbsent(mirrorName(repoUrl), name -> new Mirror(new File(root, name)));
+        mirror.acquire();
+        Lease lease = new Lease(mirror);
+        try {
+            mirror.lock.lock();
+            try {
+                update(mirror.directory, repoUrl, commitId);
+            } finally {
+                mirror.lock.unlock();
+            }
+            checkoutFromMirror(mirror.directory, commitId, new File(directoryPath));
+        } catch (IOException | GitAPIException | RuntimeException e) {
+            lease.close();
+            throw e;
+        }
+        evict();
+        return lease;
+    }
+
+    /**
+     * @return Disk space currently used by the mirrors, in bytes.
+     */
+    public long size() {
+        long total = 0;
+        for (File dir : listMirrors()) {
+            total += FileUtils.sizeOfDirectory(dir);
+        }
+        return total;
+    }
+
+    /**
+     * Creates the mirror if needed and fetches into it unless it already contains the commit.
+     */
+    private void update(File mirrorDir, String repoUrl, String commitId) throws IOException, GitAPIException {
+        if (!new File(mirrorDir, "HEAD").exists()) {
+            FileUtils.deleteDirectory(mirrorDir);
+            Git.init().setBare(true).setDirectory(mirrorDir).call().close();
+        }
+        try (Git git = Git.open(mirrorDir)) {
+            if (!hasCommit(git.getRepository(), commitId)) {
+                git.fetch()
+                    .setRemote(repoUrl)
+                    .setRefSpecs(MIRROR_REFSPECS)
+                    .setRemoveDeletedRefs(true)
+                    .call();
+            }
+        }
+        mirrorDir.setLastModified(System.currentTimeMillis());
+    }
+
+    private static boolean hasCommit(Repository repository, String commitId) throws IOException {
+        try {
+            ObjectId id = ObjectId.fromString(commitId);
+            return repository.getObjectDatabase().has(id);
+        } catch (IllegalArgumentException e) {
+            // not a full object id, let the fetch and the checkout resolve it
+            return false;
+        }
+    }
+
+    /**
+     * Creates a repository borrowing the mirror's objects and checks out the commit in it, with a detached HEAD.
+     */
+    private static void checkoutFromMirror(File mirrorDir, String commitId, File directory) throws IOException, GitAPIException {
+        Git.init().setDirectory(directory).call().close();
+        File alternates = new File(directory, ".git/objects/info/alternates");
+        Files.createDirectories(alternates.getParentFile().toPath());
+        String mirrorObjects = new File(mirrorDir, "objects").getAbsolutePath();
+        Files.write(alternates.toPath(), (mirrorObjects + "\n").getBytes(StandardCharsets.UTF_8));
+
+        try (Git git = Git.open(directory); RevWalk walk = new RevWalk(git.getRepository())) {
+            Repository repository = git.getRepository();
+            ObjectId id = repository.resolve(commitId);
+            if (id == null) {
+                throw new IOException("Commit " + commitId + " not found in mirror " + mirrorDir);
+            }
+            RevCommit commit = walk.parseCommit(id);
+            DirCacheCheckout checkout = new DirCacheCheckout(repository, repository.lockDirCache(), commit.getTree());
+            checkout.setFailOnConflict(true);
+            checkout.checkout();
+
+            RefUpdate head = repository.updateRef(Constants.HEAD, true);
+            head.setNewObjectId(commit);
+            head.forceUpdate();
+        }
+    }
+
+    /**
+     * Deletes the least recently used mirrors until the mirrors fit in the disk budget.
+     * Mirrors currently used by a build are never evicted.
+     */
+    private void evict() {
+        List<File> dirs = listMirrors();
+        long total = 0;
+        List<Long> sizes = new ArrayList<>();
+        dirs.sort(Comparator.comparingLong(File::lastModified));
+        for (File dir : dirs) {
+            long size = FileUtils.sizeOfDirectory(dir);
+            sizes.add(size);
+            total += size;
+        }
+        for (int i = 0; i < dirs.size() && total > budgetBytes; i++) {
+            File dir = dirs.get(i);
+            Mirror mirror = mirrors.computeIfAbsent(dir.getName(), name -> new Mirror(dir));
+            if (mirror.inUse() || !mirror.lock.tryLock()) {
+                continue;
+            }
+            try {
+                if (mirror.inUse()) {
+                    continue;
+                }
+                FileUtils.deleteDirectory(dir);
+                total -= sizes.get(i);
+            } catch (IOException e) {
+                System.err.println("An error occurred during mirror eviction: " + e.getMessage());
+            } finally {
+                mirror.lock.unlock();
+            }
+        }
+    }
+
+    private List<File> listMirrors() {
+        List<File> dirs = new ArrayList<>();
+        File[] files = root.listFiles(File::isDirectory);
+        if (files != null) {
+            for (File f : files) {
+                dirs.add(f);
+            }
+        }
+        return dirs;
+    }
+
+    /**
+     * @return A directory name unique to the repository URL, readable thanks to the repository name prefix.
+     */
+    static String mirrorName(String repoUrl) {
+        String name = repoUrl.replaceAll("/+$", "");
+        name = name.substring(name.lastIndexOf('/') + 1).replaceAll("\\.git$", "").replaceAll("[^A-Za-z0-9._-]", "_");
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(repoUrl.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 6; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return name + "-" + hex + ".git";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.maven.shared.invoker.InvocationRequest;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+/**
+ Selects the modules of a multi-module Maven project to build for a commit.
+
+ The commit is compared with the last commit of its branch that built successfully: only the modules containing
+ changed files, the modules they depend on and the modules depending on them are built ("-pl ... -am -amd"). The
+ whole reactor is built when there is no such commit, when a pom.xml changed (the module graph may have changed) or
+ when a file outside of every module changed (e.g. .mvn/ or a shared configuration file).
+*/
+public class ModuleSelector {
+
+    private final File stateFile;
+    // "repository url@ref" -> last commit built successfully
+    private final Properties lastSuccess = new Properties();
+
+    /**
+     * @param stateFile File keeping the last successful commit of each branch across restarts.
+     */
+    public ModuleSelector(File stateFile) {
+        this.stateFile = stateFile;
+        if (stateFile.exists()) {
+            try (InputStream in = new FileInputStream(stateFile)) {
+                lastSuccess.load(in);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Could not read " + stateFile + ", building every module once: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Creates a module selector configured from the system property "ci.incremental.state" (default:
+     * last_success.properties). Returns null if "ci.incremental" is false: every build builds the whole reactor.
+     *
+     * @return The configured selector, or null if disabled.
+     */
+    public static ModuleSelector fromSystemProperties() {
+        if (!Boolean.parseBoolean(System.getProperty("ci.incremental", "true"))) {
+            return null;
+        }
+        return new ModuleSelector(new File(System.getProperty("ci.incremental.state", "last_success.properties")));
+    }
+
+    /**
+     * @param repoUrl   The URL of the repository.
+     * @param ref       The branch, e.g. "refs/heads/main".
+     * @return          The last commit of the branch that built successfully, null if none.
+     */
+    public synchronized String lastSuccess(String repoUrl, String ref) {
+        return ref == null ? null : lastSuccess.getProperty(repoUrl + "@" + ref);
+    }
+
+    /**
+     * Remembers the last commit of a branch that built successfully.
+     *
+     * @param repoUrl   The URL of the repository.
+     * @param ref       The branch, e.g. "refs/heads/main".
+     * @param commitId  The commit.
+     */
+    public synchronized void recordSuccess(String repoUrl, String ref, String commitId) {
+        if (ref == null) {
+            return;
+        }
+        lastSuccess.setProperty(repoUrl + "@" + ref, commitId);
+        File tmp = new File(stateFile.getAbsoluteFile().getParentFile(), stateFile.getName() + ".part");
+        try {
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                lastSuccess.store(out, "Last commit built successfully per branch");
+            }
+            Files.move(tmp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Could not write " + stateFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param checkout      A checkout of the commit, whose object database also holds the base commit.
+     * @param baseCommit    The last commit that built successfully, null if none.
+     * @param commitId      The commit to build.
+     * @return              The modules to build, as paths relative to the root of the project, or null to build
+     *                      the whole reactor.
+     */
+    public static List<String> select(File checkout, String baseCommit, String commitId) {
+        if (baseCommit == null) {
+            return null;
+        }
+        try {
+            List<String> modules = modules(checkout);
+            if (modules.isEmpty()) {
+                return null;
+            }
+            return affectedModules(modules, changedFiles(checkout, baseCommit, commitId));
+        } catch (Exception e) {
+            // e.g. the base commit is not in the mirror anymore after a force push
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @param projectDirectory  The root of a Maven project.
+     * @return                  The paths of its modules relative to the root, recursively, without the root itself.
+     * @throws Exception if a pom.xml cannot be parsed.
+     */
+    public static List<String> modules(File projectDirectory) throws Exception {
+        List<String> modules = new ArrayList<>();
+        collectModules(projectDirectory, "", modules);
+        return modules;
+    }
+
+    private static void collectModules(File root, String path, List<String> modules) throws Exception {
+        File directory = path.isEmpty() ? root : new File(root, path);
+        File pom = directory.isFile() ? directory : new File(directory, "pom.xml");
+        if (!pom.isFile()) {
+            return;
+        }
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        Document document = factory.newDocumentBuilder().parse(pom);
+        NodeList declared = document.getElementsByTagName("module");
+        for (int i = 0; i < declared.getLength(); i++) {
+            String module = normalize(path.isEmpty() ? declared.item(i).getTextContent().trim()
+                    : path + "/" + declared.item(i).getTextContent().trim());
+            if (!modules.contains(module)) {
+                modules.add(module);
+                collectModules(root, module, modules);
+            }
+        }
+    }
+
+    /**
+     * Restricts an invocation to some modules, the modules they depend on and the modules depending on them.
+     *
+     * @param request   The invocation.
+     * @param modules   Paths of the modules relative to the project, null for the whole reactor.
+     */
+    public static void selectModules(InvocationRequest request, List<String> modules) {
+        if (modules != null) {
+            request.setProjects(modules);
+            request.setAlsoMake(true);
+            request.setAlsoMakeDependents(true);
+        }
+    }
+
+    /**
+     * @param modules   Paths of the modules relative to the project, null for the whole reactor.
+     * @return          The "-pl ... -am -amd" command line arguments building the modules.
+     */
+    public static List<String> arguments(List<String> modules) {
+        if (modules == null) {
+            return Collections.emptyList();
+        }
+        return Arrays.asList("-pl", String.join(",", modules), "-am", "-amd");
+    }
+
+    /**
+     * @param modules       The modules of the project, paths relative to its root.
+     * @param changedFiles  The changed files, paths relative to the root.
+     * @return              The modules holding the changed files, or null if the whole reactor must be built.
+     */
+    public static List<String> affectedModules(List<String> modules, List<String> changedFiles) {
+        if (changedFiles.isEmpty()) {
+            return null;
+        }
+        TreeSet<String> affected = new TreeSet<>();
+        for (String file : changedFiles) {
+            if (file.equals("pom.xml") || file.endsWith("/pom.xml")) {
+                return null;
+            }
+            String owner = null;
+            for (String module : modules) {
+                if (file.startsWith(module + "/") && (owner == null || module.length() > owner.length())) {
+                    owner = module;
+                }
+            }
+            if (owner == null) {
+                return null;
+            }
+            affected.add(owner);
+        }
+        return new ArrayList<>(affected);
+    }
+
+    /**
+     * @return The paths of the files added, modified or deleted between the two commits.
+     */
+    static List<String> changedFiles(File checkout, String baseCommit, String commitId) throws IOException {
+        try (Git git = Git.open(checkout); RevWalk walk = new RevWalk(git.getRepository())) {
+            Repository repository = git.getRepository();
+            ObjectId base = repository.resolve(baseCommit);
+            ObjectId head = repository.resolve(commitId);
+            if (base == null || head == null) {
+                throw new IOException("Cannot compare " + baseCommit + " with " + commitId);
+            }
+            List<String> changed = new ArrayList<>();
+            try (TreeWalk tree = new TreeWalk(repository)) {
+                tree.addTree(walk.parseCommit(base).getTree());
+                tree.addTree(walk.parseCommit(head).getTree());
+                tree.setRecursive(true);
+                tree.setFilter(TreeFilter.ANY_DIFF);
+                while (tree.next()) {
+                    changed.add(tree.getPathString());
+                }
+            }
+            return changed;
+        }
+    }
+
+    private static String normalize(String path) {
+        String normalized = new File(path).toPath().normalize().toString().replace(File.separatorChar, '/');
+        return normalized.endsWith("/pom.xml") ? normalized.substring(0, normalized.length() - "/pom.xml".length())
+                : normalized;
+    }
+}
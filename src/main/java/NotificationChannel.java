@@ -0,0 +1,22 @@
+import java.util.List;
+
+/**
+ A way to notify committers of the outcome of their builds, e.g. email.
+*/
+public interface NotificationChannel {
+
+    /**
+     * Notifies a committer of the outcome of one or more builds.
+     *
+     * @param recipient     Address of the committer.
+     * @param notifications Outcomes of the builds of the committer, oldest first.
+     * @throws Exception if the committer could not be notified.
+     */
+    void send(String recipient, List<NotificationDispatcher.Notification> notifications) throws Exception;
+
+    /**
+     * Releases the resources of the channel, e.g. its connections.
+     */
+    default void close() {
+    }
+}
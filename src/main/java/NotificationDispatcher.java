@@ -0,0 +1,210 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ Notifies committers of the outcome of their builds, off the build path.
+
+ Notifications are queued and sent by a thread of their own. Once a notification is taken from the queue, the
+ dispatcher waits for the digest window to collect the other notifications arriving meanwhile; the notifications
+ of a same committer are then sent as a single digest on each channel.
+*/
+public class NotificationDispatcher {
+
+    /**
+     * Outcome of the build of a commit.
+     */
+    public static final class Notification {
+        private final String recipient;
+        private final String commitId;
+        private final String commitMessage;
+        private final boolean success;
+
+        /**
+         * @param recipient     Address of the committer.
+         * @param commitId      The built commit.
+         * @param commitMessage Message of the commit, may be null.
+         * @param success       true if the commit compiled and its tests passed.
+         */
+        public Notification(String recipient, String commitId, String commitMessage, boolean success) {
+            this.recipient = recipient;
+            this.commitId = commitId;
+            this.commitMessage = commitMessage;
+            this.success = success;
+        }
+
+        /**
+         * @param requestData   The data obtained from processRequestData.
+         * @param success       true if the commit compiled and its tests passed.
+         * @return              The notification of the build of the commit.
+         */
+        public static Notification of(HashMap<String, String> requestData, boolean success) {
+            return new Notification(requestData.get("email"), requestData.get("commit_id"),
+                    requestData.get("commit_message"), success);
+        }
+
+        public String getRecipient() {
+            return recipient;
+        }
+
+        public String getCommitId() {
+            return commitId;
+        }
+
+        public String getCommitMessage() {
+            return commitMessage;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+    }
+
+    private final List<NotificationChannel> channels;
+    private final long digestWindowMillis;
+    private final BlockingQueue<Notification> queue = new LinkedBlockingQueue<>();
+    private final Thread sender;
+    // queued or being sent
+    private int pending;
+    private volatile boolean closed;
+
+    /**
+     * @param digestWindowMillis    How long to wait for more notifications before sending a batch.
+     * @param channels              The channels every notification is sent on.
+     */
+    public NotificationDispatcher(long digestWindowMillis, NotificationChannel... channels) {
+        this.channels = Arrays.asList(channels);
+        this.digestWindowMillis = digestWindowMillis;
+        this.sender = new Thread(this::run, "ci-notifier");
+        this.sender.setDaemon(true);
+        this.sender.start();
+    }
+
+    /**
+     * Queues a notification, returns immediately. A notification queued once the dispatcher is closed is dropped.
+     *
+     * @param notification  The notification.
+     */
+    public void enqueue(Notification notification) {
+        // under the lock closing the dispatcher, so that a notification queued is always sent
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            pending++;
+            queue.add(notification);
+        }
+    }
+
+    /**
+     * Waits until the queued notifications are sent.
+     *
+     * @param timeoutMillis Maximum time to wait.
+     * @return              true if all notifications were sent (or failed), false on timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public synchronized boolean flush(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (pending > 0) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            wait(Math.min(left, 100));
+        }
+        return true;
+    }
+
+    /**
+     * Stops the dispatcher once the queued notifications are sent, and closes the channels.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        sender.interrupt();
+        try {
+            sender.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (NotificationChannel channel : channels) {
+            channel.close();
+        }
+    }
+
+    /**
+     * @param notifications Outcomes of builds.
+     * @return              The text notifying them.
+     */
+    public static String text(List<Notification> notifications) {
+        StringBuilder text = new StringBuilder();
+        if (notifications.size() > 1) {
+            text.append(notifications.size()).append(" builds finished:\n\n");
+        }
+        for (Notification n : notifications) {
+            text.append("The latest commit resulted in: ").append(n.isSuccess() ? "SUCCESS" : "FAILURE").append("\n")
+                    .append("Commit Id: ").append(n.getCommitId()).append("\n")
+                    .append("Commit message: ").append(n.getCommitMessage()).append("\n");
+            if (notifications.size() > 1) {
+                text.append("\n");
+            }
+        }
+        return text.toString();
+    }
+
+    private void run() {
+        while (true) {
+            List<Notification> batch = new ArrayList<>();
+            try {
+                Notification first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    if (closed) {
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(first);
+                if (!closed) {
+                    Thread.sleep(digestWindowMillis);
+                }
+            } catch (InterruptedException e) {
+                // closing, send what is queued without waiting
+            }
+            queue.drainTo(batch);
+            if (batch.isEmpty()) {
+                return;
+            }
+            dispatch(batch);
+        }
+    }
+
+    private void dispatch(List<Notification> batch) {
+        Map<String, List<Notification>> byRecipient = new LinkedHashMap<>();
+        for (Notification n : batch) {
+            if (n.getRecipient() != null) {
+                byRecipient.computeIfAbsent(n.getRecipient(), r -> new ArrayList<>()).add(n);
+            }
+        }
+        for (Map.Entry<String, List<Notification>> entry : byRecipient.entrySet()) {
+            for (NotificationChannel channel : channels) {
+                try {
+                    channel.send(entry.getKey(), entry.getValue());
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    System.err.println("Could not notify " + entry.getKey() + ": " + e.getMessage());
+                }
+            }
+        }
+        synchronized (this) {
+            pending -= batch.size();
+            notifyAll();
+        }
+    }
+}
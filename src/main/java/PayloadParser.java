@@ -0,0 +1,473 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ Extracts the push event from the payload of a GitHub webhook delivery, reading the body as a stream.
+
+ Only "ref", "repository" and "head_commit" are decoded; every other value, e.g. the list of commits, is skipped
+ character by character without being materialized. Parsing stops as soon as both "repository" and "head_commit" are
+ read, GitHub sends "ref" before them. Like org.json, a trailing comma before a closing brace or bracket is accepted.
+*/
+public class PayloadParser {
+
+    private static final String FORM_FIELD = "payload";
+
+    private final Reader in;
+    private final char[] buffer = new char[8192];
+    private int position;
+    private int limit;
+
+    private String ref;
+    private String repoName;
+    private String cloneUrl;
+    private String commitId;
+    private String email;
+    private String timestamp;
+    private String commitMessage;
+
+    private PayloadParser(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * Parses the payload of a webhook request: the body itself for "application/json" deliveries, the "payload" form
+     * field for "application/x-www-form-urlencoded" ones, decoded while it is read. Requests of another content type
+     * are parsed from their "payload" parameter.
+     *
+     * @param request   The request from GitHub's webhook.
+     * @return          The push event, null if the payload has no head commit (e.g. a deleted branch).
+     * @throws IOException if the body could not be read or the payload is malformed.
+     */
+    public static PushEvent parse(HttpServletRequest request) throws IOException {
+        return parse(request, isBody(request) ? request.getInputStream() : null);
+    }
+
+    /**
+     * @param request   The request from GitHub's webhook.
+     * @return          true if the payload is read from the body of the request, false if from its parameters.
+     */
+    public static boolean isBody(HttpServletRequest request) {
+        String contentType = request.getContentType() == null ? "" : request.getContentType().toLowerCase();
+        return contentType.startsWith("application/json") || contentType.startsWith("application/x-www-form-urlencoded");
+    }
+
+    /**
+     * Like parse(request), the body being read from the given stream, e.g. one wrapping the input stream of the
+     * request.
+     *
+     * @param request   The request from GitHub's webhook.
+     * @param body      The body of the request, ignored unless isBody(request).
+     * @return          The push event, null if the payload has no head commit.
+     * @throws IOException if the body could not be read or the payload is malformed.
+     */
+    public static PushEvent parse(HttpServletRequest request, InputStream body) throws IOException {
+        String contentType = request.getContentType() == null ? "" : request.getContentType().toLowerCase();
+        Charset charset = request.getCharacterEncoding() == null ? StandardCharsets.UTF_8
+                : Charset.forName(request.getCharacterEncoding());
+        if (contentType.startsWith("application/json")) {
+            return parse(new InputStreamReader(body, charset));
+        }
+        if (contentType.startsWith("application/x-www-form-urlencoded")) {
+            return parse(new InputStreamReader(new FormFieldInputStream(body, FORM_FIELD), charset));
+        }
+        String payload = request.getParameter(FORM_FIELD);
+        if (payload == null) {
+            throw new IOException("no payload in the request");
+        }
+        return parse(new StringReader(payload));
+    }
+
+    /**
+     * @param json  The JSON payload of a push event.
+     * @return      The push event, null if the payload has no head commit.
+     * @throws IOException if the payload could not be read or is malformed.
+     */
+    public static PushEvent parse(Reader json) throws IOException {
+        return new PayloadParser(json).parseEvent();
+    }
+
+    private PushEvent parseEvent() throws IOException {
+        boolean repository = false;
+        boolean headCommit = false;
+        expect('{');
+        while (!repository || !headCommit) {
+            String key = nextKey();
+            if (key == null) {
+                break;
+            }
+            switch (key) {
+                case "ref":
+                    ref = readString();
+                    break;
+                case "repository":
+                    repository = true;
+                    parseRepository();
+                    break;
+                case "head_commit":
+                    if (skipNull()) {
+                        return null;
+                    }
+                    headCommit = true;
+                    parseHeadCommit();
+                    break;
+                default:
+                    skipValue();
+            }
+        }
+        if (!headCommit) {
+            return null;
+        }
+        if (!repository) {
+            throw new IOException("no repository in the request payload");
+        }
+        return new PushEvent(require(repoName, "repository.name"), require(cloneUrl, "repository.clone_url"),
+                require(commitId, "head_commit.id"), require(email, "head_commit.committer.email"),
+                require(timestamp, "head_commit.timestamp"), require(commitMessage, "head_commit.message"), ref);
+    }
+
+    private void parseRepository() throws IOException {
+        expect('{');
+        for (String key = nextKey(); key != null; key = nextKey()) {
+            if (key.equals("name")) {
+                repoName = readString();
+            } else if (key.equals("clone_url")) {
+                cloneUrl = readString();
+            } else {
+                skipValue();
+            }
+        }
+    }
+
+    private void parseHeadCommit() throws IOException {
+        expect('{');
+        for (String key = nextKey(); key != null; key = nextKey()) {
+            switch (key) {
+                case "id":
+                    commitId = readString();
+                    break;
+                case "message":
+                    commitMessage = readString();
+                    break;
+                case "timestamp":
+                    timestamp = readString();
+                    break;
+                case "committer":
+                    if (skipNull()) {
+                        break;
+                    }
+                    expect('{');
+                    for (String field = nextKey(); field != null; field = nextKey()) {
+                        if (field.equals("email")) {
+                            email = readString();
+                        } else {
+                            skipValue();
+                        }
+                    }
+                    break;
+                default:
+                    skipValue();
+            }
+        }
+    }
+
+    private static String require(String value, String name) throws IOException {
+        if (value == null) {
+            throw new IOException("no " + name + " in the request payload");
+        }
+        return value;
+    }
+
+    /**
+     * Moves to the next member of the current object.
+     *
+     * @return The key of the member, positioned before its value; null at the end of the object.
+     */
+    private String nextKey() throws IOException {
+        int c = nextNonBlank();
+        if (c == ',') {
+            c = nextNonBlank();
+        }
+        if (c == '}') {
+            return null;
+        }
+        if (c != '"') {
+            throw syntaxError("expected a key", c);
+        }
+        String key = readStringContent(true);
+        expect(':');
+        return key;
+    }
+
+    private String readString() throws IOException {
+        int c = nextNonBlank();
+        if (c == 'n') {
+            expectLiteral("ull");
+            return null;
+        }
+        if (c != '"') {
+            throw syntaxError("expected a string", c);
+        }
+        return readStringContent(true);
+    }
+
+    /**
+     * Consumes the value if it is null.
+     */
+    private boolean skipNull() throws IOException {
+        int c = nextNonBlank();
+        if (c == 'n') {
+            expectLiteral("ull");
+            return true;
+        }
+        if (c != -1) {
+            position--;
+        }
+        return false;
+    }
+
+    private void skipValue() throws IOException {
+        int c = nextNonBlank();
+        switch (c) {
+            case '"':
+                readStringContent(false);
+                return;
+            case '{':
+            case '[':
+                skipContainer();
+                return;
+            case -1:
+                throw syntaxError("expected a value", c);
+            default:
+                // number or literal
+                while ((c = read()) != -1 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+                    // skip
+                }
+                if (c != -1) {
+                    position--;
+                }
+        }
+    }
+
+    /**
+     * Skips up to the end of the object or array just opened, strings included.
+     */
+    private void skipContainer() throws IOException {
+        int depth = 1;
+        while (depth > 0) {
+            int c = read();
+            switch (c) {
+                case '"':
+                    readStringContent(false);
+                    break;
+                case '{':
+                case '[':
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    break;
+                case -1:
+                    throw syntaxError("unterminated value", c);
+                default:
+            }
+        }
+    }
+
+    /**
+     * Reads a string up to its closing quote, the opening quote being consumed.
+     *
+     * @param keep  false to skip the string without building it.
+     */
+    private String readStringContent(boolean keep) throws IOException {
+        StringBuilder value = keep ? new StringBuilder() : null;
+        while (true) {
+            int c = read();
+            if (c == '"') {
+                return keep ? value.toString() : null;
+            }
+            if (c == -1) {
+                throw syntaxError("unterminated string", c);
+            }
+            if (c == '\\') {
+                c = read();
+                switch (c) {
+                    case 'b': c = '\b'; break;
+                    case 'f': c = '\f'; break;
+                    case 'n': c = '\n'; break;
+                    case 'r': c = '\r'; break;
+                    case 't': c = '\t'; break;
+                    case 'u':
+                        int code = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(read(), 16);
+                            if (digit < 0) {
+                                throw syntaxError("bad unicode escape", c);
+                            }
+                            code = code * 16 + digit;
+                        }
+                        c = code;
+                        break;
+                    case -1:
+                        throw syntaxError("unterminated string", c);
+                    default:
+                        // \" \\ \/
+                }
+            }
+            if (keep) {
+                value.append((char) c);
+            }
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        int c = nextNonBlank();
+        if (c != expected) {
+            throw syntaxError("expected '" + expected + "'", c);
+        }
+    }
+
+    private void expectLiteral(String rest) throws IOException {
+        for (int i = 0; i < rest.length(); i++) {
+            int c = read();
+            if (c != rest.charAt(i)) {
+                throw syntaxError("bad literal", c);
+            }
+        }
+    }
+
+    private int nextNonBlank() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c != -1 && Character.isWhitespace(c));
+        return c;
+    }
+
+    private int read() throws IOException {
+        if (position == limit) {
+            limit = in.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++];
+    }
+
+    private static IOException syntaxError(String message, int found) {
+        return new IOException("Malformed payload: " + message + ", found "
+                + (found == -1 ? "end of input" : "'" + (char) found + "'"));
+    }
+
+    /**
+     * The value of one field of an "application/x-www-form-urlencoded" body, URL-decoded as it is read.
+     */
+    static class FormFieldInputStream extends FilterInputStream {
+
+        private final String field;
+        private boolean started;
+        private boolean ended;
+
+        /**
+         * @param body  The form body.
+         * @param field Name of the field to read.
+         */
+        FormFieldInputStream(InputStream body, String field) {
+            super(body);
+            this.field = field;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!started) {
+                seek();
+            }
+            if (ended) {
+                return -1;
+            }
+            int c = in.read();
+            switch (c) {
+                case -1:
+                case '&':
+                    ended = true;
+                    return -1;
+                case '+':
+                    return ' ';
+                case '%':
+                    int high = Character.digit(in.read(), 16);
+                    int low = Character.digit(in.read(), 16);
+                    if (high < 0 || low < 0) {
+                        throw new IOException("Malformed form body: bad percent escape");
+                    }
+                    return high << 4 | low;
+                default:
+                    return c;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = 0;
+            while (n < len) {
+                int c = read();
+                if (c == -1) {
+                    return n == 0 ? -1 : n;
+                }
+                b[off + n++] = (byte) c;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n && read() != -1) {
+                skipped++;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return 0;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Moves past "field=" of the wanted field.
+         */
+        private void seek() throws IOException {
+            started = true;
+            while (true) {
+                StringBuilder name = new StringBuilder();
+                int c;
+                while ((c = in.read()) != -1 && c != '=' && c != '&') {
+                    name.append((char) c);
+                }
+                if (c == '=' && name.toString().equals(field)) {
+                    return;
+                }
+                while (c != -1 && c != '&') {
+                    c = in.read();
+                }
+                if (c == -1) {
+                    throw new IOException("no " + field + " field in the form body");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+import java.util.HashMap;
+
+/**
+ The fields of a GitHub push event needed to build its head commit.
+*/
+public final class PushEvent {
+
+    private final String repoName;
+    private final String cloneUrl;
+    private final String commitId;
+    private final String email;
+    private final String timestamp;
+    private final String commitMessage;
+    private final String ref;
+
+    /**
+     * @param repoName      Name of the repository.
+     * @param cloneUrl      Clone URL of the repository.
+     * @param commitId      Id of the head commit.
+     * @param email         Email of the committer of the head commit.
+     * @param timestamp     Timestamp of the head commit.
+     * @param commitMessage Message of the head commit.
+     * @param ref           The pushed ref, e.g. "refs/heads/main", null if unknown.
+     */
+    public PushEvent(String repoName, String cloneUrl, String commitId, String email, String timestamp,
+            String commitMessage, String ref) {
+        this.repoName = repoName;
+        this.cloneUrl = cloneUrl;
+        this.commitId = commitId;
+        this.email = email;
+        this.timestamp = timestamp;
+        this.commitMessage = commitMessage;
+        this.ref = ref;
+    }
+
+    public String getRepoName() {
+        return repoName;
+    }
+
+    public String getCloneUrl() {
+        return cloneUrl;
+    }
+
+    public String getCommitId() {
+        return commitId;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public String getTimestamp() {
+        return timestamp;
+    }
+
+    public String getCommitMessage() {
+        return commitMessage;
+    }
+
+    public String getRef() {
+        return ref;
+    }
+
+    /**
+     * @return The event as the data of a build job: "repo_name", "clone_url", "commit_id", "email", "timestamp",
+     *         "commit_message", and "ref" when known.
+     */
+    public HashMap<String, String> toMap() {
+        HashMap<String, String> map = new HashMap<>();
+        map.put("repo_name", repoName);
+        map.put("clone_url", cloneUrl);
+        map.put("commit_id", commitId);
+        map.put("email", email);
+        map.put("timestamp", timestamp);
+        map.put("commit_message", commitMessage);
+        if (ref != null) {
+            map.put("ref", ref);
+        }
+        return map;
+    }
+}
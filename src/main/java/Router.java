@@ -0,0 +1,115 @@
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+/**
+ Jetty handler dispatching requests to endpoints by method and path.
+
+ A route is an exact path, e.g. "/metrics", or a prefix ending with "/*", e.g. "/jobs/*", which matches the paths
+ below it. Routes are tried in the order they were added. A path matched by no route is answered 404, a path matched
+ only by routes of other methods 405 with the allowed methods.
+*/
+public class Router extends AbstractHandler {
+
+    /**
+     * Answers the requests of a route.
+     */
+    public interface Endpoint {
+        /**
+         * @param path      Path of the request.
+         * @param request   The request.
+         * @param response  Response to write the answer to.
+         * @throws IOException if the response cannot be written.
+         */
+        void handle(String path, HttpServletRequest request, HttpServletResponse response) throws IOException;
+    }
+
+    private static final class Route {
+        final String method;
+        final String path;
+        final boolean prefix;
+        final Endpoint endpoint;
+
+        Route(String method, String path, Endpoint endpoint) {
+            this.method = method;
+            this.prefix = path.endsWith("/*");
+            this.path = prefix ? path.substring(0, path.length() - 1) : path;
+            this.endpoint = endpoint;
+        }
+
+        boolean matches(String target) {
+            return prefix ? target.startsWith(path) : target.equals(path);
+        }
+    }
+
+    private final List<Route> routes = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param path      The path, or a prefix ending with "/*".
+     * @param endpoint  Answers the GET (and HEAD) requests of the path.
+     * @return          This router.
+     */
+    public Router get(String path, Endpoint endpoint) {
+        return route("GET", path, endpoint);
+    }
+
+    /**
+     * @param path      The path, or a prefix ending with "/*".
+     * @param endpoint  Answers the POST requests of the path.
+     * @return          This router.
+     */
+    public Router post(String path, Endpoint endpoint) {
+        return route("POST", path, endpoint);
+    }
+
+    /**
+     * @param method    The HTTP method, e.g. "GET".
+     * @param path      The path, or a prefix ending with "/*".
+     * @param endpoint  Answers the requests of the path.
+     * @return          This router.
+     */
+    public Router route(String method, String path, Endpoint endpoint) {
+        routes.add(new Route(method, path, endpoint));
+        return this;
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+            throws IOException, ServletException {
+        baseRequest.setHandled(true);
+        String method = request.getMethod().equals("HEAD") ? "GET" : request.getMethod();
+        Set<String> allowed = new LinkedHashSet<>();
+        Endpoint endpoint = null;
+        for (Route route : routes) {
+            if (route.matches(target)) {
+                if (route.method.equals(method)) {
+                    endpoint = route.endpoint;
+                    break;
+                }
+                allowed.add(route.method);
+            }
+        }
+        if (endpoint != null) {
+            endpoint.handle(target, request, response);
+            return;
+        }
+        response.setContentType("text/plain;charset=utf-8");
+        if (allowed.isEmpty()) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            response.getWriter().println("Not found");
+        } else {
+            response.setStatus(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+            response.setHeader("Allow", String.join(", ", allowed));
+            response.getWriter().println("Method not allowed");
+        }
+    }
+}
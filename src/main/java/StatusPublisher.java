@@ -0,0 +1,298 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.JSONObject;
+
+/**
+ Publishes commit statuses to GitHub without blocking the builds.
+
+ Updates are posted with HttpClient.sendAsync. At most one update per commit is in flight; an update published while
+ another one for the same commit waits to be sent replaces it, only the latest state matters to GitHub. Failed
+ posts (network errors, 5xx, 429, rate limit exhausted) are retried with exponential backoff, waiting at least as
+ long as the Retry-After header asks. When X-RateLimit-Remaining reaches 0, all posts wait until X-RateLimit-Reset.
+*/
+public class StatusPublisher {
+
+    // e.g. https://github.com/owner/repo.git or git@github.com:owner/repo.git
+    private static final Pattern REPOSITORY = Pattern.compile("[/:]([^/:]+)/([^/]+?)(?:\\.git)?/?$");
+
+    private final HttpClient httpClient;
+    private final String token;
+    private final String apiUrl;
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final Duration requestTimeout;
+    private final ScheduledExecutorService scheduler;
+
+    // pending and in-flight updates by commit
+    private final Map<String, Update> waiting = new HashMap<>();
+    private final Map<String, Update> inFlight = new HashMap<>();
+    private long pausedUntil;
+
+    /**
+     * A status update and the future completed with its outcome.
+     */
+    private static final class Update {
+        final String repository;
+        final String sha;
+        final String state;
+        final String description;
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        int attempts;
+
+        Update(String repository, String sha, String state, String description) {
+            this.repository = repository;
+            this.sha = sha;
+            this.state = state;
+            this.description = description;
+        }
+
+        String key() {
+            return repository + "@" + sha;
+        }
+    }
+
+    /**
+     * @param httpClient            Client used to reach GitHub's API.
+     * @param token                 GitHub token allowed to edit commit statuses.
+     * @param apiUrl                Base URL of the API, e.g. "https://api.github.com".
+     * @param maxAttempts           Number of attempts before an update is given up.
+     * @param initialBackoffMillis  Delay before the first retry, doubled for each following one.
+     * @param requestTimeout        Timeout of each post.
+     */
+    public StatusPublisher(HttpClient httpClient, String token, String apiUrl, int maxAttempts, long initialBackoffMillis,
+            Duration requestTimeout) {
+        this.httpClient = httpClient;
+        this.token = token;
+        this.apiUrl = apiUrl.endsWith("/") ? apiUrl.substring(0, apiUrl.length() - 1) : apiUrl;
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.requestTimeout = requestTimeout;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ci-status-publisher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Creates the publisher configured from the system properties "ci.github.api" (default: https://api.github.com),
+     * "ci.github.status.attempts" (default: 5), "ci.github.status.backoff" (milliseconds, default: 1000) and
+     * "ci.github.status.timeout" (seconds, default: 10).
+     *
+     * @param httpClient    Client used to reach GitHub's API.
+     * @param token         GitHub token allowed to edit commit statuses.
+     * @return              The configured publisher.
+     */
+    public static StatusPublisher fromSystemProperties(HttpClient httpClient, String token) {
+        return new StatusPublisher(httpClient, token,
+                System.getProperty("ci.github.api", "https://api.github.com"),
+                Integer.getInteger("ci.github.status.attempts", 5),
+                Long.getLong("ci.github.status.backoff", 1000L),
+                Duration.ofSeconds(Integer.getInteger("ci.github.status.timeout", 10)));
+    }
+
+    /**
+     * @param cloneUrl  Clone URL of a GitHub repository.
+     * @return          The repository as "owner/name", or null if the URL is not recognized.
+     */
+    public static String repositoryOf(String cloneUrl) {
+        if (cloneUrl == null) {
+            return null;
+        }
+        Matcher m = REPOSITORY.matcher(cloneUrl);
+        return m.find() ? m.group(1) + "/" + m.group(2) : null;
+    }
+
+    /**
+     * Publishes the status of a commit.
+     *
+     * @param repository    The repository, as "owner/name".
+     * @param sha           The commit.
+     * @param state         "error", "failure", "pending" or "success".
+     * @param description   A short description of the status.
+     * @return              Completed with the state returned by GitHub (the state of a later update of the same
+     *                      commit if this one was replaced before being sent), or a string starting with "Error: "
+     *                      if the update could not be published.
+     */
+    public CompletableFuture<String> publish(String repository, String sha, String state, String description) {
+        Update update = new Update(repository, sha, state, description);
+        Update replaced;
+        boolean send;
+        synchronized (this) {
+            replaced = waiting.put(update.key(), update);
+            send = !inFlight.containsKey(update.key());
+        }
+        if (replaced != null) {
+            update.result.whenComplete((result, e) -> replaced.result.complete(result));
+        }
+        if (send) {
+            sendNext(update.key());
+        }
+        return update.result;
+    }
+
+    /**
+     * @return Number of updates waiting to be sent or being sent.
+     */
+    public synchronized int pendingCount() {
+        return waiting.size() + inFlight.size();
+    }
+
+    /**
+     * Stops retrying, the updates not published yet are completed with an error.
+     */
+    public void close() {
+        scheduler.shutdownNow();
+        synchronized (this) {
+            for (Update update : waiting.values()) {
+                update.result.complete("Error: publisher closed");
+            }
+            for (Update update : inFlight.values()) {
+                update.result.complete("Error: publisher closed");
+            }
+            waiting.clear();
+            inFlight.clear();
+        }
+    }
+
+    private void sendNext(String key) {
+        Update update;
+        long delay;
+        synchronized (this) {
+            if (inFlight.containsKey(key)) {
+                return;
+            }
+            update = waiting.remove(key);
+            if (update == null) {
+                return;
+            }
+            inFlight.put(key, update);
+            delay = pausedUntil - System.currentTimeMillis();
+        }
+        if (delay > 0) {
+            schedule(update, delay);
+        } else {
+            post(update);
+        }
+    }
+
+    private void post(Update update) {
+        update.attempts++;
+        JSONObject body = new JSONObject()
+                .put("state", update.state)
+                .put("description", update.description);
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(apiUrl + "/repos/" + update.repository + "/statuses/" + update.sha))
+                .timeout(requestTimeout)
+                .header("Authorization", "token " + token)
+                .header("Accept", "application/vnd.github.v3+json")
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+                .build();
+        CompletableFuture<HttpResponse<String>> response;
+        try {
+            response = httpClient.sendAsync(request, BodyHandlers.ofString());
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        response.whenComplete((r, e) -> handle(update, r, e));
+    }
+
+    private void handle(Update update, HttpResponse<String> response, Throwable error) {
+        long retryAfter = 0;
+        String failure;
+        if (error != null) {
+            failure = String.valueOf(error.getMessage());
+        } else {
+            long now = System.currentTimeMillis();
+            String remaining = response.headers().firstValue("X-RateLimit-Remaining").orElse(null);
+            String reset = response.headers().firstValue("X-RateLimit-Reset").orElse(null);
+            if ("0".equals(remaining) && reset != null) {
+                long resetAt = parseLong(reset, 0) * 1000;
+                synchronized (this) {
+                    pausedUntil = Math.max(pausedUntil, resetAt);
+                }
+                retryAfter = resetAt - now;
+            }
+            retryAfter = Math.max(retryAfter,
+                    parseLong(response.headers().firstValue("Retry-After").orElse("0"), 0) * 1000);
+
+            int status = response.statusCode();
+            if (status >= 200 && status < 300) {
+                String state = update.state;
+                try {
+                    state = new JSONObject(response.body()).optString("state", state);
+                } catch (RuntimeException e) {
+                    // not JSON, GitHub accepted the state sent
+                }
+                finish(update, state);
+                return;
+            }
+            failure = "HTTP " + status;
+            boolean retriable = status >= 500 || status == 429 || status == 403 && retryAfter > 0;
+            if (!retriable) {
+                finish(update, "Error: " + failure);
+                return;
+            }
+        }
+        if (update.attempts >= maxAttempts || scheduler.isShutdown()) {
+            System.err.println("Could not publish the status of " + update.sha + ": " + failure);
+            finish(update, "Error: " + failure);
+            return;
+        }
+        long backoff = initialBackoffMillis << Math.min(update.attempts - 1, 20);
+        long delay = Math.max(backoff, retryAfter);
+        Update newer;
+        synchronized (this) {
+            newer = waiting.get(update.key());
+            if (newer != null) {
+                inFlight.remove(update.key());
+            }
+        }
+        if (newer != null) {
+            // a newer update of the commit replaces the retry
+            newer.result.whenComplete((result, e) -> update.result.complete(result));
+            sendNext(update.key());
+            return;
+        }
+        schedule(update, delay);
+    }
+
+    private void finish(Update update, String result) {
+        synchronized (this) {
+            inFlight.remove(update.key());
+        }
+        update.result.complete(result);
+        sendNext(update.key());
+    }
+
+    private void schedule(Update update, long delayMillis) {
+        try {
+            scheduler.schedule(() -> post(update), delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            finish(update, "Error: publisher closed");
+        }
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,369 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ Reads the XML reports ("TEST-*.xml") Surefire writes for each test class.
+
+ Reports are streamed with StAX, never loaded whole: a summary reads only the attributes of the "testsuite" element,
+ and test cases are handed over one by one while the report is read, their output, which can be large, being skipped.
+*/
+public class SurefireReports {
+
+    private static final XMLInputFactory XML = XMLInputFactory.newFactory();
+
+    static {
+        XML.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    /**
+     * Outcome of a test case.
+     */
+    public enum Status {
+        PASSED,
+        FAILED,
+        ERROR,
+        SKIPPED,
+        /** Failed, then passed when Surefire ran it again ("rerunFailingTestsCount"). */
+        FLAKY
+    }
+
+    /**
+     * Outcome of one test method.
+     */
+    public static final class TestCase {
+        private final String className;
+        private final String name;
+        private final Status status;
+        private final long timeMillis;
+
+        /**
+         * @param className     Fully qualified name of the test class.
+         * @param name          Name of the test, e.g. the method name.
+         * @param status        Outcome of the test.
+         * @param timeMillis    Time the test took.
+         */
+        public TestCase(String className, String name, Status status, long timeMillis) {
+            this.className = className;
+            this.name = name;
+            this.status = status;
+            this.timeMillis = timeMillis;
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        /**
+         * @return "class#name", identifying the test across builds.
+         */
+        public String getId() {
+            return className + "#" + name;
+        }
+
+        /**
+         * @return true if the test failed or ended with an error.
+         */
+        public boolean isFailed() {
+            return status == Status.FAILED || status == Status.ERROR;
+        }
+    }
+
+    /**
+     * Outcome of the tests of one class.
+     */
+    public static final class Suite {
+        private final String name;
+        private final long timeMillis;
+        private final int tests;
+        private final int failures;
+        private final int errors;
+        private final int skipped;
+
+        /**
+         * @param name          Fully qualified name of the test class.
+         * @param timeMillis    Time the tests took.
+         * @param tests         Number of tests run.
+         * @param failures      Number of failed tests.
+         * @param errors        Number of tests ending with an unexpected exception.
+         * @param skipped       Number of skipped tests.
+         */
+        public Suite(String name, long timeMillis, int tests, int failures, int errors, int skipped) {
+            this.name = name;
+            this.timeMillis = timeMillis;
+            this.tests = tests;
+            this.failures = failures;
+            this.errors = errors;
+            this.skipped = skipped;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        public int getTests() {
+            return tests;
+        }
+
+        public int getFailures() {
+            return failures;
+        }
+
+        public int getErrors() {
+            return errors;
+        }
+
+        public int getSkipped() {
+            return skipped;
+        }
+    }
+
+    /**
+     * Outcome of the tests of several classes, e.g. run in several shards.
+     */
+    public static final class Summary {
+        private final List<Suite> suites;
+        private int tests;
+        private int failures;
+        private int errors;
+        private int skipped;
+
+        /**
+         * @param suites    The outcomes of the test classes.
+         */
+        public Summary(List<Suite> suites) {
+            this.suites = Collections.unmodifiableList(new ArrayList<>(suites));
+            for (Suite suite : suites) {
+                tests += suite.getTests();
+                failures += suite.getFailures();
+                errors += suite.getErrors();
+                skipped += suite.getSkipped();
+            }
+        }
+
+        public List<Suite> getSuites() {
+            return suites;
+        }
+
+        public int getTests() {
+            return tests;
+        }
+
+        public int getFailures() {
+            return failures;
+        }
+
+        public int getErrors() {
+            return errors;
+        }
+
+        public int getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * @return true if no test failed or ended with an error.
+         */
+        public boolean isSuccess() {
+            return failures == 0 && errors == 0;
+        }
+
+        /**
+         * @return The totals, in the words Surefire prints them.
+         */
+        @Override
+        public String toString() {
+            return "Tests run: " + tests + ", Failures: " + failures + ", Errors: " + errors + ", Skipped: " + skipped;
+        }
+    }
+
+    private SurefireReports() {
+    }
+
+    /**
+     * @param directory A directory holding Surefire reports, e.g. target/surefire-reports.
+     * @return          The report files of the directory, sorted by name.
+     */
+    public static List<File> reportFiles(File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith("TEST-") && name.endsWith(".xml"));
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(files);
+        return new ArrayList<>(Arrays.asList(files));
+    }
+
+    /**
+     * Merges the reports found in directories, e.g. the reports directories of the modules of a project.
+     *
+     * @param directories   Directories holding Surefire reports.
+     * @return              The outcome of all the test classes reported.
+     * @throws IOException if a report cannot be read or parsed.
+     */
+    public static Summary merge(List<File> directories) throws IOException {
+        List<Suite> suites = new ArrayList<>();
+        for (File directory : directories) {
+            for (File report : reportFiles(directory)) {
+                suites.add(parse(report));
+            }
+        }
+        return new Summary(suites);
+    }
+
+    /**
+     * @param report    A "TEST-*.xml" report.
+     * @return          The outcome of the test class of the report.
+     * @throws IOException if the report cannot be read or parsed.
+     */
+    public static Suite parse(File report) throws IOException {
+        try (InputStream in = new FileInputStream(report)) {
+            XMLStreamReader xml = XML.createXMLStreamReader(in);
+            try {
+                while (xml.hasNext()) {
+                    if (xml.next() == XMLStreamConstants.START_ELEMENT && xml.getLocalName().equals("testsuite")) {
+                        return new Suite(xml.getAttributeValue(null, "name"),
+                                seconds(xml.getAttributeValue(null, "time")),
+                                count(xml.getAttributeValue(null, "tests")),
+                                count(xml.getAttributeValue(null, "failures")),
+                                count(xml.getAttributeValue(null, "errors")),
+                                count(xml.getAttributeValue(null, "skipped")));
+                    }
+                }
+                throw new IOException("No testsuite in " + report);
+            } finally {
+                xml.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Malformed report " + report + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads the test cases of a report as they come, without keeping them.
+     *
+     * @param report    A "TEST-*.xml" report.
+     * @param cases     Receives each test case of the report.
+     * @throws IOException if the report cannot be read or parsed.
+     */
+    public static void readTestCases(File report, Consumer<TestCase> cases) throws IOException {
+        try (InputStream in = new FileInputStream(report)) {
+            XMLStreamReader xml = XML.createXMLStreamReader(in);
+            try {
+                String className = null;
+                String name = null;
+                long time = 0;
+                Status status = null;
+                while (xml.hasNext()) {
+                    int event = xml.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        String element = xml.getLocalName();
+                        if (element.equals("testcase")) {
+                            className = xml.getAttributeValue(null, "classname");
+                            name = xml.getAttributeValue(null, "name");
+                            time = seconds(xml.getAttributeValue(null, "time"));
+                            status = Status.PASSED;
+                        } else if (status != null) {
+                            status = childStatus(element, status);
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT && status != null
+                            && xml.getLocalName().equals("testcase")) {
+                        cases.accept(new TestCase(className == null ? "" : className, name == null ? "" : name,
+                                status, time));
+                        status = null;
+                    }
+                }
+            } finally {
+                xml.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Malformed report " + report + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return The status of a test case once one of its child elements is read.
+     */
+    private static Status childStatus(String element, Status status) {
+        switch (element) {
+            case "failure":
+                return Status.FAILED;
+            case "error":
+                return Status.ERROR;
+            case "skipped":
+                return Status.SKIPPED;
+            case "flakyFailure":
+            case "flakyError":
+                // the test passed in the end
+                return status == Status.PASSED ? Status.FLAKY : status;
+            default:
+                // e.g. system-out, rerunFailure
+                return status;
+        }
+    }
+
+    /**
+     * @param projectDirectory  The root of a Maven project, built.
+     * @return                  The reports directories of the project and of its modules that exist.
+     */
+    public static List<File> reportDirectories(File projectDirectory) {
+        List<File> directories = new ArrayList<>();
+        List<String> paths = new ArrayList<>();
+        paths.add("");
+        try {
+            paths.addAll(ModuleSelector.modules(projectDirectory));
+        } catch (Exception e) {
+            // only the root
+        }
+        for (String path : paths) {
+            File directory = new File(path.isEmpty() ? projectDirectory : new File(projectDirectory, path),
+                    "target/surefire-reports");
+            if (directory.isDirectory()) {
+                directories.add(directory);
+            }
+        }
+        return directories;
+    }
+
+    /**
+     * @param seconds   A duration as Surefire writes it, e.g. "1.234" or "1,234.5".
+     * @return          The duration in milliseconds, 0 if missing.
+     */
+    static long seconds(String seconds) {
+        if (seconds == null || seconds.isEmpty()) {
+            return 0;
+        }
+        return Math.round(Double.parseDouble(seconds.replace(",", "")) * 1000);
+    }
+
+    private static int count(String value) {
+        return value == null || value.isEmpty() ? 0 : Integer.parseInt(value);
+    }
+}
@@ -0,0 +1,265 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ HTML template compiled once into static segments and slots.
+
+ A slot is written "$name" in the template, e.g. "$commit_id", for one of the names declared when compiling it; any
+ other "$" is kept as written. Rendering writes the static segments, already
+ encoded in UTF-8, and the values of the slots, HTML-escaped and encoded on the fly, to a channel through a
+ small buffer. A value can be any object, written with its toString, or an Iterable whose elements are written
+ one per line, so a long log is never joined into a single string.
+*/
+public class Template {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    // static segments, encoded, and the slot following each of them (null after the last one)
+    private final List<byte[]> segments = new ArrayList<>();
+    private final List<String> slots = new ArrayList<>();
+
+    private Template(String text, Collection<String> names) {
+        // the longest name first, so that "$build_logs_url" is not read as "$build_logs" followed by "_url"
+        StringBuilder alternatives = new StringBuilder();
+        names.stream().sorted(Comparator.comparingInt(String::length).reversed()).forEach(name ->
+                alternatives.append(alternatives.length() == 0 ? "" : "|").append(Pattern.quote(name)));
+        Pattern slot = Pattern.compile("\\$(" + alternatives + ")(?![A-Za-z0-9_])");
+        Matcher m = slot.matcher(text);
+        int start = 0;
+        while (m.find()) {
+            segments.add(text.substring(start, m.start()).getBytes(StandardCharsets.UTF_8));
+            slots.add(m.group(1));
+            start = m.end();
+        }
+        segments.add(text.substring(start).getBytes(StandardCharsets.UTF_8));
+        slots.add(null);
+    }
+
+    /**
+     * @param text  The template.
+     * @param names Names of its slots.
+     * @return      The compiled template.
+     */
+    public static Template compile(String text, Collection<String> names) {
+        if (names.isEmpty()) {
+            throw new IllegalArgumentException("a template needs at least one slot");
+        }
+        return new Template(text, names);
+    }
+
+    /**
+     * Escapes the characters of a text that are special in HTML, in an element or an attribute value.
+     *
+     * @param text  The text.
+     * @return      The escaped text.
+     */
+    public static String escape(String text) {
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            String entity = entity(c);
+            if (entity != null) {
+                escaped.append(entity);
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * @return The entity replacing a character special in HTML, null for the other characters.
+     */
+    private static String entity(char c) {
+        switch (c) {
+            case '<':
+                return "&lt;";
+            case '>':
+                return "&gt;";
+            case '&':
+                return "&amp;";
+            case '"':
+                return "&quot;";
+            case '\'':
+                return "&#39;";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * A template file, compiled when first used.
+     */
+    public static final class Source {
+        private final Path file;
+        private final boolean reloadOnChange;
+        private final Collection<String> names;
+        private Template template;
+        private long lastModified;
+
+        /**
+         * @param file              The template file, in UTF-8.
+         * @param reloadOnChange    true to compile the file again when it is modified, false to compile it once.
+         * @param names             Names of the slots of the template.
+         */
+        public Source(Path file, boolean reloadOnChange, Collection<String> names) {
+            this.file = file;
+            this.reloadOnChange = reloadOnChange;
+            this.names = names;
+        }
+
+        /**
+         * @return The compiled template.
+         * @throws IOException if the file cannot be read.
+         */
+        public synchronized Template get() throws IOException {
+            if (template != null && !reloadOnChange) {
+                return template;
+            }
+            long modified = Files.getLastModifiedTime(file).toMillis();
+            if (template == null || modified != lastModified) {
+                template = compile(new String(Files.readAllBytes(file), StandardCharsets.UTF_8), names);
+                lastModified = modified;
+            }
+            return template;
+        }
+    }
+
+    /**
+     * Renders the template.
+     *
+     * @param values    Values of the slots by name, a slot without value is rendered empty.
+     * @param out       Channel the page is written to.
+     * @throws IOException if the channel cannot be written.
+     */
+    public void render(Map<String, ?> values, WritableByteChannel out) throws IOException {
+        Output output = new Output(out);
+        for (int i = 0; i < segments.size(); i++) {
+            output.write(segments.get(i));
+            String slot = slots.get(i);
+            Object value = slot == null ? null : values.get(slot);
+            if (value instanceof Iterable) {
+                boolean first = true;
+                for (Object line : (Iterable<?>) value) {
+                    if (!first) {
+                        output.escape("\n");
+                    }
+                    output.escape(String.valueOf(line));
+                    first = false;
+                }
+            } else if (value != null) {
+                output.escape(value.toString());
+            }
+        }
+        output.flush();
+    }
+
+    /**
+     * Buffered UTF-8 output to a channel.
+     */
+    private static final class Output {
+        private final WritableByteChannel channel;
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+        private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE * 3);
+
+        Output(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        void write(byte[] segment) throws IOException {
+            encodeChars(false);
+            if (segment.length > bytes.remaining()) {
+                drain();
+                if (segment.length > bytes.remaining()) {
+                    writeFully(ByteBuffer.wrap(segment));
+                    return;
+                }
+            }
+            bytes.put(segment);
+        }
+
+        void escape(String text) throws IOException {
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                String entity = entity(c);
+                if (entity != null) {
+                    put(entity);
+                } else {
+                    put(c);
+                }
+            }
+        }
+
+        void flush() throws IOException {
+            encodeChars(true);
+            drain();
+        }
+
+        private void put(String s) throws IOException {
+            for (int i = 0; i < s.length(); i++) {
+                put(s.charAt(i));
+            }
+        }
+
+        private void put(char c) throws IOException {
+            if (!chars.hasRemaining()) {
+                encodeChars(false);
+            }
+            chars.put(c);
+        }
+
+        /**
+         * Encodes the buffered characters, keeping a trailing half of a surrogate pair for the next call.
+         */
+        private void encodeChars(boolean endOfInput) throws IOException {
+            chars.flip();
+            while (true) {
+                CoderResult result = encoder.encode(chars, bytes, endOfInput);
+                if (result.isOverflow()) {
+                    drain();
+                } else if (result.isError()) {
+                    result.throwException();
+                } else {
+                    break;
+                }
+            }
+            if (endOfInput) {
+                while (encoder.flush(bytes).isOverflow()) {
+                    drain();
+                }
+                encoder.reset();
+            }
+            chars.compact();
+        }
+
+        private void drain() throws IOException {
+            bytes.flip();
+            writeFully(bytes);
+            bytes.clear();
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+}
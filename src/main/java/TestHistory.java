@@ -0,0 +1,390 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ Per-test outcomes and durations of the builds, kept in the build history.
+
+ The test cases of a build are read from its Surefire reports as they are parsed and written one per line, as
+ "STATUS millis class name", to "tests/{commit}.tsv" (a commit built again gets "{commit}.2.tsv", ...), after a first
+ line naming the project. The builds of each project are listed in order in "tests/{project}.builds". From these the
+ report of a build shows its slowest tests, the tests that failed or got slower since the previous build of the
+ project, and the tests of the project that are flaky in its recent builds.
+*/
+public class TestHistory {
+
+    // a test got slower if it takes 50% and 100 ms longer than in the previous build
+    private static final double SLOWDOWN_RATIO = 1.5;
+    private static final long SLOWDOWN_MIN_MILLIS = 100;
+
+    private final Path directory;
+
+    /**
+     * A test whose outcome got worse since the previous build.
+     */
+    public static final class Regression {
+        private final SurefireReports.TestCase before;
+        private final SurefireReports.TestCase after;
+
+        Regression(SurefireReports.TestCase before, SurefireReports.TestCase after) {
+            this.before = before;
+            this.after = after;
+        }
+
+        public SurefireReports.TestCase getBefore() {
+            return before;
+        }
+
+        public SurefireReports.TestCase getAfter() {
+            return after;
+        }
+
+        /**
+         * @return true if the test passed in the previous build and fails now, false if it only got slower.
+         */
+        public boolean isFailure() {
+            return after.isFailed() && !before.isFailed();
+        }
+    }
+
+    /**
+     * @param directory Directory of the per-test records, e.g. "build_history/tests".
+     */
+    public TestHistory(File directory) {
+        this.directory = directory.toPath();
+    }
+
+    /**
+     * Reads test cases one by one, e.g. from Surefire reports.
+     */
+    private interface TestCases {
+        void forEach(Consumer<SurefireReports.TestCase> each) throws IOException;
+    }
+
+    /**
+     * Records the test cases of a build, read from its Surefire reports.
+     *
+     * @param project               Key of the project, e.g. its clone URL.
+     * @param commitId              The built commit.
+     * @param reportDirectories     The reports directories of the build.
+     * @return                      Name of the build in the history, null if there are no reports.
+     * @throws IOException if a report cannot be read or the records cannot be written.
+     */
+    public String record(String project, String commitId, List<File> reportDirectories) throws IOException {
+        List<File> reports = new ArrayList<>();
+        for (File reportDirectory : reportDirectories) {
+            reports.addAll(SurefireReports.reportFiles(reportDirectory));
+        }
+        if (reports.isEmpty()) {
+            return null;
+        }
+        return record(project, commitId, each -> {
+            for (File report : reports) {
+                SurefireReports.readTestCases(report, each);
+            }
+        });
+    }
+
+    /**
+     * Records the test cases of a build, e.g. reported by the build agent that ran it.
+     *
+     * @param project   Key of the project, e.g. its clone URL.
+     * @param commitId  The built commit.
+     * @param testCases The test cases of the build.
+     * @return          Name of the build in the history, null if there are no test cases.
+     * @throws IOException if the records cannot be written.
+     */
+    public String record(String project, String commitId, Collection<SurefireReports.TestCase> testCases)
+            throws IOException {
+        if (testCases.isEmpty()) {
+            return null;
+        }
+        return record(project, commitId, testCases::forEach);
+    }
+
+    private synchronized String record(String project, String commitId, TestCases testCases) throws IOException {
+        Files.createDirectories(directory);
+        String build = commitId;
+        for (int n = 2; Files.exists(file(build)); n++) {
+            build = commitId + "." + n;
+        }
+        Path tmp = Files.createTempFile(directory, build, ".part");
+        try {
+            try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                out.write("# " + clean(project) + "\n");
+                testCases.forEach(testCase -> write(testCase, out));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            Files.move(tmp, file(build), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        Files.write(buildsFile(project), (build + "\n").getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        return build;
+    }
+
+    private static void write(SurefireReports.TestCase testCase, Writer out) {
+        try {
+            out.write(testCase.getStatus() + "\t" + testCase.getTimeMillis() + "\t" + clean(testCase.getClassName())
+                    + "\t" + clean(testCase.getName()) + "\n");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String clean(String value) {
+        return value.replaceAll("[\t\r\n]", " ");
+    }
+
+    /**
+     * @param commitId  A built commit.
+     * @return          Name of its last build in the history, null if its tests were not recorded.
+     */
+    public synchronized String latestBuild(String commitId) {
+        if (!Files.exists(file(commitId))) {
+            return null;
+        }
+        String build = commitId;
+        for (int n = 2; Files.exists(file(commitId + "." + n)); n++) {
+            build = commitId + "." + n;
+        }
+        return build;
+    }
+
+    /**
+     * @param build     Name of a build in the history.
+     * @return          Its test cases.
+     * @throws IOException if the records cannot be read.
+     */
+    public List<SurefireReports.TestCase> load(String build) throws IOException {
+        List<SurefireReports.TestCase> cases = new ArrayList<>();
+        try (BufferedReader in = Files.newBufferedReader(file(build), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+                if (line.startsWith("#") || fields.length < 4) {
+                    continue;
+                }
+                cases.add(new SurefireReports.TestCase(fields[2], fields[3],
+                        SurefireReports.Status.valueOf(fields[0]), Long.parseLong(fields[1])));
+            }
+        }
+        return cases;
+    }
+
+    /**
+     * @param build     Name of a build in the history.
+     * @return          The project of the build.
+     * @throws IOException if the records cannot be read.
+     */
+    public String project(String build) throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(file(build), StandardCharsets.UTF_8)) {
+            String line = in.readLine();
+            return line != null && line.startsWith("# ") ? line.substring(2) : "";
+        }
+    }
+
+    /**
+     * @param project   Key of a project.
+     * @return          Names of its builds whose tests were recorded, oldest first.
+     * @throws IOException if the records cannot be read.
+     */
+    public synchronized List<String> builds(String project) throws IOException {
+        Path file = buildsFile(project);
+        if (!Files.exists(file)) {
+            return new ArrayList<>();
+        }
+        List<String> builds = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (!line.isEmpty()) {
+                builds.add(line);
+            }
+        }
+        return builds;
+    }
+
+    /**
+     * @param cases The test cases of a build.
+     * @param count Maximum number of tests.
+     * @return      The slowest tests, slowest first.
+     */
+    public static List<SurefireReports.TestCase> slowest(List<SurefireReports.TestCase> cases, int count) {
+        List<SurefireReports.TestCase> sorted = new ArrayList<>(cases);
+        sorted.sort(Comparator.comparingLong(SurefireReports.TestCase::getTimeMillis).reversed());
+        return sorted.subList(0, Math.min(count, sorted.size()));
+    }
+
+    /**
+     * @param previous  The test cases of the previous build.
+     * @param current   The test cases of the build.
+     * @return          The tests that passed before and fail now, then the tests that got slower, slowest first.
+     */
+    public static List<Regression> regressions(List<SurefireReports.TestCase> previous,
+            List<SurefireReports.TestCase> current) {
+        Map<String, SurefireReports.TestCase> before = new HashMap<>();
+        for (SurefireReports.TestCase testCase : previous) {
+            before.put(testCase.getId(), testCase);
+        }
+        List<Regression> failures = new ArrayList<>();
+        List<Regression> slowdowns = new ArrayList<>();
+        for (SurefireReports.TestCase after : current) {
+            SurefireReports.TestCase earlier = before.get(after.getId());
+            if (earlier == null || earlier.getStatus() == SurefireReports.Status.SKIPPED) {
+                continue;
+            }
+            if (after.isFailed() && !earlier.isFailed()) {
+                failures.add(new Regression(earlier, after));
+            } else if (after.getTimeMillis() >= earlier.getTimeMillis() * SLOWDOWN_RATIO
+                    && after.getTimeMillis() - earlier.getTimeMillis() >= SLOWDOWN_MIN_MILLIS) {
+                slowdowns.add(new Regression(earlier, after));
+            }
+        }
+        slowdowns.sort(Comparator.comparingLong((Regression r) -> r.getAfter().getTimeMillis()
+                - r.getBefore().getTimeMillis()).reversed());
+        failures.addAll(slowdowns);
+        return failures;
+    }
+
+    /**
+     * A test is flaky if Surefire reported it passing on a rerun, or if it went from passing to failing and back
+     * (or the other way round) within the builds.
+     *
+     * @param builds    The test cases of consecutive builds, oldest first.
+     * @return          The ids ("class#name") of the flaky tests, with their number of outcome changes.
+     */
+    public static Map<String, Integer> flaky(List<List<SurefireReports.TestCase>> builds) {
+        Map<String, Boolean> lastFailed = new HashMap<>();
+        Map<String, Integer> changes = new HashMap<>();
+        Map<String, Integer> flaky = new LinkedHashMap<>();
+        for (List<SurefireReports.TestCase> build : builds) {
+            for (SurefireReports.TestCase testCase : build) {
+                String id = testCase.getId();
+                if (testCase.getStatus() == SurefireReports.Status.SKIPPED) {
+                    continue;
+                }
+                if (testCase.getStatus() == SurefireReports.Status.FLAKY) {
+                    flaky.merge(id, 1, Integer::sum);
+                }
+                Boolean failed = lastFailed.put(id, testCase.isFailed());
+                if (failed != null && failed != testCase.isFailed()) {
+                    changes.merge(id, 1, Integer::sum);
+                }
+            }
+        }
+        for (Map.Entry<String, Integer> entry : changes.entrySet()) {
+            // a single change is a test broken or fixed
+            if (entry.getValue() >= 2) {
+                flaky.merge(entry.getKey(), entry.getValue(), Integer::sum);
+            }
+        }
+        List<Map.Entry<String, Integer>> sorted = new ArrayList<>(flaky.entrySet());
+        sorted.sort(Map.Entry.<String, Integer>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+        Map<String, Integer> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> entry : sorted) {
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Renders the test report of the last build of a commit: its slowest tests, its regressions since the previous
+     * build of the project and the flaky tests of the project.
+     *
+     * @param commitId      A built commit.
+     * @param slowestCount  Number of slowest tests shown.
+     * @param window        Number of recent builds of the project in which flaky tests are looked for.
+     * @return              The HTML page, null if the tests of the commit were not recorded.
+     * @throws IOException if the records cannot be read.
+     */
+    public String renderReport(String commitId, int slowestCount, int window) throws IOException {
+        String build = latestBuild(commitId);
+        if (build == null) {
+            return null;
+        }
+        List<SurefireReports.TestCase> cases = load(build);
+        List<String> builds = builds(project(build));
+        int position = builds.lastIndexOf(build);
+        List<String> recent = position < 0 ? Collections.singletonList(build)
+                : builds.subList(Math.max(0, position + 1 - window), position + 1);
+
+        StringBuilder html = new StringBuilder();
+        html.append("<!doctype html>\n<html lang=\"en\">\n <head>\n  <meta charset=\"UTF-8\">\n")
+                .append("  <title>Tests of ").append(Template.escape(commitId)).append("</title>\n </head>\n <body>\n")
+                .append("  <h1>Tests of ").append(Template.escape(commitId)).append("</h1>\n")
+                .append("  <p>").append(Template.escape(new SurefireReports.Summary(suites(cases)).toString())).append("</p>\n");
+
+        html.append("  <h2>Slowest tests</h2>\n  <table>\n");
+        for (SurefireReports.TestCase testCase : slowest(cases, slowestCount)) {
+            html.append("   <tr><td>").append(Template.escape(testCase.getId())).append("</td><td>")
+                    .append(testCase.getTimeMillis()).append(" ms</td><td>").append(testCase.getStatus())
+                    .append("</td></tr>\n");
+        }
+        html.append("  </table>\n");
+
+        html.append("  <h2>Regressions since the previous build</h2>\n");
+        if (position < 1) {
+            html.append("  <p>No previous build of the project.</p>\n");
+        } else {
+            String previous = builds.get(position - 1);
+            html.append("  <p>Compared with ").append(Template.escape(previous)).append("</p>\n  <table>\n");
+            for (Regression regression : regressions(load(previous), cases)) {
+                html.append("   <tr><td>").append(Template.escape(regression.getAfter().getId())).append("</td><td>")
+                        .append(regression.getBefore().getStatus()).append(", ")
+                        .append(regression.getBefore().getTimeMillis()).append(" ms</td><td>")
+                        .append(regression.getAfter().getStatus()).append(", ")
+                        .append(regression.getAfter().getTimeMillis()).append(" ms</td></tr>\n");
+            }
+            html.append("  </table>\n");
+        }
+
+        html.append("  <h2>Flaky tests in the last ").append(recent.size()).append(" builds</h2>\n  <table>\n");
+        List<List<SurefireReports.TestCase>> recentCases = new ArrayList<>();
+        for (String recentBuild : recent) {
+            recentCases.add(recentBuild.equals(build) ? cases : load(recentBuild));
+        }
+        for (Map.Entry<String, Integer> entry : flaky(recentCases).entrySet()) {
+            html.append("   <tr><td>").append(Template.escape(entry.getKey())).append("</td><td>").append(entry.getValue())
+                    .append("</td></tr>\n");
+        }
+        html.append("  </table>\n </body>\n</html>\n");
+        return html.toString();
+    }
+
+    private static List<SurefireReports.Suite> suites(List<SurefireReports.TestCase> cases) {
+        List<SurefireReports.Suite> suites = new ArrayList<>();
+        for (SurefireReports.TestCase testCase : cases) {
+            SurefireReports.Status status = testCase.getStatus();
+            suites.add(new SurefireReports.Suite(testCase.getClassName(), testCase.getTimeMillis(), 1,
+                    status == SurefireReports.Status.FAILED ? 1 : 0, status == SurefireReports.Status.ERROR ? 1 : 0,
+                    status == SurefireReports.Status.SKIPPED ? 1 : 0));
+        }
+        return suites;
+    }
+
+    private Path file(String build) {
+        return directory.resolve(build + ".tsv");
+    }
+
+    private Path buildsFile(String project) {
+        return directory.resolve(MirrorCache.mirrorName(project) + ".builds");
+    }
+}
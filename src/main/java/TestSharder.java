@@ -0,0 +1,349 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.maven.shared.invoker.DefaultInvocationRequest;
+import org.apache.maven.shared.invoker.DefaultInvoker;
+import org.apache.maven.shared.invoker.InvocationRequest;
+import org.apache.maven.shared.invoker.InvocationResult;
+import org.apache.maven.shared.invoker.Invoker;
+import org.apache.maven.shared.invoker.MavenInvocationException;
+import org.apache.maven.shared.utils.cli.CommandLineTimeOutException;
+
+/**
+ Runs the tests of a project split in shards, each shard in a Maven process of its own.
+
+ The test sources are compiled once ("mvn test-compile"). The test classes found in src/test/java are then split in
+ shards of about the same duration, using the durations of the classes in the previous builds of the project: longest
+ classes first, each to the shard with the least work so far. Every shard runs "mvn surefire:test -Dtest=..." on the
+ compiled classes, in parallel, and the Surefire reports of all shards are merged into the outcome of the build.
+
+ Only single-module projects are sharded: invoking surefire:test directly does not resolve the other modules of a
+ reactor, multi-module projects are built with a single "mvn test".
+*/
+public class TestSharder {
+
+    // assumed duration of a test class never run before
+    private static final long DEFAULT_DURATION_MILLIS = 1000;
+
+    private final int shards;
+    private final File durationsRoot;
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    /**
+     * @param shards        Maximum number of shards run in parallel.
+     * @param durationsRoot Directory keeping the durations of the test classes of each project.
+     */
+    public TestSharder(int shards, File durationsRoot) {
+        this.shards = Math.max(1, shards);
+        this.durationsRoot = durationsRoot;
+    }
+
+    /**
+     * Creates a sharder configured from the system properties "ci.shards" (default: half the number of cores, at
+     * least 2) and "ci.shards.durations" (directory, default: test_durations).
+     *
+     * @return The configured sharder.
+     */
+    public static TestSharder fromSystemProperties() {
+        int defaultShards = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+        return new TestSharder(Integer.getInteger("ci.shards", defaultShards),
+                new File(System.getProperty("ci.shards.durations", "test_durations")));
+    }
+
+    /**
+     * @param projectDirectory  The root of a Maven project.
+     * @return                  true if its tests can be sharded, i.e. it has no modules.
+     */
+    public static boolean canShard(File projectDirectory) {
+        try {
+            return ModuleSelector.modules(projectDirectory).isEmpty();
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Compiles the project, then runs its tests in shards.
+     *
+     * @param mavenHome         The Maven installation.
+     * @param project           Key of the project, e.g. its clone URL, the durations of its tests are kept under it.
+     * @param projectDirectory  The root of the Maven project.
+     * @param log               Receives the output of Maven line by line, prefixed by the shard.
+     * @param properties        System properties given to Maven.
+     * @param timeoutSeconds    Maximum duration of each Maven invocation. 0 for no limit.
+     * @return                  The compilation and test outcomes, with the merged counts of tests.
+     * @throws InterruptedException if the build is cancelled.
+     */
+    public BuildResult run(File mavenHome, String project, File projectDirectory, Consumer<String> log,
+            Properties properties, int timeoutSeconds) throws InterruptedException {
+        // a failure is a compilation failure until Maven tells it happened later
+        AtomicBoolean compileFailed = new AtomicBoolean(true);
+        AtomicBoolean timedOut = new AtomicBoolean();
+        int exitCode = invoke(mavenHome, projectDirectory, Collections.singletonList("test-compile"), properties,
+                timeoutSeconds, line -> {
+                    log.accept(line);
+                    if (BuildResult.isTestFailure(line)) {
+                        compileFailed.set(false);
+                    }
+                }, timedOut);
+        if (timedOut.get()) {
+            return BuildResult.timedOut(false);
+        }
+        if (exitCode != 0) {
+            // the test compilation failing means the main sources compiled
+            return BuildResult.fromTestInvocation(exitCode, compileFailed.get());
+        }
+
+        List<String> classes = discover(projectDirectory);
+        if (classes.isEmpty()) {
+            log.accept("[CI] No test classes found");
+            return new BuildResult(true, true);
+        }
+        Map<String, Long> durations = durations(project);
+        List<List<String>> plan = balance(classes, durations, shards);
+        for (int i = 0; i < plan.size(); i++) {
+            log.accept("[CI] Shard " + (i + 1) + "/" + plan.size() + ": " + plan.get(i).size() + " test classes, about "
+                    + expectedMillis(plan.get(i), durations) / 1000 + "s");
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(plan.size(), runnable -> {
+            Thread thread = new Thread(runnable, "ci-shard-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        boolean shardsPassed = true;
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < plan.size(); i++) {
+                String prefix = "[shard " + (i + 1) + "] ";
+                Properties shardProperties = new Properties();
+                shardProperties.putAll(properties);
+                shardProperties.setProperty("test", String.join(",", plan.get(i)));
+                // abstract or ignored classes match no test
+                shardProperties.setProperty("surefire.failIfNoSpecifiedTests", "false");
+                shardProperties.setProperty("failIfNoTests", "false");
+                results.add(executor.submit(() -> invoke(mavenHome, projectDirectory,
+                        Collections.singletonList("surefire:test"), shardProperties, timeoutSeconds,
+                        line -> log.accept(prefix + line), timedOut)));
+            }
+            for (Future<Integer> result : results) {
+                try {
+                    shardsPassed &= result.get() == 0;
+                } catch (ExecutionException e) {
+                    log.accept("[CI] Shard failed: " + e.getCause());
+                    shardsPassed = false;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        try {
+            SurefireReports.Summary summary = SurefireReports.merge(Collections.singletonList(
+                    new File(projectDirectory, "target/surefire-reports")));
+            log.accept("[CI] All shards: " + summary);
+            recordDurations(project, summary);
+            return new BuildResult(true, shardsPassed && summary.isSuccess(), summary.toString(), timedOut.get());
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.accept("[CI] Could not read the test reports: " + e.getMessage());
+            return new BuildResult(true, false, null, timedOut.get());
+        }
+    }
+
+    /**
+     * @param projectDirectory  The root of a Maven project.
+     * @return                  The fully qualified names of the test classes of src/test/java, following the default
+     *                          includes of Surefire (Test*, *Test, *Tests, *TestCase).
+     */
+    public static List<String> discover(File projectDirectory) {
+        Path sources = new File(projectDirectory, "src/test/java").toPath();
+        if (!Files.isDirectory(sources)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> files = Files.walk(sources)) {
+            return files
+                    .filter(file -> isTestClass(file.getFileName().toString()))
+                    .map(file -> {
+                        String path = sources.relativize(file).toString().replace(File.separatorChar, '.');
+                        return path.substring(0, path.length() - ".java".length());
+                    })
+                    .sorted()
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new ArrayList<>();
+        }
+    }
+
+    private static boolean isTestClass(String fileName) {
+        if (!fileName.endsWith(".java")) {
+            return false;
+        }
+        String name = fileName.substring(0, fileName.length() - ".java".length());
+        return name.startsWith("Test") || name.endsWith("Test") || name.endsWith("Tests") || name.endsWith("TestCase");
+    }
+
+    /**
+     * Splits test classes in shards of about the same duration (longest processing time first).
+     *
+     * @param classes   The test classes.
+     * @param durations Known durations of test classes, in milliseconds.
+     * @param shards    Maximum number of shards.
+     * @return          The non empty shards.
+     */
+    public static List<List<String>> balance(List<String> classes, Map<String, Long> durations, int shards) {
+        long unknown = averageDuration(durations);
+        List<String> longestFirst = new ArrayList<>(classes);
+        longestFirst.sort(Comparator.comparingLong((String c) -> durations.getOrDefault(c, unknown)).reversed()
+                .thenComparing(Comparator.naturalOrder()));
+
+        int count = Math.min(Math.max(1, shards), classes.size());
+        List<List<String>> plan = new ArrayList<>();
+        // [total duration, shard index]
+        PriorityQueue<long[]> loads = new PriorityQueue<>(
+                Comparator.<long[]>comparingLong(load -> load[0]).thenComparingLong(load -> load[1]));
+        for (int i = 0; i < count; i++) {
+            plan.add(new ArrayList<>());
+            loads.add(new long[] {0, i});
+        }
+        for (String testClass : longestFirst) {
+            long[] least = loads.poll();
+            plan.get((int) least[1]).add(testClass);
+            least[0] += durations.getOrDefault(testClass, unknown);
+            loads.add(least);
+        }
+        return plan;
+    }
+
+    private static long averageDuration(Map<String, Long> durations) {
+        if (durations.isEmpty()) {
+            return DEFAULT_DURATION_MILLIS;
+        }
+        long total = 0;
+        for (long duration : durations.values()) {
+            total += duration;
+        }
+        return Math.max(1, total / durations.size());
+    }
+
+    private static long expectedMillis(List<String> shard, Map<String, Long> durations) {
+        long unknown = averageDuration(durations);
+        long total = 0;
+        for (String testClass : shard) {
+            total += durations.getOrDefault(testClass, unknown);
+        }
+        return total;
+    }
+
+    /**
+     * @param project   Key of the project.
+     * @return          The durations of its test classes in the previous builds, in milliseconds.
+     */
+    public synchronized Map<String, Long> durations(String project) {
+        Map<String, Long> durations = new HashMap<>();
+        File file = durationsFile(project);
+        if (!file.exists()) {
+            return durations;
+        }
+        Properties stored = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            stored.load(in);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return durations;
+        }
+        for (String testClass : stored.stringPropertyNames()) {
+            try {
+                durations.put(testClass, Long.parseLong(stored.getProperty(testClass)));
+            } catch (NumberFormatException e) {
+                // ignore the entry
+            }
+        }
+        return durations;
+    }
+
+    /**
+     * Keeps the durations of the test classes of a build for the next builds of the project.
+     *
+     * @param project   Key of the project.
+     * @param summary   The merged reports of the build.
+     */
+    public synchronized void recordDurations(String project, SurefireReports.Summary summary) {
+        Map<String, Long> durations = durations(project);
+        for (SurefireReports.Suite suite : summary.getSuites()) {
+            durations.put(suite.getName(), suite.getTimeMillis());
+        }
+        Properties stored = new Properties();
+        for (Map.Entry<String, Long> entry : durations.entrySet()) {
+            stored.setProperty(entry.getKey(), String.valueOf(entry.getValue()));
+        }
+        File file = durationsFile(project);
+        File tmp = new File(durationsRoot, file.getName() + ".part");
+        try {
+            Files.createDirectories(durationsRoot.toPath());
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                stored.store(out, "Duration in milliseconds of the test classes of " + project);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Could not write " + file + ": " + e.getMessage());
+        }
+    }
+
+    private File durationsFile(String project) {
+        return new File(durationsRoot, MirrorCache.mirrorName(project) + ".properties");
+    }
+
+    private static int invoke(File mavenHome, File projectDirectory, List<String> goals, Properties properties,
+            int timeoutSeconds, Consumer<String> output, AtomicBoolean timedOut) {
+        InvocationRequest request = new DefaultInvocationRequest();
+        request.setBaseDirectory(projectDirectory);
+        request.setBatchMode(true);
+        request.setProperties(properties);
+        request.setTimeoutInSeconds(timeoutSeconds);
+        request.setGoals(goals);
+        request.setOutputHandler(output::accept);
+        Invoker invoker = new DefaultInvoker();
+        invoker.setMavenHome(mavenHome);
+        try {
+            InvocationResult result = invoker.execute(request);
+            if (result.getExecutionException() != null) {
+                output.accept(String.valueOf(result.getExecutionException().getMessage()));
+            }
+            if (result.getExecutionException() instanceof CommandLineTimeOutException) {
+                timedOut.set(true);
+            }
+            return result.getExitCode();
+        } catch (MavenInvocationException e) {
+            e.printStackTrace();
+            output.accept(String.valueOf(e.getMessage()));
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ Jetty thread pool running every task on a virtual thread of its own.
+
+ A request waiting, e.g. a client following the log of a build for its whole duration, then parks a virtual thread
+ instead of holding one of the few platform threads of a QueuedThreadPool. Virtual threads need Java 21 while the
+ server is compiled for Java 17, so the executor is looked up by reflection; on older JVMs the server falls back to a
+ QueuedThreadPool.
+*/
+public class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool {
+
+    private final ExecutorService executor;
+    private final AtomicInteger running = new AtomicInteger();
+
+    /**
+     * @param executor  Runs each task on a thread of its own, e.g. Executors.newVirtualThreadPerTaskExecutor().
+     */
+    VirtualThreadPool(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Creates the thread pool of the HTTP server: virtual threads when the JVM supports them, unless
+     * "ci.http.virtual.threads" is false, otherwise a QueuedThreadPool of at most "ci.http.max.threads" threads
+     * (default: 200).
+     *
+     * @return The thread pool.
+     */
+    public static ThreadPool fromSystemProperties() {
+        if (Boolean.parseBoolean(System.getProperty("ci.http.virtual.threads", "true"))) {
+            ExecutorService executor = newVirtualThreadPerTaskExecutor();
+            if (executor != null) {
+                return new VirtualThreadPool(executor);
+            }
+        }
+        QueuedThreadPool pool = new QueuedThreadPool(Integer.getInteger("ci.http.max.threads", 200));
+        pool.setName("ci-http");
+        return pool;
+    }
+
+    /**
+     * @return Executors.newVirtualThreadPerTaskExecutor(), null before Java 21.
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (!isRunning() && !isStarting()) {
+            throw new RejectedExecutionException("Thread pool is " + getState());
+        }
+        running.incrementAndGet();
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    running.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            running.decrementAndGet();
+            throw e;
+        }
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        executor.shutdown();
+        if (!executor.awaitTermination(Math.max(1, getStopTimeout()), TimeUnit.MILLISECONDS)) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        while (!executor.awaitTermination(1, TimeUnit.HOURS)) {
+            // wait
+        }
+    }
+
+    /**
+     * @return Number of tasks running.
+     */
+    @Override
+    public int getThreads() {
+        return running.get();
+    }
+
+    /**
+     * @return 0, a thread is started for each task.
+     */
+    @Override
+    public int getIdleThreads() {
+        return 0;
+    }
+
+    /**
+     * @return false, threads are never missing.
+     */
+    @Override
+    public boolean isLowOnThreads() {
+        return false;
+    }
+}
@@ -0,0 +1,271 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ Pool of warm build JVMs running Maven, reused across the builds of a same project.
+
+ Each JVM runs WarmMavenWorker, which keeps Maven loaded between builds. A JVM is checked with a ping before
+ being handed out, recycled after a number of builds to bound the state it accumulates, and killed if the build
+ it runs is interrupted.
+*/
+public class WarmMavenPool {
+
+    private static final long PING_TIMEOUT_MILLIS = 5000;
+    private static final long START_TIMEOUT_MILLIS = 60000;
+
+    private final File mavenHome;
+    private final int maxBuildsPerJvm;
+    private final int maxIdlePerProject;
+    private final HashMap<String, ArrayDeque<WarmJvm>> idle = new HashMap<>();
+    private boolean closed;
+    private int started;
+
+    /**
+     * Thrown when a build runs past its timeout, the JVM running it is then killed.
+     */
+    public static final class BuildTimeoutException extends IOException {
+        BuildTimeoutException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A running WarmMavenWorker process.
+     */
+    private static final class WarmJvm {
+        final String marker = UUID.randomUUID().toString();
+        final Process process;
+        final Writer commands;
+        final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        int builds;
+
+        WarmJvm(File mavenHome) throws IOException {
+            String java = new File(System.getProperty("java.home"), "bin/java").getPath();
+            ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    WarmMavenWorker.class.getName(), marker, mavenHome.getAbsolutePath());
+            pb.redirectErrorStream(true);
+            process = pb.start();
+            commands = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+            Thread pump = new Thread(() -> {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        lines.add(line);
+                    }
+                } catch (IOException e) {
+                    // the process died, noticed by the reader of the lines
+                }
+            }, "warm-maven-output-" + process.pid());
+            pump.setDaemon(true);
+            pump.start();
+        }
+
+        void send(String command) throws IOException {
+            commands.write(command + "\n");
+            commands.flush();
+        }
+
+        /**
+         * Waits for a protocol line, passing the other lines to the output.
+         *
+         * @return The protocol line without the marker, or null on timeout or if the process died.
+         */
+        String await(long timeoutMillis, Consumer<String> output) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            String prefix = marker + " ";
+            while (true) {
+                long left = deadline - System.currentTimeMillis();
+                String line = lines.poll(Math.min(Math.max(left, 0), 1000), TimeUnit.MILLISECONDS);
+                if (line == null) {
+                    if (left <= 0 || !process.isAlive() && lines.isEmpty()) {
+                        return null;
+                    }
+                    continue;
+                }
+                if (line.startsWith(prefix)) {
+                    return line.substring(prefix.length());
+                }
+                output.accept(line);
+            }
+        }
+
+        boolean ping() {
+            try {
+                send("PING");
+                return "PONG".equals(await(PING_TIMEOUT_MILLIS, line -> { }));
+            } catch (IOException | InterruptedException e) {
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                return false;
+            }
+        }
+
+        void destroy() {
+            process.descendants().forEach(ProcessHandle::destroyForcibly);
+            process.destroyForcibly();
+        }
+    }
+
+    /**
+     * @param mavenHome         Maven installation the JVMs run.
+     * @param maxBuildsPerJvm   Number of builds after which a JVM is replaced by a fresh one.
+     * @param maxIdlePerProject Number of idle JVMs kept per project.
+     */
+    public WarmMavenPool(File mavenHome, int maxBuildsPerJvm, int maxIdlePerProject) {
+        this.mavenHome = mavenHome;
+        this.maxBuildsPerJvm = maxBuildsPerJvm;
+        this.maxIdlePerProject = maxIdlePerProject;
+    }
+
+    /**
+     * Runs Maven in a warm JVM of the project, starting one if none is idle.
+     *
+     * @param project   Key of the project, JVMs are only reused across builds of the same project.
+     * @param directory Directory of the Maven project to build.
+     * @param args      Arguments of the Maven command line.
+     * @param output    Receives the output of Maven line by line.
+     * @return          The exit code of Maven.
+     * @throws IOException if no JVM could be started or the JVM died during the build.
+     * @throws InterruptedException if interrupted, the JVM running the build is then killed.
+     */
+    public int execute(String project, File directory, List<String> args, Consumer<String> output) throws IOException, InterruptedException {
+        return execute(project, directory, args, output, 0);
+    }
+
+    /**
+     * Runs Maven in a warm JVM of the project, starting one if none is idle.
+     *
+     * @param project       Key of the project, JVMs are only reused across builds of the same project.
+     * @param directory     Directory of the Maven project to build.
+     * @param args          Arguments of the Maven command line.
+     * @param output        Receives the output of Maven line by line.
+     * @param timeoutMillis Maximum duration of the build, 0 for no limit.
+     * @return              The exit code of Maven.
+     * @throws BuildTimeoutException if the build timed out. The JVM is then killed.
+     * @throws IOException if no JVM could be started or the JVM died during the build.
+     * @throws InterruptedException if interrupted, the JVM running the build is then killed.
+     */
+    public int execute(String project, File directory, List<String> args, Consumer<String> output, long timeoutMillis)
+            throws IOException, InterruptedException {
+        WarmJvm jvm = acquire(project);
+        boolean reusable = false;
+        try {
+            StringBuilder command = new StringBuilder("BUILD\t").append(directory.getAbsolutePath());
+            for (String arg : args) {
+                command.append('\t').append(arg);
+            }
+            jvm.send(command.toString());
+            String answer = jvm.await(timeoutMillis > 0 ? timeoutMillis : Long.MAX_VALUE / 2, output);
+            if (answer == null && jvm.process.isAlive()) {
+                throw new BuildTimeoutException("Build timed out after " + timeoutMillis / 1000 + " seconds");
+            }
+            if (answer == null || !answer.startsWith("EXIT ")) {
+                throw new IOException("Warm Maven JVM died during the build");
+            }
+            jvm.builds++;
+            reusable = true;
+            return Integer.parseInt(answer.substring("EXIT ".length()).trim());
+        } finally {
+            release(project, jvm, reusable);
+        }
+    }
+
+    private WarmJvm acquire(String project) throws IOException, InterruptedException {
+        while (true) {
+            WarmJvm jvm;
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("Warm Maven pool is closed");
+                }
+                ArrayDeque<WarmJvm> jvms = idle.get(project);
+                jvm = jvms == null ? null : jvms.pollFirst();
+            }
+            if (jvm == null) {
+                break;
+            }
+            if (jvm.ping()) {
+                return jvm;
+            }
+            jvm.destroy();
+        }
+        WarmJvm jvm = new WarmJvm(mavenHome);
+        synchronized (this) {
+            started++;
+        }
+        String ready;
+        try {
+            ready = jvm.await(START_TIMEOUT_MILLIS, line -> System.out.println(line));
+        } catch (InterruptedException e) {
+            jvm.destroy();
+            throw e;
+        }
+        if (!"READY".equals(ready)) {
+            jvm.destroy();
+            throw new IOException("Warm Maven JVM failed to start");
+        }
+        return jvm;
+    }
+
+    private void release(String project, WarmJvm jvm, boolean reusable) {
+        synchronized (this) {
+            if (reusable && !closed && jvm.builds < maxBuildsPerJvm) {
+                ArrayDeque<WarmJvm> jvms = idle.computeIfAbsent(project, p -> new ArrayDeque<>());
+                if (jvms.size() < maxIdlePerProject) {
+                    jvms.addFirst(jvm);
+                    return;
+                }
+            }
+        }
+        jvm.destroy();
+    }
+
+    /**
+     * @return Number of idle JVMs in the pool.
+     */
+    public synchronized int idleCount() {
+        int count = 0;
+        for (ArrayDeque<WarmJvm> jvms : idle.values()) {
+            count += jvms.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return Number of JVMs started by the pool.
+     */
+    public synchronized int startedCount() {
+        return started;
+    }
+
+    /**
+     * Kills the idle JVMs, JVMs running a build are killed once their build is done.
+     */
+    public void close() {
+        List<WarmJvm> jvms = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            for (ArrayDeque<WarmJvm> deque : idle.values()) {
+                jvms.addAll(deque);
+            }
+            idle.clear();
+        }
+        for (WarmJvm jvm : jvms) {
+            jvm.destroy();
+        }
+    }
+}
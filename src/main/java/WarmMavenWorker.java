@@ -0,0 +1,105 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileDescriptor;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ Entry point of a warm build JVM of the WarmMavenPool.
+
+ The JVM loads Maven from MAVEN_HOME once and then runs the builds it reads from its standard input, one after
+ the other, through Maven's embedding API, so class loading and JIT warm-up are paid once for many builds.
+
+ Protocol, one command per line on standard input:
+   PING                          answered with "<marker> PONG"
+   BUILD\t<directory>\t<args>... runs Maven, its output is written to standard output
+                                 and followed by "<marker> EXIT <exit code>"
+ "<marker> READY" is written once Maven is loaded. The marker is given as first argument by the pool
+ so that it cannot be confused with the output of a build. Maven turns the "-D" arguments of a build into system
+ properties of the JVM, so they are restored after each build for the next one not to inherit them.
+*/
+public class WarmMavenWorker {
+
+    /**
+     * @param args  The protocol marker, and the Maven installation directory.
+     * @throws Exception if Maven cannot be loaded.
+     */
+    public static void main(String[] args) throws Exception {
+        String marker = args[0];
+        File mavenHome = new File(args[1]);
+        // Maven replaces System.out while building, keep a handle on the real standard output
+        PrintStream out = new PrintStream(new FileOutputStream(FileDescriptor.out), true, StandardCharsets.UTF_8);
+
+        System.setProperty("maven.home", mavenHome.getAbsolutePath());
+        System.setProperty("maven.conf", new File(mavenHome, "conf").getAbsolutePath());
+        System.setProperty("library.jansi.path", new File(mavenHome, "lib/jansi-native").getAbsolutePath());
+
+        ClassLoader maven = new URLClassLoader(mavenClassPath(mavenHome), ClassLoader.getPlatformClassLoader());
+        Thread.currentThread().setContextClassLoader(maven);
+        Class<?> classWorldClass = maven.loadClass("org.codehaus.plexus.classworlds.ClassWorld");
+        Object classWorld = classWorldClass.getConstructor(String.class, ClassLoader.class).newInstance("plexus.core", maven);
+        Class<?> cliClass = maven.loadClass("org.apache.maven.cli.MavenCli");
+        Constructor<?> cliConstructor = cliClass.getConstructor(classWorldClass);
+        Method doMain = cliClass.getMethod("doMain", String[].class, String.class, PrintStream.class, PrintStream.class);
+
+        out.println(marker + " READY");
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String command;
+        while ((command = in.readLine()) != null) {
+            if (command.equals("PING")) {
+                out.println(marker + " PONG");
+                continue;
+            }
+            String[] parts = command.split("\t");
+            if (!parts[0].equals("BUILD") || parts.length < 2) {
+                out.println(marker + " EXIT 1");
+                continue;
+            }
+            String directory = parts[1];
+            String[] mavenArgs = Arrays.copyOfRange(parts, 2, parts.length);
+            Properties properties = new Properties();
+            properties.putAll(System.getProperties());
+            System.setProperty("maven.multiModuleProjectDirectory", directory);
+            int exitCode;
+            try {
+                Object cli = cliConstructor.newInstance(classWorld);
+                exitCode = (Integer) doMain.invoke(cli, mavenArgs, directory, out, out);
+            } catch (Exception e) {
+                e.printStackTrace(out);
+                exitCode = 1;
+            } finally {
+                System.setProperties(properties);
+            }
+            out.println();
+            out.println(marker + " EXIT " + exitCode);
+        }
+    }
+
+    /**
+     * @return The class path of Maven's core realm, as set up by bin/m2.conf.
+     */
+    private static URL[] mavenClassPath(File mavenHome) throws Exception {
+        List<URL> urls = new ArrayList<>();
+        urls.add(new File(mavenHome, "conf/logging").toURI().toURL());
+        for (String dir : new String[] {"lib/ext", "lib", "boot"}) {
+            File[] jars = new File(mavenHome, dir).listFiles((d, name) -> name.endsWith(".jar"));
+            if (jars != null) {
+                Arrays.sort(jars);
+                for (File jar : jars) {
+                    urls.add(jar.toURI().toURL());
+                }
+            }
+        }
+        return urls.toArray(new URL[0]);
+    }
+}
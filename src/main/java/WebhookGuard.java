@@ -0,0 +1,301 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SignatureException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ Rejects webhook deliveries before any build work is scheduled for them.
+
+ When a secret is configured, the body of a delivery must be signed with it: the HMAC-SHA256 of the body is computed
+ while the payload is parsed and compared with the "X-Hub-Signature-256" header. Accepted deliveries are remembered,
+ by "X-GitHub-Delivery" id and by repository and commit, in bounded sets whose entries expire; GitHub redeliveries
+ and repeated pushes of a same commit are then recognized without reading the payload or building again.
+*/
+public class WebhookGuard {
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final String SIGNATURE_PREFIX = "sha256=";
+
+    private final SecretKeySpec secret;
+    private final RecentKeys deliveries;
+    private final RecentKeys commits;
+
+    /**
+     * @param secret        The webhook secret, signatures are not checked if null or empty.
+     * @param capacity      Maximum number of deliveries, and of commits, remembered.
+     * @param ttlMillis     How long a delivery or a commit is remembered.
+     */
+    public WebhookGuard(String secret, int capacity, long ttlMillis) {
+        this(secret, capacity, ttlMillis, System::currentTimeMillis);
+    }
+
+    WebhookGuard(String secret, int capacity, long ttlMillis, LongSupplier clock) {
+        this.secret = secret == null || secret.isEmpty() ? null
+                : new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        this.deliveries = new RecentKeys(capacity, ttlMillis, clock);
+        this.commits = new RecentKeys(capacity, ttlMillis, clock);
+    }
+
+    /**
+     * Creates the guard configured from the environment variable CI_WEBHOOK_SECRET or the system property
+     * "ci.webhook.secret" (default: none, signatures are not checked), and the system properties
+     * "ci.webhook.dedup.capacity" (default: 10000) and "ci.webhook.dedup.ttl" in seconds (default: 3600).
+     *
+     * @return The configured guard.
+     */
+    public static WebhookGuard fromSystemProperties() {
+        String secret = System.getenv("CI_WEBHOOK_SECRET");
+        return new WebhookGuard(secret != null ? secret : System.getProperty("ci.webhook.secret"),
+                Integer.getInteger("ci.webhook.dedup.capacity", 10000),
+                Long.getLong("ci.webhook.dedup.ttl", 3600) * 1000);
+    }
+
+    /**
+     * @return true if the signatures of deliveries are checked.
+     */
+    public boolean isVerifying() {
+        return secret != null;
+    }
+
+    /**
+     * @param deliveryId    The "X-GitHub-Delivery" header of a request, may be null.
+     * @return              true if that delivery was already accepted.
+     */
+    public synchronized boolean isDuplicateDelivery(String deliveryId) {
+        return deliveryId != null && deliveries.contains(deliveryId);
+    }
+
+    /**
+     * Parses the payload of a delivery and checks the signature of its body.
+     *
+     * @param request   The request from GitHub's webhook.
+     * @return          The push event, null if the payload has no head commit.
+     * @throws SignatureException if the signature is missing or does not match the body, checked before the payload
+     *         is told to be malformed.
+     * @throws IOException if the body could not be read or the payload is malformed.
+     */
+    public PushEvent parse(HttpServletRequest request) throws SignatureException, IOException {
+        if (secret == null) {
+            return PayloadParser.parse(request);
+        }
+        String header = request.getHeader("X-Hub-Signature-256");
+        if (header == null || !header.startsWith(SIGNATURE_PREFIX)) {
+            throw new SignatureException("missing X-Hub-Signature-256 header");
+        }
+        if (!PayloadParser.isBody(request)) {
+            throw new SignatureException("unsupported content type " + request.getContentType());
+        }
+        MacInputStream body = new MacInputStream(request.getInputStream(), mac());
+        PushEvent event = null;
+        IOException malformed = null;
+        try {
+            event = PayloadParser.parse(request, body);
+        } catch (IOException e) {
+            // told to the sender only once the signature shows it knows the secret
+            malformed = e;
+        }
+        // the parser stops early, the signature covers the whole body
+        byte[] rest = new byte[8192];
+        try {
+            while (body.read(rest) != -1) {
+                // drain
+            }
+        } catch (IOException e) {
+            throw new SignatureException("could not read the whole payload to check its signature");
+        }
+        byte[] expected = body.mac.doFinal();
+        byte[] actual = fromHex(header.substring(SIGNATURE_PREFIX.length()));
+        if (actual == null || !MessageDigest.isEqual(expected, actual)) {
+            throw new SignatureException("X-Hub-Signature-256 does not match the payload");
+        }
+        if (malformed != null) {
+            throw malformed;
+        }
+        return event;
+    }
+
+    /**
+     * Remembers a delivery and the commit it asks to build, unless one of them was already accepted.
+     *
+     * @param deliveryId    The "X-GitHub-Delivery" header of the request, may be null.
+     * @param repository    The clone URL of the repository, null if the delivery has no commit.
+     * @param commitId      The head commit of the delivery, null if none.
+     * @return              true if the delivery is new and its commit is not already built, false for a duplicate.
+     */
+    public synchronized boolean accept(String deliveryId, String repository, String commitId) {
+        String commit = commitId == null ? null : repository + "@" + commitId;
+        if ((deliveryId != null && deliveries.contains(deliveryId)) || (commit != null && commits.contains(commit))) {
+            return false;
+        }
+        if (deliveryId != null) {
+            deliveries.add(deliveryId);
+        }
+        if (commit != null) {
+            commits.add(commit);
+        }
+        return true;
+    }
+
+    /**
+     * Forgets an accepted delivery, e.g. because it could not be queued, so that its redelivery is accepted.
+     *
+     * @param deliveryId    The "X-GitHub-Delivery" header of the request, may be null.
+     * @param repository    The clone URL of the repository, null if the delivery has no commit.
+     * @param commitId      The head commit of the delivery, null if none.
+     */
+    public synchronized void forget(String deliveryId, String repository, String commitId) {
+        if (deliveryId != null) {
+            deliveries.remove(deliveryId);
+        }
+        if (commitId != null) {
+            commits.remove(repository + "@" + commitId);
+        }
+    }
+
+    /**
+     * @param body  A request body.
+     * @return      The value of the "X-Hub-Signature-256" header GitHub sends with it.
+     */
+    public String sign(byte[] body) {
+        byte[] digest = mac().doFinal(body);
+        StringBuilder hex = new StringBuilder(SIGNATURE_PREFIX);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private Mac mac() {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(secret);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            // HmacSHA256 is available in every JDK
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+
+    /**
+     * Updates a MAC with the bytes read.
+     */
+    private static class MacInputStream extends FilterInputStream {
+
+        private final Mac mac;
+
+        MacInputStream(InputStream in, Mac mac) {
+            super(in);
+            this.mac = mac;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = in.read();
+            if (c != -1) {
+                mac.update((byte) c);
+            }
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                mac.update(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes must be signed too
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            int read = read(buffer, 0, buffer.length);
+            return Math.max(read, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Keys added within the last ttl milliseconds, at most capacity of them, the oldest being dropped first.
+     * Not thread safe.
+     */
+    static class RecentKeys {
+
+        private final int capacity;
+        private final long ttlMillis;
+        private final LongSupplier clock;
+        // key -> time added, oldest first
+        private final LinkedHashMap<String, Long> added = new LinkedHashMap<>();
+
+        RecentKeys(int capacity, long ttlMillis, LongSupplier clock) {
+            this.capacity = Math.max(1, capacity);
+            this.ttlMillis = ttlMillis;
+            this.clock = clock;
+        }
+
+        boolean contains(String key) {
+            expire();
+            return added.containsKey(key);
+        }
+
+        void add(String key) {
+            expire();
+            added.remove(key);
+            added.put(key, clock.getAsLong());
+            if (added.size() > capacity) {
+                Iterator<String> oldest = added.keySet().iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        }
+
+        void remove(String key) {
+            added.remove(key);
+        }
+
+        int size() {
+            expire();
+            return added.size();
+        }
+
+        private void expire() {
+            long oldest = clock.getAsLong() - ttlMillis;
+            Iterator<Map.Entry<String, Long>> entries = added.entrySet().iterator();
+            while (entries.hasNext() && entries.next().getValue() <= oldest) {
+                entries.remove();
+            }
+        }
+    }
+}
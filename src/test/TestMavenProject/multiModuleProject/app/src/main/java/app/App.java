@@ -0,0 +1,9 @@
+package app;
+
+import core.Core;
+
+public class App {
+    public static void main(String[] args) {
+        System.out.println("app uses " + Core.name());
+    }
+}
@@ -0,0 +1,5 @@
+package broken;
+
+public class Broken {
+    int missingSemicolon = 1
+}
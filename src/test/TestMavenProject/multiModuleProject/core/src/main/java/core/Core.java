@@ -0,0 +1,7 @@
+package core;
+
+public class Core {
+    public static String name() {
+        return "core";
+    }
+}
@@ -0,0 +1,187 @@
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class BuildAgentTest {
+
+    @TempDir
+    Path workspaces;
+
+    private BuildCoordinator coordinator;
+    private Server server;
+    private URI base;
+    private final List<BuildAgent> agents = new ArrayList<>();
+
+    @BeforeEach
+    public void startCoordinator() throws Exception {
+        coordinator = new BuildCoordinator(50, 300, 200, 3, "secret");
+        server = new Server(0);
+        server.setHandler(new Router().post("/agents/*", coordinator::handle));
+        server.start();
+        base = URI.create("http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort());
+    }
+
+    @AfterEach
+    public void stopCoordinator() throws Exception {
+        agents.forEach(BuildAgent::stop);
+        server.stop();
+        coordinator.shutdown();
+    }
+
+    private void startAgent(String name, BuildAgent.Builder builder) {
+        BuildAgent agent = new BuildAgent(base, name, "secret", workspaces.resolve(name).toFile(), builder);
+        agents.add(agent);
+        Thread thread = new Thread(agent, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static BuildJob job(long id) {
+        HashMap<String, String> data = new HashMap<>();
+        data.put("repo_name", "repo");
+        data.put("commit_id", "commit" + id);
+        return new BuildJob(id, data);
+    }
+
+    private CompletableFuture<BuildCoordinator.Outcome> offer(BuildJob job, List<String> log) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return coordinator.build(job, log::add, () -> { });
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    @Test
+    public void testAgentsBuildJobsAndStreamTheirLogs() throws Exception {
+        Set<String> builtBy = ConcurrentHashMap.newKeySet();
+        for (String name : List.of("agent-1", "agent-2")) {
+            startAgent(name, (jobId, data, workspace, log) -> {
+                builtBy.add(name);
+                log.accept("building " + data.get("commit_id"));
+                File reports = new File(workspace, "target/surefire-reports");
+                assertTrue(reports.mkdirs());
+                Files.write(new File(reports, "TEST-com.example.ATest.xml").toPath(),
+                        ("<testsuite name=\"com.example.ATest\" tests=\"1\"><testcase classname=\"com.example.ATest\" "
+                                + "name=\"x\" time=\"0.25\"/></testsuite>").getBytes(StandardCharsets.UTF_8));
+                Thread.sleep(100);
+                return new BuildResult(true, jobId % 2 == 0, "Tests run: 1");
+            });
+        }
+        List<List<String>> logs = new ArrayList<>();
+        List<CompletableFuture<BuildCoordinator.Outcome>> outcomes = new ArrayList<>();
+        for (long id = 1; id <= 4; id++) {
+            List<String> log = new CopyOnWriteArrayList<>();
+            logs.add(log);
+            outcomes.add(offer(job(id), log));
+        }
+        for (int i = 0; i < 4; i++) {
+            BuildCoordinator.Outcome outcome = outcomes.get(i).get(10, TimeUnit.SECONDS);
+            assertEquals(i % 2 == 1, outcome.getResult().getTestStatus());
+            assertEquals("Tests run: 1", outcome.getResult().getTestSummary());
+            assertEquals(1, outcome.getTestCases().size());
+            assertEquals(250, outcome.getTestCases().get(0).getTimeMillis());
+            assertTrue(logs.get(i).contains("building commit" + (i + 1)), logs.get(i).toString());
+        }
+        assertEquals(Set.of("agent-1", "agent-2"), builtBy);
+        // the workspaces are deleted
+        for (String name : builtBy) {
+            assertEquals(0, workspaces.resolve(name).toFile().list().length);
+        }
+    }
+
+    @Test
+    public void testLostLeaseStopsTheBuild() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch stopped = new CountDownLatch(1);
+        startAgent("agent-1", (jobId, data, workspace, log) -> {
+            if (jobId == 1) {
+                started.countDown();
+                try {
+                    Thread.sleep(30000);
+                } catch (InterruptedException e) {
+                    stopped.countDown();
+                    throw e;
+                }
+            }
+            return new BuildResult(true, true);
+        });
+        Thread worker = new Thread(() -> {
+            try {
+                coordinator.build(job(1), line -> { }, () -> { });
+            } catch (Exception e) {
+                // cancelled
+            }
+        });
+        worker.start();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        // the job is superseded while the agent builds it
+        worker.interrupt();
+        assertTrue(stopped.await(10, TimeUnit.SECONDS));
+
+        // the agent goes on with the next job
+        assertTrue(offer(job(2), new CopyOnWriteArrayList<>()).get(10, TimeUnit.SECONDS).getResult().getTestStatus());
+    }
+
+    @Test
+    public void testRefusedLeaseStopsTheBuild() throws Exception {
+        CountDownLatch stopped = new CountDownLatch(1);
+        BuildAgent agent = new BuildAgent(base, "agent-1", "wrong", workspaces.resolve("agent-1").toFile(),
+                (jobId, data, workspace, log) -> {
+                    try {
+                        Thread.sleep(30000);
+                    } catch (InterruptedException e) {
+                        stopped.countDown();
+                        throw e;
+                    }
+                    return new BuildResult(true, true);
+                });
+        agents.add(agent);
+        JSONObject lease = new JSONObject().put("lease", "unknown").put("job", 1).put("heartbeat_ms", 50)
+                .put("data", new JSONObject());
+        Thread thread = new Thread(() -> agent.runLease(lease));
+        thread.setDaemon(true);
+        thread.start();
+        // the heartbeat is answered 401, retrying it would never succeed
+        assertTrue(stopped.await(10, TimeUnit.SECONDS));
+        thread.join(10000);
+        assertFalse(thread.isAlive());
+    }
+
+    @Test
+    public void testAgentsMustSendTheToken() throws Exception {
+        HttpResponse<String> response = HttpClient.newHttpClient().send(
+                HttpRequest.newBuilder(base.resolve("/agents/lease")).POST(HttpRequest.BodyPublishers.ofString("{}"))
+                        .build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(401, response.statusCode());
+        response = HttpClient.newHttpClient().send(
+                HttpRequest.newBuilder(base.resolve("/agents/leases/unknown/heartbeat"))
+                        .header(BuildCoordinator.TOKEN_HEADER, "secret")
+                        .POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(410, response.statusCode());
+    }
+}
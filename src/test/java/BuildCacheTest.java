@@ -0,0 +1,102 @@
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+public class BuildCacheTest {
+
+    @Test
+    public void testCommitsWithSameTreeShareTheirOutcome(@TempDir Path dir) throws Exception {
+        File checkout = dir.resolve("repo").toFile();
+        String first;
+        String revert;
+        String other;
+        try (Git git = Git.init().setDirectory(checkout).call()) {
+            Files.write(checkout.toPath().resolve("A.java"), "class A {}".getBytes(StandardCharsets.UTF_8));
+            git.add().addFilepattern(".").call();
+            first = commit(git, "first").name();
+            Files.write(checkout.toPath().resolve("A.java"), "class A { int a; }".getBytes(StandardCharsets.UTF_8));
+            git.add().addFilepattern(".").call();
+            other = commit(git, "second").name();
+            Files.write(checkout.toPath().resolve("A.java"), "class A {}".getBytes(StandardCharsets.UTF_8));
+            git.add().addFilepattern(".").call();
+            revert = commit(git, "Revert \"second\"").name();
+        }
+        assertEquals(BuildCache.treeId(checkout, first), BuildCache.treeId(checkout, revert));
+        assertNotEquals(BuildCache.treeId(checkout, first), BuildCache.treeId(checkout, other));
+
+        BuildCache cache = new BuildCache(dir.resolve("cache").toFile(), 3600000, 1 << 20, Collections.emptySet());
+        String config = BuildCache.configHash("SINGLE", "17");
+        cache.put(BuildCache.treeId(checkout, first), config, first, new BuildResult(true, true),
+                new ByteArrayInputStream("[INFO] BUILD SUCCESS\n".getBytes(StandardCharsets.UTF_8)));
+
+        BuildCache.Entry entry = cache.get(BuildCache.treeId(checkout, revert), config);
+        assertNotNull(entry);
+        assertEquals(first, entry.getCommitId());
+        assertTrue(entry.getResult().getTestStatus());
+        List<String> log = new ArrayList<>();
+        entry.replayLog(log::add);
+        assertEquals(List.of("[INFO] BUILD SUCCESS"), log);
+
+        // another configuration, e.g. another Java version, builds again
+        assertNull(cache.get(BuildCache.treeId(checkout, revert), BuildCache.configHash("SINGLE", "21")));
+        assertNull(cache.get(BuildCache.treeId(checkout, other), config));
+    }
+
+    @Test
+    public void testOldEntriesAreNotUsed(@TempDir Path dir) throws Exception {
+        BuildCache cache = new BuildCache(dir.toFile(), 0, 1 << 20, Collections.emptySet());
+        cache.put("t1", "c", "commit", new BuildResult(true, true), new ByteArrayInputStream(new byte[0]));
+        Thread.sleep(5);
+        assertNull(cache.get("t1", "c"));
+        assertFalse(new File(dir.toFile(), "t1-c.json").exists());
+    }
+
+    @Test
+    public void testOldestEntriesAreEvictedOverBudget(@TempDir Path dir) throws Exception {
+        byte[] log = new byte[4096];
+        for (int i = 0; i < log.length; i++) {
+            log[i] = (byte) (i % 80 == 79 ? '\n' : 'a' + (i * 7919) % 26);
+        }
+        BuildCache cache = new BuildCache(dir.toFile(), 3600000, 1, Collections.emptySet());
+        cache.put("t1", "c", "commit1", new BuildResult(true, true), new ByteArrayInputStream(log));
+        // over budget, even the newest entry goes
+        assertNull(cache.get("t1", "c"));
+        assertEquals(0, cache.size());
+
+        cache = new BuildCache(dir.toFile(), 3600000, 100000, Collections.emptySet());
+        for (int i = 0; i < 3; i++) {
+            cache.put("t" + i, "c", "commit" + i, new BuildResult(true, true), new ByteArrayInputStream(log));
+            new File(dir.toFile(), "t" + i + "-c.json").setLastModified(System.currentTimeMillis() - 10000 + i * 1000);
+        }
+        long entrySize = cache.size() / 3;
+        cache = new BuildCache(dir.toFile(), 3600000, 2 * entrySize + entrySize / 2, Collections.emptySet());
+        cache.put("t3", "c", "commit3", new BuildResult(true, true), new ByteArrayInputStream(log));
+        assertNull(cache.get("t0", "c"));
+        assertNull(cache.get("t1", "c"));
+        assertNotNull(cache.get("t2", "c"));
+        assertNotNull(cache.get("t3", "c"));
+    }
+
+    @Test
+    public void testRepositoryOptOut(@TempDir Path dir) {
+        BuildCache cache = new BuildCache(dir.toFile(), 3600000, 1 << 20, Set.of("owner/flaky"));
+        assertFalse(cache.isEnabled("owner/flaky"));
+        assertTrue(cache.isEnabled("owner/other"));
+    }
+
+    private static RevCommit commit(Git git, String message) throws Exception {
+        return git.commit().setMessage(message).setAuthor("ci", "ci@example.com").setCommitter("ci", "ci@example.com").call();
+    }
+}
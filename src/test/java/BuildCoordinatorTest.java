@@ -0,0 +1,235 @@
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BuildCoordinatorTest {
+
+    private BuildCoordinator coordinator;
+    private final List<String> log = new CopyOnWriteArrayList<>();
+    private final AtomicInteger leased = new AtomicInteger();
+
+    @AfterEach
+    public void shutdown() {
+        if (coordinator != null) {
+            coordinator.shutdown();
+        }
+    }
+
+    private static BuildJob job(long id, String commit) {
+        HashMap<String, String> data = new HashMap<>();
+        data.put("repo_name", "repo");
+        data.put("clone_url", "https://github.com/owner/repo.git");
+        data.put("commit_id", commit);
+        return new BuildJob(id, data);
+    }
+
+    private CompletableFuture<BuildCoordinator.Outcome> offer(BuildJob job) {
+        CompletableFuture<BuildCoordinator.Outcome> outcome = new CompletableFuture<>();
+        Thread worker = new Thread(() -> {
+            try {
+                outcome.complete(coordinator.build(job, log::add, leased::incrementAndGet));
+            } catch (Exception e) {
+                outcome.completeExceptionally(e);
+            }
+        });
+        worker.setDaemon(true);
+        worker.start();
+        outcome.whenComplete((result, error) -> worker.interrupt());
+        return outcome;
+    }
+
+    private static JSONObject passed() {
+        return new JSONObject()
+                .put("compile_status", true)
+                .put("test_status", true)
+                .put("test_summary", "Tests run: 1, Failures: 0, Errors: 0, Skipped: 0")
+                .put("tests", new JSONArray().put(new JSONArray().put("PASSED").put(12).put("com.example.ATest").put("x")));
+    }
+
+    @Test
+    public void testJobIsLeasedLoggedAndCompleted() throws Exception {
+        coordinator = new BuildCoordinator(50, 200, 2000, 3, null);
+        CompletableFuture<BuildCoordinator.Outcome> outcome = offer(job(1, "abc"));
+
+        JSONObject lease = coordinator.lease("agent-1");
+        assertNotNull(lease);
+        assertEquals(1, lease.getLong("job"));
+        assertEquals("abc", lease.getJSONObject("data").getString("commit_id"));
+        assertEquals(1, coordinator.getLeasedCount());
+        String id = lease.getString("lease");
+        assertTrue(coordinator.heartbeat(id));
+        assertTrue(coordinator.log(id, List.of("[CI] Checked out abc", "BUILD SUCCESS")));
+        assertTrue(coordinator.complete(id, passed()));
+
+        BuildCoordinator.Outcome result = outcome.get(5, TimeUnit.SECONDS);
+        assertEquals("agent-1", result.getAgent());
+        assertTrue(result.getResult().getTestStatus());
+        assertEquals("Tests run: 1, Failures: 0, Errors: 0, Skipped: 0", result.getResult().getTestSummary());
+        assertFalse(result.getResult().isTimedOut());
+        assertEquals(1, result.getTestCases().size());
+        assertEquals("com.example.ATest#x", result.getTestCases().get(0).getId());
+        assertEquals(List.of("[CI] Build leased to agent agent-1 (attempt 1)", "[CI] Checked out abc", "BUILD SUCCESS"), log);
+        assertEquals(1, leased.get());
+        // the lease is over
+        assertFalse(coordinator.heartbeat(id));
+        assertFalse(coordinator.complete(id, passed()));
+        assertEquals(0, coordinator.getLeasedCount());
+    }
+
+    @Test
+    public void testAgentsRequireToken() {
+        System.setProperty("ci.agents", "true");
+        try {
+            assertThrows(IllegalStateException.class, BuildCoordinator::fromSystemProperties);
+            System.setProperty("ci.agents.token", "secret");
+            coordinator = BuildCoordinator.fromSystemProperties();
+            assertNotNull(coordinator);
+        } finally {
+            System.clearProperty("ci.agents");
+            System.clearProperty("ci.agents.token");
+        }
+    }
+
+    @Test
+    public void testNoJobToLease() throws Exception {
+        coordinator = new BuildCoordinator(50, 200, 100, 3, null);
+        assertNull(coordinator.lease("agent-1"));
+    }
+
+    @Test
+    public void testJobOfDeadAgentIsLeasedAgain() throws Exception {
+        coordinator = new BuildCoordinator(50, 200, 5000, 3, null);
+        CompletableFuture<BuildCoordinator.Outcome> outcome = offer(job(1, "abc"));
+        String dead = coordinator.lease("dead").getString("lease");
+        assertTrue(coordinator.log(dead, List.of("half of the build")));
+
+        // no heartbeat from the dead agent: the job is leased again once its lease expires
+        JSONObject lease = coordinator.lease("alive");
+        assertNotNull(lease);
+        assertEquals(1, lease.getLong("job"));
+        assertTrue(log.get(log.size() - 2).startsWith("[CI] Lost agent dead, no heartbeat for "));
+        assertEquals("[CI] Build leased to agent alive (attempt 2)", log.get(log.size() - 1));
+
+        // the dead agent coming back is told to stop
+        assertFalse(coordinator.heartbeat(dead));
+        assertFalse(coordinator.log(dead, List.of("late line")));
+        assertFalse(coordinator.complete(dead, passed()));
+        assertTrue(coordinator.complete(lease.getString("lease"), passed()));
+        assertEquals("alive", outcome.get(5, TimeUnit.SECONDS).getAgent());
+        assertFalse(log.contains("late line"));
+        assertEquals(2, leased.get());
+    }
+
+    @Test
+    public void testHeartbeatsKeepTheLease() throws Exception {
+        coordinator = new BuildCoordinator(50, 200, 5000, 3, null);
+        CompletableFuture<BuildCoordinator.Outcome> outcome = offer(job(1, "abc"));
+        String id = coordinator.lease("agent-1").getString("lease");
+        for (int i = 0; i < 10; i++) {
+            Thread.sleep(50);
+            assertTrue(coordinator.heartbeat(id));
+        }
+        assertTrue(coordinator.complete(id, passed()));
+        assertEquals("agent-1", outcome.get(5, TimeUnit.SECONDS).getAgent());
+        assertEquals(1, leased.get());
+    }
+
+    @Test
+    public void testBuildIsGivenUpAfterMaxAttempts() throws Exception {
+        coordinator = new BuildCoordinator(50, 200, 5000, 1, null);
+        CompletableFuture<BuildCoordinator.Outcome> outcome = offer(job(1, "abc"));
+        assertNotNull(coordinator.lease("dead"));
+        ExecutionException e = assertThrows(ExecutionException.class, () -> outcome.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IOException);
+        assertEquals("Build given up after 1 lost agents", e.getCause().getMessage());
+    }
+
+    @Test
+    public void testAgentErrorFailsTheBuild() throws Exception {
+        coordinator = new BuildCoordinator(50, 200, 5000, 3, null);
+        CompletableFuture<BuildCoordinator.Outcome> outcome = offer(job(1, "abc"));
+        String id = coordinator.lease("agent-1").getString("lease");
+        assertTrue(coordinator.complete(id, new JSONObject().put("error", "disk full")));
+        ExecutionException e = assertThrows(ExecutionException.class, () -> outcome.get(5, TimeUnit.SECONDS));
+        assertEquals("Agent agent-1 failed to build: disk full", e.getCause().getMessage());
+    }
+
+    @Test
+    public void testInvalidResultFailsTheBuild() throws Exception {
+        coordinator = new BuildCoordinator(50, 200, 5000, 3, null);
+        CompletableFuture<BuildCoordinator.Outcome> outcome = offer(job(1, "abc"));
+        String id = coordinator.lease("agent-1").getString("lease");
+        JSONObject invalid = passed();
+        invalid.getJSONArray("tests").getJSONArray(0).put(0, "GREEN");
+        assertThrows(IllegalArgumentException.class, () -> coordinator.complete(id, invalid));
+        ExecutionException e = assertThrows(ExecutionException.class, () -> outcome.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause().getMessage().startsWith("Agent agent-1 sent an invalid result: "));
+        // the lease is over, the agent is told to stop
+        assertFalse(coordinator.heartbeat(id));
+        assertEquals(0, coordinator.getLeasedCount());
+
+        CompletableFuture<BuildCoordinator.Outcome> next = offer(job(2, "def"));
+        String nextId = coordinator.lease("agent-1").getString("lease");
+        JSONObject noStatus = passed();
+        noStatus.remove("compile_status");
+        assertThrows(JSONException.class, () -> coordinator.complete(nextId, noStatus));
+        assertThrows(ExecutionException.class, () -> next.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCancelledJobIsWithdrawn() throws Exception {
+        coordinator = new BuildCoordinator(50, 200, 200, 3, null);
+        BuildJob job = job(1, "abc");
+        CompletableFuture<Exception> stopped = new CompletableFuture<>();
+        Thread worker = new Thread(() -> {
+            try {
+                coordinator.build(job, log::add, leased::incrementAndGet);
+            } catch (Exception e) {
+                stopped.complete(e);
+            }
+        });
+        worker.start();
+        String id = coordinator.lease("agent-1").getString("lease");
+
+        // a newer push interrupts the worker waiting for the agent
+        worker.interrupt();
+        assertTrue(stopped.get(5, TimeUnit.SECONDS) instanceof InterruptedException);
+        assertFalse(coordinator.heartbeat(id));
+        assertFalse(coordinator.log(id, Collections.singletonList("line")));
+        assertEquals(0, coordinator.getLeasedCount());
+        assertNull(coordinator.lease("agent-1"));
+    }
+
+    @Test
+    public void testJobsAreLeasedInOrder() throws Exception {
+        coordinator = new BuildCoordinator(50, 200, 5000, 3, null);
+        offer(job(1, "first"));
+        while (coordinator.getPendingCount() == 0) {
+            Thread.sleep(10);
+        }
+        offer(job(2, "second"));
+        while (coordinator.getPendingCount() == 1) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, coordinator.lease("agent-1").getLong("job"));
+        Thread.sleep(5);
+        assertEquals(2, coordinator.lease("agent-2").getLong("job"));
+        JSONObject json = coordinator.toJson();
+        assertEquals(0, json.getInt("pending"));
+        assertEquals(2, json.getJSONArray("leases").length());
+        assertEquals("agent-1", json.getJSONArray("leases").getJSONObject(0).getString("agent"));
+    }
+}
@@ -0,0 +1,107 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+public class BuildHistoryTest {
+
+    @TempDir
+    Path tempDir;
+
+    @BeforeEach
+    public void createTemplate() throws Exception {
+        Files.createDirectories(tempDir.resolve("builds"));
+        Files.writeString(tempDir.resolve("builds/_template.html"), "<p>$commit_id $build_date</p><pre>$build_logs</pre>");
+    }
+
+    @Test
+    public void testIndexIsPaginatedNewestFirst() throws Exception {
+        BuildHistory history = new BuildHistory(tempDir.toFile());
+        for (int i = 1; i <= 5; i++) {
+            history.save("commit" + i, "logs " + i, "day " + i);
+        }
+
+        assertEquals("<p>commit2 day 2</p><pre>logs 2</pre>", Files.readString(tempDir.resolve("builds/commit2.html")));
+        String first = history.renderIndex(1, 2);
+        assertTrue(first.indexOf("commit5") < first.indexOf("commit4"));
+        assertFalse(first.contains("commit3"));
+        assertTrue(first.contains("Page 1 of 3"));
+        String last = history.renderIndex(3, 2);
+        assertTrue(last.contains("builds/commit1.html"));
+        assertTrue(last.contains("?page=2"));
+    }
+
+    @Test
+    public void testRecordsSurviveRestartAndTornRecordIsDropped() throws Exception {
+        new BuildHistory(tempDir.toFile()).save("commit1", "logs", "day 1");
+        Files.writeString(tempDir.resolve(BuildHistory.RECORDS), "{\"commit_id\":\"comm", StandardOpenOption.APPEND);
+
+        BuildHistory history = new BuildHistory(tempDir.toFile());
+        assertEquals(1, history.size());
+        history.save("commit2", "logs", "day 2");
+        List<JSONObject> records = history.newest(0, 10);
+        assertEquals("commit2", records.get(0).getString("commit_id"));
+        assertEquals("commit1", records.get(1).getString("commit_id"));
+    }
+
+    @Test
+    public void testConcurrentSavesAreAllKept() throws Exception {
+        BuildHistory history = new BuildHistory(tempDir.toFile());
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 50; i++) {
+                    try {
+                        history.save("commit-" + thread + "-" + i, "logs", "today");
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(200, history.size());
+        assertEquals(200, new BuildHistory(tempDir.toFile()).size());
+    }
+
+    @Test
+    public void testLegacyIndexIsImported() throws Exception {
+        Files.writeString(tempDir.resolve("index.html"), "<html><body><h1>Build History</h1>"
+                + "<a href=\"builds/abc.html\">abc | Wed Feb 14 17:23:29 CET 2024</a><br></body></html>");
+
+        BuildHistory history = new BuildHistory(tempDir.toFile());
+        JSONObject record = history.newest(0, 1).get(0);
+        assertEquals("abc", record.getString("commit_id"));
+        assertEquals("Wed Feb 14 17:23:29 CET 2024", record.getString("build_date"));
+    }
+
+    @Test
+    public void testTimelineIsKept() throws Exception {
+        Files.writeString(tempDir.resolve("builds/_template.html"), "<pre>$build_timeline</pre>");
+        JSONArray timeline = new JSONArray()
+                .put(new JSONObject().put("stage", "checkout").put("start", 1000).put("millis", 1500))
+                .put(new JSONObject().put("stage", "test").put("start", 2500).put("millis", 30000));
+
+        BuildHistory history = new BuildHistory(tempDir.toFile());
+        history.save("commit1", new ByteArrayInputStream(new byte[0]), "today", timeline);
+
+        assertEquals("<pre>checkout: 1.5 s\ntest: 30.0 s</pre>", Files.readString(tempDir.resolve("builds/commit1.html")));
+        JSONArray stages = history.newest(0, 1).get(0).getJSONArray("timeline");
+        assertEquals("test", stages.getJSONObject(1).getString("stage"));
+        assertEquals(30000, stages.getJSONObject(1).getLong("millis"));
+    }
+}
@@ -0,0 +1,53 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class BuildLogTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testOnlyTailIsKeptInMemory() throws Exception {
+        BuildLog log = new BuildLog(tempDir.resolve("logs/build.log").toFile(), 2);
+        log.append("first\nsecond\nthird");
+        log.close();
+
+        assertEquals(Arrays.asList("second", "third"), log.tail());
+        assertEquals("first\nsecond\nthird\n", log.readAll());
+    }
+
+    @Test
+    public void testFollowerReadsWholeLogWhileWritten() throws Exception {
+        BuildLog log = new BuildLog(tempDir.resolve("build.log").toFile(), 0);
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 1000; i++) {
+                log.accept("line " + i);
+            }
+            log.close();
+        });
+        writer.start();
+
+        ByteArrayOutputStream followed = new ByteArrayOutputStream();
+        long offset = 0;
+        while (true) {
+            boolean closed = log.isClosed();
+            long end = log.await(offset, 100);
+            if (end > offset) {
+                followed.write(BuildLog.read(log.getFile(), offset, end));
+                offset = end;
+            } else if (closed) {
+                break;
+            }
+        }
+        writer.join();
+
+        assertEquals(log.readAll(), followed.toString(StandardCharsets.UTF_8));
+        assertTrue(followed.toString(StandardCharsets.UTF_8).endsWith("line 999\n"));
+    }
+}
@@ -0,0 +1,228 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+
+public class BuildQueueTest {
+
+    private static HashMap<String, String> commit(String id) {
+        HashMap<String, String> data = new HashMap<>();
+        data.put("repo_name", "repo");
+        data.put("commit_id", id);
+        return data;
+    }
+
+    private static HashMap<String, String> push(String id, String ref) {
+        HashMap<String, String> data = commit(id);
+        data.put("clone_url", "https://github.com/owner/repo.git");
+        data.put("ref", ref);
+        return data;
+    }
+
+    @Test
+    public void testJobIsBuiltByWorker() throws Exception {
+        CountDownLatch built = new CountDownLatch(1);
+        BuildQueue queue = new BuildQueue(job -> {
+            built.countDown();
+            return true;
+        }, 1, 1, BuildQueue.OverflowPolicy.REJECT);
+
+        BuildJob job = queue.submit(commit("a"));
+        assertNotNull(job);
+        assertTrue(built.await(5, TimeUnit.SECONDS));
+        assertTrue(queue.shutdown(5000));
+        assertEquals(BuildJob.State.SUCCESS, queue.getJob(job.getId()).getState());
+    }
+
+    @Test
+    public void testFullQueueRejectsJob() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        BuildQueue queue = new BuildQueue(job -> release.await(5, TimeUnit.SECONDS), 1, 1, BuildQueue.OverflowPolicy.REJECT);
+
+        assertNotNull(queue.submit(commit("running")));
+        // wait for the worker to take the first job so the second one stays queued
+        while (queue.getActiveCount() == 0) {
+            Thread.sleep(10);
+        }
+        assertNotNull(queue.submit(commit("queued")));
+        assertNull(queue.submit(commit("rejected")));
+        assertEquals(1, queue.getQueueDepth());
+        release.countDown();
+        assertTrue(queue.shutdown(5000));
+    }
+
+    @Test
+    public void testFullQueueDropsOldestJob() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        BuildQueue queue = new BuildQueue(job -> release.await(5, TimeUnit.SECONDS), 1, 1, BuildQueue.OverflowPolicy.DROP_OLDEST);
+
+        assertNotNull(queue.submit(commit("running")));
+        while (queue.getActiveCount() == 0) {
+            Thread.sleep(10);
+        }
+        BuildJob oldest = queue.submit(commit("oldest"));
+        BuildJob newest = queue.submit(commit("newest"));
+        assertNotNull(newest);
+        assertEquals(BuildJob.State.DROPPED, oldest.getState());
+        release.countDown();
+        assertTrue(queue.shutdown(5000));
+        assertEquals(BuildJob.State.SUCCESS, newest.getState());
+    }
+
+    @Test
+    public void testQueuedListenerRunsBeforeTheBuild() throws Exception {
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        BuildQueue queue = new BuildQueue(job -> events.add("built " + job.getId()), 1, 10,
+                BuildQueue.OverflowPolicy.REJECT);
+        queue.onQueued(job -> events.add("queued " + job.getId()));
+
+        for (int i = 0; i < 5; i++) {
+            queue.submit(commit("c" + i));
+        }
+        assertTrue(queue.shutdown(5000));
+        for (long id = 1; id <= 5; id++) {
+            assertTrue(events.indexOf("queued " + id) < events.indexOf("built " + id), events.toString());
+        }
+    }
+
+    @Test
+    public void testAbortedListenerGetsDroppedAndFailedJobs() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> aborted = Collections.synchronizedList(new ArrayList<>());
+        BuildQueue queue = new BuildQueue(job -> {
+            release.await(5, TimeUnit.SECONDS);
+            throw new IllegalStateException("MAVEN_HOME not set");
+        }, 1, 1, BuildQueue.OverflowPolicy.DROP_OLDEST);
+        queue.onAborted(job -> aborted.add(job.getData().get("commit_id") + " " + job.getState() + " " + job.getError()));
+
+        BuildJob running = queue.submit(commit("running"));
+        while (queue.getActiveCount() == 0) {
+            Thread.sleep(10);
+        }
+        queue.submit(commit("oldest"));
+        queue.submit(commit("newest"));
+        release.countDown();
+        assertTrue(queue.shutdown(5000));
+        assertEquals("MAVEN_HOME not set", running.getError());
+        assertEquals(List.of("oldest DROPPED null", "running ERROR MAVEN_HOME not set", "newest ERROR MAVEN_HOME not set"),
+                aborted);
+    }
+
+    @Test
+    public void testWorkspacesAreDistinctPerBuild() {
+        BuildQueue queue = new BuildQueue(job -> true, 1, 2, BuildQueue.OverflowPolicy.REJECT);
+        BuildJob first = queue.submit(commit("545c38c57a26677c764a657fb42f2186c34c8bac"));
+        BuildJob second = queue.submit(commit("545c38c57a26677c764a657fb42f2186c34c8bac"));
+
+        assertNotEquals(first.assignWorkspace("workspaces"), second.assignWorkspace("workspaces"));
+        assertTrue(first.getWorkspace().startsWith("workspaces/repo-545c38c57a26-"));
+    }
+
+    @Test
+    public void testNewPushSupersedesBuildsOfSameBranch() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        List<String> superseded = Collections.synchronizedList(new ArrayList<>());
+        BuildQueue queue = new BuildQueue(job -> {
+            String id = job.getData().get("commit_id");
+            if (id.equals("c1") || id.equals("c2")) {
+                started.countDown();
+                // a cancelled build is interrupted
+                Thread.sleep(10000);
+            }
+            return true;
+        }, 1, 10, BuildQueue.OverflowPolicy.REJECT);
+        queue.onSuperseded((job, newer) -> superseded.add(job.getData().get("commit_id") + ">" + newer.getData().get("commit_id")));
+
+        BuildJob running = queue.submit(push("c1", "refs/heads/main"));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        BuildJob other = queue.submit(push("o1", "refs/heads/other"));
+        BuildJob queued = queue.submit(push("c2", "refs/heads/main"));
+        BuildJob newest = queue.submit(push("c3", "refs/heads/main"));
+        assertTrue(queue.shutdown(5000));
+
+        assertEquals(BuildJob.State.SUPERSEDED, running.getState());
+        assertEquals(BuildJob.State.SUPERSEDED, queued.getState());
+        assertEquals(BuildJob.State.SUCCESS, other.getState());
+        assertEquals(BuildJob.State.SUCCESS, newest.getState());
+        assertTrue(superseded.contains("c1>c2"));
+        assertTrue(superseded.contains("c2>c3"));
+    }
+
+    @Test
+    public void testJournaledJobsAreResumed(@TempDir Path dir) throws Exception {
+        File file = dir.resolve("journal.jsonl").toFile();
+        // the server stopped with job 7 running and job 8 queued
+        try (JobJournal journal = new JobJournal(file, true, 1000)) {
+            journal.accepted(6, commit("done"));
+            journal.finished(6, "SUCCESS");
+            journal.accepted(7, commit("running"));
+            journal.accepted(8, commit("queued"));
+        }
+
+        List<String> built = Collections.synchronizedList(new ArrayList<>());
+        BuildQueue queue = new BuildQueue(job -> built.add(job.getId() + " " + job.getData().get("commit_id")), 1, 10,
+                BuildQueue.OverflowPolicy.REJECT);
+        try (JobJournal journal = new JobJournal(file, true, 1000)) {
+            List<BuildJob> resumed = queue.recover(journal);
+            assertEquals(2, resumed.size());
+            assertTrue(resumed.get(0).isResumed());
+            BuildJob next = queue.submit(commit("new"));
+            assertEquals(9, next.getId());
+            assertTrue(queue.shutdown(5000));
+            assertEquals(List.of("7 running", "8 queued", "9 new"), built);
+            assertEquals(0, journal.getUnfinishedCount());
+        }
+        try (JobJournal journal = new JobJournal(file, true, 1000)) {
+            assertTrue(journal.recovered().isEmpty());
+            assertEquals(9, journal.getMaxId());
+        }
+    }
+
+    @Test
+    public void testJobCrashingTheServerIsGivenUp(@TempDir Path dir) throws Exception {
+        File file = dir.resolve("journal.jsonl").toFile();
+        // job 7 was running each of the 3 times the server stopped, job 8 twice
+        try (JobJournal journal = new JobJournal(file, true, 1000)) {
+            journal.accepted(7, commit("crashing"));
+            journal.accepted(8, commit("unlucky"));
+            for (int i = 0; i < 3; i++) {
+                journal.started(7);
+            }
+            journal.started(8);
+            journal.started(8);
+        }
+
+        List<String> built = Collections.synchronizedList(new ArrayList<>());
+        List<String> aborted = Collections.synchronizedList(new ArrayList<>());
+        BuildQueue queue = new BuildQueue(job -> {
+            // the start is journaled before the build, in case it brings the server down
+            boolean journaled = false;
+            for (String line : Files.readAllLines(file.toPath())) {
+                JSONObject record = new JSONObject(line);
+                journaled |= record.getLong("id") == job.getId() && record.optInt("starts") == 3;
+            }
+            return built.add(job.getId() + " " + journaled);
+        }, 1, 10, BuildQueue.OverflowPolicy.REJECT);
+        queue.onAborted(job -> aborted.add(job.getId() + " " + job.getState() + " " + job.getError()));
+        try (JobJournal journal = new JobJournal(file, true, 1000)) {
+            List<BuildJob> recovered = queue.recover(journal);
+            assertEquals(2, recovered.size());
+            assertEquals(BuildJob.State.ERROR, recovered.get(0).getState());
+            assertEquals(List.of("7 ERROR Given up after 3 attempts, the server stopped during each of them"), aborted);
+            assertTrue(queue.shutdown(5000));
+            assertEquals(List.of("8 true"), built);
+            assertEquals(0, journal.getUnfinishedCount());
+        }
+    }
+}
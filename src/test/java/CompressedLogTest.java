@@ -0,0 +1,131 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.GZIPInputStream;
+
+public class CompressedLogTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static String lines(int count) {
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            log.append("[INFO] Line ").append(i).append(" of the build\n");
+        }
+        return log.toString();
+    }
+
+    @Test
+    public void testRangesSpanningSeveralChunks() throws Exception {
+        String text = lines(50000);
+        File file = tempDir.resolve("logs/build.log.gz").toFile();
+        CompressedLog.write(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)), file);
+        CompressedLog log = CompressedLog.open(file);
+
+        assertTrue(text.length() > 3 * CompressedLog.CHUNK_SIZE);
+        assertEquals(text.length(), log.length());
+        assertEquals(50000, log.lineCount());
+        assertTrue(log.compressedLength() * 10 < log.length());
+
+        int from = CompressedLog.CHUNK_SIZE - 10;
+        int to = 2 * CompressedLog.CHUNK_SIZE + 10;
+        assertEquals(text.substring(from, to), new String(log.read(from, to), StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList("[INFO] Line 49998 of the build", "[INFO] Line 49999 of the build"), log.tail(2));
+        assertEquals(Collections.singletonList("[INFO] Line 12345 of the build"), log.lines(12345, 1));
+    }
+
+    @Test
+    public void testLogMappedInSeveralRegions() throws Exception {
+        String text = lines(50000);
+        File file = tempDir.resolve("build.log.gz").toFile();
+        CompressedLog.write(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)), file);
+        long compressed = CompressedLog.open(file).compressedLength();
+        // as a log of more than 2 GB would be
+        CompressedLog log = CompressedLog.open(file, compressed / 2);
+
+        assertEquals(text, new String(log.read(0, log.length()), StandardCharsets.UTF_8));
+        assertEquals(text.substring(900000, 1000000), new String(log.read(900000, 1000000), StandardCharsets.UTF_8));
+        assertEquals("[INFO] Line 49999 of the build", log.tail(1).get(0));
+        // no region can hold a chunk
+        assertThrows(IOException.class, () -> CompressedLog.open(file, 10));
+    }
+
+    @Test
+    public void testChunkEnds() throws Exception {
+        String text = lines(50000);
+        File file = tempDir.resolve("build.log.gz").toFile();
+        CompressedLog.write(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)), file);
+        CompressedLog log = CompressedLog.open(file);
+
+        StringBuilder read = new StringBuilder();
+        int reads = 0;
+        for (long offset = 0, end; offset < log.length(); offset = end) {
+            end = log.chunkEnd(offset);
+            assertTrue(end > offset);
+            // chunks end on line boundaries
+            assertEquals('\n', text.charAt((int) end - 1));
+            read.append(new String(log.read(offset, end), StandardCharsets.UTF_8));
+            reads++;
+        }
+        assertEquals(text, read.toString());
+        assertEquals((text.length() + CompressedLog.CHUNK_SIZE - 1) / CompressedLog.CHUNK_SIZE, reads);
+        assertEquals(log.length(), log.chunkEnd(log.length()));
+    }
+
+    @Test
+    public void testFileIsPlainGzip() throws Exception {
+        String text = lines(20000) + "no line terminator";
+        File file = tempDir.resolve("build.log.gz").toFile();
+        CompressedLog.write(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)), file);
+
+        try (InputStream in = new GZIPInputStream(new FileInputStream(file))) {
+            assertEquals(text, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        CompressedLog log = CompressedLog.open(file);
+        assertEquals(20001, log.lineCount());
+        assertEquals(Collections.singletonList("no line terminator"), log.tail(1));
+    }
+
+    @Test
+    public void testEmptyLog() throws Exception {
+        File file = tempDir.resolve("empty.log.gz").toFile();
+        CompressedLog.write(new ByteArrayInputStream(new byte[0]), file);
+        CompressedLog log = CompressedLog.open(file);
+
+        assertEquals(0, log.length());
+        assertEquals(0, log.read(0, 10).length);
+        assertTrue(log.tail(10).isEmpty());
+    }
+
+    @Test
+    public void testIndexOfAnotherWriteIsNotUsed() throws Exception {
+        byte[] text = lines(1000).getBytes(StandardCharsets.UTF_8);
+        File file = tempDir.resolve("build.log.gz").toFile();
+        CompressedLog.write(new ByteArrayInputStream(text), file);
+        byte[] oldIndex = Files.readAllBytes(CompressedLog.indexFile(file).toPath());
+
+        // the same log written again: same sizes, another version
+        CompressedLog.write(new ByteArrayInputStream(text), file);
+        assertEquals(text.length, CompressedLog.open(file).length());
+        Files.write(CompressedLog.indexFile(file).toPath(), oldIndex);
+        IOException e = assertThrows(IOException.class, () -> CompressedLog.open(file));
+        assertTrue(e.getMessage().contains("does not match"));
+
+        // the new ".gz" file with the old index of a shorter log
+        CompressedLog.write(new ByteArrayInputStream(lines(10).getBytes(StandardCharsets.UTF_8)), file);
+        Files.write(CompressedLog.indexFile(file).toPath(), oldIndex);
+        assertThrows(IOException.class, () -> CompressedLog.open(file));
+    }
+}
@@ -0,0 +1,136 @@
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+public class HistoryHttpTest {
+
+    @TempDir
+    Path history;
+
+    private Server server;
+    private ContinuousIntegration ci;
+    private String base;
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    @BeforeEach
+    public void startServer() throws Exception {
+        Files.createDirectories(history.resolve("builds"));
+        Files.writeString(history.resolve("builds/_template.html"), "<p>$commit_id</p><pre>$build_logs</pre>");
+        System.setProperty("ci.history", history.toString());
+        try {
+            ci = new ContinuousIntegration();
+        } finally {
+            System.clearProperty("ci.history");
+        }
+        server = new Server(0);
+        server.setHandler(ci);
+        server.start();
+        base = "http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+    }
+
+    @AfterEach
+    public void stopServer() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testBuildPagesAreStaticWithValidatorsAndGzip() throws Exception {
+        assertTrue(ci.saveToBuildHistory("abc123", "first line\nlast line", "today"));
+        String page = Files.readString(history.resolve("builds/abc123.html"));
+        assertTrue(Files.exists(history.resolve("builds/abc123.html.gz")));
+
+        HttpResponse<String> plain = get("/history/builds/abc123.html");
+        assertEquals(200, plain.statusCode(), plain.body());
+        assertEquals(page, plain.body());
+        String etag = plain.headers().firstValue("ETag").orElseThrow();
+        String lastModified = plain.headers().firstValue("Last-Modified").orElseThrow();
+        assertEquals(304, get("/history/builds/abc123.html", "If-None-Match", etag).statusCode());
+        assertEquals(304, get("/history/builds/abc123.html", "If-Modified-Since", lastModified).statusCode());
+
+        HttpResponse<byte[]> gzip = client.send(HttpRequest.newBuilder(URI.create(base + "/history/builds/abc123.html"))
+                .header("Accept-Encoding", "gzip").build(), HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals("gzip", gzip.headers().firstValue("Content-Encoding").orElse(null));
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip.body()))) {
+            assertEquals(page, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testOnlyBuildPagesAreServed() throws Exception {
+        assertTrue(ci.saveToBuildHistory("abc123", "log", "today"));
+        assertEquals(404, get("/history/builds/_template.html").statusCode());
+        assertEquals(404, get("/history/builds/missing.html").statusCode());
+        assertEquals(404, get("/history/builds/").statusCode());
+        assertEquals(404, get("/history/builds.jsonl").statusCode());
+        assertEquals(404, get("/history/builds/../builds.jsonl").statusCode());
+    }
+
+    @Test
+    public void testIndexAndLogsAreRevalidated() throws Exception {
+        assertTrue(ci.saveToBuildHistory("abc123", "log", "today"));
+        HttpResponse<String> index = get("/history/");
+        assertEquals(200, index.statusCode());
+        String etag = index.headers().firstValue("ETag").orElseThrow();
+        assertEquals(304, get("/history/", "If-None-Match", etag).statusCode());
+        assertTrue(ci.saveToBuildHistory("def456", "log", "today"));
+        assertEquals(200, get("/history/", "If-None-Match", etag).statusCode());
+
+        HttpResponse<String> log = get("/history/logs/abc123");
+        assertEquals("log", log.body());
+        assertEquals(304, get("/history/logs/abc123", "If-None-Match",
+                log.headers().firstValue("ETag").orElseThrow()).statusCode());
+    }
+
+    @Test
+    public void testLogRanges() throws Exception {
+        assertTrue(ci.saveToBuildHistory("abc123", "0123456789", "today"));
+        HttpResponse<String> part = get("/history/logs/abc123", "Range", "bytes=2-4");
+        assertEquals(206, part.statusCode());
+        assertEquals("234", part.body());
+        assertEquals("bytes 2-4/10", part.headers().firstValue("Content-Range").orElseThrow());
+        assertEquals("789", get("/history/logs/abc123", "Range", "bytes=-3").body());
+        assertEquals("89", get("/history/logs/abc123", "Range", "bytes=8-").body());
+
+        for (String range : new String[] {"bytes=5-2", "bytes=10-", "bytes=x-", "bytes=2-y", "bytes=-0", "bytes=3"}) {
+            HttpResponse<String> unsatisfiable = get("/history/logs/abc123", "Range", range);
+            assertEquals(416, unsatisfiable.statusCode(), range);
+            assertEquals("bytes */10", unsatisfiable.headers().firstValue("Content-Range").orElseThrow(), range);
+        }
+        assertTrue(ci.saveToBuildHistory("empty", "", "today"));
+        assertEquals(416, get("/history/logs/empty", "Range", "bytes=0-").statusCode());
+        assertEquals(200, get("/history/logs/empty").statusCode());
+    }
+
+    @Test
+    public void testLogTail() throws Exception {
+        assertTrue(ci.saveToBuildHistory("abc123", "one\ntwo\nthree", "today"));
+        assertEquals("two\nthree\n", get("/history/logs/abc123?tail=2").body());
+        assertEquals("one\ntwo\nthree\n", get("/history/logs/abc123?tail=10").body());
+        HttpResponse<String> negative = get("/history/logs/abc123?tail=-5");
+        assertEquals(200, negative.statusCode());
+        assertEquals("", negative.body());
+        assertEquals(400, get("/history/logs/abc123?tail=abc").statusCode());
+    }
+
+    private HttpResponse<String> get(String path, String... headers) throws Exception {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(base + path));
+        if (headers.length > 0) {
+            request.headers(headers);
+        }
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+}
@@ -0,0 +1,159 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class JobJournalTest {
+
+    @TempDir
+    Path dir;
+
+    private static Map<String, String> commit(String id) {
+        HashMap<String, String> data = new HashMap<>();
+        data.put("repo_name", "repo");
+        data.put("commit_id", id);
+        return data;
+    }
+
+    private static List<Long> ids(JobJournal journal) {
+        List<Long> ids = new ArrayList<>();
+        for (JobJournal.Entry entry : journal.recovered()) {
+            ids.add(entry.getId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void testUnfinishedJobsAreRecovered() throws Exception {
+        File file = dir.resolve("journal.jsonl").toFile();
+        try (JobJournal journal = new JobJournal(file, true, 1000)) {
+            assertTrue(journal.recovered().isEmpty());
+            journal.accepted(1, commit("a"));
+            journal.accepted(2, commit("b"));
+            journal.accepted(3, commit("c"));
+            journal.finished(2, "SUCCESS");
+            assertEquals(2, journal.getUnfinishedCount());
+        }
+        try (JobJournal journal = new JobJournal(file, true, 1000)) {
+            assertEquals(List.of(1L, 3L), ids(journal));
+            assertEquals(commit("c"), journal.recovered().get(1).getData());
+            assertEquals(3, journal.getMaxId());
+            // a job finished twice, or unknown, is journaled once
+            journal.finished(1, "FAILURE");
+            journal.finished(1, "FAILURE");
+            journal.finished(42, "SUCCESS");
+        }
+        try (JobJournal journal = new JobJournal(file, true, 1000)) {
+            assertEquals(List.of(3L), ids(journal));
+        }
+    }
+
+    @Test
+    public void testRecordCutShortIsDropped() throws Exception {
+        File file = dir.resolve("journal.jsonl").toFile();
+        try (JobJournal journal = new JobJournal(file, true, 1000)) {
+            journal.accepted(1, commit("a"));
+        }
+        Files.write(file.toPath(), "{\"id\":2,\"data\":{\"commit".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+        try (JobJournal journal = new JobJournal(file, true, 1000)) {
+            assertEquals(List.of(1L), ids(journal));
+            journal.accepted(3, commit("c"));
+        }
+        try (JobJournal journal = new JobJournal(file, true, 1000)) {
+            assertEquals(List.of(1L, 3L), ids(journal));
+        }
+    }
+
+    @Test
+    public void testCompactionKeepsUnfinishedJobsAndLastId() throws Exception {
+        File file = dir.resolve("journal.jsonl").toFile();
+        try (JobJournal journal = new JobJournal(file, false, 2)) {
+            for (long id = 1; id <= 5; id++) {
+                journal.accepted(id, commit("c" + id));
+            }
+            journal.finished(1, "SUCCESS");
+            journal.finished(2, "SUCCESS");
+            // compacted: the last id, then the three unfinished jobs
+            assertEquals(4, Files.readAllLines(file.toPath()).size());
+            journal.finished(3, "SUCCESS");
+            journal.finished(4, "SUCCESS");
+            journal.finished(5, "SUCCESS");
+        }
+        try (JobJournal journal = new JobJournal(file, false, 2)) {
+            assertTrue(journal.recovered().isEmpty());
+            assertEquals(5, journal.getMaxId());
+            assertEquals(1, Files.readAllLines(file.toPath()).size());
+        }
+    }
+
+    @Test
+    public void testStartsAreCountedAcrossRestarts() throws Exception {
+        File file = dir.resolve("journal.jsonl").toFile();
+        try (JobJournal journal = new JobJournal(file, true, 1000)) {
+            journal.accepted(1, commit("a"));
+            journal.accepted(2, commit("b"));
+            journal.started(1);
+            // unknown, not counted
+            journal.started(42);
+        }
+        try (JobJournal journal = new JobJournal(file, true, 1000)) {
+            assertEquals(1, journal.recovered().get(0).getStarts());
+            assertEquals(0, journal.recovered().get(1).getStarts());
+            journal.started(1);
+        }
+        // opening compacts the journal, the count is kept
+        try (JobJournal journal = new JobJournal(file, true, 1000)) {
+            assertEquals(2, journal.recovered().get(0).getStarts());
+            journal.finished(1, "SUCCESS");
+        }
+        try (JobJournal journal = new JobJournal(file, true, 1000)) {
+            assertEquals(List.of(2L), ids(journal));
+        }
+    }
+
+    @Test
+    public void testConcurrentAppendsAreAllWritten() throws Exception {
+        File file = dir.resolve("journal.jsonl").toFile();
+        int threads = 8;
+        int jobs = 100;
+        // compacted while the other threads append
+        try (JobJournal journal = new JobJournal(file, true, 50)) {
+            List<Thread> writers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                long first = t * jobs + 1;
+                writers.add(new Thread(() -> {
+                    try {
+                        for (long id = first; id < first + jobs; id++) {
+                            journal.accepted(id, commit("c" + id));
+                            if (id % 2 == 0) {
+                                journal.finished(id, "SUCCESS");
+                            }
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }));
+            }
+            writers.forEach(Thread::start);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        }
+        try (JobJournal journal = new JobJournal(file, true, 1000)) {
+            List<Long> ids = ids(journal);
+            assertEquals(threads * jobs / 2, ids.size());
+            assertTrue(ids.stream().allMatch(id -> id % 2 == 1));
+            assertEquals(threads * jobs, journal.getMaxId());
+        }
+    }
+}
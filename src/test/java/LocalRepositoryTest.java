@@ -0,0 +1,89 @@
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+public class LocalRepositoryTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testDownloadsAreCounted() {
+        LocalRepository repository = new LocalRepository(tempDir.resolve("shared").toFile(), tempDir.resolve("overlays").toFile(), LocalRepository.Mode.SHARED);
+        String log = "[INFO] Downloading from central: https://repo.maven.apache.org/maven2/junit/junit/4.11/junit-4.11.pom\n"
+                + "[INFO] Downloaded from central: https://repo.maven.apache.org/maven2/junit/junit/4.11/junit-4.11.pom (2.3 kB at 12 kB/s)\n"
+                + "[INFO] Downloaded from central: https://repo.maven.apache.org/maven2/junit/junit/4.11/junit-4.11.jar (1.5 MB at 3 MB/s)\n";
+        LocalRepository.Session first = repository.open(1);
+        log.lines().forEach(first::consumeLine);
+        List<String> buildLog = new ArrayList<>();
+        first.close(true, buildLog::add);
+        assertEquals(List.of("[CI] Downloaded 2 artifacts, 1502300 bytes"), buildLog);
+        LocalRepository.Session second = repository.open(2);
+        second.consumeLine("[INFO] BUILD SUCCESS");
+        second.close(true);
+
+        assertEquals(2, first.getDownloads());
+        assertEquals(2300 + 1500000, first.getBytesDownloaded());
+        JSONObject json = repository.toJson();
+        assertEquals(2, json.getLong("builds"));
+        assertEquals(0.5, json.getDouble("hit_rate"));
+        assertEquals(1502300, json.getLong("bytes_downloaded"));
+    }
+
+    @Test
+    public void testOverlayIsPromotedOnSuccess() throws Exception {
+        File shared = tempDir.resolve("shared").toFile();
+        File overlays = tempDir.resolve("overlays").toFile();
+        LocalRepository repository = new LocalRepository(shared, overlays, LocalRepository.Mode.OVERLAY);
+        LocalRepository.Session session = repository.open(7);
+        Properties props = session.mavenProperties();
+        Path overlay = Path.of(props.getProperty("maven.repo.local"));
+        assertEquals(shared.getAbsolutePath(), props.getProperty("maven.repo.local.tail"));
+
+        Files.createDirectories(overlay.resolve("junit/junit/4.11"));
+        Files.writeString(overlay.resolve("junit/junit/4.11/junit-4.11.jar"), "jar");
+        Files.writeString(overlay.resolve("junit/junit/4.11/junit-4.11.jar.lastUpdated"), "failed");
+        session.close(true);
+
+        assertEquals("jar", Files.readString(shared.toPath().resolve("junit/junit/4.11/junit-4.11.jar")));
+        assertFalse(Files.exists(shared.toPath().resolve("junit/junit/4.11/junit-4.11.jar.lastUpdated")));
+        assertFalse(Files.exists(overlay));
+    }
+
+    @Test
+    public void testBuildWithOverlayReadsSharedRepository() throws Exception {
+        File shared = new File(System.getProperty("user.home"), ".m2/repository");
+        LocalRepository repository = new LocalRepository(shared, tempDir.resolve("overlays").toFile(), LocalRepository.Mode.OVERLAY);
+        LocalRepository.Session session = repository.open(1);
+        BuildResult result = ContinuousIntegration.runMavenBuild("src/test/TestMavenProject/testProject", session::consumeLine,
+                session.mavenProperties());
+        session.close(false);
+
+        assertTrue(result.getTestStatus());
+        assertEquals(0, session.getDownloads());
+    }
+
+    @Test
+    public void testOverlayNeedsMaven39() throws Exception {
+        Path mavenHome = tempDir.resolve("maven");
+        Files.createDirectories(mavenHome.resolve("lib"));
+        Files.createFile(mavenHome.resolve("lib/maven-core-3.8.8.jar"));
+        Files.createFile(mavenHome.resolve("lib/maven-model-3.8.8.jar"));
+
+        assertEquals("3.8.8", LocalRepository.mavenVersion(mavenHome.toFile()));
+        assertNull(LocalRepository.mavenVersion(tempDir.resolve("missing").toFile()));
+        assertEquals(LocalRepository.Mode.SHARED, LocalRepository.supportedMode(LocalRepository.Mode.OVERLAY, "3.8.8"));
+        assertEquals(LocalRepository.Mode.SHARED, LocalRepository.supportedMode(LocalRepository.Mode.OVERLAY, null));
+        assertEquals(LocalRepository.Mode.OVERLAY, LocalRepository.supportedMode(LocalRepository.Mode.OVERLAY, "3.9.0"));
+        assertEquals(LocalRepository.Mode.OVERLAY, LocalRepository.supportedMode(LocalRepository.Mode.OVERLAY, "4.0.0-rc-2"));
+        assertEquals(LocalRepository.Mode.SHARED, LocalRepository.supportedMode(LocalRepository.Mode.SHARED, "3.6.3"));
+    }
+}
@@ -6,6 +6,7 @@ import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
@@ -22,11 +23,20 @@ import org.mockito.Mockito;
 import javax.servlet.http.HttpServletRequest;
 import java.io.StringReader;
 import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.io.BufferedReader;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 import java.io.File; 
+import java.net.ServerSocket;
+import javax.mail.internet.MimeMessage;
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.GreenMailUtil;
+import com.icegreen.greenmail.util.ServerSetup;
 
 public class MavenTest {
 
@@ -113,14 +123,39 @@ public class MavenTest {
     }
 
 
+    @Test
+    public void testSingleInvocationBuildSuccess() throws Exception {
+        BuildResult result = ContinuousIntegration.runMavenBuild("src/test/TestMavenProject/testProject", line -> { });
+        assertTrue(result.getCompileStatus());
+        assertTrue(result.getTestStatus());
+    }
+
+    @Test
+    public void testSingleInvocationBuildTestFailure() throws Exception {
+        StringBuilder log = new StringBuilder();
+        BuildResult result = ContinuousIntegration.runMavenBuild("src/test/TestMavenProject/testProjectFailure", line -> log.append(line).append("\n"));
+        assertTrue(result.getCompileStatus());
+        assertFalse(result.getTestStatus());
+        assertTrue(log.toString().contains("Tests run:"));
+    }
+
+    @Test
+    public void testSingleInvocationBuildCompileFailure() throws Exception {
+        BuildResult result = ContinuousIntegration.runMavenBuild("src/test/TestMavenProject/mvnProjectIncorrect", line -> { });
+        assertFalse(result.getCompileStatus());
+        assertFalse(result.getTestStatus());
+    }
+
     @Test
     public void testUpdateGitHubStatus() throws Exception {
 
         HttpClient httpClientMock = mock(HttpClient.class);
         HttpResponse<Object> httpResponseMock = mock(HttpResponse.class);
 
+        when(httpResponseMock.statusCode()).thenReturn(201);
+        when(httpResponseMock.headers()).thenReturn(HttpHeaders.of(Collections.emptyMap(), (name, value) -> true));
         when(httpResponseMock.body()).thenReturn("{\"state\": \"success\"}");
-        when(httpClientMock.send(any(HttpRequest.class), any())).thenReturn(httpResponseMock);
+        when(httpClientMock.sendAsync(any(HttpRequest.class), any())).thenReturn(CompletableFuture.completedFuture(httpResponseMock));
 
         ContinuousIntegration ci = new ContinuousIntegration(httpClientMock);
 
@@ -128,7 +163,7 @@ public class MavenTest {
 
         assertEquals("success", result);
 
-        verify(httpClientMock).send(any(HttpRequest.class), any());
+        verify(httpClientMock).sendAsync(any(HttpRequest.class), any());
     }
 
     @Test
@@ -157,48 +192,132 @@ public class MavenTest {
             fail("Test failed due to exception: " + e.getMessage());
         }
     }
+
+    @Test
+    public void test_compile_project_timeout() {
+        System.setProperty("ci.build.timeout", "1");
+        try {
+            ContinuousIntegration ci = new ContinuousIntegration();
+            StringBuilder log = new StringBuilder();
+
+            // mvn cannot compile the project within a second, it is killed
+            boolean comp = ci.compileMavenProject("src/test/TestMavenProject/mvnProjectCorrect", line -> log.append(line).append("\n"));
+            assertFalse(comp);
+            assertTrue(log.toString().contains("timed out after 1 seconds"));
+        } finally {
+            System.clearProperty("ci.build.timeout");
+        }
+    }
+
+    @Test
+    public void test_build_timeout_is_reported() throws Exception {
+        BuildResult result = ContinuousIntegration.runMavenBuild("src/test/TestMavenProject/testProject", line -> { },
+                new Properties(), 1);
+        assertTrue(result.isTimedOut());
+        assertFalse(result.getTestStatus());
+
+        System.setProperty("ci.build.timeout", "1");
+        System.setProperty("ci.build.mode", "TWO_PHASE");
+        try {
+            ContinuousIntegration ci = new ContinuousIntegration();
+            assertTrue(ci.buildProject("src/test/TestMavenProject/mvnProjectCorrect", line -> { }).isTimedOut());
+        } finally {
+            System.clearProperty("ci.build.timeout");
+            System.clearProperty("ci.build.mode");
+        }
+
+        // a build failing its tests did not time out, however long it took
+        result = ContinuousIntegration.runMavenBuild("src/test/TestMavenProject/testProjectFailure", line -> { });
+        assertFalse(result.getTestStatus());
+        assertFalse(result.isTimedOut());
+    }
 	
-	@Test
-	public void sendEmailNotificationBuildSuccess() {
-		ContinuousIntegration ci = new ContinuousIntegration();
-		
-		// Mock the request data
+	/**
+	 * Runs a test with the mail account of the server set to a local GreenMail server.
+	 */
+	private static void withMailServer(MailTest test) throws Exception {
+		int port;
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		GreenMail greenMail = new GreenMail(new ServerSetup(port, "127.0.0.1", ServerSetup.PROTOCOL_SMTP));
+		greenMail.setUser("ci@example.com", "ci", "secret");
+		greenMail.start();
+		System.setProperty("ci.mail.host", "127.0.0.1");
+		System.setProperty("ci.mail.port", String.valueOf(port));
+		System.setProperty("ci.mail.user", "ci");
+		System.setProperty("ci.mail.password", "secret");
+		System.setProperty("ci.mail.starttls", "false");
+		System.setProperty("ci.mail.from", "ci@example.com");
+		try {
+			test.run(greenMail);
+		} finally {
+			for (String key : new String[] {"host", "port", "user", "password", "starttls", "from"}) {
+				System.clearProperty("ci.mail." + key);
+			}
+			greenMail.stop();
+		}
+	}
+
+	private interface MailTest {
+		void run(GreenMail greenMail) throws Exception;
+	}
+
+	private static HashMap<String, String> mailRequestData() {
 		HashMap<String, String> requestData = new HashMap<>();
 		requestData.put("commit_id", "ecff3ba2c436e2fa743b149d33b906ed74370620");
 		requestData.put("clone_url", "https://github.com/robinho46/sendMailTestRepo.git");
-		requestData.put("email", "robin.yurt@hotmail.com"); // Replace with the recipient's email address
+		requestData.put("email", "committer@example.com");
+		return requestData;
+	}
 
-		// Call the method and assert the result
-		assertTrue(ci.sendEmailNotification(requestData, true));
+	@Test
+	public void sendEmailNotificationBuildSuccess() throws Exception {
+		assumeTrue(System.getenv("CI_MAIL_USER") == null && System.getenv("CI_MAIL_PASSWORD") == null);
+		withMailServer(greenMail -> {
+			ContinuousIntegration ci = new ContinuousIntegration();
+
+			assertTrue(ci.sendEmailNotification(mailRequestData(), true));
+			MimeMessage[] messages = greenMail.getReceivedMessages();
+			assertEquals(1, messages.length);
+			assertEquals("committer@example.com", messages[0].getAllRecipients()[0].toString());
+			assertTrue(GreenMailUtil.getBody(messages[0]).contains("ecff3ba2c436e2fa743b149d33b906ed74370620"));
+		});
 	}
-	
+
 	@Test
-	public void sendEmailNotificationBuildFailure(){
-		ContinuousIntegration ci = new ContinuousIntegration();
-		
-		// Mock the request data
-		HashMap<String, String> requestData = new HashMap<>();
-		requestData.put("commit_id", "ecff3ba2c436e2fa743b149d33b906ed74370620");
-		requestData.put("clone_url", "https://github.com/robinho46/sendMailTestRepo.git");
-		requestData.put("email", "robin.yurt@hotmail.com"); // Replace with the recipient's email address
+	public void sendEmailNotificationBuildFailure() throws Exception {
+		assumeTrue(System.getenv("CI_MAIL_USER") == null && System.getenv("CI_MAIL_PASSWORD") == null);
+		withMailServer(greenMail -> {
+			ContinuousIntegration ci = new ContinuousIntegration();
+
+			assertTrue(ci.sendEmailNotification(mailRequestData(), false));
+			assertEquals(1, greenMail.getReceivedMessages().length);
+		});
+	}
 
-		// Call the method and assert the result
-		assertTrue(ci.sendEmailNotification(requestData, false));
+	@Test
+	public void sendEmailNotificationBuildWithCommitMessage() throws Exception {
+		assumeTrue(System.getenv("CI_MAIL_USER") == null && System.getenv("CI_MAIL_PASSWORD") == null);
+		withMailServer(greenMail -> {
+			ContinuousIntegration ci = new ContinuousIntegration();
+			HashMap<String, String> requestData = mailRequestData();
+			requestData.put("commit_message", "added a main.cpp file for fun :D");
+
+			assertTrue(ci.sendEmailNotification(requestData, false));
+			MimeMessage[] messages = greenMail.getReceivedMessages();
+			assertEquals(1, messages.length);
+			assertTrue(GreenMailUtil.getBody(messages[0]).contains("added a main.cpp file for fun :D"));
+		});
 	}
-	
+
 	@Test
-	public void sendEmailNotificationBuildWithCommitMessage(){
+	public void sendEmailNotificationWithoutAccount() {
+		assumeTrue(System.getenv("CI_MAIL_USER") == null && System.getenv("CI_MAIL_PASSWORD") == null);
 		ContinuousIntegration ci = new ContinuousIntegration();
-		
-		// Mock the request data
-		HashMap<String, String> requestData = new HashMap<>();
-		requestData.put("commit_id", "ecff3ba2c436e2fa743b149d33b906ed74370620");
-		requestData.put("clone_url", "https://github.com/robinho46/sendMailTestRepo.git");
-		requestData.put("email", "robin.yurt@hotmail.com"); // Replace with the recipient's email address
-		requestData.put("commit_message", "added a main.cpp file for fun :D");
-		
-		// Call the method and assert the result
-		assertTrue(ci.sendEmailNotification(requestData, false));
+
+		// no account, no email
+		assertFalse(ci.sendEmailNotification(mailRequestData(), true));
 	}
 
 
@@ -0,0 +1,75 @@
+import org.json.JSONArray;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Collections;
+
+public class MetricsTest {
+
+    @Test
+    public void testStageHistogram() {
+        Metrics metrics = new Metrics();
+        metrics.observe("compile", 700);
+        metrics.observe("compile", 20000);
+
+        String text = metrics.render();
+        assertTrue(text.contains("# TYPE ci_stage_duration_seconds histogram\n"));
+        assertTrue(text.contains("ci_stage_duration_seconds_bucket{stage=\"compile\",le=\"0.5\"} 0\n"));
+        assertTrue(text.contains("ci_stage_duration_seconds_bucket{stage=\"compile\",le=\"1.0\"} 1\n"));
+        assertTrue(text.contains("ci_stage_duration_seconds_bucket{stage=\"compile\",le=\"30.0\"} 2\n"));
+        assertTrue(text.contains("ci_stage_duration_seconds_bucket{stage=\"compile\",le=\"+Inf\"} 2\n"));
+        assertTrue(text.contains("ci_stage_duration_seconds_sum{stage=\"compile\"} 20.7\n"));
+        assertTrue(text.contains("ci_stage_duration_seconds_count{stage=\"compile\"} 2\n"));
+    }
+
+    @Test
+    public void testCountersGaugesAndJvm() {
+        Metrics metrics = new Metrics();
+        metrics.countBuild("success");
+        metrics.countBuild("success");
+        metrics.countBuild("timeout");
+        metrics.gauge("ci_queue_depth", "Builds waiting for a worker.", () -> 3);
+
+        String text = metrics.render();
+        assertEquals(2, metrics.buildCount("success"));
+        assertTrue(text.contains("ci_builds_total{outcome=\"success\"} 2\n"));
+        assertTrue(text.contains("ci_builds_total{outcome=\"timeout\"} 1\n"));
+        assertTrue(text.contains("# HELP ci_queue_depth Builds waiting for a worker.\n# TYPE ci_queue_depth gauge\n"
+                + "ci_queue_depth 3\n"));
+        assertTrue(text.contains("jvm_memory_used_bytes{area=\"heap\"} "));
+        assertTrue(text.contains("jvm_threads_current "));
+        assertTrue(text.contains("jvm_gc_collection_seconds_count{gc=\""));
+    }
+
+    @Test
+    public void testTimeline() throws Exception {
+        Metrics metrics = new Metrics();
+        Metrics.Timeline timeline = metrics.timeline();
+        timeline.add("queue_wait", 1000, 1250);
+        timeline.start("compile");
+        timeline.startOnce("test");
+        Thread.sleep(5);
+        timeline.startOnce("test");
+        timeline.end();
+        timeline.end();
+
+        JSONArray stages = timeline.toJson();
+        assertEquals(3, stages.length());
+        assertEquals("queue_wait", stages.getJSONObject(0).getString("stage"));
+        assertEquals(250, stages.getJSONObject(0).getLong("millis"));
+        assertEquals("compile", stages.getJSONObject(1).getString("stage"));
+        assertEquals("test", stages.getJSONObject(2).getString("stage"));
+        assertTrue(stages.getJSONObject(2).getLong("millis") >= 5);
+        assertTrue(metrics.render().contains("ci_stage_duration_seconds_count{stage=\"test\"} 1\n"));
+    }
+
+    @Test
+    public void testTimedChannel() throws Exception {
+        Metrics metrics = new Metrics();
+        NotificationChannel failing = metrics.timed("email", (recipient, notifications) -> {
+            throw new IllegalStateException("SMTP down");
+        });
+        assertThrows(IllegalStateException.class, () -> failing.send("a@example.com", Collections.emptyList()));
+        assertTrue(metrics.render().contains("ci_stage_duration_seconds_count{stage=\"email\"} 1\n"));
+    }
+}
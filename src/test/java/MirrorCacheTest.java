@@ -0,0 +1,64 @@
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class MirrorCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static RevCommit commitFile(Git git, String content) throws Exception {
+        Path file = git.getRepository().getWorkTree().toPath().resolve("file.txt");
+        Files.writeString(file, content);
+        git.add().addFilepattern("file.txt").call();
+        return git.commit().setMessage(content).call();
+    }
+
+    @Test
+    public void testCheckoutFetchesIncrementally() throws Exception {
+        File origin = tempDir.resolve("origin").toFile();
+        MirrorCache cache = new MirrorCache(tempDir.resolve("mirrors").toFile(), Long.MAX_VALUE);
+        try (Git git = Git.init().setDirectory(origin).call()) {
+            RevCommit first = commitFile(git, "first");
+            try (MirrorCache.Lease lease = cache.checkout(origin.getPath(), first.getName(), tempDir.resolve("ws1").toString())) {
+                assertEquals("first", Files.readString(tempDir.resolve("ws1/file.txt")));
+            }
+
+            RevCommit second = commitFile(git, "second");
+            try (MirrorCache.Lease lease = cache.checkout(origin.getPath(), second.getName(), tempDir.resolve("ws2").toString())) {
+                assertEquals("second", Files.readString(tempDir.resolve("ws2/file.txt")));
+                try (Repository checkout = Git.open(tempDir.resolve("ws2").toFile()).getRepository()) {
+                    assertEquals(second.getId(), checkout.resolve("HEAD"));
+                }
+            }
+            // the first checkout is left untouched
+            assertEquals("first", Files.readString(tempDir.resolve("ws1/file.txt")));
+        }
+    }
+
+    @Test
+    public void testUnusedMirrorsAreEvictedOverBudget() throws Exception {
+        File originA = tempDir.resolve("a").toFile();
+        File originB = tempDir.resolve("b").toFile();
+        File mirrors = tempDir.resolve("mirrors").toFile();
+        MirrorCache cache = new MirrorCache(mirrors, 1);
+        try (Git a = Git.init().setDirectory(originA).call(); Git b = Git.init().setDirectory(originB).call()) {
+            RevCommit commitA = commitFile(a, "a");
+            RevCommit commitB = commitFile(b, "b");
+
+            cache.checkout(originA.getPath(), commitA.getName(), tempDir.resolve("wsA").toString()).close();
+            try (MirrorCache.Lease lease = cache.checkout(originB.getPath(), commitB.getName(), tempDir.resolve("wsB").toString())) {
+                // the mirror of b is in use, only the mirror of a could be evicted
+                assertFalse(new File(mirrors, MirrorCache.mirrorName(originA.getPath())).exists());
+                assertTrue(new File(mirrors, MirrorCache.mirrorName(originB.getPath())).exists());
+            }
+        }
+    }
+}
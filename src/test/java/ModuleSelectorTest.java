@@ -0,0 +1,96 @@
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+public class ModuleSelectorTest {
+
+    private static final File MULTI_MODULE_PROJECT = new File("src/test/TestMavenProject/multiModuleProject");
+
+    @Test
+    public void testModules() throws Exception {
+        assertEquals(Arrays.asList("core", "app", "broken"), ModuleSelector.modules(MULTI_MODULE_PROJECT));
+        assertTrue(ModuleSelector.modules(new File("src/test/TestMavenProject/testProject")).isEmpty());
+    }
+
+    @Test
+    public void testAffectedModules() {
+        List<String> modules = Arrays.asList("core", "services", "services/api");
+        assertEquals(Arrays.asList("core", "services/api"), ModuleSelector.affectedModules(modules,
+                Arrays.asList("services/api/src/main/java/Api.java", "core/src/test/java/CoreTest.java")));
+        assertEquals(Arrays.asList("services"), ModuleSelector.affectedModules(modules,
+                Arrays.asList("services/src/main/resources/application.properties")));
+        // the module graph may change
+        assertNull(ModuleSelector.affectedModules(modules, Arrays.asList("core/pom.xml")));
+        assertNull(ModuleSelector.affectedModules(modules, Arrays.asList("pom.xml")));
+        // not in any module, e.g. build configuration
+        assertNull(ModuleSelector.affectedModules(modules, Arrays.asList(".mvn/maven.config")));
+        assertNull(ModuleSelector.affectedModules(modules, Arrays.asList()));
+    }
+
+    @Test
+    public void testSelectComparesWithLastSuccess(@TempDir Path dir) throws Exception {
+        File checkout = dir.toFile();
+        FileUtils.copyDirectory(MULTI_MODULE_PROJECT, checkout);
+        try (Git git = Git.init().setDirectory(checkout).call()) {
+            String base = commit(git, "base");
+            Files.write(checkout.toPath().resolve("app/src/main/java/app/App.java"),
+                    "package app;\npublic class App {}\n".getBytes(StandardCharsets.UTF_8));
+            String appChange = commit(git, "app change");
+            assertEquals(Arrays.asList("app"), ModuleSelector.select(checkout, base, appChange));
+            assertNull(ModuleSelector.select(checkout, null, appChange));
+            assertNull(ModuleSelector.select(checkout, "0123456789012345678901234567890123456789", appChange));
+
+            Files.write(checkout.toPath().resolve("core/pom.xml"),
+                    Files.readString(checkout.toPath().resolve("core/pom.xml")).replace("</project>",
+                            "<packaging>jar</packaging></project>").getBytes(StandardCharsets.UTF_8));
+            String pomChange = commit(git, "pom change");
+            assertNull(ModuleSelector.select(checkout, appChange, pomChange));
+        }
+    }
+
+    @Test
+    public void testLastSuccessIsKeptAcrossRestarts(@TempDir Path dir) {
+        File state = dir.resolve("last_success.properties").toFile();
+        ModuleSelector selector = new ModuleSelector(state);
+        assertNull(selector.lastSuccess("https://example.com/r.git", "refs/heads/main"));
+        selector.recordSuccess("https://example.com/r.git", "refs/heads/main", "c1");
+        selector.recordSuccess("https://example.com/r.git", "refs/heads/feature", "c2");
+        selector.recordSuccess("https://example.com/r.git", null, "c3");
+
+        ModuleSelector restarted = new ModuleSelector(state);
+        assertEquals("c1", restarted.lastSuccess("https://example.com/r.git", "refs/heads/main"));
+        assertEquals("c2", restarted.lastSuccess("https://example.com/r.git", "refs/heads/feature"));
+        assertNull(restarted.lastSuccess("https://example.com/r.git", null));
+    }
+
+    @Test
+    public void testOnlySelectedModulesAreBuilt(@TempDir Path dir) throws Exception {
+        FileUtils.copyDirectory(MULTI_MODULE_PROJECT, dir.toFile());
+        StringBuilder log = new StringBuilder();
+        // app and core, which it depends on, but not the broken module
+        BuildResult result = ContinuousIntegration.runMavenBuild(dir.toString(), line -> log.append(line).append("\n"),
+                new Properties(), 0, Arrays.asList("app"));
+        assertTrue(result.getTestStatus(), log.toString());
+        assertTrue(log.toString().contains("core"));
+        assertFalse(log.toString().contains("Broken.java"));
+
+        assertFalse(ContinuousIntegration.runMavenBuild(dir.toString(), line -> { }, new Properties(), 0, null)
+                .getCompileStatus());
+    }
+
+    private static String commit(Git git, String message) throws Exception {
+        git.add().addFilepattern(".").call();
+        return git.commit().setMessage(message).setAuthor("ci", "ci@example.com")
+                .setCommitter("ci", "ci@example.com").call().name();
+    }
+}
@@ -0,0 +1,203 @@
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.GreenMailUtil;
+import com.icegreen.greenmail.util.ServerSetup;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.SendFailedException;
+import javax.mail.internet.MimeMessage;
+
+public class NotificationDispatcherTest {
+
+    private ServerSetup smtp;
+    private GreenMail greenMail;
+    private EmailChannel channel;
+
+    @BeforeEach
+    public void startSmtpServer() throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        smtp = new ServerSetup(port, "127.0.0.1", ServerSetup.PROTOCOL_SMTP);
+        greenMail = new GreenMail(smtp);
+        greenMail.setUser("ci@example.com", "ci", "secret");
+        greenMail.start();
+        channel = new EmailChannel("127.0.0.1", port, "ci", "secret", false, "ci@example.com", 1);
+    }
+
+    @AfterEach
+    public void stopSmtpServer() {
+        channel.close();
+        greenMail.stop();
+    }
+
+    @Test
+    public void testResultsOfSameCommitterAreSentAsDigest() throws Exception {
+        NotificationDispatcher dispatcher = new NotificationDispatcher(300, channel);
+        try {
+            dispatcher.enqueue(new NotificationDispatcher.Notification("alice@example.com", "c1", "first", true));
+            dispatcher.enqueue(new NotificationDispatcher.Notification("bob@example.com", "c2", "second", false));
+            dispatcher.enqueue(new NotificationDispatcher.Notification("alice@example.com", "c3", "third", false));
+            assertTrue(dispatcher.flush(10000));
+        } finally {
+            dispatcher.close();
+        }
+
+        MimeMessage[] messages = greenMail.getReceivedMessages();
+        assertEquals(2, messages.length);
+        MimeMessage alice = messages[0].getAllRecipients()[0].toString().equals("alice@example.com") ? messages[0] : messages[1];
+        assertEquals("Current state update (2 builds)", alice.getSubject());
+        String body = GreenMailUtil.getBody(alice);
+        assertTrue(body.contains("Commit Id: c1"));
+        assertTrue(body.contains("Commit Id: c3"));
+        // both messages went through the same connection
+        assertEquals(1, channel.connectionCount());
+    }
+
+    @Test
+    public void testConnectionIsReusedThenReopened() throws Exception {
+        List<NotificationDispatcher.Notification> one = Collections.singletonList(
+                new NotificationDispatcher.Notification("alice@example.com", "c1", "first", true));
+        channel.send("alice@example.com", one);
+        channel.send("alice@example.com", one);
+        assertEquals(1, channel.connectionCount());
+
+        // the server goes away, the pooled connection is dropped
+        greenMail.stop();
+        greenMail = new GreenMail(smtp);
+        greenMail.setUser("ci@example.com", "ci", "secret");
+        greenMail.start();
+
+        channel.send("alice@example.com", one);
+        assertEquals(2, channel.connectionCount());
+        assertEquals(1, greenMail.getReceivedMessages().length);
+    }
+
+    @Test
+    public void testRefusedRecipientIsNotSentAgain() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        try (ServerSocket server = new ServerSocket(0)) {
+            // an SMTP server refusing every recipient
+            Thread smtpServer = new Thread(() -> {
+                while (!server.isClosed()) {
+                    try (Socket socket = server.accept();
+                         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                                 StandardCharsets.US_ASCII));
+                         PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+                        out.print("220 localhost\r\n");
+                        out.flush();
+                        for (String line = in.readLine(); line != null; line = in.readLine()) {
+                            String command = line.toUpperCase();
+                            if (command.startsWith("RCPT")) {
+                                attempts.incrementAndGet();
+                                out.print("550 no such user\r\n");
+                            } else if (command.startsWith("QUIT")) {
+                                out.print("221 bye\r\n");
+                                out.flush();
+                                break;
+                            } else {
+                                out.print("250 ok\r\n");
+                            }
+                            out.flush();
+                        }
+                    } catch (IOException e) {
+                        // closed
+                    }
+                }
+            });
+            smtpServer.setDaemon(true);
+            smtpServer.start();
+
+            EmailChannel refusing = new EmailChannel("127.0.0.1", server.getLocalPort(), null, null, false,
+                    "ci@example.com", 1);
+            try {
+                assertThrows(SendFailedException.class, () -> refusing.send("nobody@example.com", Collections.singletonList(
+                        new NotificationDispatcher.Notification("nobody@example.com", "c1", "first", true))));
+            } finally {
+                refusing.close();
+            }
+        }
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void testNoAccountDisablesEmails() {
+        assumeTrue(System.getenv("CI_MAIL_USER") == null && System.getenv("CI_MAIL_PASSWORD") == null);
+        System.clearProperty("ci.mail.user");
+        System.clearProperty("ci.mail.password");
+        assertNull(EmailChannel.fromSystemProperties());
+        System.setProperty("ci.mail.user", "ci@example.com");
+        try {
+            assertNull(EmailChannel.fromSystemProperties());
+            System.setProperty("ci.mail.password", "secret");
+            assertNotNull(EmailChannel.fromSystemProperties());
+        } finally {
+            System.clearProperty("ci.mail.user");
+            System.clearProperty("ci.mail.password");
+        }
+    }
+
+    @Test
+    public void testNotificationsQueuedWhileClosingAreSentOrDropped() throws Exception {
+        List<String> delivered = Collections.synchronizedList(new ArrayList<>());
+        NotificationDispatcher dispatcher = new NotificationDispatcher(0, (recipient, notifications) -> {
+            for (NotificationDispatcher.Notification n : notifications) {
+                delivered.add(n.getCommitId());
+            }
+        });
+        AtomicInteger queued = new AtomicInteger();
+        Thread committers = new Thread(() -> {
+            for (int i = 0; i < 10000; i++) {
+                dispatcher.enqueue(new NotificationDispatcher.Notification("alice@example.com", "c" + i, "m", true));
+                queued.incrementAndGet();
+            }
+        });
+        committers.start();
+        while (queued.get() < 100) {
+            Thread.sleep(1);
+        }
+        dispatcher.close();
+        committers.join();
+
+        // what was queued before the close is sent, nothing is left pending
+        assertTrue(dispatcher.flush(1000));
+        assertFalse(delivered.isEmpty());
+        assertEquals(delivered.size(), new HashSet<>(delivered).size());
+    }
+
+    @Test
+    public void testFailingChannelDoesNotStopDispatcher() throws Exception {
+        List<String> delivered = Collections.synchronizedList(new ArrayList<>());
+        NotificationChannel failing = (recipient, notifications) -> {
+            throw new IllegalStateException("unreachable");
+        };
+        NotificationChannel recording = (recipient, notifications) -> delivered.add(recipient);
+        NotificationDispatcher dispatcher = new NotificationDispatcher(0, failing, recording);
+        try {
+            dispatcher.enqueue(new NotificationDispatcher.Notification("alice@example.com", "c1", "first", true));
+            assertTrue(dispatcher.flush(5000));
+            dispatcher.enqueue(new NotificationDispatcher.Notification("bob@example.com", "c2", "second", true));
+            assertTrue(dispatcher.flush(5000));
+        } finally {
+            dispatcher.close();
+        }
+        assertEquals(List.of("alice@example.com", "bob@example.com"), delivered);
+    }
+}
@@ -0,0 +1,147 @@
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+
+public class PayloadParserTest {
+
+    /**
+     * @param commits   Number of commits pushed.
+     * @return          A push payload shaped like GitHub's, the head commit being the last one.
+     */
+    static String pushPayload(int commits) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"ref\":\"refs/heads/main\",\"before\":\"0000000000000000000000000000000000000000\",")
+                .append("\"after\":\"545c38c57a26677c764a657fb42f2186c34c8bac\",")
+                .append("\"repository\":{\"id\":756123456,\"node_id\":\"R_kgDOLRQ\",\"name\":\"continuous_integration\",")
+                .append("\"full_name\":\"dd2480-group26-2024/continuous_integration\",\"private\":false,")
+                .append("\"owner\":{\"name\":\"dd2480-group26-2024\",\"email\":null,\"login\":\"dd2480-group26-2024\",\"id\":158877011},")
+                .append("\"html_url\":\"https://github.com/dd2480-group26-2024/continuous_integration\",")
+                .append("\"description\":\"A \\\"small\\\" CI server\",\"fork\":false,")
+                .append("\"clone_url\":\"https://github.com/dd2480-group26-2024/continuous_integration.git\",")
+                .append("\"topics\":[],\"size\":120,\"stargazers_count\":0,\"default_branch\":\"main\"},")
+                .append("\"pusher\":{\"name\":\"robin\",\"email\":\"robin.yurt@hotmail.com\"},")
+                .append("\"created\":false,\"deleted\":false,\"forced\":false,\"base_ref\":null,")
+                .append("\"compare\":\"https://github.com/dd2480-group26-2024/continuous_integration/compare/0000...545c\",")
+                .append("\"commits\":[");
+        for (int i = 0; i < commits; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            commit(json, i);
+        }
+        json.append("],\"head_commit\":");
+        commit(json, commits - 1);
+        json.append('}');
+        return json.toString();
+    }
+
+    private static void commit(StringBuilder json, int i) {
+        String id = i == 0 ? "545c38c57a26677c764a657fb42f2186c34c8bac" : String.format("%040x", i);
+        json.append("{\"id\":\"").append(id).append("\",\"tree_id\":\"").append(String.format("%040x", 1000 + i))
+                .append("\",\"distinct\":true,\"message\":\"Commit ").append(i).append("\\n\\nwith a body\",")
+                .append("\"timestamp\":\"2024-02-12T16:47:59+01:00\",")
+                .append("\"url\":\"https://github.com/dd2480-group26-2024/continuous_integration/commit/").append(id).append("\",")
+                .append("\"author\":{\"name\":\"Robin\",\"email\":\"robin.yurt@hotmail.com\",\"username\":\"robin\"},")
+                .append("\"committer\":{\"name\":\"Robin\",\"email\":\"robin.yurt@hotmail.com\",\"username\":\"robin\"},")
+                .append("\"added\":[\"src/main/java/A.java\"],\"removed\":[],")
+                .append("\"modified\":[\"README.md\",\"src/main/java/ContinuousIntegration.java\"]}");
+    }
+
+    @Test
+    public void testParsePushPayload() throws IOException {
+        PushEvent event = PayloadParser.parse(new StringReader(pushPayload(3)));
+        assertEquals("continuous_integration", event.getRepoName());
+        assertEquals("https://github.com/dd2480-group26-2024/continuous_integration.git", event.getCloneUrl());
+        assertEquals("0000000000000000000000000000000000000002", event.getCommitId());
+        assertEquals("robin.yurt@hotmail.com", event.getEmail());
+        assertEquals("2024-02-12T16:47:59+01:00", event.getTimestamp());
+        assertEquals("Commit 2\n\nwith a body", event.getCommitMessage());
+        assertEquals("refs/heads/main", event.getRef());
+    }
+
+    @Test
+    public void testTrailingCommaAndEscapes() throws IOException {
+        String payload = "{\"repository\": {\"clone_url\": \"https://example.com/r.git\", \"name\": \"r\",},"
+                + "\"head_commit\": {\"id\": \"abc\", \"message\": \"caf\\u00e9 \\\"quoted\\\" \\/ done\","
+                + " \"timestamp\": \"t\", \"committer\": {\"email\": \"a@b.c\",}}}";
+        PushEvent event = PayloadParser.parse(new StringReader(payload));
+        assertEquals("caf\u00e9 \"quoted\" / done", event.getCommitMessage());
+        assertEquals("a@b.c", event.getEmail());
+        assertNull(event.getRef());
+        assertFalse(event.toMap().containsKey("ref"));
+    }
+
+    @Test
+    public void testNoHeadCommit() throws IOException {
+        assertNull(PayloadParser.parse(new StringReader("{\"ref\":\"refs/heads/gone\",\"deleted\":true,"
+                + "\"repository\":{\"name\":\"r\",\"clone_url\":\"u\"},\"head_commit\":null}")));
+        assertNull(PayloadParser.parse(new StringReader("{\"zen\":\"Keep it logically awesome.\",\"hook_id\":1}")));
+    }
+
+    @Test
+    public void testMalformedPayload() {
+        assertThrows(IOException.class, () -> PayloadParser.parse(new StringReader("{\"head_commit\": {\"id\": \"abc")));
+        assertThrows(IOException.class, () -> PayloadParser.parse(new StringReader("not json")));
+        assertThrows(IOException.class, () -> PayloadParser.parse(new StringReader(
+                "{\"repository\":{\"name\":\"r\",\"clone_url\":\"u\"},\"head_commit\":{\"id\":\"abc\"}}")));
+    }
+
+    @Test
+    public void testStopsOnceHeadCommitIsRead() throws IOException {
+        // anything after the head commit, even garbage, is left unread
+        String payload = pushPayload(1);
+        payload = payload.substring(0, payload.length() - 1) + ",\"sender\": <not read>";
+        assertNotNull(PayloadParser.parse(new StringReader(payload)));
+    }
+
+    @Test
+    public void testJsonBody() throws IOException {
+        HttpServletRequest request = request("application/json", pushPayload(2).getBytes(StandardCharsets.UTF_8));
+        ContinuousIntegration ci = new ContinuousIntegration();
+        HashMap<String, String> data = ci.processRequestData(request);
+        assertEquals("0000000000000000000000000000000000000001", data.get("commit_id"));
+        assertEquals("refs/heads/main", data.get("ref"));
+        Mockito.verify(request, Mockito.never()).getParameter("payload");
+    }
+
+    @Test
+    public void testFormBody() throws IOException {
+        String body = "other=1&payload=" + URLEncoder.encode(pushPayload(2), StandardCharsets.UTF_8) + "&last=2";
+        HttpServletRequest request = request("application/x-www-form-urlencoded",
+                body.getBytes(StandardCharsets.US_ASCII));
+        PushEvent event = PayloadParser.parse(request);
+        assertEquals("0000000000000000000000000000000000000001", event.getCommitId());
+        assertEquals("Commit 1\n\nwith a body", event.getCommitMessage());
+    }
+
+    @Test
+    public void testMalformedBodyIsAnError() throws IOException {
+        HttpServletRequest request = request("application/json", "{\"head_commit\":".getBytes(StandardCharsets.UTF_8));
+        HashMap<String, String> data = new ContinuousIntegration().processRequestData(request);
+        assertTrue(data.containsKey("error"));
+    }
+
+    private static HttpServletRequest request(String contentType, byte[] body) throws IOException {
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        InputStream in = new ByteArrayInputStream(body);
+        Mockito.when(request.getContentType()).thenReturn(contentType);
+        Mockito.when(request.getInputStream()).thenReturn(new ServletInputStream() {
+            @Override
+            public int read() throws IOException {
+                return in.read();
+            }
+        });
+        return request;
+    }
+}
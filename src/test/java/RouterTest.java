@@ -0,0 +1,62 @@
+import org.eclipse.jetty.server.Request;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+public class RouterTest {
+
+    private final List<String> calls = new ArrayList<>();
+    private final Router router = new Router()
+            .post("/", (path, request, response) -> calls.add("webhook " + path))
+            .get("/metrics", (path, request, response) -> calls.add("metrics " + path))
+            .get("/jobs/*", (path, request, response) -> calls.add("job " + path))
+            .get("/history", (path, request, response) -> calls.add("history root " + path))
+            .get("/history/*", (path, request, response) -> calls.add("history " + path));
+
+    @Test
+    public void testRoutes() throws Exception {
+        assertEquals(HttpServletResponse.SC_OK, dispatch("POST", "/"));
+        assertEquals(HttpServletResponse.SC_OK, dispatch("GET", "/metrics"));
+        assertEquals(HttpServletResponse.SC_OK, dispatch("HEAD", "/jobs/12/log"));
+        assertEquals(HttpServletResponse.SC_OK, dispatch("GET", "/history"));
+        assertEquals(HttpServletResponse.SC_OK, dispatch("GET", "/history/builds/abc.html"));
+        assertEquals(List.of("webhook /", "metrics /metrics", "job /jobs/12/log", "history root /history",
+                "history /history/builds/abc.html"), calls);
+    }
+
+    @Test
+    public void testUnknownPathsAndMethods() throws Exception {
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, dispatch("GET", "/favicon.ico"));
+        // a prefix route does not match the path without its slash
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, dispatch("GET", "/jobs"));
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, dispatch("POST", "/metrics/extra"));
+        assertEquals(HttpServletResponse.SC_METHOD_NOT_ALLOWED, dispatch("GET", "/"));
+        assertEquals(HttpServletResponse.SC_METHOD_NOT_ALLOWED, dispatch("POST", "/metrics"));
+        assertTrue(calls.isEmpty());
+    }
+
+    private int dispatch(String method, String path) throws Exception {
+        Request baseRequest = Mockito.mock(Request.class);
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getMethod()).thenReturn(method);
+        HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        Mockito.when(response.getWriter()).thenReturn(new PrintWriter(new StringWriter()));
+        int[] status = {HttpServletResponse.SC_OK};
+        Mockito.doAnswer(invocation -> status[0] = invocation.getArgument(0)).when(response).setStatus(Mockito.anyInt());
+
+        router.handle(path, baseRequest, request, response);
+        Mockito.verify(baseRequest).setHandled(true);
+        if (status[0] == HttpServletResponse.SC_METHOD_NOT_ALLOWED) {
+            Mockito.verify(response).setHeader(Mockito.eq("Allow"), Mockito.anyString());
+        }
+        return status[0];
+    }
+}
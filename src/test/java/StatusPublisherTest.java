@@ -0,0 +1,146 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class StatusPublisherTest {
+
+    private HttpServer server;
+    private StatusPublisher publisher;
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+    // answers of the stub, by request number, 201 once exhausted
+    private final List<Answer> answers = Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch firstRequestReleased = new CountDownLatch(1);
+    private volatile boolean holdFirstRequest;
+
+    private interface Answer {
+        void send(HttpExchange exchange) throws IOException;
+    }
+
+    @BeforeEach
+    public void startStub() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        AtomicInteger count = new AtomicInteger();
+        server.createContext("/", exchange -> {
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            requests.add(exchange.getRequestURI().getPath() + " " + new JSONObject(body).getString("state"));
+            int n = count.getAndIncrement();
+            try {
+                if (n == 0 && holdFirstRequest) {
+                    firstRequestReleased.await(5, TimeUnit.SECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (n < answers.size()) {
+                answers.get(n).send(exchange);
+            } else {
+                reply(exchange, 201, new JSONObject(body).toString());
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        publisher = new StatusPublisher(HttpClient.newHttpClient(), "token",
+                "http://127.0.0.1:" + server.getAddress().getPort(), 3, 10, Duration.ofSeconds(5));
+    }
+
+    @AfterEach
+    public void stopStub() {
+        publisher.close();
+        server.stop(0);
+    }
+
+    private static void reply(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+        exchange.close();
+    }
+
+    @Test
+    public void testRepositoryIsDerivedFromCloneUrl() {
+        assertEquals("owner/repo", StatusPublisher.repositoryOf("https://github.com/owner/repo.git"));
+        assertEquals("owner/repo", StatusPublisher.repositoryOf("git@github.com:owner/repo.git"));
+        assertEquals("owner/repo", StatusPublisher.repositoryOf("https://github.com/owner/repo"));
+    }
+
+    @Test
+    public void testUpdatesOfSameCommitAreCoalesced() throws Exception {
+        holdFirstRequest = true;
+        CompletableFuture<String> pending = publisher.publish("owner/repo", "abc", "pending", "queued");
+        // wait for the pending state to be in flight
+        while (requests.isEmpty()) {
+            Thread.sleep(10);
+        }
+        CompletableFuture<String> failure = publisher.publish("owner/repo", "abc", "failure", "first");
+        CompletableFuture<String> success = publisher.publish("owner/repo", "abc", "success", "second");
+        firstRequestReleased.countDown();
+
+        assertEquals("pending", pending.get(5, TimeUnit.SECONDS));
+        assertEquals("success", success.get(5, TimeUnit.SECONDS));
+        assertEquals("success", failure.get(5, TimeUnit.SECONDS));
+        assertEquals(List.of("/repos/owner/repo/statuses/abc pending", "/repos/owner/repo/statuses/abc success"), requests);
+        assertEquals(0, publisher.pendingCount());
+    }
+
+    @Test
+    public void testServerErrorsAreRetried() throws Exception {
+        answers.add(exchange -> reply(exchange, 502, "bad gateway"));
+        answers.add(exchange -> {
+            exchange.getResponseHeaders().add("Retry-After", "1");
+            reply(exchange, 429, "slow down");
+        });
+
+        long start = System.nanoTime();
+        assertEquals("success", publisher.publish("owner/repo", "abc", "success", "done").get(5, TimeUnit.SECONDS));
+        assertEquals(3, requests.size());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(1000));
+    }
+
+    @Test
+    public void testExhaustedRateLimitPausesPosts() throws Exception {
+        long reset = System.currentTimeMillis() / 1000 + 2;
+        answers.add(exchange -> {
+            exchange.getResponseHeaders().add("X-RateLimit-Remaining", "0");
+            exchange.getResponseHeaders().add("X-RateLimit-Reset", String.valueOf(reset));
+            reply(exchange, 403, "rate limit exceeded");
+        });
+
+        CompletableFuture<String> first = publisher.publish("owner/repo", "abc", "success", "done");
+        while (requests.isEmpty()) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(200);
+        // the rate limit also holds back the other commits
+        CompletableFuture<String> other = publisher.publish("owner/repo", "def", "failure", "done");
+        assertEquals("failure", other.get(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() >= reset * 1000);
+        assertEquals("success", first.get(5, TimeUnit.SECONDS));
+        assertEquals(3, requests.size());
+    }
+
+    @Test
+    public void testClientErrorsAreNotRetried() throws Exception {
+        answers.add(exchange -> reply(exchange, 422, "invalid state"));
+
+        assertEquals("Error: HTTP 422", publisher.publish("owner/repo", "abc", "bogus", "done").get(5, TimeUnit.SECONDS));
+        assertEquals(1, requests.size());
+    }
+}
@@ -0,0 +1,74 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class SurefireReportsTest {
+
+    @Test
+    public void testMergeReportsOfSeveralDirectories(@TempDir Path dir) throws Exception {
+        Path first = Files.createDirectories(dir.resolve("a"));
+        Path second = Files.createDirectories(dir.resolve("b"));
+        report(first, "com.example.ATest", "<testsuite name=\"com.example.ATest\" time=\"1.5\" tests=\"3\" "
+                + "errors=\"0\" skipped=\"1\" failures=\"1\"><testcase name=\"x\"/></testsuite>");
+        report(second, "com.example.BTest", "<testsuite name=\"com.example.BTest\" time=\"1,234.5\" tests=\"2\" "
+                + "errors=\"1\" skipped=\"0\" failures=\"0\"/>");
+        Files.write(second.resolve("com.example.BTest.txt"), "not a report".getBytes(StandardCharsets.UTF_8));
+
+        SurefireReports.Summary summary = SurefireReports.merge(Arrays.asList(first.toFile(), second.toFile(),
+                dir.resolve("missing").toFile()));
+        assertEquals(2, summary.getSuites().size());
+        assertEquals("com.example.ATest", summary.getSuites().get(0).getName());
+        assertEquals(1500, summary.getSuites().get(0).getTimeMillis());
+        assertEquals(1234500, summary.getSuites().get(1).getTimeMillis());
+        assertEquals("Tests run: 5, Failures: 1, Errors: 1, Skipped: 1", summary.toString());
+        assertFalse(summary.isSuccess());
+    }
+
+    @Test
+    public void testMalformedReport(@TempDir Path dir) throws Exception {
+        File report = report(dir, "com.example.ATest", "<testsuite name=\"com.example.ATest\"");
+        assertThrows(IOException.class, () -> SurefireReports.parse(report));
+        assertEquals(0, SurefireReports.seconds(null));
+    }
+
+    @Test
+    public void testReadTestCases(@TempDir Path dir) throws Exception {
+        File report = report(dir, "com.example.ATest", "<testsuite name=\"com.example.ATest\" tests=\"5\">"
+                + "<testcase name=\"passes\" classname=\"com.example.ATest\" time=\"0.01\">"
+                + "<system-out><![CDATA[lots of output]]></system-out></testcase>"
+                + "<testcase name=\"fails\" classname=\"com.example.ATest\" time=\"0.5\">"
+                + "<failure message=\"expected\" type=\"AssertionError\">stack</failure></testcase>"
+                + "<testcase name=\"throws\" classname=\"com.example.ATest\" time=\"0\"><error/></testcase>"
+                + "<testcase name=\"ignored\" classname=\"com.example.ATest\"><skipped/></testcase>"
+                + "<testcase name=\"rerun\" classname=\"com.example.ATest\" time=\"0.2\">"
+                + "<flakyFailure message=\"once\"/></testcase>"
+                + "</testsuite>");
+        List<SurefireReports.TestCase> cases = new ArrayList<>();
+        SurefireReports.readTestCases(report, cases::add);
+
+        assertEquals(5, cases.size());
+        assertEquals("com.example.ATest#passes", cases.get(0).getId());
+        assertEquals(SurefireReports.Status.PASSED, cases.get(0).getStatus());
+        assertEquals(SurefireReports.Status.FAILED, cases.get(1).getStatus());
+        assertEquals(500, cases.get(1).getTimeMillis());
+        assertEquals(SurefireReports.Status.ERROR, cases.get(2).getStatus());
+        assertEquals(SurefireReports.Status.SKIPPED, cases.get(3).getStatus());
+        assertEquals(SurefireReports.Status.FLAKY, cases.get(4).getStatus());
+        assertFalse(cases.get(4).isFailed());
+    }
+
+    private static File report(Path dir, String name, String xml) throws IOException {
+        Path file = dir.resolve("TEST-" + name + ".xml");
+        Files.write(file, ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" + xml).getBytes(StandardCharsets.UTF_8));
+        return file.toFile();
+    }
+}
@@ -0,0 +1,79 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class TemplateTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static String render(Template template, Map<String, ?> values) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        template.render(values, Channels.newChannel(out));
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testSlotsAreEscaped() throws Exception {
+        Template template = Template.compile("<p>$commit_id costs $5</p><textarea>$build_logs</textarea>",
+                Arrays.asList("commit_id", "build_logs"));
+        Map<String, Object> values = new HashMap<>();
+        values.put("commit_id", "abc");
+        values.put("build_logs", Arrays.asList("[ERROR] expected <int> & got \"String\"", "</textarea> \u00e9 \u2713 'x'"));
+
+        assertEquals("<p>abc costs $5</p><textarea>[ERROR] expected &lt;int&gt; &amp; got &quot;String&quot;\n"
+                + "&lt;/textarea&gt; \u00e9 \u2713 &#39;x&#39;</textarea>", render(template, values));
+        assertEquals("&lt;a href=&quot;x&quot;&gt;&amp;&#39;", Template.escape("<a href=\"x\">&'"));
+    }
+
+    @Test
+    public void testOnlyDeclaredNamesAreSlots() throws Exception {
+        Template template = Template.compile("<script>var $price = $commit; $commit_id $commit_id_2 $commit_idx</script>",
+                Arrays.asList("commit", "commit_id"));
+        Map<String, String> values = new HashMap<>();
+        values.put("commit", "c");
+        values.put("commit_id", "abc");
+        values.put("price", "nothing");
+
+        assertEquals("<script>var $price = c; abc $commit_id_2 $commit_idx</script>", render(template, values));
+    }
+
+    @Test
+    public void testLongValueIsStreamed() throws Exception {
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            log.append("line ").append(i).append(" \ud83d\ude00\n");
+        }
+        Template template = Template.compile("[$build_logs]", Collections.singletonList("build_logs"));
+
+        assertEquals("[" + log + "]", render(template, Collections.singletonMap("build_logs", log.toString())));
+    }
+
+    @Test
+    public void testSourceReloadsOnlyWhenAsked() throws Exception {
+        Path file = tempDir.resolve("template.html");
+        Files.writeString(file, "v1 $x");
+        Template.Source cached = new Template.Source(file, false, Collections.singletonList("x"));
+        Template.Source reloaded = new Template.Source(file, true, Collections.singletonList("x"));
+        cached.get();
+        reloaded.get();
+
+        Files.writeString(file, "v2 $x");
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 10000));
+
+        Map<String, String> values = Collections.singletonMap("x", "y");
+        assertEquals("v1 y", render(cached.get(), values));
+        assertEquals("v2 y", render(reloaded.get(), values));
+    }
+}
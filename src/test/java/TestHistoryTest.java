@@ -0,0 +1,111 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class TestHistoryTest {
+
+    private static final String PROJECT = "https://github.com/owner/project.git";
+
+    @Test
+    public void testBuildsAreRecordedPerProject(@TempDir Path dir) throws Exception {
+        TestHistory history = new TestHistory(dir.resolve("tests").toFile());
+        Path reports = reports(dir.resolve("r1"), "<testcase classname=\"a.ATest\" name=\"one\" time=\"0.2\"/>"
+                + "<testcase classname=\"a.ATest\" name=\"two\" time=\"1.5\"><failure message=\"no\"/></testcase>");
+
+        assertEquals("c1", history.record(PROJECT, "c1", Collections.singletonList(reports.toFile())));
+        // built again
+        assertEquals("c1.2", history.record(PROJECT, "c1", Collections.singletonList(reports.toFile())));
+        assertNull(history.record(PROJECT, "c2", Collections.singletonList(dir.resolve("none").toFile())));
+
+        assertEquals(Arrays.asList("c1", "c1.2"), history.builds(PROJECT));
+        assertTrue(history.builds("https://github.com/owner/other.git").isEmpty());
+        assertEquals("c1.2", history.latestBuild("c1"));
+        assertNull(history.latestBuild("c2"));
+        assertEquals(PROJECT, history.project("c1"));
+        List<SurefireReports.TestCase> cases = history.load("c1");
+        assertEquals(2, cases.size());
+        assertEquals("a.ATest#two", cases.get(1).getId());
+        assertEquals(SurefireReports.Status.FAILED, cases.get(1).getStatus());
+        assertEquals(1500, cases.get(1).getTimeMillis());
+    }
+
+    @Test
+    public void testSlowestAndRegressions() {
+        List<SurefireReports.TestCase> before = Arrays.asList(
+                test("fast", SurefireReports.Status.PASSED, 10),
+                test("slow", SurefireReports.Status.PASSED, 1000),
+                test("broken", SurefireReports.Status.PASSED, 50),
+                test("noise", SurefireReports.Status.PASSED, 10));
+        List<SurefireReports.TestCase> after = Arrays.asList(
+                test("fast", SurefireReports.Status.PASSED, 400),
+                test("slow", SurefireReports.Status.PASSED, 1200),
+                test("broken", SurefireReports.Status.FAILED, 50),
+                test("noise", SurefireReports.Status.PASSED, 30),
+                test("new", SurefireReports.Status.FAILED, 5000));
+
+        assertEquals(Arrays.asList("T#new", "T#slow", "T#fast"),
+                TestHistory.slowest(after, 3).stream().map(SurefireReports.TestCase::getId).toList());
+        List<TestHistory.Regression> regressions = TestHistory.regressions(before, after);
+        assertEquals(2, regressions.size());
+        assertEquals("T#broken", regressions.get(0).getAfter().getId());
+        assertTrue(regressions.get(0).isFailure());
+        // "slow" is only 20% slower and "noise" only 20 ms slower
+        assertEquals("T#fast", regressions.get(1).getAfter().getId());
+        assertFalse(regressions.get(1).isFailure());
+    }
+
+    @Test
+    public void testFlakyTests() {
+        Map<String, Integer> flaky = TestHistory.flaky(Arrays.asList(
+                Arrays.asList(test("flip", SurefireReports.Status.PASSED, 1),
+                        test("broken", SurefireReports.Status.PASSED, 1),
+                        test("rerun", SurefireReports.Status.PASSED, 1)),
+                Arrays.asList(test("flip", SurefireReports.Status.FAILED, 1),
+                        test("broken", SurefireReports.Status.FAILED, 1),
+                        test("rerun", SurefireReports.Status.FLAKY, 1)),
+                Arrays.asList(test("flip", SurefireReports.Status.PASSED, 1),
+                        test("broken", SurefireReports.Status.FAILED, 1),
+                        test("rerun", SurefireReports.Status.PASSED, 1))));
+        assertEquals(Arrays.asList("T#flip", "T#rerun"), List.copyOf(flaky.keySet()));
+        assertEquals(2, flaky.get("T#flip"));
+    }
+
+    @Test
+    public void testReport(@TempDir Path dir) throws Exception {
+        TestHistory history = new TestHistory(dir.resolve("tests").toFile());
+        assertNull(history.renderReport("c1", 10, 20));
+        history.record(PROJECT, "c1", Collections.singletonList(reports(dir.resolve("r1"),
+                "<testcase classname=\"a.ATest\" name=\"one\" time=\"0.2\"/>").toFile()));
+        String first = history.renderReport("c1", 10, 20);
+        assertTrue(first.contains("a.ATest#one"));
+        assertTrue(first.contains("No previous build"));
+
+        history.record(PROJECT, "c2", Collections.singletonList(reports(dir.resolve("r2"),
+                "<testcase classname=\"a.ATest\" name=\"one\" time=\"0.2\"><error type=\"&lt;NPE&gt;\"/></testcase>")
+                .toFile()));
+        String second = history.renderReport("c2", 10, 20);
+        assertTrue(second.contains("Compared with c1"));
+        assertTrue(second.contains("PASSED, 200 ms</td><td>ERROR, 200 ms"));
+        assertTrue(second.contains("Tests run: 1, Failures: 0, Errors: 1, Skipped: 0"));
+    }
+
+    private static SurefireReports.TestCase test(String name, SurefireReports.Status status, long millis) {
+        return new SurefireReports.TestCase("T", name, status, millis);
+    }
+
+    private static Path reports(Path dir, String cases) throws IOException {
+        Files.createDirectories(dir);
+        Files.write(dir.resolve("TEST-a.ATest.xml"), ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<testsuite name=\"a.ATest\">" + cases + "</testsuite>").getBytes(StandardCharsets.UTF_8));
+        return dir;
+    }
+}
@@ -0,0 +1,88 @@
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+public class TestSharderTest {
+
+    private static final File TEST_PROJECT = new File("src/test/TestMavenProject/testProject");
+
+    @Test
+    public void testBalanceLongestClassesFirst() {
+        Map<String, Long> durations = new HashMap<>();
+        durations.put("A", 9000L);
+        durations.put("B", 5000L);
+        durations.put("C", 4000L);
+        durations.put("D", 3000L);
+        durations.put("E", 1000L);
+        List<List<String>> plan = TestSharder.balance(Arrays.asList("A", "B", "C", "D", "E"), durations, 2);
+        assertEquals(Arrays.asList(Arrays.asList("A", "D"), Arrays.asList("B", "C", "E")), plan);
+    }
+
+    @Test
+    public void testBalanceUnknownClassesAndFewClasses() {
+        Map<String, Long> durations = new HashMap<>();
+        durations.put("A", 4000L);
+        durations.put("B", 2000L);
+        // "New" never ran, it counts as the average duration (3s) and goes before B
+        List<List<String>> plan = TestSharder.balance(Arrays.asList("New", "A", "B"), durations, 2);
+        assertEquals(Arrays.asList(Arrays.asList("A"), Arrays.asList("New", "B")), plan);
+        // no empty shards
+        assertEquals(1, TestSharder.balance(Arrays.asList("A"), durations, 4).size());
+    }
+
+    @Test
+    public void testDiscoverAndCanShard() {
+        assertEquals(Arrays.asList("com.testProject.app.AppTest"), TestSharder.discover(TEST_PROJECT));
+        assertTrue(TestSharder.canShard(TEST_PROJECT));
+        assertFalse(TestSharder.canShard(new File("src/test/TestMavenProject/multiModuleProject")));
+    }
+
+    @Test
+    public void testShardsAreMerged(@TempDir Path dir) throws Exception {
+        File project = dir.resolve("project").toFile();
+        FileUtils.copyDirectory(TEST_PROJECT, project, file -> !file.getName().equals("target"));
+        Path tests = project.toPath().resolve("src/test/java/com/testProject/app");
+        Files.write(tests.resolve("OtherTest.java"), ("package com.testProject.app;\n"
+                + "import static org.junit.Assert.assertEquals;\n"
+                + "import org.junit.Test;\n"
+                + "public class OtherTest {\n"
+                + "    @Test public void one() { assertEquals(2, 1 + 1); }\n"
+                + "    @Test public void two() { assertEquals(4, 2 * 2); }\n"
+                + "}\n").getBytes(StandardCharsets.UTF_8));
+
+        TestSharder sharder = new TestSharder(2, dir.resolve("durations").toFile());
+        StringBuilder log = new StringBuilder();
+        BuildResult result = sharder.run(new File(System.getenv("MAVEN_HOME")), "https://example.com/o/p.git",
+                project, line -> log.append(line).append("\n"), new Properties(), 0);
+
+        assertTrue(result.getTestStatus(), log.toString());
+        assertEquals("Tests run: 3, Failures: 0, Errors: 0, Skipped: 0", result.getTestSummary());
+        assertTrue(log.toString().contains("[shard 1] "));
+        assertTrue(log.toString().contains("[shard 2] "));
+        Map<String, Long> durations = sharder.durations("https://example.com/o/p.git");
+        assertTrue(durations.containsKey("com.testProject.app.AppTest"));
+        assertTrue(durations.containsKey("com.testProject.app.OtherTest"));
+    }
+
+    @Test
+    public void testFailingShardFailsTheBuild(@TempDir Path dir) throws Exception {
+        File project = dir.resolve("project").toFile();
+        FileUtils.copyDirectory(new File("src/test/TestMavenProject/testProjectFailure"), project,
+                file -> !file.getName().equals("target"));
+        BuildResult result = new TestSharder(2, dir.resolve("durations").toFile()).run(
+                new File(System.getenv("MAVEN_HOME")), "p", project, line -> { }, new Properties(), 0);
+        assertTrue(result.getCompileStatus());
+        assertFalse(result.getTestStatus());
+    }
+}
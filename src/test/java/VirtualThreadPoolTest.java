@@ -0,0 +1,81 @@
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class VirtualThreadPoolTest {
+
+    @Test
+    public void testPoolOfTheJvm() {
+        ThreadPool pool = VirtualThreadPool.fromSystemProperties();
+        if (Runtime.version().feature() >= 21) {
+            assertTrue(pool instanceof VirtualThreadPool);
+        } else {
+            assertNull(VirtualThreadPool.newVirtualThreadPerTaskExecutor());
+            assertTrue(pool instanceof QueuedThreadPool);
+        }
+    }
+
+    @Test
+    public void testWaitingRequestsDoNotBlockOthers() throws Exception {
+        // a thread per task, as virtual threads would be
+        VirtualThreadPool pool = new VirtualThreadPool(Executors.newCachedThreadPool());
+        CountDownLatch release = new CountDownLatch(1);
+        Server server = new Server(pool);
+        ServerConnector connector = new ServerConnector(server);
+        connector.setPort(0);
+        server.addConnector(connector);
+        server.setHandler(new Router()
+                .get("/wait", (path, request, response) -> {
+                    try {
+                        release.await(30, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    response.setStatus(200);
+                    response.getWriter().print("done");
+                })
+                .get("/now", (path, request, response) -> {
+                    response.setStatus(200);
+                    response.getWriter().print("now");
+                }));
+        server.start();
+        try {
+            String base = "http://localhost:" + connector.getLocalPort();
+            HttpClient client = HttpClient.newHttpClient();
+            List<CompletableFuture<HttpResponse<String>>> waiting = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                waiting.add(client.sendAsync(HttpRequest.newBuilder(URI.create(base + "/wait")).build(),
+                        HttpResponse.BodyHandlers.ofString()));
+            }
+            HttpResponse<String> now = client.send(HttpRequest.newBuilder(URI.create(base + "/now")).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            assertEquals("now", now.body());
+            assertEquals(404, client.send(HttpRequest.newBuilder(URI.create(base + "/favicon.ico")).build(),
+                    HttpResponse.BodyHandlers.ofString()).statusCode());
+            assertTrue(pool.getThreads() > 0);
+            assertFalse(pool.isLowOnThreads());
+
+            release.countDown();
+            for (CompletableFuture<HttpResponse<String>> response : waiting) {
+                assertEquals("done", response.get(30, TimeUnit.SECONDS).body());
+            }
+        } finally {
+            server.stop();
+        }
+        assertTrue(pool.isStopped());
+    }
+}
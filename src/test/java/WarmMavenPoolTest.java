@@ -0,0 +1,57 @@
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Properties;
+
+public class WarmMavenPoolTest {
+
+    @Test
+    public void testJvmIsReusedThenRecycled() throws Exception {
+        String mavenHome = System.getenv("MAVEN_HOME");
+        assertNotNull(mavenHome, "MAVEN_HOME must be set");
+        WarmMavenPool pool = new WarmMavenPool(new File(mavenHome), 2, 1);
+        try {
+            StringBuilder log = new StringBuilder();
+            File project = new File("src/test/TestMavenProject/testProject");
+            assertEquals(0, pool.execute("testProject", project, Arrays.asList("-B", "test"), line -> log.append(line).append("\n")));
+            assertTrue(log.toString().contains("BUILD SUCCESS"));
+            assertEquals(1, pool.idleCount());
+
+            BuildResult result = ContinuousIntegration.runMavenBuild(pool, "testProject",
+                    "src/test/TestMavenProject/testProjectFailure", line -> { }, new Properties());
+            assertTrue(result.getCompileStatus());
+            assertFalse(result.getTestStatus());
+            // the JVM reached its build limit and was not put back in the pool
+            assertEquals(0, pool.idleCount());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testPropertiesOfABuildDoNotLeakIntoTheNext() throws Exception {
+        String mavenHome = System.getenv("MAVEN_HOME");
+        assertNotNull(mavenHome, "MAVEN_HOME must be set");
+        WarmMavenPool pool = new WarmMavenPool(new File(mavenHome), 10, 1);
+        try {
+            File project = new File("src/test/TestMavenProject/testProject");
+            StringBuilder first = new StringBuilder();
+            // runs no test
+            assertEquals(0, pool.execute("testProject", project,
+                    Arrays.asList("-B", "test", "-Dtest=NoSuchTest", "-Dsurefire.failIfNoSpecifiedTests=false"),
+                    line -> first.append(line).append("\n")));
+            assertFalse(first.toString().contains("Tests run: 1"), first.toString());
+
+            StringBuilder second = new StringBuilder();
+            assertEquals(0, pool.execute("testProject", project, Arrays.asList("-B", "test"),
+                    line -> second.append(line).append("\n")));
+            // built by the same JVM, without the -Dtest of the first build
+            assertEquals(1, pool.startedCount());
+            assertTrue(second.toString().contains("Tests run: 1"), second.toString());
+        } finally {
+            pool.close();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.SignatureException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+
+public class WebhookGuardTest {
+
+    @Test
+    public void testSignedJsonBody() throws Exception {
+        WebhookGuard guard = new WebhookGuard("It's a Secret to Everybody", 10, 60000);
+        byte[] body = PayloadParserTest.pushPayload(3).getBytes(StandardCharsets.UTF_8);
+        PushEvent event = guard.parse(request("application/json", body, guard.sign(body)));
+        assertEquals("0000000000000000000000000000000000000002", event.getCommitId());
+    }
+
+    @Test
+    public void testSignedFormBody() throws Exception {
+        WebhookGuard guard = new WebhookGuard("secret", 10, 60000);
+        byte[] body = ("payload=" + URLEncoder.encode(PayloadParserTest.pushPayload(2), StandardCharsets.UTF_8))
+                .getBytes(StandardCharsets.US_ASCII);
+        PushEvent event = guard.parse(request("application/x-www-form-urlencoded", body, guard.sign(body)));
+        assertEquals("0000000000000000000000000000000000000001", event.getCommitId());
+    }
+
+    @Test
+    public void testKnownSignature() {
+        // example of GitHub's documentation on validating webhook deliveries
+        WebhookGuard guard = new WebhookGuard("It's a Secret to Everybody", 10, 60000);
+        assertEquals("sha256=757107ea0eb2509fc211221cce984b8a37570b6d7586c22c46f4379c8b043e17",
+                guard.sign("Hello, World!".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testBadSignatureIsRejected() throws IOException {
+        WebhookGuard guard = new WebhookGuard("secret", 10, 60000);
+        byte[] body = PayloadParserTest.pushPayload(1).getBytes(StandardCharsets.UTF_8);
+        String forged = new WebhookGuard("other", 10, 60000).sign(body);
+        assertThrows(SignatureException.class, () -> guard.parse(request("application/json", body, forged)));
+        assertThrows(SignatureException.class, () -> guard.parse(request("application/json", body, null)));
+        assertThrows(SignatureException.class, () -> guard.parse(request("application/json", body, "sha256=zz")));
+
+        // a body changed after the head commit, which the parser does not read, is detected too
+        byte[] tampered = PayloadParserTest.pushPayload(1).replace("}", "} ").getBytes(StandardCharsets.UTF_8);
+        assertThrows(SignatureException.class, () -> guard.parse(request("application/json", tampered, guard.sign(body))));
+    }
+
+    @Test
+    public void testMalformedPayloadIsToldOnlyToSigners() throws Exception {
+        WebhookGuard guard = new WebhookGuard("secret", 10, 60000);
+        byte[] malformed = "{\"head_commit\": {\"id\": \"abc".getBytes(StandardCharsets.UTF_8);
+        assertThrows(SignatureException.class, () -> guard.parse(request("application/json", malformed,
+                new WebhookGuard("other", 10, 60000).sign(malformed))));
+        assertThrows(IOException.class, () -> guard.parse(request("application/json", malformed, guard.sign(malformed))));
+    }
+
+    @Test
+    public void testUnsignedWithoutSecret() throws Exception {
+        WebhookGuard guard = new WebhookGuard(null, 10, 60000);
+        assertFalse(guard.isVerifying());
+        byte[] body = PayloadParserTest.pushPayload(1).getBytes(StandardCharsets.UTF_8);
+        assertNotNull(guard.parse(request("application/json", body, null)));
+    }
+
+    @Test
+    public void testDuplicatesAreRejected() {
+        WebhookGuard guard = new WebhookGuard(null, 10, 60000);
+        assertTrue(guard.accept("d1", "repo", "c1"));
+        assertTrue(guard.isDuplicateDelivery("d1"));
+        assertFalse(guard.isDuplicateDelivery("d2"));
+        // redelivery
+        assertFalse(guard.accept("d1", "repo", "c1"));
+        // another delivery of the same commit
+        assertFalse(guard.accept("d2", "repo", "c1"));
+        assertFalse(guard.isDuplicateDelivery("d2"));
+        // same commit id in another repository
+        assertTrue(guard.accept("d3", "fork", "c1"));
+        // deliveries without commit are remembered by id only
+        assertTrue(guard.accept("d4", null, null));
+        assertFalse(guard.accept("d4", null, null));
+        // no delivery id
+        assertTrue(guard.accept(null, "repo", "c2"));
+
+        guard.forget("d1", "repo", "c1");
+        assertTrue(guard.accept("d1", "repo", "c1"));
+    }
+
+    @Test
+    public void testEntriesExpireAndAreBounded() {
+        AtomicLong now = new AtomicLong();
+        WebhookGuard guard = new WebhookGuard(null, 3, 1000, now::get);
+        assertTrue(guard.accept("d1", "repo", "c1"));
+        now.set(500);
+        assertTrue(guard.accept("d2", "repo", "c2"));
+        now.set(1000);
+        // d1 expired, d2 not yet
+        assertTrue(guard.accept("d1", "repo", "c1"));
+        assertFalse(guard.accept("d2", "repo", "c2"));
+
+        WebhookGuard.RecentKeys keys = new WebhookGuard.RecentKeys(3, 1000, now::get);
+        for (int i = 0; i < 5; i++) {
+            keys.add("k" + i);
+        }
+        assertEquals(3, keys.size());
+        assertFalse(keys.contains("k1"));
+        assertTrue(keys.contains("k2"));
+    }
+
+    private static HttpServletRequest request(String contentType, byte[] body, String signature) throws IOException {
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        InputStream in = new ByteArrayInputStream(body);
+        Mockito.when(request.getContentType()).thenReturn(contentType);
+        Mockito.when(request.getHeader("X-Hub-Signature-256")).thenReturn(signature);
+        Mockito.when(request.getInputStream()).thenReturn(new ServletInputStream() {
+            @Override
+            public int read() throws IOException {
+                return in.read();
+            }
+        });
+        return request;
+    }
+}
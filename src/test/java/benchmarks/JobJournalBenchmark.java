@@ -0,0 +1,98 @@
+package benchmarks;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ Intake throughput of the JobJournal: each operation journals a job when it is accepted and when it finishes, the two
+ records every build costs, from one thread and from 8 threads receiving webhooks concurrently, whose appends share
+ the fsyncs of a group commit.
+ Run with: mvn -Pbench test-compile exec:exec -Dbench=JobJournalBenchmark
+
+ The journal is in the default package, it is reached through method handles (see PayloadParserBenchmark).
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JobJournalBenchmark {
+
+    /** true to force each batch to disk, as the server does by default ("ci.journal.sync"). */
+    @Param({"true", "false"})
+    public boolean sync;
+
+    private File directory;
+    private AutoCloseable journal;
+    private MethodHandle accepted;
+    private MethodHandle finished;
+    private final AtomicLong nextId = new AtomicLong();
+    private final Map<String, String> data = new HashMap<>();
+
+    @Setup(Level.Iteration)
+    public void openJournal() throws Throwable {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        Class<?> journalClass = Class.forName("JobJournal");
+        directory = Files.createTempDirectory("journal-bench").toFile();
+        journal = (AutoCloseable) lookup.findConstructor(journalClass,
+                MethodType.methodType(void.class, File.class, boolean.class, int.class))
+                .invoke(new File(directory, "journal.jsonl"), sync, 1000);
+        accepted = lookup.findVirtual(journalClass, "accepted", MethodType.methodType(void.class, long.class, Map.class))
+                .bindTo(journal);
+        finished = lookup.findVirtual(journalClass, "finished", MethodType.methodType(void.class, long.class, String.class))
+                .bindTo(journal);
+        data.put("repo_name", "continuous_integration");
+        data.put("clone_url", "https://github.com/dd2480-group26-2024/continuous_integration.git");
+        data.put("commit_id", "545c38c57a26677c764a657fb42f2186c34c8bac");
+        data.put("ref", "refs/heads/main");
+        data.put("email", "someone@example.com");
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteJournal() throws Exception {
+        journal.close();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    private void intake() throws Throwable {
+        long id = nextId.incrementAndGet();
+        accepted.invokeExact(id, data);
+        finished.invokeExact(id, "SUCCESS");
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void singleThread() throws Throwable {
+        intake();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void eightThreads() throws Throwable {
+        intake();
+    }
+}
@@ -0,0 +1,78 @@
+package benchmarks;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ Compares the streaming PayloadParser with building the whole JSONObject of a push payload, as processRequestData did.
+ Run with: mvn -Pbench test-compile exec:exec -Dbench=PayloadParserBenchmark
+
+ JMH does not accept benchmarks in the default package, which cannot be imported from here: the parser and the test
+ payload are reached through method handles.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PayloadParserBenchmark {
+
+    /** Number of commits in the push, GitHub sends at most 20. */
+    @Param({"1", "20"})
+    public int commits;
+
+    private String payload;
+    private MethodHandle parse;
+
+    @Setup
+    public void createPayload() throws Throwable {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        Class<?> test = Class.forName("PayloadParserTest");
+        MethodHandle pushPayload = MethodHandles.privateLookupIn(test, lookup)
+                .findStatic(test, "pushPayload", MethodType.methodType(String.class, int.class));
+        payload = (String) pushPayload.invokeExact(commits);
+        parse = lookup.findStatic(Class.forName("PayloadParser"), "parse",
+                MethodType.methodType(Class.forName("PushEvent"), Reader.class))
+                .asType(MethodType.methodType(Object.class, Reader.class));
+    }
+
+    @Benchmark
+    public Object streaming() throws Throwable {
+        return parse.invokeExact((Reader) new StringReader(payload));
+    }
+
+    @Benchmark
+    public HashMap<String, String> jsonObject() {
+        JSONObject requestBody = new JSONObject(payload);
+        HashMap<String, String> map = new HashMap<>();
+        JSONObject repository = requestBody.getJSONObject("repository");
+        JSONObject headCommit = requestBody.getJSONObject("head_commit");
+        map.put("repo_name", repository.getString("name"));
+        map.put("clone_url", repository.getString("clone_url"));
+        map.put("commit_id", headCommit.getString("id"));
+        map.put("email", headCommit.getJSONObject("committer").getString("email"));
+        map.put("timestamp", headCommit.getString("timestamp"));
+        map.put("commit_message", headCommit.getString("message"));
+        map.put("ref", requestBody.getString("ref"));
+        return map;
+    }
+}